@@ -33,7 +33,8 @@ public enum DisconnectReason {
 	ERROR(5),			// A GET or POST returned an error, or an internal error occurred.
 	CLOSED_REMOTELY(6),	// Remote end point initiated a close.
 	CLIENT_GONE(7),     // Remote end point gone away (browser closed or navigated away)
-	CLOSED(8);			// Locally initiated close succeeded.
+	CLOSED(8),			// Locally initiated close succeeded.
+	SLOW_CONSUMER(9);	// Remote end point did not read fast enough and outbound buffer overflowed.
 
 	private int value;
 
@@ -57,6 +58,8 @@ public enum DisconnectReason {
 			return CLOSED_REMOTELY;
 		case 7:
 			return CLOSED;
+		case 9:
+			return SLOW_CONSUMER;
 		default:
 			return UNKNOWN;
 		}
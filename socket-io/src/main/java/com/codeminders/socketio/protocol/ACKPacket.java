@@ -23,6 +23,10 @@
 package com.codeminders.socketio.protocol;
 
 import com.codeminders.socketio.server.SocketIOProtocolException;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+
+import java.io.IOException;
 
 /**
  * @author Alexander Sova (bird@codeminders.com)
@@ -31,26 +35,86 @@ public abstract class ACKPacket extends SocketIOPacket
 {
     private Object[] args;
 
+    // encoded packet and position of JSON array in it. null once the arguments are decoded
+    private String   rawArgs;
+    private int      rawArgsOffset;
+
     public ACKPacket(Type type, int id, String ns, Object[] args)
     {
         super(type, id, ns);
         this.args = args;
     }
 
+    /**
+     * This constructor suppose to be called by parser. Arguments are decoded on first request.
+     *
+     * @param data encoded packet
+     * @param offset position of JSON array with arguments in {@code data}
+     */
+    protected ACKPacket(Type type, int id, String ns, String data, int offset)
+    {
+        super(type, id, ns);
+        this.rawArgs = data;
+        this.rawArgsOffset = offset;
+    }
+
     @Override
-    protected String encodeArgs() throws SocketIOProtocolException
+    protected void writeArgs(JsonGenerator generator) throws IOException
     {
-        return SocketIOProtocol.toJSON(args);
+        SocketIOProtocol.writeArray(generator, null, getArgs());
     }
 
+    /**
+     * Returns ACK arguments. Arguments of received packet are decoded on first call.
+     *
+     * @return ACK arguments
+     * @throws IllegalArgumentException if the arguments cannot be decoded
+     */
     public Object[] getArgs()
     {
+        if (rawArgs != null)
+        {
+            try
+            {
+                args = SocketIOProtocol.decodeArgs(rawArgs, rawArgsOffset, false, getBinaryAttachments());
+                rawArgs = null;
+            }
+            catch (SocketIOProtocolException e)
+            {
+                throw new IllegalArgumentException("Malformed ACK arguments", e);
+            }
+        }
         return args;
     }
 
     public void setArgs(Object[] args)
     {
         this.args = args;
+        this.rawArgs = null;
+    }
+
+    /**
+     * @return attachments of binary packet, null for other packets
+     */
+    Attachments getBinaryAttachments()
+    {
+        return null;
+    }
+
+    /**
+     * Creates streaming parser over ACK arguments.
+     * The parser is positioned inside the array: next token is the first argument or END_ARRAY.
+     *
+     * @return JSON parser. To be closed by the caller
+     * @throws IOException if the parser cannot be created
+     */
+    public JsonParser getArgsParser() throws IOException
+    {
+        // binary objects are only available in decoded arguments
+        if (rawArgs != null && getBinaryAttachments() == null)
+            return SocketIOProtocol.createArgsParser(rawArgs, rawArgsOffset, false);
+
+        return SocketIOProtocol.createArgsParser(getArgs());
     }
 
 }
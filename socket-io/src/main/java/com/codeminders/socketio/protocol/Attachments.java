@@ -0,0 +1,210 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Alexander Sova (bird@codeminders.com)
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.codeminders.socketio.protocol;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Binary attachments of BINARY_EVENT and BINARY_ACK packets.
+ * <p>
+ * Placeholders {@code {"_placeholder":true,"num":n}} of a received packet are found while its arguments
+ * are decoded. Placeholders of attachments which already arrived are replaced right away, positions of
+ * the others are recorded, so every attachment is put in place in O(1) whenever it arrives.
+ */
+final class Attachments
+{
+    static final String PLACEHOLDER = "_placeholder";
+    static final String NUM         = "num";
+
+    private final List<InputStream> attachments;
+    private int                     expected;
+
+    // position of the placeholder of every attachment: container (Object[], List or Map) and index or key
+    private Object[] containers;
+    private Object[] keys;
+
+    /**
+     * Attachments of a received packet
+     *
+     * @param expected number of attachments to arrive
+     */
+    Attachments(int expected)
+    {
+        this.attachments = new ArrayList<>(expected);
+        this.expected = expected;
+    }
+
+    /**
+     * Attachments extracted from arguments of a packet to be sent
+     */
+    Attachments(List<InputStream> attachments)
+    {
+        this.attachments = attachments;
+    }
+
+    Collection<InputStream> get()
+    {
+        return attachments;
+    }
+
+    boolean isComplete()
+    {
+        return expected == 0;
+    }
+
+    void add(InputStream attachment)
+    {
+        int num = attachments.size();
+        attachments.add(attachment);
+        expected -= 1;
+
+        if (containers != null && num < containers.length && containers[num] != null)
+        {
+            put(containers[num], keys[num], attachment);
+            containers[num] = null;
+            keys[num] = null;
+        }
+    }
+
+    /**
+     * Called for every JSON object decoded from the arguments.
+     *
+     * @param value decoded object
+     * @param container array, list or map the object is going to be put in
+     * @param key index or key of the object in the container
+     * @return attachment if the object is a placeholder of an already received attachment, {@code value} otherwise
+     */
+    Object resolve(Map<?, ?> value, Object container, Object key)
+    {
+        int num = getPlaceholderNum(value);
+        if (num < 0 || num >= attachments.size() + expected)
+            return value;
+
+        if (num < attachments.size())
+            return attachments.get(num);
+
+        if (containers == null)
+        {
+            containers = new Object[attachments.size() + expected];
+            keys = new Object[containers.length];
+        }
+        containers[num] = container;
+        keys[num] = key;
+        return value;
+    }
+
+    /**
+     * Finds placeholders in already decoded arguments. Arguments are walked once.
+     *
+     * @param args decoded arguments
+     */
+    void resolve(Object[] args)
+    {
+        if (args != null)
+            resolveChildren(args);
+    }
+
+    @SuppressWarnings("unchecked")
+    private void resolveChildren(Object container)
+    {
+        if (container instanceof Object[])
+        {
+            Object[] array = (Object[]) container;
+            for (int i = 0; i < array.length; i++)
+                array[i] = resolveChild(array[i], array, i);
+        }
+        else if (container instanceof List)
+        {
+            List<Object> list = (List<Object>) container;
+            for (int i = 0; i < list.size(); i++)
+                list.set(i, resolveChild(list.get(i), list, i));
+        }
+        else if (container instanceof Map)
+        {
+            for (Map.Entry<Object, Object> e : ((Map<Object, Object>) container).entrySet())
+                e.setValue(resolveChild(e.getValue(), container, e.getKey()));
+        }
+    }
+
+    private Object resolveChild(Object value, Object container, Object key)
+    {
+        if (value instanceof Map)
+        {
+            Object resolved = resolve((Map<?, ?>) value, container, key);
+            if (resolved != value)
+                return resolved;
+        }
+        resolveChildren(value);
+        return value;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void put(Object container, Object key, Object value)
+    {
+        if (container instanceof Object[])
+            ((Object[]) container)[(Integer) key] = value;
+        else if (container instanceof List)
+            ((List<Object>) container).set((Integer) key, value);
+        else
+            ((Map<Object, Object>) container).put(key, value);
+    }
+
+    /**
+     * @return attachment number if the object is a placeholder, -1 otherwise
+     */
+    private static int getPlaceholderNum(Map<?, ?> map)
+    {
+        if (!Boolean.TRUE.equals(map.get(PLACEHOLDER)))
+            return -1;
+
+        Object num = map.get(NUM);
+        if (num instanceof Number)
+            return ((Number) num).intValue();
+
+        if (num instanceof String)
+        {
+            try
+            {
+                return Integer.parseInt((String) num);
+            }
+            catch (NumberFormatException e)
+            {
+                return -1;
+            }
+        }
+        return -1;
+    }
+
+    static Map<String, Object> createPlaceholder(int num)
+    {
+        Map<String, Object> map = new LinkedHashMap<>(4);
+        map.put(PLACEHOLDER, true);
+        map.put(NUM, num);
+        return map;
+    }
+}
@@ -25,7 +25,6 @@ package com.codeminders.socketio.protocol;
 import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.LinkedList;
 import java.util.List;
 
 /**
@@ -33,35 +32,49 @@ import java.util.List;
  */
 public class BinaryACKPacket extends ACKPacket implements BinaryPacket
 {
-    private List<InputStream> attachments;
-    private int               number_attachments_expected;
+    private final Attachments attachments;
 
     public BinaryACKPacket(int id, String ns, Object[] args)
     {
-        super(Type.BINARY_ACK, id, ns, null);
+        this(id, ns, args, new ArrayList<InputStream>());
+    }
 
-        attachments = new LinkedList<>();
+    private BinaryACKPacket(int id, String ns, Object[] args, List<InputStream> attachments)
+    {
+        super(Type.BINARY_ACK, id, ns, SocketIOProtocol.extractBinaryObjects(args, attachments));
 
-        setArgs((Object[])SocketIOProtocol.extractBinaryObjects(args, attachments));
+        this.attachments = new Attachments(attachments);
     }
 
     public BinaryACKPacket(int id, String ns, Object[] args, int number_attachments_expected)
     {
         super(Type.BINARY_ACK, id, ns, args);
 
-        this.number_attachments_expected = number_attachments_expected;
-        this.attachments = new ArrayList<>(number_attachments_expected);
+        this.attachments = new Attachments(number_attachments_expected);
+        this.attachments.resolve(args);
     }
 
-    @Override
-    protected String encodeAttachments()
+    BinaryACKPacket(int id, String ns, String data, int offset, int number_attachments_expected)
     {
-        return SocketIOProtocol.encodeAttachments(attachments.size());
+        super(Type.BINARY_ACK, id, ns, data, offset);
+
+        this.attachments = new Attachments(number_attachments_expected);
+    }
+
+    /**
+     * @param args arguments with binary objects already replaced by placeholders
+     * @param attachments binary objects
+     */
+    BinaryACKPacket(int id, String ns, Object[] args, Attachments attachments)
+    {
+        super(Type.BINARY_ACK, id, ns, args);
+
+        this.attachments = attachments;
     }
 
     public Collection<InputStream> getAttachments()
     {
-        return attachments;
+        return attachments.get();
     }
 
     /**
@@ -69,17 +82,23 @@ public class BinaryACKPacket extends ACKPacket implements BinaryPacket
      */
     public boolean isComplete()
     {
-        return number_attachments_expected == 0;
+        return attachments.isComplete();
     }
 
     /**
-     * This method to be called when new attachement arrives to the socket
+     * This method to be called when new attachement arrives to the socket.
+     * The attachment replaces its placeholder in the arguments.
      *
      * @param attachment new attachment
      */
     public void addAttachment(InputStream attachment)
     {
         attachments.add(attachment);
-        number_attachments_expected -= 1;
+    }
+
+    @Override
+    Attachments getBinaryAttachments()
+    {
+        return attachments;
     }
 }
@@ -25,7 +25,6 @@ package com.codeminders.socketio.protocol;
 import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.LinkedList;
 import java.util.List;
 
 /**
@@ -35,8 +34,7 @@ import java.util.List;
  */
 public class BinaryEventPacket extends EventPacket implements BinaryPacket
 {
-    private List<InputStream> attachments;
-    private int               number_attachments_expected;
+    private final Attachments attachments;
 
     /**
      * This constructor suppose to be called by parser when new packet arrived
@@ -50,8 +48,25 @@ public class BinaryEventPacket extends EventPacket implements BinaryPacket
     {
         super(Type.BINARY_EVENT, id, ns, name, args);
 
-        this.number_attachments_expected = number_attachments_expected;
-        this.attachments = new ArrayList<>(number_attachments_expected);
+        this.attachments = new Attachments(number_attachments_expected);
+        this.attachments.resolve(args);
+    }
+
+    /**
+     * This constructor suppose to be called by parser when new packet arrived.
+     * Arguments are decoded on first request.
+     *
+     * @param id packet id. Used for ACK
+     * @param name event name
+     * @param data encoded packet
+     * @param offset position of JSON array with event name and arguments in {@code data}
+     * @param number_attachments_expected number of binary attachment expected to be attached to this packed
+     */
+    BinaryEventPacket(int id, String ns, String name, String data, int offset, int number_attachments_expected)
+    {
+        super(Type.BINARY_EVENT, id, ns, name, data, offset);
+
+        this.attachments = new Attachments(number_attachments_expected);
     }
 
     /**
@@ -65,24 +80,33 @@ public class BinaryEventPacket extends EventPacket implements BinaryPacket
      */
     public BinaryEventPacket(int id, String ns, String name, Object[] args)
     {
-        super(Type.BINARY_EVENT, id, ns, name, null);
+        this(id, ns, name, args, new ArrayList<InputStream>());
+    }
 
-        attachments = new LinkedList<>();
+    private BinaryEventPacket(int id, String ns, String name, Object[] args, List<InputStream> attachments)
+    {
+        super(Type.BINARY_EVENT, id, ns, name, SocketIOProtocol.extractBinaryObjects(args, attachments));
 
-        // We know that extractBinaryObjects does not change the structure of the object,
-        // so we can safely case it to Object[]
-        setArgs((Object[]) SocketIOProtocol.extractBinaryObjects(args, attachments));
+        this.attachments = new Attachments(attachments);
     }
 
-    public Collection<InputStream> getAttachments()
+    /**
+     * @param id packet id
+     * @param ns packet namespace
+     * @param name event name
+     * @param args arguments with binary objects already replaced by placeholders
+     * @param attachments binary objects
+     */
+    BinaryEventPacket(int id, String ns, String name, Object[] args, Attachments attachments)
     {
-        return attachments;
+        super(Type.BINARY_EVENT, id, ns, name, args);
+
+        this.attachments = attachments;
     }
 
-    @Override
-    protected String encodeAttachments()
+    public Collection<InputStream> getAttachments()
     {
-        return SocketIOProtocol.encodeAttachments(attachments.size());
+        return attachments.get();
     }
 
     /**
@@ -90,17 +114,23 @@ public class BinaryEventPacket extends EventPacket implements BinaryPacket
      */
     public boolean isComplete()
     {
-        return number_attachments_expected == 0;
+        return attachments.isComplete();
     }
 
     /**
-     * This method to be called when new attachement arrives to the socket
+     * This method to be called when new attachement arrives to the socket.
+     * The attachment replaces its placeholder in the arguments.
      *
      * @param attachment new attachment
      */
     public void addAttachment(InputStream attachment)
     {
         attachments.add(attachment);
-        number_attachments_expected -= 1;
+    }
+
+    @Override
+    Attachments getBinaryAttachments()
+    {
+        return attachments;
     }
 }
@@ -0,0 +1,58 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Alexander Sova (bird@codeminders.com)
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.codeminders.socketio.protocol;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import java.io.IOException;
+
+/**
+ * CONNECT packet. Since Socket.IO protocol 5 it carries the auth payload from the client
+ * and the socket id from the server.
+ */
+public class ConnectPacket extends SocketIOPacket
+{
+    private final Object data;
+
+    public ConnectPacket(String ns, Object data)
+    {
+        super(Type.CONNECT, ns);
+        this.data = data;
+    }
+
+    /**
+     * @return payload of the packet, null if there is none
+     */
+    public Object getData()
+    {
+        return data;
+    }
+
+    @Override
+    protected void writeArgs(JsonGenerator generator)
+            throws IOException
+    {
+        if (data != null)
+            generator.writeObject(data);
+    }
+}
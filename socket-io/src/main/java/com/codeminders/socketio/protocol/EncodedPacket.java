@@ -0,0 +1,134 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Alexander Sova (bird@codeminders.com)
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.codeminders.socketio.protocol;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Socket.IO packet encoded once and shared by all the connections it is sent to.
+ * <p>
+ * The packet consists of an optional text message followed by binary messages. Depending on the codec
+ * binary messages are attachments of the text one or the whole packet.
+ * Instances are immutable, so the same frame can be queued by any number of connections
+ * without encoding the packet again for every recipient.
+ *
+ * @author Alexander Sova (bird@codeminders.com)
+ * @see PacketCodec
+ */
+public final class EncodedPacket
+{
+    private final EngineIOPacket message;
+    private final List<byte[]>   binaryMessages;
+
+    private volatile String       encodedMessage;
+    private volatile List<byte[]> encodedBinaryMessages;
+
+    /**
+     * @param message        Socket.IO packet encoded as text, null if the packet is sent as binary messages only
+     * @param binaryMessages data of binary messages to be sent after the text one. Must not be modified later
+     */
+    public EncodedPacket(String message, List<byte[]> binaryMessages)
+    {
+        this(message == null ? null : EngineIOProtocol.createMessagePacket(message), binaryMessages);
+    }
+
+    EncodedPacket(EngineIOPacket message, List<byte[]> binaryMessages)
+    {
+        this.message = message;
+        this.binaryMessages = Collections.unmodifiableList(binaryMessages);
+    }
+
+    /**
+     * @return EIO MESSAGE packet carrying the text part of the packet, null if there is none
+     */
+    public EngineIOPacket getMessage()
+    {
+        return message;
+    }
+
+    /**
+     * @return text part of the packet as EIO MESSAGE packet encoded as a text frame, computed on the first call.
+     *         null if there is none
+     */
+    public String getEncodedMessage()
+    {
+        String s = encodedMessage;
+        if (s == null && message != null)
+            encodedMessage = s = EngineIOProtocol.encode(message);
+        return s;
+    }
+
+    /**
+     * @return data of the binary messages. EIO4 WebSocket connections send it as is
+     */
+    public List<byte[]> getBinaryMessages()
+    {
+        return binaryMessages;
+    }
+
+    /**
+     * @return number of binary messages
+     */
+    public int getBinaryMessageCount()
+    {
+        return binaryMessages.size();
+    }
+
+    /**
+     * Creates EIO MESSAGE packets for the binary messages. Every call returns new packets because
+     * binary streams cannot be read twice. The underlying data is shared and not copied.
+     *
+     * @return binary packets in the order they have to be sent
+     */
+    public List<EngineIOPacket> createBinaryPackets()
+    {
+        List<EngineIOPacket> packets = new ArrayList<>(binaryMessages.size());
+        for (byte[] data : binaryMessages)
+            packets.add(EngineIOProtocol.createMessagePacket(new ByteArrayInputStream(data)));
+        return packets;
+    }
+
+    /**
+     * @return binary messages as EIO3 MESSAGE packets encoded as binary frames, computed on the first call
+     */
+    public List<byte[]> getEncodedBinaryMessages()
+    {
+        List<byte[]> frames = encodedBinaryMessages;
+        if (frames == null)
+        {
+            frames = new ArrayList<>(binaryMessages.size());
+            for (byte[] data : binaryMessages)
+            {
+                byte[] frame = new byte[data.length + 1];
+                frame[0] = (byte) EngineIOPacket.Type.MESSAGE.value();
+                System.arraycopy(data, 0, frame, 1, data.length);
+                frames.add(frame);
+            }
+            encodedBinaryMessages = frames = Collections.unmodifiableList(frames);
+        }
+        return frames;
+    }
+}
@@ -22,10 +22,20 @@
  */
 package com.codeminders.socketio.protocol;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.Objects;
 
 /**
+ * Engine.IO packet.
+ * <p>
+ * Binary data could be given as {@code byte[]}, {@link ByteBuffer} or {@link InputStream}.
+ * Arrays and buffers are sent without copying. Streams should be given with their length,
+ * otherwise polling transport has to read them into memory to find it out.
+ *
  * @author Alexander Sova (bird@codeminders.com)
  */
 public class EngineIOPacket
@@ -73,6 +83,11 @@ public class EngineIOPacket
     private Type        type;
     private String      textData;
     private InputStream binaryData;
+    private ByteBuffer  binaryBuffer;
+    private long        binaryLength = -1;
+
+    // UTF-8 encoded text packet including the type digit. text data is decoded from it on request
+    private byte[]      encodedText;
 
     public Type getType()
     {
@@ -81,12 +96,43 @@ public class EngineIOPacket
 
     public String getTextData()
     {
-        return textData;
+        String s = textData;
+        if (s == null && encodedText != null)
+            textData = s = new String(encodedText, 1, encodedText.length - 1, StandardCharsets.UTF_8);
+        return s;
     }
 
+    /**
+     * Returns binary data as a stream. Data given as array or buffer is wrapped in a new stream on every call.
+     *
+     * @return binary data, null for text packets
+     */
     public InputStream getBinaryData()
     {
-        return binaryData;
+        if (binaryBuffer == null)
+            return binaryData;
+
+        ByteBuffer buffer = binaryBuffer;
+        if (buffer.hasArray())
+            return new ByteArrayInputStream(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+
+        return new ByteBufferInputStream(buffer.duplicate());
+    }
+
+    /**
+     * @return binary data given as array or buffer, null otherwise. The returned buffer can be consumed by the caller
+     */
+    public ByteBuffer getBinaryBuffer()
+    {
+        return binaryBuffer == null ? null : binaryBuffer.duplicate();
+    }
+
+    /**
+     * @return length of binary data in bytes, -1 if it is unknown
+     */
+    public long getBinaryLength()
+    {
+        return binaryBuffer != null ? binaryBuffer.remaining() : binaryLength;
     }
 
     public EngineIOPacket(Type type, String data)
@@ -95,11 +141,38 @@ public class EngineIOPacket
         this.textData = data;
     }
 
-    //TODO: support byte[] in addtion to InputStream
     public EngineIOPacket(Type type, InputStream binaryData)
+    {
+        this(type, binaryData, binaryData instanceof ByteArrayInputStream ? ((ByteArrayInputStream) binaryData).available() : -1);
+    }
+
+    /**
+     * @param binaryData binary data
+     * @param length number of bytes to be read from {@code binaryData}, -1 if unknown
+     */
+    public EngineIOPacket(Type type, InputStream binaryData, long length)
     {
         this.type = type;
         this.binaryData = binaryData;
+        this.binaryLength = length;
+    }
+
+    /**
+     * @param binaryData binary data. Not copied, so it must not be modified until the packet is sent
+     */
+    public EngineIOPacket(Type type, byte[] binaryData)
+    {
+        this(type, ByteBuffer.wrap(binaryData));
+    }
+
+    /**
+     * @param binaryData binary data between buffer position and limit. Not copied,
+     *                   so it must not be modified until the packet is sent. Position of the buffer is not changed
+     */
+    public EngineIOPacket(Type type, ByteBuffer binaryData)
+    {
+        this.type = type;
+        this.binaryBuffer = binaryData.slice();
     }
 
     public EngineIOPacket(Type type)
@@ -107,13 +180,58 @@ public class EngineIOPacket
         this(type, "");
     }
 
+    /**
+     * @param encodedText UTF-8 encoded text packet: type digit followed by the data
+     */
+    EngineIOPacket(byte[] encodedText)
+    {
+        this.type = Type.fromInt(encodedText[0] - '0');
+        this.encodedText = encodedText;
+    }
+
+    /**
+     * @return UTF-8 encoded text packet including the type digit, null if the packet was not created from one
+     */
+    byte[] getEncodedText()
+    {
+        return encodedText;
+    }
+
+    /**
+     * Returns size of the packet data to account it in outbound buffers.
+     * It is number of bytes for binary and encoded text packets and number of characters for other text packets.
+     *
+     * @return data size
+     */
+    public int getDataSize()
+    {
+        if (encodedText != null)
+            return encodedText.length - 1;
+
+        if (textData != null)
+            return textData.length();
+
+        long length = getBinaryLength();
+        if (length >= 0)
+            return (int) Math.min(length, Integer.MAX_VALUE);
+
+        try
+        {
+            return binaryData.available();
+        }
+        catch (IOException e)
+        {
+            return 0;
+        }
+    }
+
     @Override
     public String toString()
     {
         return "EngineIOPacket{" +
                 "type=" + type +
-                ", textData='" + textData + '\'' +
-                ", binaryData=" + binaryData +
+                ", textData='" + getTextData() + '\'' +
+                ", binaryData=" + (binaryBuffer != null ? binaryBuffer : binaryData) +
                 '}';
     }
     @Override
@@ -123,13 +241,52 @@ public class EngineIOPacket
         if (o == null || getClass() != o.getClass()) return false;
         EngineIOPacket that = (EngineIOPacket) o;
         return type == that.type &&
-                Objects.equals(textData, that.textData) &&
+                Objects.equals(getTextData(), that.getTextData()) &&
+                Objects.equals(binaryBuffer, that.binaryBuffer) &&
                 Objects.equals(binaryData, that.binaryData);
     }
 
     @Override
     public int hashCode()
     {
-        return Objects.hash(type, textData, binaryData);
+        return Objects.hash(type, getTextData(), binaryBuffer, binaryData);
+    }
+
+    /**
+     * Reads direct buffers. Heap buffers are read via {@link ByteArrayInputStream}.
+     */
+    private static final class ByteBufferInputStream extends InputStream
+    {
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer)
+        {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read()
+        {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len)
+        {
+            if (len == 0)
+                return 0;
+            if (!buffer.hasRemaining())
+                return -1;
+
+            len = Math.min(len, buffer.remaining());
+            buffer.get(b, off, len);
+            return len;
+        }
+
+        @Override
+        public int available()
+        {
+            return buffer.remaining();
+        }
     }
 }
@@ -23,18 +23,24 @@
 package com.codeminders.socketio.protocol;
 
 import com.codeminders.socketio.server.SocketIOProtocolException;
+import com.google.common.io.BaseEncoding;
 import com.google.common.io.ByteStreams;
 
 import java.io.*;
-import java.text.DecimalFormat;
-import java.text.ParsePosition;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
 /**
- * Implementation of Engine.IO Protocol version 3
+ * Implementation of Engine.IO Protocol versions 3 and 4.
+ * <p>
+ * Version 4 polling payloads are text packets separated by {@link #RECORD_SEPARATOR} with binary data
+ * encoded as base64, WebSocket binary frames carry the data without packet type.
  *
  * @author Alexander Sova (bird@codeminders.com)
  */
@@ -46,60 +52,239 @@ public final class EngineIOProtocol
     public static final String BASE64_FLAG = "b64";
     public static final String VERSION     = "EIO";
 
+    public static final int VERSION_3 = 3;
+    public static final int VERSION_4 = 4;
+
+    public static final char RECORD_SEPARATOR = '\u001e';
+    private static final char BINARY_PREFIX    = 'b';
+
+    // text packets of binary payloads are decoded via per-thread buffer.
+    // buffers larger than this are not kept between the calls
+    private static final int MAX_POOLED_BUFFER_SIZE = 64 * 1024;
+
+    private static final ThreadLocal<byte[]> buffers = new ThreadLocal<byte[]>()
+    {
+        @Override
+        protected byte[] initialValue()
+        {
+            return new byte[1024];
+        }
+    };
+
+    /**
+     * Receives packets of a payload as they are decoded
+     */
+    public interface PacketHandler
+    {
+        void onPacket(EngineIOPacket packet) throws IOException;
+    }
+
     private EngineIOProtocol()
     {
     }
 
+    /**
+     * Parses {@code EIO} request parameter. Clients not sending it are treated as version 3 ones.
+     *
+     * @param version value of the parameter, could be null
+     * @return {@link #VERSION_3} or {@link #VERSION_4}
+     * @throws SocketIOProtocolException if the version is not supported
+     */
+    public static int parseVersion(String version)
+            throws SocketIOProtocolException
+    {
+        if (version == null || "3".equals(version))
+            return VERSION_3;
+        if ("4".equals(version))
+            return VERSION_4;
+
+        throw new SocketIOProtocolException("Unsupported EIO protocol version: " + version);
+    }
+
     public static String encode(EngineIOPacket packet)
     {
+        if (packet.getEncodedText() != null)
+            return new String(packet.getEncodedText(), StandardCharsets.UTF_8);
+
         return String.valueOf(packet.getType().value()) + packet.getTextData();
     }
 
     public static void binaryEncode(EngineIOPacket packet, OutputStream os)
             throws IOException
     {
-        if (packet.getBinaryData() != null)
+        ByteBuffer buffer = packet.getBinaryBuffer();
+        if (buffer != null)
+        {
+            writeBinaryHeader(packet, buffer.remaining(), os);
+            if (buffer.hasArray())
+                os.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            else
+            {
+                WritableByteChannel channel = Channels.newChannel(os);
+                while (buffer.hasRemaining())
+                    channel.write(buffer);
+            }
+        }
+        else if (packet.getBinaryData() != null)
         {
-            ByteArrayInputStream bytes;
             InputStream is = packet.getBinaryData();
-            if(is instanceof ByteArrayInputStream)
+            long length = packet.getBinaryLength();
+            if (length < 0)
             {
-                bytes = (ByteArrayInputStream)is;
+                // The protocol requires to send the length before the data, so the stream is read into memory.
+                // Give the length to the packet to avoid it
+                byte[] data = ByteStreams.toByteArray(is);
+                writeBinaryHeader(packet, data.length, os);
+                os.write(data);
             }
             else
             {
-                // Cannot avoid double copy. The protocol requires to send the length before the data
-                //TODO: ask user to provide length? Could be useful to send files
-                ByteArrayOutputStream buffer = new ByteArrayOutputStream();
-                ByteStreams.copy(is, buffer);
-                bytes = new ByteArrayInputStream(buffer.toByteArray());
+                writeBinaryHeader(packet, length, os);
+                if (ByteStreams.copy(ByteStreams.limit(is, length), os) != length)
+                    throw new EOFException("Binary data is shorter than " + length + " bytes");
             }
-            os.write(1); // binary packet
-            os.write(encodeLength(bytes.available() + 1)); // +1 for packet type
-            os.write(255);
-            os.write(packet.getType().value());
-            ByteStreams.copy(bytes, os);
         }
         else
         {
+            os.write(0); // text packet
+            byte[] encoded = packet.getEncodedText();
+            if (encoded != null)
+            {
+                // already includes packet type
+                encodeLength(encoded.length, os);
+                os.write(255);
+                os.write(encoded);
+                return;
+            }
+
             assert(packet.getTextData() != null);
 
-            os.write(0); // text packet
-            os.write(encodeLength(packet.getTextData().length() + 1)); // +1 for packet type
+            // the length is number of bytes, not characters
+            byte[] data = packet.getTextData().getBytes(StandardCharsets.UTF_8);
+            encodeLength(data.length + 1, os); // +1 for packet type
             os.write(255);
             os.write(packet.getType().value() + '0');
-            os.write(packet.getTextData().getBytes("UTF-8"));
+            os.write(data);
         }
 
     }
 
+    private static void writeBinaryHeader(EngineIOPacket packet, long length, OutputStream os)
+            throws IOException
+    {
+        os.write(1); // binary packet
+        encodeLength(length + 1, os); // +1 for packet type
+        os.write(255);
+        os.write(packet.getType().value());
+    }
+
     //this is most ridiculous encoding I ever seen
-    private static byte[] encodeLength(int len)
+    private static void encodeLength(long len, OutputStream os)
+            throws IOException
+    {
+        long divisor = 1;
+        while (len / divisor >= 10)
+            divisor *= 10;
+
+        for (; divisor > 0; divisor /= 10)
+            os.write((int) (len / divisor % 10));
+    }
+
+    /**
+     * Writes the packet as a record of EIO4 polling payload. Binary data is written as {@code b<base64>}.
+     * Records are separated with {@link #RECORD_SEPARATOR}, it is up to the caller to write it.
+     *
+     * @param packet packet to encode
+     * @param os output stream
+     * @throws IOException if the stream cannot be written or binary data cannot be read
+     */
+    public static void encodeRecord(EngineIOPacket packet, OutputStream os)
+            throws IOException
+    {
+        ByteBuffer buffer = packet.getBinaryBuffer();
+        if (buffer == null && packet.getBinaryData() != null)
+        {
+            long length = packet.getBinaryLength();
+            byte[] data = length < 0 ? ByteStreams.toByteArray(packet.getBinaryData()) : new byte[(int) length];
+            if (length >= 0)
+                ByteStreams.readFully(packet.getBinaryData(), data);
+            buffer = ByteBuffer.wrap(data);
+        }
+
+        if (buffer != null)
+        {
+            String base64;
+            if (buffer.hasArray())
+                base64 = BaseEncoding.base64().encode(buffer.array(),
+                        buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            else
+            {
+                byte[] data = new byte[buffer.remaining()];
+                buffer.get(data);
+                base64 = BaseEncoding.base64().encode(data);
+            }
+
+            os.write(BINARY_PREFIX);
+            os.write(base64.getBytes(StandardCharsets.US_ASCII));
+            return;
+        }
+
+        byte[] encoded = packet.getEncodedText();
+        if (encoded == null)
+            encoded = encode(packet).getBytes(StandardCharsets.UTF_8);
+        os.write(encoded);
+    }
+
+    /**
+     * Decodes EIO4 polling payload: packets separated by {@link #RECORD_SEPARATOR}.
+     * Every packet is handed over as soon as it is read.
+     *
+     * @param reader payload reader
+     * @param handler receives decoded packets in order
+     * @throws IOException if the reader fails, the payload is malformed or the handler fails
+     */
+    public static void decodeRecordPayload(Reader reader, PacketHandler handler)
+            throws IOException
     {
-        byte[] bytes = String.valueOf(len).getBytes();
-        for(int i = 0; i < bytes.length; i++)
-            bytes[i] -= '0';
-        return bytes;
+        char[] buffer = new char[1024];
+        StringBuilder record = new StringBuilder();
+
+        for (int n; (n = reader.read(buffer)) != -1; )
+        {
+            int start = 0;
+            for (int i = 0; i < n; i++)
+            {
+                if (buffer[i] != RECORD_SEPARATOR)
+                    continue;
+
+                record.append(buffer, start, i - start);
+                handler.onPacket(decodeRecord(record.toString()));
+                record.setLength(0);
+                start = i + 1;
+            }
+            record.append(buffer, start, n - start);
+        }
+
+        if (record.length() > 0)
+            handler.onPacket(decodeRecord(record.toString()));
+    }
+
+    private static EngineIOPacket decodeRecord(String record)
+            throws SocketIOProtocolException
+    {
+        if (record.length() > 0 && record.charAt(0) == BINARY_PREFIX)
+        {
+            try
+            {
+                return createMessagePacket(BaseEncoding.base64().decode(record.substring(1)));
+            }
+            catch (IllegalArgumentException e)
+            {
+                throw new SocketIOProtocolException("Invalid base64 data of binary packet", e);
+            }
+        }
+
+        return decode(record);
     }
 
     public static EngineIOPacket decode(String raw)
@@ -110,19 +295,32 @@ public final class EngineIOProtocol
         if (raw.length() < 1)
             throw new SocketIOProtocolException("Empty EIO packet");
 
-        try
-        {
-            return new EngineIOPacket(
-                    EngineIOPacket.Type.fromInt(Integer.parseInt(raw.substring(0, 1))),
-                    raw.substring(1));
-        }
-        catch (NumberFormatException e)
-        {
+        int type = raw.charAt(0) - '0';
+        if (type < 0 || type > 9)
             throw new SocketIOProtocolException("Invalid EIO packet type: " + raw);
-        }
+
+        return new EngineIOPacket(EngineIOPacket.Type.fromInt(type), raw.substring(1));
     }
 
 
+    /**
+     * Decodes binary packet. The data is not copied.
+     *
+     * @param raw packet type followed by binary data
+     * @return binary packet
+     * @throws SocketIOProtocolException if the packet is empty
+     */
+    public static EngineIOPacket decode(byte[] raw)
+            throws SocketIOProtocolException
+    {
+        assert (raw != null);
+
+        if (raw.length < 1)
+            throw new SocketIOProtocolException("Empty binary object received");
+
+        return new EngineIOPacket(EngineIOPacket.Type.fromInt(raw[0]), ByteBuffer.wrap(raw, 1, raw.length - 1));
+    }
+
     public static EngineIOPacket decode(InputStream raw)
             throws SocketIOProtocolException
     {
@@ -146,12 +344,30 @@ public final class EngineIOProtocol
                                                        String[] upgrades,
                                                        long ping_interval,
                                                        long ping_timeout)
+    {
+        return createHandshakePacket(session_id, upgrades, ping_interval, ping_timeout, -1);
+    }
+
+    /**
+     * Creates EIO4 handshake packet.
+     *
+     * @param max_payload largest payload in bytes the client may send in a polling request,
+     *                    omitted if negative
+     * @return OPEN packet
+     */
+    public static EngineIOPacket createHandshakePacket(String session_id,
+                                                       String[] upgrades,
+                                                       long ping_interval,
+                                                       long ping_timeout,
+                                                       long max_payload)
     {
         Map<String, Object> map = new LinkedHashMap<>();
         map.put("sid", session_id);
         map.put("upgrades", upgrades);
         map.put("pingInterval", ping_interval);
         map.put("pingTimeout", ping_timeout);
+        if (max_payload >= 0)
+            map.put("maxPayload", max_payload);
 
         try
         {
@@ -194,6 +410,40 @@ public final class EngineIOProtocol
         return new EngineIOPacket(EngineIOPacket.Type.MESSAGE, data);
     }
 
+    /**
+     * @param data binary data. Not copied
+     */
+    public static EngineIOPacket createMessagePacket(byte[] data)
+    {
+        return new EngineIOPacket(EngineIOPacket.Type.MESSAGE, data);
+    }
+
+    /**
+     * @param data binary data between buffer position and limit. Not copied
+     */
+    public static EngineIOPacket createMessagePacket(ByteBuffer data)
+    {
+        return new EngineIOPacket(EngineIOPacket.Type.MESSAGE, data);
+    }
+
+    /**
+     * @param data binary data
+     * @param length number of bytes to be read from {@code data}
+     */
+    public static EngineIOPacket createMessagePacket(InputStream data, long length)
+    {
+        return new EngineIOPacket(EngineIOPacket.Type.MESSAGE, data, length);
+    }
+
+    /**
+     * @param data UTF-8 encoded text packet: type digit followed by the packet data
+     * @return text packet sent as is
+     */
+    static EngineIOPacket createEncodedTextPacket(byte[] data)
+    {
+        return new EngineIOPacket(data);
+    }
+
     public static EngineIOPacket createUpgradePacket()
     {
         return new EngineIOPacket(EngineIOPacket.Type.UPGRADE);
@@ -204,19 +454,42 @@ public final class EngineIOProtocol
         return new EngineIOPacket(EngineIOPacket.Type.NOOP);
     }
 
+    /**
+     * Decodes text payload {@code <length>:<type><data>...}.
+     * Only PING and MESSAGE data is copied out of the payload, the rest is parsed in place.
+     *
+     * @param payload text payload
+     * @return list of decoded packets
+     * @throws SocketIOProtocolException if the payload is malformed
+     */
     public static List<EngineIOPacket> decodePayload(String payload)
             throws SocketIOProtocolException
     {
         ArrayList<EngineIOPacket> packets = new ArrayList<>();
 
-        ParsePosition pos = new ParsePosition(0);
+        int length = payload.length();
+        int pos = 0;
 
-        while(pos.getIndex() < payload.length())
+        while(pos < length)
         {
-            int len = decodePacketLength(payload, pos);
-            EngineIOPacket.Type type = decodePacketType(payload, pos);
-            String data = payload.substring(pos.getIndex(), pos.getIndex() + len - 1);
-            pos.setIndex(pos.getIndex() - 1 + len);
+            int start = pos;
+            int len = 0;
+            for (char c; pos < length && (c = payload.charAt(pos)) != ':'; pos++)
+            {
+                if (c < '0' || c > '9')
+                    throw new SocketIOProtocolException("Invalid packet length at " + start);
+                len = len * 10 + (c - '0');
+            }
+
+            if (pos == start || pos == length)
+                throw new SocketIOProtocolException("No packet length defined");
+
+            pos++; // skipping ':'
+            if (len < 1 || len > length - pos)
+                throw new SocketIOProtocolException("Invalid packet length: " + len);
+
+            int end = pos + len;
+            EngineIOPacket.Type type = EngineIOPacket.Type.fromInt(payload.charAt(pos) - '0');
 
             switch (type)
             {
@@ -224,10 +497,10 @@ public final class EngineIOProtocol
                     packets.add(createClosePacket());
                     break;
                 case PING:
-                    packets.add(createPingPacket(data));
+                    packets.add(createPingPacket(payload.substring(pos + 1, end)));
                     break;
                 case MESSAGE:
-                    packets.add(createMessagePacket(data));
+                    packets.add(createMessagePacket(payload.substring(pos + 1, end)));
                     break;
                 case UPGRADE:
                     packets.add(createUpgradePacket());
@@ -238,30 +511,88 @@ public final class EngineIOProtocol
                 default:
                     throw new SocketIOProtocolException("Unexpected EIO packet type: " + type);
             }
+
+            pos = end;
         }
 
         return packets;
     }
 
-    static int decodePacketLength(String data, ParsePosition pos)
-            throws SocketIOProtocolException
+    /**
+     * Decodes text payload {@code <length>:<type><data>...} from the reader handing every packet
+     * over as soon as it is read, so the payload is never held in memory as a whole.
+     *
+     * @param reader payload reader
+     * @param handler receives decoded packets in order
+     * @throws IOException if the reader fails, the payload is malformed or the handler fails
+     */
+    public static void decodePayload(Reader reader, PacketHandler handler)
+            throws IOException
     {
-        Number len = new DecimalFormat("#").parse(data, pos);
-        if (len == null)
-            throw new SocketIOProtocolException("No packet length defined");
+        char[] buffer = new char[256];
+        long pos = 0;
+
+        for (int c = reader.read(); c != -1; c = reader.read())
+        {
+            long start = pos;
+            int len = 0;
+            for (; c != ':'; c = reader.read(), pos++)
+            {
+                if (c == -1)
+                    throw new SocketIOProtocolException("No packet length defined");
+                if (c < '0' || c > '9' || len > (Integer.MAX_VALUE - 9) / 10)
+                    throw new SocketIOProtocolException("Invalid packet length at " + start);
+                len = len * 10 + (c - '0');
+            }
 
-        pos.setIndex(pos.getIndex() + 1);
+            if (pos == start)
+                throw new SocketIOProtocolException("No packet length defined");
 
-        return len.intValue();
-    }
+            pos++; // skipping ':'
+            int t = len < 1 ? -1 : reader.read();
+            if (t == -1)
+                throw new SocketIOProtocolException("Invalid packet length: " + len);
 
-    static EngineIOPacket.Type decodePacketType(String data, ParsePosition pos)
-            throws SocketIOProtocolException
-    {
-        int idx = pos.getIndex();
-        EngineIOPacket.Type type = EngineIOPacket.Type.fromInt(Integer.parseInt(data.substring(idx, idx + 1)));
-        pos.setIndex(idx + 1);
-        return type;
+            EngineIOPacket.Type type = EngineIOPacket.Type.fromInt(t - '0');
+            int size = len - 1;
+
+            // the data is read in chunks, declared length of a packet is not trusted
+            StringBuilder data = null;
+            if (type == EngineIOPacket.Type.PING || type == EngineIOPacket.Type.MESSAGE)
+                data = new StringBuilder(Math.min(size, buffer.length));
+
+            for (int remaining = size; remaining > 0; )
+            {
+                int n = reader.read(buffer, 0, Math.min(remaining, buffer.length));
+                if (n == -1)
+                    throw new SocketIOProtocolException("Invalid packet length: " + len);
+                if (data != null)
+                    data.append(buffer, 0, n);
+                remaining -= n;
+            }
+            pos += len;
+
+            switch (type)
+            {
+                case CLOSE:
+                    handler.onPacket(createClosePacket());
+                    break;
+                case PING:
+                    handler.onPacket(createPingPacket(data.toString()));
+                    break;
+                case MESSAGE:
+                    handler.onPacket(createMessagePacket(data.toString()));
+                    break;
+                case UPGRADE:
+                    handler.onPacket(createUpgradePacket());
+                    break;
+                case NOOP:
+                    handler.onPacket(createNoopPacket());
+                    break;
+                default:
+                    throw new SocketIOProtocolException("Unexpected EIO packet type: " + type);
+            }
+        }
     }
 
     static int decodePacketLength(InputStream is)
@@ -276,6 +607,8 @@ public final class EngineIOProtocol
                 return -1; // end of stream. time to go
             if(b > 9)
                 break; // end of encoded length
+            if(len > (Integer.MAX_VALUE - 9) / 10)
+                throw new SocketIOProtocolException("Invalid packet length");
             len = len * 10 + b;
         }
 
@@ -289,7 +622,7 @@ public final class EngineIOProtocol
         if(i < 0)
             throw new SocketIOProtocolException("Unexpected end of stream");
         if(packetFormat == TEXT_FORMAT)
-            i = Integer.parseInt(String.valueOf((char)i));
+            i -= '0';
 
         return EngineIOPacket.Type.fromInt(i);
     }
@@ -299,6 +632,27 @@ public final class EngineIOProtocol
     public static List<EngineIOPacket> binaryDecodePayload(InputStream is) throws IOException
     {
         final ArrayList<EngineIOPacket> packets = new ArrayList<>();
+        binaryDecodePayload(is, new PacketHandler()
+        {
+            @Override
+            public void onPacket(EngineIOPacket packet)
+            {
+                packets.add(packet);
+            }
+        });
+        return packets;
+    }
+
+    /**
+     * Decodes binary payload from the stream handing every packet over as soon as it is read,
+     * so the payload is never held in memory as a whole.
+     *
+     * @param is payload stream
+     * @param handler receives decoded packets in order
+     * @throws IOException if the stream cannot be read, the payload is malformed or the handler fails
+     */
+    public static void binaryDecodePayload(InputStream is, PacketHandler handler) throws IOException
+    {
         while (true)
         {
             final int packetFormat = is.read();
@@ -309,39 +663,85 @@ public final class EngineIOProtocol
             final int len = decodePacketLength(is);
             if(len < 0) // end of payload stream, done
                 break;
-            if(packetFormat == BINARY_FORMAT && len == 0)
-                throw new SocketIOProtocolException("Empty binary attachment");
+            if(len == 0)
+                throw new SocketIOProtocolException(packetFormat == BINARY_FORMAT ?
+                        "Empty binary attachment" : "Empty packet");
             final EngineIOPacket.Type packetType = decodePacketType(packetFormat,is);
-            byte[] data = new byte[len-1];
-            ByteStreams.readFully(is, data, 0, data.length);
+            final int size = len - 1;
 
             switch (packetType)
             {
                 case CLOSE:
-                    packets.add(createClosePacket());
+                    ByteStreams.skipFully(is, size);
+                    handler.onPacket(createClosePacket());
                     break;
                 case PING:
                     if(packetFormat == TEXT_FORMAT)
-                        packets.add(createPingPacket(new String(data,"UTF-8")));
+                        handler.onPacket(createPingPacket(readString(is, size)));
                     else
                         throw new SocketIOProtocolException("No implementation for binary PING");
                     break;
                 case MESSAGE:
                     if(packetFormat == TEXT_FORMAT)
-                        packets.add(createMessagePacket(new String(data,"UTF-8")));
+                        handler.onPacket(createMessagePacket(readString(is, size)));
                     else
-                        packets.add(createMessagePacket(new ByteArrayInputStream(data)));
+                    {
+                        // binary data is handed over to the application, it cannot live in a shared buffer
+                        handler.onPacket(createMessagePacket(readBytes(is, size)));
+                    }
                     break;
                 case UPGRADE:
-                    packets.add(createUpgradePacket());
+                    ByteStreams.skipFully(is, size);
+                    handler.onPacket(createUpgradePacket());
                     break;
                 case NOOP:
-                    packets.add(createNoopPacket());
+                    ByteStreams.skipFully(is, size);
+                    handler.onPacket(createNoopPacket());
                     break;
                 default:
                     throw new SocketIOProtocolException("Unexpected EIO packet type: " + packetType);
             }
         }
-        return packets;
+    }
+
+    /**
+     * Reads UTF-8 string of {@code size} bytes using per-thread buffer.
+     * Larger strings are read in chunks like {@link #readBytes(InputStream, int)}, the declared size is not trusted.
+     */
+    private static String readString(InputStream is, int size)
+            throws IOException
+    {
+        if (size > MAX_POOLED_BUFFER_SIZE)
+            return new String(readBytes(is, size), StandardCharsets.UTF_8);
+
+        byte[] buffer = buffers.get();
+        if (buffer.length < size)
+        {
+            buffer = new byte[size];
+            buffers.set(buffer);
+        }
+
+        ByteStreams.readFully(is, buffer, 0, size);
+        return new String(buffer, 0, size, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Reads exactly {@code size} bytes. Declared size of a packet is not trusted,
+     * large packets are read in chunks so the buffer never outgrows the data actually received.
+     */
+    private static byte[] readBytes(InputStream is, int size)
+            throws IOException
+    {
+        if (size <= MAX_POOLED_BUFFER_SIZE)
+        {
+            byte[] data = new byte[size];
+            ByteStreams.readFully(is, data);
+            return data;
+        }
+
+        ByteArrayOutputStream os = new ByteArrayOutputStream(MAX_POOLED_BUFFER_SIZE);
+        if (ByteStreams.copy(ByteStreams.limit(is, size), os) < size)
+            throw new EOFException("Unexpected end of binary packet");
+        return os.toByteArray();
     }
 }
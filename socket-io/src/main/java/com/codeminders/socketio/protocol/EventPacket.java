@@ -23,9 +23,10 @@
 package com.codeminders.socketio.protocol;
 
 import com.codeminders.socketio.server.SocketIOProtocolException;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
 
-import java.util.ArrayList;
-import java.util.Arrays;
+import java.io.IOException;
 
 /**
  * @author Alexander Sova (bird@codeminders.com)
@@ -35,6 +36,10 @@ public abstract class EventPacket extends SocketIOPacket
     private String   name;
     private Object[] args;
 
+    // encoded packet and position of JSON array [name, args...] in it. null once the arguments are decoded
+    private String   rawArgs;
+    private int      rawArgsOffset;
+
     protected EventPacket(Type type, int id, String ns, String name, Object[] args)
     {
         super(type, id, ns);
@@ -42,30 +47,92 @@ public abstract class EventPacket extends SocketIOPacket
         this.args = args;
     }
 
+    /**
+     * This constructor suppose to be called by parser. Arguments are decoded on first request.
+     *
+     * @param data encoded packet
+     * @param offset position of JSON array with event name and arguments in {@code data}
+     */
+    protected EventPacket(Type type, int id, String ns, String name, String data, int offset)
+    {
+        super(type, id, ns);
+        this.name = name;
+        this.rawArgs = data;
+        this.rawArgsOffset = offset;
+    }
+
     public String getName()
     {
         return name;
     }
 
+    /**
+     * Returns event arguments. Arguments of received packet are decoded on first call.
+     *
+     * @return event arguments
+     * @throws IllegalArgumentException if the arguments cannot be decoded
+     */
     public Object[] getArgs()
     {
+        if (rawArgs != null)
+        {
+            try
+            {
+                args = SocketIOProtocol.decodeArgs(rawArgs, rawArgsOffset, true, getBinaryAttachments());
+                rawArgs = null;
+            }
+            catch (SocketIOProtocolException e)
+            {
+                throw new IllegalArgumentException("Malformed arguments of event " + name, e);
+            }
+        }
         return args;
     }
 
     public void setArgs(Object[] args)
     {
         this.args = args;
+        this.rawArgs = null;
     }
 
-    @Override
-    protected String encodeArgs() throws SocketIOProtocolException
+    /**
+     * @return true if the arguments are still kept as received JSON and could be parsed from it.
+     *         Binary objects are only available in decoded arguments, so it is always false for binary packets
+     */
+    public boolean hasEncodedArgs()
     {
-        // adding name of the event as a first argument
-        ArrayList<Object> data = new ArrayList<>();
-        data.add(getName());
-        data.addAll(Arrays.asList(getArgs()));
+        return rawArgs != null && getBinaryAttachments() == null;
+    }
 
-        return SocketIOProtocol.toJSON(data.toArray());
+    /**
+     * @return attachments of binary packet, null for other packets
+     */
+    Attachments getBinaryAttachments()
+    {
+        return null;
+    }
+
+    /**
+     * Creates streaming parser over event arguments. Arguments of received packet are parsed
+     * directly from the packet without being decoded into objects.
+     * The parser is positioned inside the array: next token is the first argument or END_ARRAY.
+     *
+     * @return JSON parser. To be closed by the caller
+     * @throws IOException if the parser cannot be created
+     */
+    public JsonParser getArgsParser() throws IOException
+    {
+        if (hasEncodedArgs())
+            return SocketIOProtocol.createArgsParser(rawArgs, rawArgsOffset, true);
+
+        return SocketIOProtocol.createArgsParser(getArgs());
+    }
+
+    @Override
+    protected void writeArgs(JsonGenerator generator) throws IOException
+    {
+        // name of the event is the first element of the array
+        SocketIOProtocol.writeArray(generator, getName(), getArgs());
     }
 }
 
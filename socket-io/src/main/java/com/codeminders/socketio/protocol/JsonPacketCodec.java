@@ -0,0 +1,110 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Alexander Sova (bird@codeminders.com)
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.codeminders.socketio.protocol;
+
+import com.codeminders.socketio.server.SocketIOProtocolException;
+import com.google.common.io.ByteStreams;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Default Socket.IO codec. Packets are sent as JSON text messages followed by binary attachments.
+ */
+public final class JsonPacketCodec implements PacketCodec
+{
+    public static final JsonPacketCodec INSTANCE = new JsonPacketCodec();
+
+    /**
+     * Encodes the packet. Binary attachments are read into memory so they could be sent more than once.
+     */
+    @Override
+    public EncodedPacket encode(SocketIOPacket packet)
+            throws SocketIOProtocolException
+    {
+        List<byte[]> attachments = Collections.emptyList();
+        if (packet instanceof BinaryPacket)
+        {
+            attachments = new ArrayList<>();
+            try
+            {
+                for (InputStream is : ((BinaryPacket) packet).getAttachments())
+                    attachments.add(ByteStreams.toByteArray(is));
+            }
+            catch (IOException e)
+            {
+                throw new SocketIOProtocolException("Cannot read binary attachment", e);
+            }
+        }
+
+        return new EncodedPacket(SocketIOProtocol.encodeMessage(packet), attachments);
+    }
+
+    @Override
+    public PacketDecoder createDecoder()
+    {
+        return new Decoder();
+    }
+
+    /**
+     * Decodes text messages. Binary packets are held until all the attachments arrive.
+     */
+    private static final class Decoder implements PacketDecoder
+    {
+        private BinaryPacket binaryPacket;
+
+        @Override
+        public SocketIOPacket decode(EngineIOPacket message)
+                throws SocketIOProtocolException
+        {
+            if (message.getTextData() != null)
+            {
+                SocketIOPacket packet = SocketIOProtocol.decode(message.getTextData());
+                if (packet instanceof BinaryPacket)
+                {
+                    binaryPacket = (BinaryPacket) packet;
+                    return null;
+                }
+                return packet;
+            }
+
+            InputStream is = message.getBinaryData();
+            if (is == null)
+                return null;
+
+            if (binaryPacket == null)
+                throw new SocketIOProtocolException("Unexpected binary object");
+
+            binaryPacket.addAttachment(is); // the attachment takes place of its placeholder
+            if (!binaryPacket.isComplete())
+                return null;
+
+            SocketIOPacket packet = (SocketIOPacket) binaryPacket;
+            binaryPacket = null;
+            return packet;
+        }
+    }
+}
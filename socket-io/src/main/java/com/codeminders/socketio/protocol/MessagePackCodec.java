@@ -0,0 +1,224 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Alexander Sova (bird@codeminders.com)
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.codeminders.socketio.protocol;
+
+import com.codeminders.socketio.server.SocketIOProtocolException;
+import com.google.common.io.ByteStreams;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Codec compatible with socket.io-msgpack-parser.
+ * <p>
+ * Every packet is sent as a single binary message: MessagePack map {@code {type, data, nsp, id}}.
+ * Binary objects are embedded into the packet, so there are no attachments and BINARY_EVENT/BINARY_ACK
+ * packets are sent as EVENT/ACK.
+ */
+public final class MessagePackCodec implements PacketCodec
+{
+    public static final MessagePackCodec INSTANCE = new MessagePackCodec();
+
+    private static final String TYPE      = "type";
+    private static final String DATA      = "data";
+    private static final String NAMESPACE = "nsp";
+    private static final String ID        = "id";
+
+    private static final PacketDecoder decoder = new PacketDecoder()
+    {
+        @Override
+        public SocketIOPacket decode(EngineIOPacket message)
+                throws SocketIOProtocolException
+        {
+            if (message.getBinaryData() == null)
+                throw new SocketIOProtocolException("Binary message is expected");
+
+            ByteBuffer buffer = message.getBinaryBuffer();
+            if (buffer != null && buffer.hasArray())
+                return decodePacket(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+
+            byte[] data;
+            try
+            {
+                data = ByteStreams.toByteArray(message.getBinaryData());
+            }
+            catch (IOException e)
+            {
+                throw new SocketIOProtocolException("Cannot read binary message", e);
+            }
+
+            return decodePacket(data, 0, data.length);
+        }
+    };
+
+    @Override
+    public EncodedPacket encode(SocketIOPacket packet)
+            throws SocketIOProtocolException
+    {
+        List<InputStream> attachments = Collections.emptyList();
+        if (packet instanceof BinaryPacket)
+            attachments = new ArrayList<>(((BinaryPacket) packet).getAttachments());
+
+        SocketIOPacket.Type type = packet.getType();
+        Object data = null;
+        boolean hasData = true;
+        switch (type)
+        {
+            case EVENT:
+            case BINARY_EVENT:
+                type = SocketIOPacket.Type.EVENT;
+                data = eventData((EventPacket) packet);
+                break;
+
+            case ACK:
+            case BINARY_ACK:
+                type = SocketIOPacket.Type.ACK;
+                data = ((ACKPacket) packet).getArgs();
+                break;
+
+            case CONNECT:
+                data = packet instanceof ConnectPacket ? ((ConnectPacket) packet).getData() : null;
+                hasData = data != null;
+                break;
+
+            case ERROR:
+                hasData = packet instanceof ErrorPacket;
+                if (hasData)
+                    data = ((ErrorPacket) packet).getArgs();
+                break;
+
+            default:
+                hasData = false;
+        }
+
+        MessagePackWriter writer = new MessagePackWriter();
+        writer.writeMapHeader(2 + (hasData ? 1 : 0) + (packet.getId() >= 0 ? 1 : 0));
+        writer.writeString(TYPE);
+        writer.writeLong(type.value());
+        if (hasData)
+        {
+            writer.writeString(DATA);
+            writer.writeValue(data, attachments);
+        }
+        writer.writeString(NAMESPACE);
+        writer.writeString(packet.getNamespace());
+        if (packet.getId() >= 0)
+        {
+            writer.writeString(ID);
+            writer.writeLong(packet.getId());
+        }
+
+        return new EncodedPacket((EngineIOPacket) null, Collections.singletonList(writer.toByteArray()));
+    }
+
+    @Override
+    public PacketDecoder createDecoder()
+    {
+        return decoder; // there is no state to keep
+    }
+
+    private static Object[] eventData(EventPacket packet)
+    {
+        Object[] args = packet.getArgs();
+        Object[] data = new Object[args.length + 1];
+        data[0] = packet.getName();
+        System.arraycopy(args, 0, data, 1, args.length);
+        return data;
+    }
+
+    static SocketIOPacket decodePacket(byte[] data, int offset, int length)
+            throws SocketIOProtocolException
+    {
+        MessagePackReader reader = new MessagePackReader(data, offset, length);
+        Object value = reader.readValue();
+        if (!(value instanceof Map))
+            throw new SocketIOProtocolException("MessagePack map is expected");
+
+        Map<?, ?> map = (Map<?, ?>) value;
+        if (!(map.get(TYPE) instanceof Number))
+            throw new SocketIOProtocolException("Packet type is missing");
+
+        SocketIOPacket.Type type = SocketIOPacket.Type.fromInt(((Number) map.get(TYPE)).intValue());
+
+        String ns = SocketIOProtocol.DEFAULT_NAMESPACE;
+        Object nsp = map.get(NAMESPACE);
+        if (nsp != null)
+        {
+            if (!(nsp instanceof String))
+                throw new SocketIOProtocolException("Invalid namespace: " + nsp);
+            ns = (String) nsp;
+        }
+
+        int id = -1;
+        Object packetId = map.get(ID);
+        if (packetId != null)
+        {
+            if (!(packetId instanceof Number))
+                throw new SocketIOProtocolException("Invalid packet id: " + packetId);
+            id = ((Number) packetId).intValue();
+        }
+
+        switch (type)
+        {
+            case CONNECT:
+                return SocketIOProtocol.createConnectPacket(ns, map.get(DATA));
+
+            case DISCONNECT:
+                return SocketIOProtocol.createDisconnectPacket(ns);
+
+            case ERROR:
+                return SocketIOProtocol.createErrorPacket(ns, map.get(DATA));
+
+            case EVENT:
+            case BINARY_EVENT:
+            {
+                List<?> args = array(map.get(DATA));
+                if (args.isEmpty() || args.get(0) == null)
+                    throw new SocketIOProtocolException("Missing event name");
+
+                return SocketIOProtocol.createDecodedEventPacket(id, ns, args.get(0).toString(),
+                        args.subList(1, args.size()).toArray());
+            }
+
+            case ACK:
+            case BINARY_ACK:
+                return SocketIOProtocol.createDecodedACKPacket(id, ns, array(map.get(DATA)).toArray());
+
+            default:
+                throw new SocketIOProtocolException("Unsupported packet type " + type);
+        }
+    }
+
+    private static List<?> array(Object data)
+            throws SocketIOProtocolException
+    {
+        if (!(data instanceof List))
+            throw new SocketIOProtocolException("Array payload is expected");
+        return (List<?>) data;
+    }
+}
@@ -0,0 +1,235 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Alexander Sova (bird@codeminders.com)
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.codeminders.socketio.protocol;
+
+import com.codeminders.socketio.server.SocketIOProtocolException;
+
+import java.io.ByteArrayInputStream;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Minimal MessagePack decoder for the data produced by notepack.io used by socket.io-msgpack-parser.
+ * <p>
+ * Values are decoded the same way JSON is: maps to {@link LinkedHashMap}, arrays to {@link ArrayList},
+ * integers to {@link Integer} or {@link Long}, floats to {@link Double}. Binary objects are decoded to
+ * {@link java.io.InputStream}, extension type 0 to {@link Date} or null ({@code undefined}).
+ */
+final class MessagePackReader
+{
+    private final byte[] data;
+    private final int    end;
+    private int          pos;
+
+    MessagePackReader(byte[] data, int offset, int length)
+    {
+        this.data = data;
+        this.pos = offset;
+        this.end = offset + length;
+    }
+
+    boolean hasMore()
+    {
+        return pos < end;
+    }
+
+    Object readValue()
+            throws SocketIOProtocolException
+    {
+        int b = readUInt8();
+
+        if (b <= 0x7f)
+            return b;
+        if (b >= 0xe0)
+            return (int) (byte) b;
+        if ((b & 0xf0) == 0x80)
+            return readMap(b & 0x0f);
+        if ((b & 0xf0) == 0x90)
+            return readArray(b & 0x0f);
+        if ((b & 0xe0) == 0xa0)
+            return readString(b & 0x1f);
+
+        switch (b)
+        {
+            case 0xc0: return null;
+            case 0xc2: return Boolean.FALSE;
+            case 0xc3: return Boolean.TRUE;
+            case 0xc4: return readBinary(readUInt8());
+            case 0xc5: return readBinary(readUInt16());
+            case 0xc6: return readBinary(readLength());
+            case 0xc7: return readExt(readUInt8());
+            case 0xc8: return readExt(readUInt16());
+            case 0xc9: return readExt(readLength());
+            case 0xca: return (double) Float.intBitsToFloat(readInt32());
+            case 0xcb: return Double.longBitsToDouble(readInt64());
+            case 0xcc: return readUInt8();
+            case 0xcd: return readUInt16();
+            case 0xce: return number(readInt32() & 0xffffffffL);
+            case 0xcf:
+            {
+                long v = readInt64();
+                return v >= 0 ? number(v) : BigInteger.valueOf(v).add(BigInteger.ONE.shiftLeft(64));
+            }
+            case 0xd0: return (int) (byte) readUInt8();
+            case 0xd1: return (int) (short) readUInt16();
+            case 0xd2: return readInt32();
+            case 0xd3: return number(readInt64());
+            case 0xd4: return readExt(1);
+            case 0xd5: return readExt(2);
+            case 0xd6: return readExt(4);
+            case 0xd7: return readExt(8);
+            case 0xd8: return readExt(16);
+            case 0xd9: return readString(readUInt8());
+            case 0xda: return readString(readUInt16());
+            case 0xdb: return readString(readLength());
+            case 0xdc: return readArray(readUInt16());
+            case 0xdd: return readArray(readLength());
+            case 0xde: return readMap(readUInt16());
+            case 0xdf: return readMap(readLength());
+            default:
+                throw new SocketIOProtocolException("Invalid MessagePack type: " + b);
+        }
+    }
+
+    private List<Object> readArray(int n)
+            throws SocketIOProtocolException
+    {
+        check(n); // every element takes at least one byte
+        List<Object> list = new ArrayList<>(n);
+        for (int i = 0; i < n; i++)
+            list.add(readValue());
+        return list;
+    }
+
+    private Map<String, Object> readMap(int n)
+            throws SocketIOProtocolException
+    {
+        check(n * 2L);
+        Map<String, Object> map = new LinkedHashMap<>();
+        for (int i = 0; i < n; i++)
+        {
+            Object key = readValue();
+            map.put(String.valueOf(key), readValue());
+        }
+        return map;
+    }
+
+    private String readString(int n)
+            throws SocketIOProtocolException
+    {
+        check(n);
+        String s = new String(data, pos, n, StandardCharsets.UTF_8);
+        pos += n;
+        return s;
+    }
+
+    private Object readBinary(int n)
+            throws SocketIOProtocolException
+    {
+        check(n);
+        ByteArrayInputStream is = new ByteArrayInputStream(data, pos, n);
+        pos += n;
+        return is;
+    }
+
+    private Object readExt(int n)
+            throws SocketIOProtocolException
+    {
+        check(n + 1L);
+        int type = (byte) readUInt8();
+        if (type == 0 && n == 8)
+            return new Date(readInt64());
+
+        if (type == 0 && n == 1)
+        {
+            pos++;
+            return null; // undefined
+        }
+
+        throw new SocketIOProtocolException("Unsupported MessagePack extension type " + type + " of size " + n);
+    }
+
+    private static Object number(long v)
+    {
+        if (v >= Integer.MIN_VALUE && v <= Integer.MAX_VALUE)
+            return (int) v;
+        return v;
+    }
+
+    private int readLength()
+            throws SocketIOProtocolException
+    {
+        int n = readInt32();
+        if (n < 0)
+            throw new SocketIOProtocolException("MessagePack object is too large");
+        return n;
+    }
+
+    private int readUInt8()
+            throws SocketIOProtocolException
+    {
+        check(1);
+        return data[pos++] & 0xff;
+    }
+
+    private int readUInt16()
+            throws SocketIOProtocolException
+    {
+        check(2);
+        int v = ((data[pos] & 0xff) << 8) | (data[pos + 1] & 0xff);
+        pos += 2;
+        return v;
+    }
+
+    private int readInt32()
+            throws SocketIOProtocolException
+    {
+        check(4);
+        int v = ((data[pos] & 0xff) << 24) |
+                ((data[pos + 1] & 0xff) << 16) |
+                ((data[pos + 2] & 0xff) << 8) |
+                (data[pos + 3] & 0xff);
+        pos += 4;
+        return v;
+    }
+
+    private long readInt64()
+            throws SocketIOProtocolException
+    {
+        long hi = readInt32();
+        long lo = readInt32() & 0xffffffffL;
+        return (hi << 32) | lo;
+    }
+
+    private void check(long n)
+            throws SocketIOProtocolException
+    {
+        if (n > end - pos)
+            throw new SocketIOProtocolException("Unexpected end of MessagePack data");
+    }
+}
@@ -0,0 +1,366 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Alexander Sova (bird@codeminders.com)
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.codeminders.socketio.protocol;
+
+import com.codeminders.socketio.server.SocketIOProtocolException;
+import com.google.common.io.ByteStreams;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Array;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Minimal MessagePack encoder producing the same output as notepack.io used by socket.io-msgpack-parser.
+ * <p>
+ * Binary objects ({@code byte[]} and {@link InputStream}) are written as {@code bin},
+ * {@link Date} as extension type 0 with milliseconds since epoch. Objects which are not part of
+ * JSON data model are converted the same way they would be converted to JSON.
+ */
+final class MessagePackWriter
+{
+    private byte[] buffer = new byte[256];
+    private int    length;
+
+    byte[] toByteArray()
+    {
+        return Arrays.copyOf(buffer, length);
+    }
+
+    void writeNil()
+    {
+        write(0xc0);
+    }
+
+    void writeBoolean(boolean b)
+    {
+        write(b ? 0xc3 : 0xc2);
+    }
+
+    void writeLong(long v)
+    {
+        if (v >= 0)
+        {
+            if (v < 128)
+                write((int) v);
+            else if (v < 256)
+            {
+                write(0xcc);
+                write((int) v);
+            }
+            else if (v < 65536)
+            {
+                write(0xcd);
+                writeShort((int) v);
+            }
+            else if (v <= 0xffffffffL)
+            {
+                write(0xce);
+                writeInt((int) v);
+            }
+            else
+            {
+                write(0xcf);
+                writeInt64(v);
+            }
+        }
+        else
+        {
+            if (v >= -32)
+                write((int) v);
+            else if (v >= Byte.MIN_VALUE)
+            {
+                write(0xd0);
+                write((int) v);
+            }
+            else if (v >= Short.MIN_VALUE)
+            {
+                write(0xd1);
+                writeShort((int) v);
+            }
+            else if (v >= Integer.MIN_VALUE)
+            {
+                write(0xd2);
+                writeInt((int) v);
+            }
+            else
+            {
+                write(0xd3);
+                writeInt64(v);
+            }
+        }
+    }
+
+    void writeFloat(float f)
+    {
+        write(0xca);
+        writeInt(Float.floatToIntBits(f));
+    }
+
+    void writeDouble(double d)
+    {
+        write(0xcb);
+        writeInt64(Double.doubleToLongBits(d));
+    }
+
+    void writeString(String s)
+    {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        int n = bytes.length;
+        if (n < 32)
+            write(0xa0 | n);
+        else if (n < 256)
+        {
+            write(0xd9);
+            write(n);
+        }
+        else if (n < 65536)
+        {
+            write(0xda);
+            writeShort(n);
+        }
+        else
+        {
+            write(0xdb);
+            writeInt(n);
+        }
+        write(bytes, 0, n);
+    }
+
+    void writeBinary(byte[] data, int offset, int len)
+    {
+        if (len < 256)
+        {
+            write(0xc4);
+            write(len);
+        }
+        else if (len < 65536)
+        {
+            write(0xc5);
+            writeShort(len);
+        }
+        else
+        {
+            write(0xc6);
+            writeInt(len);
+        }
+        write(data, offset, len);
+    }
+
+    void writeArrayHeader(int n)
+    {
+        if (n < 16)
+            write(0x90 | n);
+        else if (n < 65536)
+        {
+            write(0xdc);
+            writeShort(n);
+        }
+        else
+        {
+            write(0xdd);
+            writeInt(n);
+        }
+    }
+
+    void writeMapHeader(int n)
+    {
+        if (n < 16)
+            write(0x80 | n);
+        else if (n < 65536)
+        {
+            write(0xde);
+            writeShort(n);
+        }
+        else
+        {
+            write(0xdf);
+            writeInt(n);
+        }
+    }
+
+    void writeDate(Date date)
+    {
+        write(0xd7); // fixext 8
+        write(0);
+        writeInt64(date.getTime());
+    }
+
+    /**
+     * Writes any object.
+     *
+     * @param value       object to write
+     * @param attachments binary objects replaced with placeholders by {@link BinaryPacket},
+     *                    placeholders are written as the binary objects they stand for
+     * @throws SocketIOProtocolException if a binary object cannot be read
+     */
+    void writeValue(Object value, List<InputStream> attachments)
+            throws SocketIOProtocolException
+    {
+        if (value == null)
+            writeNil();
+        else if (value instanceof String)
+            writeString((String) value);
+        else if (value instanceof Boolean)
+            writeBoolean((Boolean) value);
+        else if (value instanceof Number)
+            writeNumber((Number) value);
+        else if (value instanceof Map)
+            writeMap((Map<?, ?>) value, attachments);
+        else if (value instanceof Collection)
+        {
+            Collection<?> c = (Collection<?>) value;
+            writeArrayHeader(c.size());
+            for (Object o : c)
+                writeValue(o, attachments);
+        }
+        else if (value instanceof Object[])
+        {
+            Object[] array = (Object[]) value;
+            writeArrayHeader(array.length);
+            for (Object o : array)
+                writeValue(o, attachments);
+        }
+        else if (value instanceof byte[])
+            writeBinary((byte[]) value, 0, ((byte[]) value).length);
+        else if (value instanceof InputStream)
+            writeStream((InputStream) value);
+        else if (value.getClass().isArray())
+        {
+            int n = Array.getLength(value);
+            writeArrayHeader(n);
+            for (int i = 0; i < n; i++)
+                writeValue(Array.get(value, i), attachments);
+        }
+        else if (value instanceof Date)
+            writeDate((Date) value);
+        else if (value instanceof Character)
+            writeString(value.toString());
+        else if (value instanceof Enum)
+            writeString(((Enum) value).name());
+        else
+            writeValue(SocketIOProtocol.toJSONValue(value), attachments);
+    }
+
+    private void writeNumber(Number n)
+    {
+        if (n instanceof Double)
+            writeDouble(n.doubleValue());
+        else if (n instanceof Float)
+            writeFloat(n.floatValue());
+        else if (n instanceof BigInteger && ((BigInteger) n).bitLength() >= 64)
+            writeDouble(n.doubleValue());
+        else if (n instanceof BigDecimal)
+            writeDouble(n.doubleValue());
+        else
+            writeLong(n.longValue());
+    }
+
+    private void writeMap(Map<?, ?> map, List<InputStream> attachments)
+            throws SocketIOProtocolException
+    {
+        int index = placeholderIndex(map);
+        if (index >= 0 && index < attachments.size())
+        {
+            writeStream(attachments.get(index));
+            return;
+        }
+
+        writeMapHeader(map.size());
+        for (Map.Entry<?, ?> e : map.entrySet())
+        {
+            writeString(String.valueOf(e.getKey()));
+            writeValue(e.getValue(), attachments);
+        }
+    }
+
+    private void writeStream(InputStream is)
+            throws SocketIOProtocolException
+    {
+        try
+        {
+            byte[] data = ByteStreams.toByteArray(is);
+            writeBinary(data, 0, data.length);
+        }
+        catch (IOException e)
+        {
+            throw new SocketIOProtocolException("Cannot read binary object", e);
+        }
+    }
+
+    private static int placeholderIndex(Map<?, ?> map)
+    {
+        if (map.size() != 2 || !Boolean.TRUE.equals(map.get("_placeholder")))
+            return -1;
+
+        Object num = map.get("num");
+        return num instanceof Number ? ((Number) num).intValue() : -1;
+    }
+
+    private void writeShort(int v)
+    {
+        write(v >>> 8);
+        write(v);
+    }
+
+    private void writeInt(int v)
+    {
+        ensureCapacity(4);
+        buffer[length++] = (byte) (v >>> 24);
+        buffer[length++] = (byte) (v >>> 16);
+        buffer[length++] = (byte) (v >>> 8);
+        buffer[length++] = (byte) v;
+    }
+
+    private void writeInt64(long v)
+    {
+        writeInt((int) (v >>> 32));
+        writeInt((int) v);
+    }
+
+    private void write(int b)
+    {
+        ensureCapacity(1);
+        buffer[length++] = (byte) b;
+    }
+
+    private void write(byte[] data, int offset, int len)
+    {
+        ensureCapacity(len);
+        System.arraycopy(data, offset, buffer, length, len);
+        length += len;
+    }
+
+    private void ensureCapacity(int n)
+    {
+        if (length + n > buffer.length)
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + n));
+    }
+}
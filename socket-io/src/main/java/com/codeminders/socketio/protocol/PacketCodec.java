@@ -0,0 +1,54 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Alexander Sova (bird@codeminders.com)
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.codeminders.socketio.protocol;
+
+import com.codeminders.socketio.server.SocketIOProtocolException;
+
+/**
+ * Converts Socket.IO packets to Engine.IO messages and back.
+ * <p>
+ * Codec has to match the parser used by the client. It is selected with {@code packetCodec} servlet
+ * parameter and stays the same for the whole session since the client parser is connection-wide.
+ * Implementations must be thread-safe and have public no-argument constructor.
+ *
+ * @see JsonPacketCodec
+ * @see MessagePackCodec
+ */
+public interface PacketCodec
+{
+    /**
+     * Encodes the packet. The result could be shared by many connections.
+     *
+     * @param packet packet to encode
+     * @return encoded packet
+     * @throws SocketIOProtocolException if the packet cannot be encoded
+     */
+    EncodedPacket encode(SocketIOPacket packet) throws SocketIOProtocolException;
+
+    /**
+     * Creates decoder for incoming messages of one session.
+     *
+     * @return new decoder
+     */
+    PacketDecoder createDecoder();
+}
@@ -23,6 +23,9 @@
 package com.codeminders.socketio.protocol;
 
 import com.codeminders.socketio.server.SocketIOProtocolException;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import java.io.IOException;
 
 /**
  * @author Alexander Sova (bird@codeminders.com)
@@ -87,20 +90,13 @@ public abstract class SocketIOPacket
         return id;
     }
 
-    protected abstract String encodeArgs() throws SocketIOProtocolException;
-
-    protected String encodeAttachments()
-    {
-        return "";
-    }
-
-    private String encodePacketId()
-    {
-        if(id < 0)
-            return "";
-
-        return String.valueOf(id);
-    }
+    /**
+     * Writes JSON payload of the packet. Packets without payload write nothing.
+     *
+     * @param generator JSON generator
+     * @throws IOException if the payload cannot be converted to JSON
+     */
+    protected abstract void writeArgs(JsonGenerator generator) throws IOException;
 
     protected SocketIOPacket(Type type)
     {
@@ -121,15 +117,7 @@ public abstract class SocketIOPacket
 
     public String encode() throws SocketIOProtocolException
     {
-        String str = String.valueOf(type.value());
-
-        String tail = encodePacketId() + encodeArgs();
-
-        str += encodeAttachments();
-        str += SocketIOProtocol.encodeNamespace(namespace, !tail.isEmpty());
-        str += tail;
-
-        return str;
+        return SocketIOProtocol.encodeMessage(this).getTextData();
     }
 
 }
@@ -23,16 +23,26 @@
 package com.codeminders.socketio.protocol;
 
 import com.codeminders.socketio.server.SocketIOProtocolException;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.BeanDescription;
+import com.fasterxml.jackson.databind.JavaType;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
 import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.databind.introspect.BeanPropertyDefinition;
 
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.text.DecimalFormat;
-import java.text.ParsePosition;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -49,13 +59,20 @@ public final class SocketIOProtocol
     private static final ObjectMapper mapper = new ObjectMapper();
     static {
         mapper.configure(SerializationFeature.FAIL_ON_EMPTY_BEANS, false);
+        // packets are written to in-memory buffers, flushing after every argument is pointless
+        mapper.configure(SerializationFeature.FLUSH_AFTER_WRITE_VALUE, false);
     }
 
     public static final String DEFAULT_NAMESPACE = "/";
 
-    private static final String ATTACHMENTS_DELIMITER = "-";
-    private static final String NAMESPACE_PREFIX      = "/";
-    static final String NAMESPACE_DELIMITER   = ",";
+    private static final char ATTACHMENTS_DELIMITER = '-';
+    private static final char NAMESPACE_PREFIX      = '/';
+    static final char NAMESPACE_DELIMITER   = ',';
+
+    private static final Object[] NO_ARGS = new Object[0];
+
+    private static final ConcurrentMap<Class<?>, ObjectReader> readers = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<Class<?>, BeanInfo>     beans   = new ConcurrentHashMap<>();
 
     private SocketIOProtocol()
     {
@@ -69,9 +86,8 @@ public final class SocketIOProtocol
         }
 
         @Override
-        protected String encodeArgs()
+        protected void writeArgs(JsonGenerator generator)
         {
-            return "";
         }
     }
 
@@ -81,6 +97,11 @@ public final class SocketIOProtocol
         {
             super(Type.ACK, id, ns, args);
         }
+
+        public PlainACKPacket(int id, String ns, String data, int offset)
+        {
+            super(Type.ACK, id, ns, data, offset);
+        }
     }
 
     private static class PlainEventPacket extends EventPacket
@@ -89,8 +110,25 @@ public final class SocketIOProtocol
         {
             super(Type.EVENT, id, ns, name, args);
         }
+
+        public PlainEventPacket(int id, String ns, String name, String data, int offset)
+        {
+            super(Type.EVENT, id, ns, name, data, offset);
+        }
     }
 
+    /**
+     * Decodes Socket.IO packet.
+     * <p>
+     * The packet is decoded in a single pass over {@code data}: type, attachment count, namespace and packet id
+     * are read by index and JSON body is parsed directly from the original string.
+     * Only the event name is parsed for EVENT and ACK packets. The arguments are kept encoded until
+     * they are requested from the packet.
+     *
+     * @param data encoded packet
+     * @return decoded packet
+     * @throws SocketIOProtocolException if the packet is malformed
+     */
     public static SocketIOPacket decode(String data)
             throws SocketIOProtocolException
     {
@@ -101,61 +139,60 @@ public final class SocketIOProtocol
 
         try
         {
-            ParsePosition pos = new ParsePosition(0);
-            SocketIOPacket.Type type = decodePacketType(data, pos);
+            int length = data.length();
+            int pos = 0;
+
+            SocketIOPacket.Type type = SocketIOPacket.Type.fromInt(Character.digit(data.charAt(pos++), 10));
 
             int attachments = 0;
             if (type == SocketIOPacket.Type.BINARY_ACK || type == SocketIOPacket.Type.BINARY_EVENT)
-                attachments = decodeAttachments(data, pos);
-
-            String ns = decodeNamespace(data, pos);
-            int packet_id = decodePacketId(data, pos);
-            Object json = decodeArgs(data, pos);
-
-            List args = null;
-            String eventName = "";
-            if (type == SocketIOPacket.Type.EVENT ||
-                type == SocketIOPacket.Type.BINARY_EVENT ||
-                type == SocketIOPacket.Type.ACK ||
-                type == SocketIOPacket.Type.BINARY_ACK)
             {
-                if (!(json instanceof List))
-                    throw new SocketIOProtocolException("Array payload is expected");
+                int end = skipDigits(data, pos);
+                if (end > pos)
+                    attachments = parseInt(data, pos, end);
+                if (attachments == 0)
+                    throw new SocketIOProtocolException("No attachments defined in BINARY packet: " + data);
+                if (end == length || data.charAt(end) != ATTACHMENTS_DELIMITER)
+                    throw new SocketIOProtocolException("Missing attachments delimiter in BINARY packet: " + data);
+
+                pos = end + 1;
+            }
 
-                args = (List)json;
+            String ns = DEFAULT_NAMESPACE;
+            if (pos < length && data.charAt(pos) == NAMESPACE_PREFIX)
+            {
+                int idx = data.indexOf(NAMESPACE_DELIMITER, pos);
+                if (idx < 0)
+                    idx = length;
 
-                if (type == SocketIOPacket.Type.EVENT || type == SocketIOPacket.Type.BINARY_EVENT)
-                {
-                    if (args.size() == 0)
-                        throw new SocketIOProtocolException("Missing event name");
-                    eventName = args.get(0).toString();
-                    args.remove(0);
-                }
+                ns = data.substring(pos, idx);
+                pos = Math.min(idx + 1, length);
+            }
+
+            int packet_id = -1;
+            int end = skipDigits(data, pos);
+            if (end > pos)
+            {
+                packet_id = parseInt(data, pos, end);
+                pos = end;
             }
 
             switch (type)
             {
                 case CONNECT:
-                    return createConnectPacket(ns);
+                    return createConnectPacket(ns, decodeJSON(data, pos));
 
                 case DISCONNECT:
                     return createDisconnectPacket(ns);
 
-                case EVENT:
-                    return new PlainEventPacket(packet_id, ns, eventName, args.toArray());
-
-                case ACK:
-                    return new PlainACKPacket(packet_id, ns, args.toArray());
-
                 case ERROR:
-                    return createErrorPacket(ns, json);
+                    return createErrorPacket(ns, decodeJSON(data, pos));
 
+                case EVENT:
                 case BINARY_EVENT:
-                    return new BinaryEventPacket(packet_id, ns, eventName, args.toArray(), attachments);
-
+                case ACK:
                 case BINARY_ACK:
-                    assert (args != null); //just to make IDEA to shut up about possible NPE
-                    return new BinaryACKPacket(packet_id, ns, args.toArray(), attachments);
+                    return decodeArgs(type, packet_id, ns, attachments, data, pos);
 
                 default:
                     throw new SocketIOProtocolException("Unsupported packet type " + type);
@@ -170,38 +207,65 @@ public final class SocketIOProtocol
         }
     }
 
-    public static SocketIOPacket createErrorPacket(String namespace, final Object args)
+    public static SocketIOPacket createErrorPacket(String namespace, Object args)
     {
-        return new SocketIOPacket(SocketIOPacket.Type.ERROR, namespace)
-        {
-            @Override
-            protected String encodeArgs()
-                    throws SocketIOProtocolException
-            {
-                return toJSON(args);
-            }
-        };
+        return new ErrorPacket(namespace, args);
     }
 
     /*
      * This method could create either EventPacket or BinaryEventPacket based
      * on the content of args parameter.
-     * If args has any InputStream inside then SockeIOBinaryEventPacket will be created
+     * If args has any InputStream, byte[] or ByteBuffer inside then BinaryEventPacket will be created
      */
     public static SocketIOPacket createEventPacket(int packet_id, String ns, String name, Object[] args)
     {
-        if (hasBinary(args))
-            return new BinaryEventPacket(packet_id, ns, name, args);
-        else
+        List<InputStream> attachments = new ArrayList<>();
+        Object[] extracted = extractBinaryObjects(args, attachments);
+        if (attachments.isEmpty())
             return new PlainEventPacket(packet_id, ns, name, args);
+        else
+            return new BinaryEventPacket(packet_id, ns, name, extracted, new Attachments(attachments));
+    }
+
+    /**
+     * Creates event packet for arguments with binary objects already replaced by placeholders,
+     * e.g. to encode an event once more with a fresh copy of its attachments.
+     *
+     * @param args arguments of {@link BinaryEventPacket}
+     * @param attachments binary objects the placeholders stand for
+     */
+    public static SocketIOPacket createBinaryEventPacket(int packet_id, String ns, String name, Object[] args,
+                                                         List<InputStream> attachments)
+    {
+        return new BinaryEventPacket(packet_id, ns, name, args, new Attachments(attachments));
+    }
+
+    /**
+     * Creates event packet for arguments decoded by a codec. Unlike {@link #createEventPacket} binary objects
+     * are left in place.
+     */
+    static EventPacket createDecodedEventPacket(int packet_id, String ns, String name, Object[] args)
+    {
+        return new PlainEventPacket(packet_id, ns, name, args);
+    }
+
+    /**
+     * Creates ACK packet for arguments decoded by a codec. Unlike {@link #createACKPacket} binary objects
+     * are left in place.
+     */
+    static ACKPacket createDecodedACKPacket(int id, String ns, Object[] args)
+    {
+        return new PlainACKPacket(id, ns, args);
     }
 
     public static SocketIOPacket createACKPacket(int id, String ns, Object[] args)
     {
-        if (hasBinary(args))
-            return new BinaryACKPacket(id, ns, args);
-        else
+        List<InputStream> attachments = new ArrayList<>();
+        Object[] extracted = extractBinaryObjects(args, attachments);
+        if (attachments.isEmpty())
             return new PlainACKPacket(id, ns, args);
+        else
+            return new BinaryACKPacket(id, ns, extracted, new Attachments(attachments));
     }
 
     public static SocketIOPacket createDisconnectPacket(String ns)
@@ -211,7 +275,18 @@ public final class SocketIOProtocol
 
     public static SocketIOPacket createConnectPacket(String ns)
     {
-        return new EmptyPacket(SocketIOPacket.Type.CONNECT, ns);
+        return createConnectPacket(ns, null);
+    }
+
+    /**
+     * @param ns namespace
+     * @param data auth payload sent by Socket.IO 5 client or {@code {sid}} object sent back by the server,
+     *             could be null
+     * @return CONNECT packet
+     */
+    public static SocketIOPacket createConnectPacket(String ns, Object data)
+    {
+        return new ConnectPacket(ns, data);
     }
 
     static String toJSON(Object o)
@@ -227,15 +302,23 @@ public final class SocketIOProtocol
         }
     }
 
-    static Object fromJSON(String s)
+    /**
+     * Parses JSON value starting at {@code pos}.
+     *
+     * @return parsed value or null if there is nothing to parse
+     */
+    private static Object decodeJSON(String data, int pos)
             throws SocketIOProtocolException
     {
-        try
+        if (pos >= data.length())
+            return null;
+
+        try (JsonParser parser = createParser(data, pos))
         {
-            if(s == null || s.isEmpty())
+            if (parser.nextToken() == null)
                 return null;
 
-            return mapper.readValue(s, Object.class);
+            return decodeValue(parser);
         }
         catch (IOException e)
         {
@@ -243,232 +326,555 @@ public final class SocketIOProtocol
         }
     }
 
-    static String decodeNamespace(String data, ParsePosition pos)
+    /**
+     * Creates EVENT or ACK packet for JSON array starting at {@code pos}.
+     * Event name is taken from the first element of the array, the rest is left for lazy decoding.
+     */
+    private static SocketIOPacket decodeArgs(SocketIOPacket.Type type, int packet_id, String ns, int attachments,
+                                             String data, int pos)
+            throws SocketIOProtocolException
     {
-        String ns = DEFAULT_NAMESPACE;
-        if (data.startsWith(NAMESPACE_PREFIX, pos.getIndex()))
+        try (JsonParser parser = createParser(data, pos))
         {
-            int idx = data.indexOf(NAMESPACE_DELIMITER, pos.getIndex());
-            if (idx < 0)
-            {
-                ns = data.substring(pos.getIndex());
-                pos.setIndex(data.length());
-            }
+            if (parser.nextToken() != JsonToken.START_ARRAY)
+                throw new SocketIOProtocolException("Array payload is expected");
+
+            if (type == SocketIOPacket.Type.ACK)
+                return new PlainACKPacket(packet_id, ns, data, pos);
+
+            if (type == SocketIOPacket.Type.BINARY_ACK)
+                return new BinaryACKPacket(packet_id, ns, data, pos, attachments);
+
+            JsonToken token = parser.nextToken();
+            if (token == null || token == JsonToken.END_ARRAY)
+                throw new SocketIOProtocolException("Missing event name");
+
+            Object name = decodeValue(parser);
+            if (name == null)
+                throw new SocketIOProtocolException("Missing event name");
+
+            if (type == SocketIOPacket.Type.EVENT)
+                return new PlainEventPacket(packet_id, ns, name.toString(), data, pos);
             else
-            {
-                ns = data.substring(pos.getIndex(), idx);
-                pos.setIndex(idx + 1);
-            }
+                return new BinaryEventPacket(packet_id, ns, name.toString(), data, pos, attachments);
+        }
+        catch (SocketIOProtocolException e)
+        {
+            throw e;
+        }
+        catch (IOException e)
+        {
+            throw new SocketIOProtocolException("Cannot parse JSON", e);
         }
-        return ns;
     }
 
-    static int decodeAttachments(String data, ParsePosition pos)
+    /**
+     * Decodes arguments of EVENT or ACK packet.
+     *
+     * @param data     encoded packet
+     * @param offset   position of JSON array in {@code data}
+     * @param skipName true if the first element of the array is event name
+     * @param attachments attachments of binary packet to resolve placeholders, null for other packets
+     * @return decoded arguments
+     * @throws SocketIOProtocolException if JSON is malformed
+     */
+    static Object[] decodeArgs(String data, int offset, boolean skipName, Attachments attachments)
             throws SocketIOProtocolException
     {
-        Number n = new DecimalFormat("#").parse(data, pos);
-        if (n == null || n.intValue() == 0)
-            throw new SocketIOProtocolException("No attachments defined in BINARY packet: " + data);
-
-        pos.setIndex(pos.getIndex() + 1); //skipping '-' delimiter
-
-        return n.intValue();
+        try (JsonParser parser = createArgsParser(data, offset, skipName))
+        {
+            Object[] args = decodeArray(parser, attachments);
+            if (attachments != null)
+            {
+                for (int i = 0; i < args.length; i++)
+                {
+                    if (args[i] instanceof Map)
+                        args[i] = attachments.resolve((Map<?, ?>) args[i], args, i);
+                }
+            }
+            return args;
+        }
+        catch (SocketIOProtocolException e)
+        {
+            throw e;
+        }
+        catch (IOException e)
+        {
+            throw new SocketIOProtocolException("Cannot parse JSON", e);
+        }
     }
 
-    static int decodePacketId(String data, ParsePosition pos)
+    /**
+     * Creates parser for the arguments of EVENT or ACK packet.
+     * The parser is positioned inside the array: next token is the first argument or END_ARRAY.
+     */
+    static JsonParser createArgsParser(String data, int offset, boolean skipName)
+            throws IOException
     {
-        Number id = new DecimalFormat("#").parse(data, pos);
-        if (id == null)
-            return -1;
+        JsonParser parser = createParser(data, offset);
+        parser.nextToken(); // START_ARRAY, checked by decode()
+        if (skipName)
+        {
+            parser.nextToken();
+            parser.skipChildren();
+        }
+        return parser;
+    }
 
-        return id.intValue();
+    /**
+     * Creates parser over already decoded arguments.
+     * The parser is positioned inside the array: next token is the first argument or END_ARRAY.
+     * Binary objects are not available via the parser.
+     *
+     * @param args arguments
+     * @return JSON parser. To be closed by the caller
+     * @throws IOException if the arguments cannot be converted to JSON
+     */
+    public static JsonParser createArgsParser(Object[] args)
+            throws IOException
+    {
+        JsonParser parser = mapper.getFactory().createParser(toJSON(args == null ? NO_ARGS : args));
+        parser.nextToken(); // START_ARRAY
+        return parser;
     }
 
-    static SocketIOPacket.Type decodePacketType(String data, ParsePosition pos)
-            throws SocketIOProtocolException
+    /**
+     * Converts an object to JSON data model: maps, lists, strings, numbers, booleans and nulls.
+     */
+    static Object toJSONValue(Object o)
     {
-        int idx = pos.getIndex();
-        SocketIOPacket.Type type = SocketIOPacket.Type.fromInt(Integer.parseInt(data.substring(idx, idx + 1)));
-        pos.setIndex(idx + 1);
-        return type;
+        return mapper.convertValue(o, Object.class);
     }
 
-    //TODO: pass what type (Array, Map, Object) is expected?
-    static Object decodeArgs(String data, ParsePosition pos)
-            throws SocketIOProtocolException
+    /**
+     * Returns reader binding JSON to {@code type}. Readers are created once per type.
+     *
+     * @param type Java type
+     * @return JSON reader
+     */
+    public static ObjectReader getReader(Class<?> type)
     {
-        Object json = fromJSON(data.substring(pos.getIndex()));
-        pos.setIndex(data.length());
-        return json;
+        ObjectReader reader = readers.get(type);
+        if (reader == null)
+        {
+            reader = mapper.readerFor(type);
+            ObjectReader existing = readers.putIfAbsent(type, reader);
+            if (existing != null)
+                reader = existing;
+        }
+        return reader;
     }
 
-    static String encodeNamespace(String namespace, boolean addDelimiter)
+    /**
+     * Converts already decoded argument to {@code type}.
+     *
+     * @param arg  decoded argument
+     * @param type Java type
+     * @return converted argument
+     * @throws IllegalArgumentException if the argument cannot be converted
+     */
+    public static <T> T convertArg(Object arg, Class<T> type)
     {
-        if(namespace.equals(SocketIOProtocol.DEFAULT_NAMESPACE))
-            return "";
-        return namespace + (addDelimiter ? SocketIOProtocol.NAMESPACE_DELIMITER : "");
+        if (arg == null || type.isInstance(arg))
+            return type.cast(arg);
+
+        return mapper.convertValue(arg, type);
     }
 
-    static String encodeAttachments(int size)
+    /**
+     * Reads remaining elements of JSON array. Parser is expected to be positioned inside the array.
+     */
+    private static Object[] decodeArray(JsonParser parser, Attachments attachments)
+            throws IOException
     {
-        return String.valueOf(size) + ATTACHMENTS_DELIMITER;
+        if (parser.nextToken() == JsonToken.END_ARRAY)
+            return NO_ARGS;
+
+        return decodeList(parser, attachments).toArray();
     }
 
-    private static boolean hasBinary(Object args)
+    /**
+     * Reads elements of JSON array starting at the current token
+     */
+    private static List<Object> decodeList(JsonParser parser, Attachments attachments)
+            throws IOException
     {
-        if (args.getClass().isArray())
-        {
-            for (Object o : (Object[]) args)
-                if (hasBinary(o))
-                    return true;
-        }
-        else if (args instanceof Map)
+        List<Object> values = new ArrayList<>();
+        for (JsonToken token = parser.getCurrentToken(); token != JsonToken.END_ARRAY; token = parser.nextToken())
         {
-            for (Object o : ((Map) args).values())
-                if (hasBinary(o))
-                    return true;
+            if (token == null)
+                throw new SocketIOProtocolException("Unexpected end of JSON array");
+
+            Object value = decodeValue(parser, attachments);
+            if (attachments != null && value instanceof Map)
+                value = attachments.resolve((Map<?, ?>) value, values, values.size());
+            values.add(value);
         }
-        else
+        return values;
+    }
+
+    /**
+     * Reads fields of JSON object. Parser is expected to be positioned at START_OBJECT
+     */
+    private static Map<String, Object> decodeMap(JsonParser parser, Attachments attachments)
+            throws IOException
+    {
+        Map<String, Object> map = new LinkedHashMap<>();
+        for (String name = parser.nextFieldName(); name != null; name = parser.nextFieldName())
         {
-            return (args instanceof InputStream);
+            parser.nextToken();
+            Object value = decodeValue(parser, attachments);
+            if (attachments != null && value instanceof Map)
+                value = attachments.resolve((Map<?, ?>) value, map, name);
+            map.put(name, value);
         }
 
-        return false;
+        if (parser.getCurrentToken() != JsonToken.END_OBJECT)
+            throw new SocketIOProtocolException("Unexpected end of JSON object");
+        return map;
+    }
+
+    private static Object decodeValue(JsonParser parser)
+            throws IOException
+    {
+        return decodeValue(parser, null);
     }
 
     /**
-     * Extracts binary objects (InputStream) from JSON and replaces it with
-     * placeholder objects {@code {"_placeholder":true,"num":1} }
-     * This method to be used before sending the packet
-     *
-     * @param json        JSON object
-     * @param attachments container for extracted binary object
-     * @return modified JSON object
+     * Reads JSON value at the current token. Objects are decoded as {@link LinkedHashMap} and arrays as
+     * {@link ArrayList} the same way {@code ObjectMapper.readValue(s, Object.class)} does it.
+     * Placeholders of binary objects are reported to {@code attachments} if it is not null.
      */
-    @SuppressWarnings("unchecked")
-    static Object extractBinaryObjects(Object json, List<InputStream> attachments)
+    private static Object decodeValue(JsonParser parser, Attachments attachments)
+            throws IOException
     {
-        //TODO: what about Collection? for now only array is supported
-        if (json.getClass().isArray())
+        switch (parser.getCurrentToken())
         {
-            ArrayList<Object> array = new ArrayList<>(((Object[]) json).length);
+            case VALUE_STRING:
+                return parser.getText();
 
-            for (Object o : (Object[]) json)
-                array.add(extractBinaryObjects(o, attachments));
+            case VALUE_NUMBER_INT:
+                return parser.getNumberValue();
 
-            return array.toArray();
-        }
-        else if (json instanceof Map)
-        {
-            Map<Object, Object> map = new LinkedHashMap<>();
-            Set<Map.Entry> entries = ((Map) json).entrySet();
+            case VALUE_NUMBER_FLOAT:
+                return parser.getDoubleValue();
 
-            for (Map.Entry e : entries)
-                map.put(e.getKey(), extractBinaryObjects(e.getValue(), attachments));
+            case VALUE_TRUE:
+                return Boolean.TRUE;
 
-            return map;
-        }
-        else if (json instanceof InputStream)
-        {
-            LinkedHashMap<String, Object> map = new LinkedHashMap<>();
-            map.put("_placeholder", true);
-            map.put("num", attachments.size());
-            attachments.add((InputStream) json);
+            case VALUE_FALSE:
+                return Boolean.FALSE;
 
-            return map;
+            case VALUE_NULL:
+                return null;
+
+            case START_ARRAY:
+                if (parser.nextToken() == JsonToken.END_ARRAY)
+                    return new ArrayList<>(0);
+                return decodeList(parser, attachments);
+
+            case START_OBJECT:
+                return decodeMap(parser, attachments);
+
+            default:
+                return mapper.readValue(parser, Object.class);
         }
-        else
-            return json;
+    }
+
+    private static JsonParser createParser(String data, int pos)
+            throws IOException
+    {
+        StringReader reader = new StringReader(data);
+        if (reader.skip(pos) != pos)
+            throw new IOException("Cannot skip to position " + pos);
+
+        return mapper.getFactory().createParser(reader);
+    }
+
+    private static int skipDigits(String data, int pos)
+    {
+        int length = data.length();
+        while (pos < length && data.charAt(pos) >= '0' && data.charAt(pos) <= '9')
+            pos++;
+        return pos;
+    }
+
+    private static int parseInt(String data, int from, int to)
+    {
+        int n = 0;
+        for (int i = from; i < to; i++)
+            n = n * 10 + (data.charAt(i) - '0');
+        return n;
     }
 
     /**
-     * Looks for the placeholder objects in {@code json.getArgs() } {@code {"_placeholder":true,"num":1}} and
-     * replaces it with {@code attachment}
-     * This method to be used when binary object are received from the client
+     * Encodes Socket.IO packet as EIO MESSAGE packet.
+     * <p>
+     * Packet type, attachment count, namespace, id and JSON payload are written once as UTF-8
+     * into a per-thread buffer, which is then copied into the packet. Transports send these bytes as is,
+     * the text of the packet is only decoded if requested.
      *
-     * @param packet     packet to add a binary object
-     * @param attachment binary object to insert
-     * @throws SocketIOProtocolException if no placeholder object is found
+     * @param packet packet to encode
+     * @return EIO MESSAGE packet
+     * @throws SocketIOProtocolException if the payload cannot be converted to JSON
      */
-    public static void insertBinaryObject(BinaryPacket packet, InputStream attachment)
+    static EngineIOPacket encodeMessage(SocketIOPacket packet)
             throws SocketIOProtocolException
     {
-        boolean[] found = new boolean[1];
+        Utf8Buffer buffer = Utf8Buffer.acquire();
+        try
+        {
+            buffer.writeDigit(EngineIOPacket.Type.MESSAGE.value());
+            buffer.writeDigit(packet.getType().value());
+
+            if (packet instanceof BinaryPacket)
+            {
+                buffer.writeInt(((BinaryPacket) packet).getAttachments().size());
+                buffer.write(ATTACHMENTS_DELIMITER);
+            }
+
+            boolean hasNamespace = !DEFAULT_NAMESPACE.equals(packet.getNamespace());
+            if (hasNamespace)
+            {
+                buffer.writeString(packet.getNamespace());
+                buffer.write(NAMESPACE_DELIMITER);
+            }
 
-        Object copy = insertBinaryObject(packet.getArgs(), attachment, packet.getAttachments().size(), found);
-        if(!found[0])
-            throw new SocketIOProtocolException("No placeholder found for a binary object");
+            int tail = buffer.size();
+            if (packet.getId() >= 0)
+                buffer.writeInt(packet.getId());
+
+            try (JsonGenerator generator = mapper.getFactory().createGenerator(buffer))
+            {
+                packet.writeArgs(generator);
+            }
+
+            // namespace delimiter is only needed if something follows it
+            if (hasNamespace && buffer.size() == tail)
+                buffer.truncate(tail - 1);
+
+            return EngineIOProtocol.createEncodedTextPacket(buffer.toByteArray());
+        }
+        catch (IOException e)
+        {
+            throw new SocketIOProtocolException("Cannot convert object to JSON", e);
+        }
+        finally
+        {
+            buffer.release();
+        }
+    }
 
-        packet.setArgs((Object[])copy);
+    /**
+     * Writes JSON array of {@code first} element (if not null) followed by {@code args}.
+     */
+    static void writeArray(JsonGenerator generator, String first, Object[] args)
+            throws IOException
+    {
+        generator.writeStartArray();
+        if (first != null)
+            generator.writeString(first);
+        if (args != null)
+        {
+            for (Object arg : args)
+                generator.writeObject(arg);
+        }
+        generator.writeEndArray();
     }
 
-    /*
-     * This method makes a copy of {@code json} replacing placeholder entry with {@code attachment}
+    /**
+     * Replaces binary objects ({@link InputStream}, {@code byte[]} and {@link ByteBuffer}) with placeholder objects
+     * {@code {"_placeholder":true,"num":1}} and collects them in {@code attachments}.
+     * This method to be used before sending the packet.
+     * <p>
+     * The arguments are walked once. Arrays, collections, maps and POJO properties which could hold binary objects
+     * are looked into. Only containers with binary objects inside are copied, everything else is returned as is.
+     * POJOs with binary objects are replaced by maps of their properties.
      *
-     * @param json       JSON object
-     * @param attachment InputStream object to insert
-     * @return copy of JSON object
+     * @param json        JSON object
+     * @param attachments container for extracted binary object
+     * @return {@code json} or its copy with placeholders if there were binary objects
      */
     @SuppressWarnings("unchecked")
-    private static Object insertBinaryObject(Object json, InputStream attachment, int index, boolean[] found)
-        throws SocketIOProtocolException
+    static <T> T extractBinaryObjects(T json, List<InputStream> attachments)
     {
-        //TODO: what about Collection? for now only array is supported
-        if (json.getClass().isArray())
-        {
-            ArrayList<Object> copy = new ArrayList<>(((Object[]) json).length);
+        return (T) extract(json, attachments);
+    }
 
-            for (Object o : (Object[]) json)
-                copy.add(insertBinaryObject(o, attachment, index, found));
+    private static Object extract(Object json, List<InputStream> attachments)
+    {
+        if (json == null || json instanceof String || json instanceof Number || json instanceof Boolean)
+            return json;
 
-            return copy.toArray();
-        }
-        else if (json instanceof Map)
+        if (json instanceof InputStream)
+            return addAttachment((InputStream) json, attachments);
+
+        if (json instanceof byte[])
+            return addAttachment(new ByteArrayInputStream((byte[]) json), attachments);
+
+        if (json instanceof ByteBuffer)
+            return addAttachment(EngineIOProtocol.createMessagePacket((ByteBuffer) json).getBinaryData(), attachments);
+
+        if (json instanceof Object[])
         {
-            Map<Object, Object> map = (Map) json;
+            Object[] array = (Object[]) json;
+            Object[] copy = null;
+            for (int i = 0; i < array.length; i++)
+            {
+                Object o = extract(array[i], attachments);
+                if (o != array[i])
+                {
+                    if (copy == null)
+                        copy = Arrays.copyOf(array, array.length, Object[].class);
+                    copy[i] = o;
+                }
+            }
+            return copy == null ? array : copy;
+        }
 
-            if (isPlaceholder(map, index))
+        if (json instanceof Collection)
+        {
+            Collection<?> collection = (Collection<?>) json;
+            List<Object> copy = null;
+            int i = 0;
+            for (Object element : collection)
             {
-                found[0] = true;
-                return attachment;
+                Object o = extract(element, attachments);
+                if (o != element && copy == null)
+                {
+                    // copy elements before this one
+                    copy = new ArrayList<>(collection.size());
+                    Iterator<?> it = collection.iterator();
+                    for (int j = 0; j < i; j++)
+                        copy.add(it.next());
+                }
+                if (copy != null)
+                    copy.add(o);
+                i++;
             }
+            return copy == null ? collection : copy;
+        }
 
-            Map<Object, Object> copy = new LinkedHashMap<>();
-            Set<Map.Entry<Object, Object>> entries = map.entrySet();
+        if (json instanceof Map)
+        {
+            Map<?, ?> map = (Map<?, ?>) json;
+            Map<Object, Object> copy = null;
+            for (Map.Entry<?, ?> e : map.entrySet())
+            {
+                Object o = extract(e.getValue(), attachments);
+                if (o != e.getValue())
+                {
+                    if (copy == null)
+                        copy = new LinkedHashMap<Object, Object>(map);
+                    copy.put(e.getKey(), o);
+                }
+            }
+            return copy == null ? map : copy;
+        }
 
-            for (Map.Entry e : entries)
-                copy.put(e.getKey(), insertBinaryObject(e.getValue(), attachment, index, found));
+        if (json.getClass().isArray())
+            return json; // array of primitives
 
-            return copy;
-        }
-        else
-            return json;
+        return extractFromBean(json, attachments);
     }
 
-    private static boolean isPlaceholder(Map<Object, Object> map, int index)
-            throws SocketIOProtocolException
+    private static Object extractFromBean(Object bean, List<InputStream> attachments)
     {
-        if(Boolean.TRUE.equals(map.get("_placeholder")))
+        BeanInfo info = getBeanInfo(bean.getClass());
+        if (info.binaryProperties.isEmpty())
+            return bean;
+
+        Map<String, Object> copy = null;
+        for (BeanPropertyDefinition property : info.binaryProperties)
         {
-            Object o = map.get("num");
+            Object value = property.getAccessor().getValue(bean);
+            Object o = extract(value, attachments);
+            if (o != value)
+            {
+                if (copy == null)
+                {
+                    copy = new LinkedHashMap<>();
+                    for (BeanPropertyDefinition p : info.properties)
+                        copy.put(p.getName(), p.getAccessor().getValue(bean));
+                }
+                copy.put(property.getName(), o);
+            }
+        }
+        return copy == null ? bean : copy;
+    }
 
-            if(o == null)
-                return false;
+    private static Map<String, Object> addAttachment(InputStream attachment, List<InputStream> attachments)
+    {
+        Map<String, Object> placeholder = Attachments.createPlaceholder(attachments.size());
+        attachments.add(attachment);
+        return placeholder;
+    }
 
-            if(o instanceof Number)
-                return index == ((Number)o).intValue();
+    /**
+     * Serializable properties of a POJO class and those of them which could hold binary objects
+     */
+    private static final class BeanInfo
+    {
+        final List<BeanPropertyDefinition> properties       = new ArrayList<>();
+        final List<BeanPropertyDefinition> binaryProperties = new ArrayList<>();
+    }
 
-            if(o instanceof String)
+    private static BeanInfo getBeanInfo(Class<?> type)
+    {
+        BeanInfo info = beans.get(type);
+        if (info == null)
+        {
+            info = new BeanInfo();
+            for (BeanPropertyDefinition property : findProperties(type))
             {
-                try
-                {
-                    return index == Integer.parseInt(o.toString());
-                }
-                catch (NumberFormatException e)
-                {
-                    throw new SocketIOProtocolException("Invalid placeholder object", e);
-                }
+                property.getAccessor().fixAccess(false);
+                info.properties.add(property);
+                if (mayHoldBinary(property.getPrimaryType(), new HashSet<Class<?>>()))
+                    info.binaryProperties.add(property);
             }
+
+            BeanInfo existing = beans.putIfAbsent(type, info);
+            if (existing != null)
+                info = existing;
+        }
+        return info;
+    }
+
+    private static List<BeanPropertyDefinition> findProperties(Class<?> type)
+    {
+        List<BeanPropertyDefinition> properties = new ArrayList<>();
+        BeanDescription description = mapper.getSerializationConfig().introspect(mapper.constructType(type));
+        for (BeanPropertyDefinition property : description.findProperties())
+        {
+            if (property.couldSerialize() && property.getAccessor() != null)
+                properties.add(property);
+        }
+        return properties;
+    }
+
+    /**
+     * @return true if value of the type could be or contain a binary object
+     */
+    private static boolean mayHoldBinary(JavaType type, Set<Class<?>> visited)
+    {
+        Class<?> c = type.getRawClass();
+        if (InputStream.class.isAssignableFrom(c) || ByteBuffer.class.isAssignableFrom(c) || c == byte[].class)
+            return true;
+
+        if (type.isContainerType())
+            return mayHoldBinary(type.getContentType(), visited);
+
+        if (c == Object.class)
+            return true;
+
+        // JDK types are serialized as scalars. the type is already being checked if it is visited
+        if (c.isPrimitive() || c.isEnum() || c.getName().startsWith("java.") || !visited.add(c))
+            return false;
+
+        for (BeanPropertyDefinition property : findProperties(c))
+        {
+            if (mayHoldBinary(property.getPrimaryType(), visited))
+                return true;
         }
         return false;
     }
@@ -0,0 +1,106 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Alexander Sova (bird@codeminders.com)
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.codeminders.socketio.protocol;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Per-thread buffer packets are encoded to before being copied into a frame of exact size.
+ * <p>
+ * Buffers larger than {@link #MAX_POOLED_SIZE} are not kept between the calls.
+ * A nested call on the same thread (e.g. an event emitted from a JSON serializer) gets a new buffer.
+ */
+final class Utf8Buffer extends ByteArrayOutputStream
+{
+    private static final int INITIAL_SIZE    = 1024;
+    private static final int MAX_POOLED_SIZE = 64 * 1024;
+
+    private static final ThreadLocal<Utf8Buffer> buffers = new ThreadLocal<>();
+
+    private Utf8Buffer()
+    {
+        super(INITIAL_SIZE);
+    }
+
+    /**
+     * Takes the buffer of the current thread. The buffer is empty.
+     * Must be returned by {@link #release()} when it is no longer needed.
+     */
+    static Utf8Buffer acquire()
+    {
+        Utf8Buffer buffer = buffers.get();
+        if (buffer == null)
+            return new Utf8Buffer();
+
+        buffers.set(null);
+        return buffer;
+    }
+
+    /**
+     * Returns the buffer back to the current thread.
+     */
+    void release()
+    {
+        if (buf.length > MAX_POOLED_SIZE)
+            return;
+
+        reset();
+        buffers.set(this);
+    }
+
+    void writeDigit(int digit)
+    {
+        write('0' + digit);
+    }
+
+    void writeInt(int n)
+    {
+        if (n >= 10)
+            writeInt(n / 10);
+        writeDigit(n % 10);
+    }
+
+    void writeString(String s)
+    {
+        for (int i = 0; i < s.length(); i++)
+        {
+            if (s.charAt(i) >= 0x80)
+            {
+                byte[] data = s.substring(i).getBytes(StandardCharsets.UTF_8);
+                write(data, 0, data.length);
+                return;
+            }
+            write(s.charAt(i));
+        }
+    }
+
+    /**
+     * Drops everything written after first {@code size} bytes.
+     */
+    void truncate(int size)
+    {
+        assert (size <= count);
+        count = size;
+    }
+}
@@ -0,0 +1,284 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Alexander Sova (bird@codeminders.com)
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.codeminders.socketio.server;
+
+import com.google.common.util.concurrent.MoreExecutors;
+
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * ACK listeners of a session waiting for the client to acknowledge the events.
+ * <p>
+ * Packet ids are allocated atomically. Listeners are kept in an open-addressing table keyed by
+ * the id itself: no boxing and no entry objects. Ids are sequential, so they rarely collide.
+ * Listeners with a timeout are also tracked by the timing wheel and fail with
+ * {@link ACKTimeoutListener#onTimeout()} unless acknowledged in time.
+ * The table is small and its operations are short, so they share one lock.
+ */
+final class ACKRegistry
+{
+    private static final int FREE             = -1;
+    private static final int INITIAL_CAPACITY = 8;
+
+    private final TimingWheel   timer;
+    private final Executor      executor;
+    private final AtomicInteger nextId = new AtomicInteger();
+
+    private int[]                 keys;
+    private ACKListener[]         listeners;
+    private TimingWheel.Timeout[] timeouts;
+    private int                   size;
+
+    ACKRegistry(TimingWheel timer)
+    {
+        this(timer, MoreExecutors.directExecutor());
+    }
+
+    /**
+     * @param timer timer of the ACK timeouts
+     * @param executor executor to call {@link ACKTimeoutListener#onTimeout()} on
+     */
+    ACKRegistry(TimingWheel timer, Executor executor)
+    {
+        this.timer = timer;
+        this.executor = executor;
+        allocate(INITIAL_CAPACITY);
+    }
+
+    /**
+     * @return new packet id. Ids are never negative, they wrap around after {@code Integer.MAX_VALUE}
+     */
+    int nextId()
+    {
+        return nextId.getAndIncrement() & Integer.MAX_VALUE;
+    }
+
+    /**
+     * Registers the listener. If it is {@link ACKTimeoutListener} its timeout starts now.
+     *
+     * @param id packet id
+     * @param listener ACK listener
+     */
+    void add(final int id, ACKListener listener)
+    {
+        TimingWheel.Timeout timeout = null;
+        if (listener instanceof ACKTimeoutListener)
+        {
+            final ACKTimeoutListener timed = (ACKTimeoutListener) listener;
+            timeout = new TimingWheel.Timeout(timer)
+            {
+                private final long deadline = getLastActivity() + timed.getTimeout();
+
+                @Override
+                long getDeadline()
+                {
+                    return deadline;
+                }
+
+                @Override
+                void expire()
+                {
+                    // ACK and timeout race for the entry, whoever removes it calls the listener
+                    if (remove(id, this))
+                    {
+                        executor.execute(new Runnable()
+                        {
+                            @Override
+                            public void run()
+                            {
+                                timed.onTimeout();
+                            }
+                        });
+                    }
+                }
+            };
+        }
+
+        synchronized (this)
+        {
+            if ((size + 1) * 2 > keys.length)
+                rehash(keys.length * 2);
+
+            int i = find(id);
+            if (keys[i] == FREE)
+                size++;
+            else if (timeouts[i] != null)
+                timeouts[i].cancel(); // id wrapped around while the old listener still waits
+
+            keys[i] = id;
+            listeners[i] = listener;
+            timeouts[i] = timeout;
+        }
+
+        if (timeout != null)
+            timer.schedule(timeout);
+    }
+
+    /**
+     * Removes the listener. Its timeout, if any, is cancelled.
+     *
+     * @param id packet id
+     * @return the listener, null if there is none
+     */
+    ACKListener remove(int id)
+    {
+        ACKListener listener;
+        TimingWheel.Timeout timeout;
+        synchronized (this)
+        {
+            int i = find(id);
+            if (keys[i] == FREE)
+                return null;
+
+            listener = listeners[i];
+            timeout = timeouts[i];
+            removeAt(i);
+        }
+
+        if (timeout != null)
+            timeout.cancel();
+        return listener;
+    }
+
+    private synchronized boolean remove(int id, TimingWheel.Timeout timeout)
+    {
+        int i = find(id);
+        if (keys[i] == FREE || timeouts[i] != timeout)
+            return false;
+
+        removeAt(i);
+        return true;
+    }
+
+    /**
+     * @return number of listeners waiting for acknowledgement
+     */
+    synchronized int size()
+    {
+        return size;
+    }
+
+    /**
+     * Drops all the listeners at once. User listeners are not called,
+     * futures waiting for the ACK fail with {@link SocketIOClosedException}.
+     */
+    void clear()
+    {
+        ACKListener[]         dropped;
+        TimingWheel.Timeout[] pending;
+        synchronized (this)
+        {
+            dropped = listeners;
+            pending = timeouts;
+            allocate(INITIAL_CAPACITY);
+        }
+
+        for (TimingWheel.Timeout timeout : pending)
+        {
+            if (timeout != null)
+                timeout.cancel();
+        }
+
+        SocketIOClosedException closed = null;
+        for (ACKListener listener : dropped)
+        {
+            if (listener instanceof PendingACK)
+            {
+                if (closed == null)
+                    closed = new SocketIOClosedException("Socket disconnected before acknowledging the event");
+                ((PendingACK) listener).onFailure(closed);
+            }
+        }
+    }
+
+    /**
+     * @return slot of the id or the free slot it would take
+     */
+    private int find(int id)
+    {
+        int mask = keys.length - 1;
+        int i = id & mask;
+        while (keys[i] != FREE && keys[i] != id)
+            i = (i + 1) & mask;
+        return i;
+    }
+
+    /**
+     * Frees the slot shifting the rest of the cluster back, so lookups never stop at a hole
+     * and no tombstones pile up.
+     */
+    private void removeAt(int i)
+    {
+        int mask = keys.length - 1;
+        for (int j = (i + 1) & mask; keys[j] != FREE; j = (j + 1) & mask)
+        {
+            int home = keys[j] & mask;
+
+            // the entry could only move back if its home slot is not between the hole and itself
+            boolean between = i <= j ? (i < home && home <= j) : (i < home || home <= j);
+            if (between)
+                continue;
+
+            keys[i] = keys[j];
+            listeners[i] = listeners[j];
+            timeouts[i] = timeouts[j];
+            i = j;
+        }
+
+        keys[i] = FREE;
+        listeners[i] = null;
+        timeouts[i] = null;
+        size--;
+    }
+
+    private void rehash(int capacity)
+    {
+        int[] oldKeys = keys;
+        ACKListener[] oldListeners = listeners;
+        TimingWheel.Timeout[] oldTimeouts = timeouts;
+
+        allocate(capacity);
+        for (int i = 0; i < oldKeys.length; i++)
+        {
+            if (oldKeys[i] == FREE)
+                continue;
+
+            int j = find(oldKeys[i]);
+            keys[j] = oldKeys[i];
+            listeners[j] = oldListeners[i];
+            timeouts[j] = oldTimeouts[i];
+            size++;
+        }
+    }
+
+    private void allocate(int capacity)
+    {
+        keys = new int[capacity];
+        Arrays.fill(keys, FREE);
+        listeners = new ACKListener[capacity];
+        timeouts = new TimingWheel.Timeout[capacity];
+        size = 0;
+    }
+}
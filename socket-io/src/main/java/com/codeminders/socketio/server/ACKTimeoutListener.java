@@ -0,0 +1,59 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Alexander Sova (bird@codeminders.com)
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.codeminders.socketio.server;
+
+/**
+ * ACK listener which stops waiting after a timeout.
+ * <p>
+ * Either {@link #onACK(Object[])} or {@link #onTimeout()} is called, never both. Neither of them is called
+ * if the session disconnects first. Use a new instance for every emit,
+ * or {@link Socket#emitWithAck(String, Object[], long)} to get a future instead.
+ */
+public abstract class ACKTimeoutListener implements ACKListener
+{
+    private final long timeout;
+
+    /**
+     * @param timeout milliseconds to wait for the acknowledgement
+     */
+    protected ACKTimeoutListener(long timeout)
+    {
+        if (timeout <= 0)
+            throw new IllegalArgumentException("ACK timeout must be positive: " + timeout);
+
+        this.timeout = timeout;
+    }
+
+    /**
+     * @return milliseconds to wait for the acknowledgement
+     */
+    public long getTimeout()
+    {
+        return timeout;
+    }
+
+    /**
+     * Called when the client did not acknowledge the event in time. Late acknowledgement is ignored.
+     */
+    public abstract void onTimeout();
+}
@@ -0,0 +1,130 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Alexander Sova (bird@codeminders.com)
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.codeminders.socketio.server;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Collects acknowledgements of an event emitted to many sockets into one future.
+ * <p>
+ * Every recipient gets a small member listener sharing one counter of outstanding acknowledgements.
+ * The future completes once every member is acknowledged, timed out or failed, no thread waits for it.
+ * It is never failed: sockets which did not acknowledge the event are just missing from the result.
+ */
+final class BroadcastACK
+{
+    private final SettableFuture<Map<Socket, Object[]>> future = SettableFuture.create();
+    private final List<Member> members = new ArrayList<>();
+
+    // one extra count is held while the event is being emitted, so the future cannot complete too early
+    private final AtomicInteger pending = new AtomicInteger(1);
+
+    private final String name;
+    private final long   timeout;
+
+    private final class Member extends PendingACK
+    {
+        private final Socket socket;
+        private volatile Object[] response;
+
+        Member(Socket socket)
+        {
+            super(timeout);
+            this.socket = socket;
+        }
+
+        @Override
+        public void onACK(Object[] args)
+        {
+            response = args;
+            done();
+        }
+
+        @Override
+        public void onTimeout()
+        {
+            done();
+        }
+
+        @Override
+        void onFailure(Throwable cause)
+        {
+            done();
+        }
+    }
+
+    BroadcastACK(String name, long timeout)
+    {
+        if (timeout <= 0)
+            throw new IllegalArgumentException("ACK timeout must be positive: " + timeout);
+
+        this.name = name;
+        this.timeout = timeout;
+    }
+
+    /**
+     * Emits the event to the socket. To be called by one thread before {@link #start()}.
+     *
+     * @param socket recipient
+     * @param args event arguments
+     */
+    void emit(Socket socket, Object[] args)
+    {
+        Member member = new Member(socket);
+        members.add(member);
+        pending.incrementAndGet();
+        socket.emit(name, args, member);
+    }
+
+    /**
+     * Stops adding recipients.
+     *
+     * @return future of responses of the sockets which acknowledged the event, in the order they were emitted to
+     */
+    ListenableFuture<Map<Socket, Object[]>> start()
+    {
+        done();
+        return future;
+    }
+
+    private void done()
+    {
+        if (pending.decrementAndGet() != 0)
+            return;
+
+        Map<Socket, Object[]> responses = new LinkedHashMap<>();
+        for (Member member : members)
+        {
+            if (member.response != null)
+                responses.put(member.socket, member.response);
+        }
+        future.set(responses);
+    }
+}
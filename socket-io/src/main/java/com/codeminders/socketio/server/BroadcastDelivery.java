@@ -0,0 +1,225 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Alexander Sova (bird@codeminders.com)
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.codeminders.socketio.server;
+
+import com.codeminders.socketio.common.SocketIOException;
+import com.codeminders.socketio.protocol.BinaryPacket;
+import com.codeminders.socketio.protocol.EncodedPacket;
+import com.codeminders.socketio.protocol.EventPacket;
+import com.codeminders.socketio.protocol.PacketCodec;
+import com.codeminders.socketio.protocol.SocketIOPacket;
+import com.codeminders.socketio.protocol.SocketIOProtocol;
+import com.google.common.io.ByteStreams;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * An event being broadcast. Could be delivered from several threads at once.
+ * <p>
+ * The event is encoded only once per codec and all the recipients using the codec share the same frame.
+ * Attachment streams could be read only once, so they are read into memory up front and every codec
+ * encodes its own copy of them. Encoding is serialized and its outcome, including a failure, is kept.
+ * Events requesting an ACK cannot be shared since every socket needs its own packet id,
+ * so they are emitted to each socket separately.
+ */
+final class BroadcastDelivery
+{
+    private static final Logger LOGGER = Logger.getLogger(BroadcastDelivery.class.getName());
+
+    private final String         name;
+    private final Object[]       args;
+    private final SocketIOPacket event;
+    private final byte[][]       attachments; // binary objects of the event, null if there are none
+
+    // EncodedPacket or SocketIOProtocolException by codec. usually all the sockets share the same codec
+    private final ConcurrentMap<PacketCodec, Object> packets = new ConcurrentHashMap<>(2);
+
+    BroadcastDelivery(String namespace, String name, Object[] args) throws SocketIOException
+    {
+        this.name = name;
+        this.args = args;
+        if (args.length == 0 || !(args[args.length - 1] instanceof ACKListener))
+            event = SocketIOProtocol.createEventPacket(-1, namespace, name, args);
+        else
+            event = null;
+
+        attachments = event instanceof BinaryPacket ? read(((BinaryPacket) event).getAttachments()) : null;
+    }
+
+    private static byte[][] read(Collection<InputStream> streams) throws SocketIOProtocolException
+    {
+        byte[][] data = new byte[streams.size()][];
+        int i = 0;
+        try
+        {
+            for (InputStream is : streams)
+                data[i++] = ByteStreams.toByteArray(is);
+        }
+        catch (IOException e)
+        {
+            throw new SocketIOProtocolException("Cannot read binary attachment", e);
+        }
+        return data;
+    }
+
+    /**
+     * @param socket recipient
+     * @return true if the event is handed over to the connection, false if the socket is disconnected,
+     *         sending failed or the outbound buffer dropped the event
+     * @throws SocketIOProtocolException if the event cannot be encoded
+     */
+    boolean deliver(Socket socket) throws SocketIOProtocolException
+    {
+        // delivery errors of individual sockets are ignored, a connection closing meanwhile could even throw
+        // unchecked exceptions, which must not stop delivery to the other sockets
+        // TODO: add getLastError method?
+        if (event == null)
+        {
+            if (socket.getSession().getConnection() == null)
+                return false;
+
+            try
+            {
+                socket.emit(name, args);
+                return true;
+            }
+            catch (SocketIOException | RuntimeException e)
+            {
+                failed(socket, e);
+                return false;
+            }
+        }
+
+        EncodedPacket packet = encode(socket.getSession().getCodec());
+        try
+        {
+            return socket.send(packet);
+        }
+        catch (SocketIOException | RuntimeException e)
+        {
+            failed(socket, e);
+            return false;
+        }
+    }
+
+    private static void failed(Socket socket, Exception e)
+    {
+        if (LOGGER.isLoggable(Level.FINE))
+            LOGGER.log(Level.FINE, "Cannot deliver broadcast event to socket " + socket.getId(), e);
+    }
+
+    /**
+     * Delivers the event to a range of the recipients. Sockets whose codec cannot encode the event are skipped.
+     *
+     * @param targets recipients
+     * @param from index of the first recipient, inclusive
+     * @param to index of the last recipient, exclusive
+     * @return number of sockets the event is handed over to
+     */
+    int deliver(List<Socket> targets, int from, int to)
+    {
+        int count = 0;
+        for (int i = from; i < to; i++)
+        {
+            try
+            {
+                if (deliver(targets.get(i)))
+                    count++;
+            }
+            catch (SocketIOProtocolException e)
+            {
+                // the codec of this socket cannot encode the event, other codecs may still do
+                if (LOGGER.isLoggable(Level.FINE))
+                    LOGGER.log(Level.FINE, "Cannot encode broadcast event", e);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Encodes the event for the codec of the socket in advance, so the encoding errors are reported
+     * to the caller and parallel deliveries find the frame ready.
+     *
+     * @param socket recipient
+     * @throws SocketIOProtocolException if the event cannot be encoded
+     */
+    void encodeFor(Socket socket) throws SocketIOProtocolException
+    {
+        if (event != null)
+            encode(socket.getSession().getCodec());
+    }
+
+    private EncodedPacket encode(PacketCodec codec) throws SocketIOProtocolException
+    {
+        Object packet = packets.get(codec);
+        if (packet == null)
+        {
+            synchronized (this)
+            {
+                packet = packets.get(codec);
+                if (packet == null)
+                {
+                    try
+                    {
+                        packet = codec.encode(copy());
+                    }
+                    catch (SocketIOProtocolException e)
+                    {
+                        packet = e;
+                    }
+                    packets.put(codec, packet);
+                }
+            }
+        }
+
+        if (packet instanceof SocketIOProtocolException)
+            throw (SocketIOProtocolException) packet;
+        return (EncodedPacket) packet;
+    }
+
+    /**
+     * @return the event with attachments that are not read yet
+     */
+    private SocketIOPacket copy()
+    {
+        if (attachments == null)
+            return event;
+
+        List<InputStream> streams = new ArrayList<>(attachments.length);
+        for (byte[] data : attachments)
+            streams.add(new ByteArrayInputStream(data));
+
+        EventPacket packet = (EventPacket) event;
+        return SocketIOProtocol.createBinaryEventPacket(-1, packet.getNamespace(), packet.getName(),
+                packet.getArgs(), streams);
+    }
+}
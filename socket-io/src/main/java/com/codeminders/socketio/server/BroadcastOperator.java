@@ -0,0 +1,150 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Alexander Sova (bird@codeminders.com)
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.codeminders.socketio.server;
+
+import com.codeminders.socketio.common.SocketIOException;
+import com.google.common.util.concurrent.ListenableFuture;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Broadcast to the sockets of some rooms but the sockets of other rooms and the given sockets:
+ * <pre>
+ *     namespace.to("a").to("b").except("c").except(sender).emit("news", item);
+ * </pre>
+ * Targets are computed when the event is emitted, as the union of room bitmaps minus excluded ones.
+ * Every target gets the event once, however many of the rooms it joined.
+ * Without any {@code to()} the event goes to all the sockets of the namespace.
+ * <p>
+ * The operator is immutable, every call returns a new one, so it could be kept and reused.
+ */
+public final class BroadcastOperator implements Outbound
+{
+    private final Namespace    namespace;
+    private final List<String> rooms;
+    private final List<String> exceptRooms;
+    private final List<Socket> exceptSockets;
+
+    BroadcastOperator(Namespace namespace)
+    {
+        this(namespace, Collections.<String>emptyList(), Collections.<String>emptyList(),
+                Collections.<Socket>emptyList());
+    }
+
+    private BroadcastOperator(Namespace namespace, List<String> rooms, List<String> exceptRooms,
+                              List<Socket> exceptSockets)
+    {
+        this.namespace = namespace;
+        this.rooms = rooms;
+        this.exceptRooms = exceptRooms;
+        this.exceptSockets = exceptSockets;
+    }
+
+    /**
+     * @param roomId room to send to as well
+     * @return new operator
+     */
+    public BroadcastOperator to(String roomId)
+    {
+        return new BroadcastOperator(namespace, append(rooms, roomId), exceptRooms, exceptSockets);
+    }
+
+    /**
+     * @param roomId room to exclude
+     * @return new operator
+     */
+    public BroadcastOperator except(String roomId)
+    {
+        return new BroadcastOperator(namespace, rooms, append(exceptRooms, roomId), exceptSockets);
+    }
+
+    /**
+     * @param socket socket to exclude, usually the sender
+     * @return new operator
+     */
+    public BroadcastOperator except(Socket socket)
+    {
+        return new BroadcastOperator(namespace, rooms, exceptRooms, append(exceptSockets, socket));
+    }
+
+    @Override
+    public void emit(String name, Object... args) throws SocketIOException
+    {
+        namespace.deliver(getRoom(), getSockets(), null, name, args);
+    }
+
+    /**
+     * Emits an event to the targets. Large broadcasts are delivered by {@link FanOutExecutor} if it is set.
+     * Unlike {@link #emit(String, Object...)} the event could reach a socket after events emitted to it later,
+     * including other fanned out broadcasts.
+     *
+     * @param name event name
+     * @param args event arguments
+     * @return future completing once the event is handed over to every socket
+     * @throws SocketIOException if the event cannot be encoded
+     */
+    public ListenableFuture<BroadcastStats> emitAsync(String name, Object... args) throws SocketIOException
+    {
+        return namespace.broadcast(getRoom(), getSockets(), null, name, args, true);
+    }
+
+    /**
+     * Emits an event to the targets and collects their acknowledgements.
+     *
+     * @param name event name
+     * @param args event arguments
+     * @param timeout ACK timeout in milliseconds
+     * @return future of responses of the sockets which acknowledged the event in time
+     */
+    public ListenableFuture<Map<Socket, Object[]>> emitWithAck(String name, Object[] args, long timeout)
+    {
+        return namespace.broadcastWithAck(getSockets(), null, name, args, timeout);
+    }
+
+    /**
+     * @return current targets of the broadcast
+     */
+    public List<Socket> getSockets()
+    {
+        return namespace.getSockets(rooms, exceptRooms, exceptSockets);
+    }
+
+    /**
+     * @return room whose queue the broadcast goes to, see {@link BroadcastScheduler}
+     */
+    private String getRoom()
+    {
+        return rooms.isEmpty() ? null : rooms.get(0);
+    }
+
+    private static <T> List<T> append(List<T> list, T item)
+    {
+        List<T> result = new ArrayList<>(list.size() + 1);
+        result.addAll(list);
+        result.add(item);
+        return Collections.unmodifiableList(result);
+    }
+}
@@ -0,0 +1,522 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Alexander Sova (bird@codeminders.com)
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.codeminders.socketio.server;
+
+import com.codeminders.socketio.common.SocketIOException;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Delivers broadcasts fairly across rooms, so a busy room does not hold back the others.
+ * <p>
+ * Broadcasts are queued per room, broadcasts to the whole namespace have a queue of their own.
+ * A single thread drains the queues by deficit round robin: every turn a room may deliver its broadcasts
+ * to {@code quantum * weight} sockets, and a broadcast larger than that is continued on the next turns.
+ * Broadcasts of a small room wait for at most one turn of every other busy room, however large their
+ * broadcasts are. Broadcasts of a room are delivered in the order they were emitted.
+ * <p>
+ * Broadcasts which may be delivered by the emitting thread skip the queue when the room has no backlog,
+ * so they reach the sockets before the method returns, like without the scheduler. Otherwise they wait
+ * in the queue behind the earlier broadcasts of the room.
+ * <p>
+ * A room could be limited to a number of broadcasts per second. Broadcasts over the limit wait in the queue,
+ * broadcasts over the queue size are rejected.
+ */
+public final class BroadcastScheduler
+{
+    private static final Logger LOGGER = Logger.getLogger(BroadcastScheduler.class.getName());
+
+    private static final long SWEEP_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+
+    private final int    quantum;
+    private final int    queueSize;
+    private final double defaultRateLimit;
+
+    private final Map<Key, Settings> settings = new HashMap<>();
+    private final Map<Key, Flow>     flows    = new HashMap<>();
+    private final ArrayDeque<Flow>   active   = new ArrayDeque<>(); // flows having broadcasts to deliver
+    private final List<Flow>         limited  = new ArrayList<>();  // flows waiting for the rate limit
+
+    private final Thread thread;
+    private boolean      shutdown;
+    private long         lastSweep = System.nanoTime();
+
+    /**
+     * @param quantum number of sockets a room delivers to in a turn
+     * @param queueSize maximum number of broadcasts waiting in a room
+     * @param rateLimit maximum number of broadcasts per second of a room, 0 for unlimited
+     */
+    public BroadcastScheduler(int quantum, int queueSize, double rateLimit)
+    {
+        if (quantum <= 0)
+            throw new IllegalArgumentException("Broadcast quantum must be positive: " + quantum);
+        if (queueSize <= 0)
+            throw new IllegalArgumentException("Broadcast queue size must be positive: " + queueSize);
+        if (rateLimit < 0)
+            throw new IllegalArgumentException("Broadcast rate limit must not be negative: " + rateLimit);
+
+        this.quantum = quantum;
+        this.queueSize = queueSize;
+        this.defaultRateLimit = rateLimit;
+
+        thread = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                drain();
+            }
+        }, "socket.io-broadcast");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Sets share of the room. A room of weight 2 delivers to twice as many sockets in a turn as a room of weight 1.
+     *
+     * @param namespace namespace id
+     * @param room room id, null for broadcasts to the whole namespace
+     * @param weight weight, 1 by default
+     */
+    public synchronized void setWeight(String namespace, String room, int weight)
+    {
+        if (weight <= 0)
+            throw new IllegalArgumentException("Broadcast weight must be positive: " + weight);
+
+        Key key = new Key(namespace, room);
+        settings(key).weight = weight;
+        Flow flow = flows.get(key);
+        if (flow != null)
+            flow.weight = weight;
+    }
+
+    /**
+     * Limits the rate of broadcasts of the room.
+     *
+     * @param namespace namespace id
+     * @param room room id, null for broadcasts to the whole namespace
+     * @param rateLimit maximum number of broadcasts per second, 0 for unlimited
+     */
+    public synchronized void setRateLimit(String namespace, String room, double rateLimit)
+    {
+        if (rateLimit < 0)
+            throw new IllegalArgumentException("Broadcast rate limit must not be negative: " + rateLimit);
+
+        Key key = new Key(namespace, room);
+        settings(key).rateLimit = rateLimit;
+        Flow flow = flows.get(key);
+        if (flow != null)
+            flow.setRateLimit(rateLimit);
+    }
+
+    /**
+     * Stops the scheduler. Broadcasts already queued are still delivered, new ones are rejected.
+     */
+    public synchronized void shutdown()
+    {
+        shutdown = true;
+        notifyAll();
+    }
+
+    /**
+     * Queues the broadcast.
+     *
+     * @param namespace namespace id
+     * @param room room id, null for broadcasts to the whole namespace
+     * @param targets recipients
+     * @param delivery event
+     * @param start start of the broadcast, {@link System#nanoTime()}
+     * @param direct true to deliver the broadcast on the calling thread if the room has no backlog
+     * @return future of the broadcast outcome. It fails with {@link SocketIOException} if the queue is full
+     */
+    ListenableFuture<BroadcastStats> submit(String namespace, String room, List<Socket> targets,
+                                            BroadcastDelivery delivery, long start, boolean direct)
+    {
+        Pending pending = new Pending(targets, delivery, start);
+        synchronized (this)
+        {
+            if (shutdown)
+            {
+                pending.future.setException(new SocketIOException("Broadcast scheduler is shut down"));
+                return pending.future;
+            }
+
+            Key key = new Key(namespace, room);
+            Flow flow = flows.get(key);
+            if (flow == null)
+            {
+                Settings s = settings.get(key);
+                flow = s == null ? new Flow(1, defaultRateLimit) : new Flow(s.weight, s.rateLimit);
+                flows.put(key, flow);
+            }
+
+            if (flow.queue.size() >= queueSize)
+            {
+                pending.future.setException(new SocketIOException("Broadcast queue of room " + room +
+                        " in namespace " + namespace + " is full"));
+                return pending.future;
+            }
+
+            long now = System.nanoTime();
+            if (direct && flow.queue.isEmpty() && flow.inFlight == 0 && flow.limitedUntil == 0)
+            {
+                if (flow.acquire(now))
+                {
+                    flow.lastActive = now;
+                    pending.admitted = true;
+                }
+                else
+                {
+                    limited.add(flow); // waits for the rate limit with the broadcast queued below
+                    notifyAll();
+                }
+            }
+
+            if (!pending.admitted)
+            {
+                flow.queue.add(pending);
+                if (flow.queue.size() == 1 && flow.limitedUntil == 0)
+                {
+                    active.addLast(flow);
+                    notifyAll();
+                }
+                return pending.future;
+            }
+        }
+
+        // no backlog, nothing to keep the order with
+        new Slice(null, pending, 0, targets.size()).deliver();
+        return pending.future;
+    }
+
+    private void drain()
+    {
+        List<Slice> slices = new ArrayList<>();
+        while (true)
+        {
+            try
+            {
+                synchronized (this)
+                {
+                    for (Slice slice : slices)
+                        slice.flow.inFlight--;
+                    slices.clear();
+
+                    while (!nextTurn(slices))
+                    {
+                        if (shutdown && active.isEmpty() && limited.isEmpty())
+                            return;
+
+                        long wait = waitTime();
+                        if (wait > 0)
+                            TimeUnit.NANOSECONDS.timedWait(this, wait);
+                        else
+                            wait();
+                    }
+                }
+
+                for (Slice slice : slices)
+                    slice.deliver();
+            }
+            catch (InterruptedException e)
+            {
+                return;
+            }
+            catch (Throwable t)
+            {
+                if (LOGGER.isLoggable(Level.SEVERE))
+                    LOGGER.log(Level.SEVERE, "Broadcast scheduler failed", t);
+            }
+        }
+    }
+
+    /**
+     * Takes the next flow in turn and picks broadcasts it could deliver in its turn.
+     *
+     * @param slices parts of the broadcasts to deliver
+     * @return false if there is nothing to deliver
+     */
+    private boolean nextTurn(List<Slice> slices)
+    {
+        long now = System.nanoTime();
+        resumeLimited(now);
+        if (now - lastSweep > SWEEP_INTERVAL)
+            sweep(now);
+
+        Flow flow = active.pollFirst();
+        if (flow == null)
+            return false;
+
+        flow.deficit += (long) quantum * flow.weight;
+        while (!flow.queue.isEmpty() && flow.deficit > 0)
+        {
+            Pending head = flow.queue.peek();
+            if (head.scheduled == 0 && !head.admitted)
+            {
+                if (!flow.acquire(now))
+                {
+                    limited.add(flow);
+                    flow.deficit = 0;
+                    return true;
+                }
+                head.admitted = true;
+            }
+
+            int count = (int) Math.min(flow.deficit, head.targets.size() - head.scheduled);
+            slices.add(new Slice(flow, head, head.scheduled, head.scheduled + count));
+            flow.inFlight++;
+            head.scheduled += count;
+            flow.deficit -= count;
+
+            if (head.scheduled < head.targets.size())
+                break; // continued on the next turn
+
+            flow.queue.poll();
+        }
+
+        if (flow.queue.isEmpty())
+            flow.deficit = 0; // idle flow does not save its turn
+        else
+            active.addLast(flow);
+        flow.lastActive = now;
+        return true;
+    }
+
+    private void resumeLimited(long now)
+    {
+        for (Iterator<Flow> i = limited.iterator(); i.hasNext(); )
+        {
+            Flow flow = i.next();
+            if (flow.limitedUntil - now <= 0)
+            {
+                i.remove();
+                flow.limitedUntil = 0;
+                active.addLast(flow);
+            }
+        }
+    }
+
+    /**
+     * @return time until the first rate-limited flow resumes, 0 if there are none
+     */
+    private long waitTime()
+    {
+        long now = System.nanoTime();
+        long wait = 0;
+        for (Flow flow : limited)
+        {
+            long until = Math.max(flow.limitedUntil - now, 1);
+            if (wait == 0 || until < wait)
+                wait = until;
+        }
+
+        // forget idle flows even if nothing is broadcast
+        if (!flows.isEmpty() && (wait == 0 || wait > SWEEP_INTERVAL))
+            wait = SWEEP_INTERVAL;
+        return wait;
+    }
+
+    /**
+     * Removes flows idle long enough to refill their rate limit, so rooms which are gone do not pile up.
+     */
+    private void sweep(long now)
+    {
+        lastSweep = now;
+        for (Iterator<Flow> i = flows.values().iterator(); i.hasNext(); )
+        {
+            Flow flow = i.next();
+            if (flow.queue.isEmpty() && flow.inFlight == 0 && flow.limitedUntil == 0 &&
+                    now - flow.lastActive > SWEEP_INTERVAL)
+                i.remove();
+        }
+    }
+
+    private Settings settings(Key key)
+    {
+        Settings s = settings.get(key);
+        if (s == null)
+        {
+            s = new Settings(defaultRateLimit);
+            settings.put(key, s);
+        }
+        return s;
+    }
+
+    private static final class Key
+    {
+        private final String namespace;
+        private final String room;
+
+        Key(String namespace, String room)
+        {
+            this.namespace = namespace;
+            this.room = room;
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if (this == o)
+                return true;
+            if (!(o instanceof Key))
+                return false;
+
+            Key key = (Key) o;
+            return namespace.equals(key.namespace) && (room == null ? key.room == null : room.equals(key.room));
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return 31 * namespace.hashCode() + (room == null ? 0 : room.hashCode());
+        }
+    }
+
+    private static final class Settings
+    {
+        int    weight = 1;
+        double rateLimit;
+
+        Settings(double rateLimit)
+        {
+            this.rateLimit = rateLimit;
+        }
+    }
+
+    /**
+     * Queue of a room. Guarded by the scheduler.
+     */
+    private static final class Flow
+    {
+        final ArrayDeque<Pending> queue = new ArrayDeque<>();
+
+        int  weight;
+        int  inFlight; // slices taken by the scheduler thread and not delivered yet
+        long deficit;
+        long lastActive = System.nanoTime();
+        long limitedUntil; // 0 unless waiting for the rate limit
+
+        // token bucket holding up to a second of broadcasts
+        double rateLimit;
+        double tokens;
+        long   lastRefill = System.nanoTime();
+
+        Flow(int weight, double rateLimit)
+        {
+            this.weight = weight;
+            setRateLimit(rateLimit);
+        }
+
+        void setRateLimit(double rateLimit)
+        {
+            this.rateLimit = rateLimit;
+            this.tokens = Math.max(rateLimit, 1);
+        }
+
+        /**
+         * Takes a token for the next broadcast.
+         *
+         * @return false if the limit is reached, the flow should wait until {@link #limitedUntil}
+         */
+        boolean acquire(long now)
+        {
+            if (rateLimit == 0)
+                return true;
+
+            tokens = Math.min(Math.max(rateLimit, 1), tokens + (now - lastRefill) * rateLimit / 1e9);
+            lastRefill = now;
+            if (tokens >= 1)
+            {
+                tokens -= 1;
+                return true;
+            }
+
+            limitedUntil = now + Math.max((long) ((1 - tokens) * 1e9 / rateLimit), 1);
+            return false;
+        }
+    }
+
+    private static final class Pending
+    {
+        final List<Socket>                   targets;
+        final BroadcastDelivery              delivery;
+        final long                           start;
+        final SettableFuture<BroadcastStats> future = SettableFuture.create();
+
+        // scheduler thread only
+        int     scheduled;
+        int     delivered;
+        boolean admitted;
+
+        Pending(List<Socket> targets, BroadcastDelivery delivery, long start)
+        {
+            this.targets = targets;
+            this.delivery = delivery;
+            this.start = start;
+        }
+    }
+
+    private static final class Slice
+    {
+        private final Flow    flow; // null if delivered by the emitting thread
+        private final Pending pending;
+        private final int     from;
+        private final int     to;
+
+        Slice(Flow flow, Pending pending, int from, int to)
+        {
+            this.flow = flow;
+            this.pending = pending;
+            this.from = from;
+            this.to = to;
+        }
+
+        void deliver()
+        {
+            try
+            {
+                pending.delivered += pending.delivery.deliver(pending.targets, from, to);
+
+                if (to == pending.targets.size())
+                    pending.future.set(new BroadcastStats(to, pending.delivered, System.nanoTime() - pending.start));
+            }
+            catch (Throwable t)
+            {
+                // the broadcast fails, the slices following it are still delivered
+                if (LOGGER.isLoggable(Level.SEVERE))
+                    LOGGER.log(Level.SEVERE, "Broadcast delivery failed", t);
+                pending.future.setException(t);
+            }
+        }
+    }
+}
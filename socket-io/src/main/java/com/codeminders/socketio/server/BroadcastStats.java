@@ -0,0 +1,86 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Alexander Sova (bird@codeminders.com)
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.codeminders.socketio.server;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Outcome of a broadcast.
+ * <p>
+ * Delivered events are handed over to the connections, they could still be evicted later by the events
+ * following them if the outbound buffer of a connection overflows. Dropped events are the ones which could not be
+ * handed over: the socket disconnected, sending failed or the outbound buffer was full.
+ */
+public final class BroadcastStats
+{
+    private final int  targets;
+    private final int  delivered;
+    private final long duration;
+
+    BroadcastStats(int targets, int delivered, long duration)
+    {
+        this.targets = targets;
+        this.delivered = delivered;
+        this.duration = duration;
+    }
+
+    /**
+     * @return number of sockets the event was sent to
+     */
+    public int getTargets()
+    {
+        return targets;
+    }
+
+    /**
+     * @return number of sockets the event was handed over to
+     */
+    public int getDelivered()
+    {
+        return delivered;
+    }
+
+    /**
+     * @return number of sockets the event could not be handed over to
+     */
+    public int getDropped()
+    {
+        return targets - delivered;
+    }
+
+    /**
+     * @param unit time unit
+     * @return time from the start of the broadcast to its last delivery
+     */
+    public long getDuration(TimeUnit unit)
+    {
+        return unit.convert(duration, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public String toString()
+    {
+        return "targets=" + targets + ", delivered=" + delivered + ", dropped=" + getDropped() +
+                ", duration=" + TimeUnit.NANOSECONDS.toMicros(duration) + "us";
+    }
+}
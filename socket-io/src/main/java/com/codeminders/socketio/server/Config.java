@@ -33,6 +33,31 @@ public interface Config
     String PING_INTERVAL         = "pingInterval";
     String TIMEOUT               = "timeout";
 
+    String POLLING_TIMEOUT = "pollingTimeout";
+    String ASYNC_POLLING   = "asyncPolling";
+    String MAX_BODY_SIZE   = "maxBodySize";
+
+    String SEND_TIMEOUT = "sendTimeout";
+
+    String MAX_OUTBOUND_PACKETS = "maxOutboundPackets";
+    String MAX_OUTBOUND_BYTES   = "maxOutboundBytes";
+    String OVERFLOW_POLICY      = "overflowPolicy";
+
+    String PACKET_CODEC = "packetCodec";
+
+    String EVENT_LOOPS           = "eventLoops";
+    String EVENT_LOOP_QUEUE_SIZE = "eventLoopQueueSize";
+    String VIRTUAL_THREADS       = "virtualThreads";
+
+    String FAN_OUT_THREADS    = "fanOutThreads";
+    String FAN_OUT_THRESHOLD  = "fanOutThreshold";
+    String FAN_OUT_CHUNK_SIZE = "fanOutChunkSize";
+
+    String FAIR_BROADCAST       = "fairBroadcast";
+    String BROADCAST_QUANTUM    = "broadcastQuantum";
+    String BROADCAST_QUEUE_SIZE = "broadcastQueueSize";
+    String ROOM_RATE_LIMIT      = "roomRateLimit";
+
     String BUFFER_SIZE = "bufferSize";
     String MAX_IDLE    = "maxIdleTime";
 
@@ -42,6 +67,21 @@ public interface Config
     int DEFAULT_PING_INTERVAL = 25 * 1000; // 25s
     int DEFAULT_PING_TIMEOUT  = 60 * 1000; // 60s
 
+    int DEFAULT_SEND_TIMEOUT = 60 * 1000; // 60s
+
+    int  DEFAULT_MAX_OUTBOUND_PACKETS = 16 * 1024;
+    long DEFAULT_MAX_OUTBOUND_BYTES   = 32 * 1024 * 1024; // 32M
+
+    long DEFAULT_MAX_BODY_SIZE = 100 * 1000 * 1000; // 100MB, same as engine.io maxHttpBufferSize
+
+    int DEFAULT_EVENT_LOOP_QUEUE_SIZE = 8192;
+
+    int DEFAULT_FAN_OUT_THRESHOLD  = 1024;
+    int DEFAULT_FAN_OUT_CHUNK_SIZE = 256;
+
+    int DEFAULT_BROADCAST_QUANTUM    = 256;
+    int DEFAULT_BROADCAST_QUEUE_SIZE = 1024;
+
     long getPingInterval(long def);
 
     long getTimeout(long def);
@@ -0,0 +1,183 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Alexander Sova (bird@codeminders.com)
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.codeminders.socketio.server;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Group of single-threaded event loops dispatching session events.
+ * <p>
+ * Every session is pinned to one loop, chosen round-robin when the session is created. Its inbound packets,
+ * ACK callbacks, timeouts and disconnect run on that loop one at a time and in the order they arrived,
+ * even across transport upgrade. Container threads only hand the packets over.
+ * <p>
+ * Loop queues are bounded. A thread handing a task to a full loop waits for room, so slow listeners push back
+ * on the connections feeding them instead of piling up memory. Tasks handed over by the loop thread itself
+ * are queued too, after the ones already waiting. Only if its queue is full the loop runs such a task right away,
+ * since it cannot wait for room it has to make itself.
+ */
+public final class EventLoopGroup
+{
+    private static final Logger LOGGER = Logger.getLogger(EventLoopGroup.class.getName());
+
+    private final EventLoop[]   loops;
+    private final AtomicInteger next = new AtomicInteger();
+
+    /**
+     * @param loops number of loops
+     * @param queueSize maximum number of tasks waiting in a loop
+     */
+    public EventLoopGroup(int loops, int queueSize)
+    {
+        if (loops <= 0)
+            throw new IllegalArgumentException("Number of event loops must be positive: " + loops);
+        if (queueSize <= 0)
+            throw new IllegalArgumentException("Event loop queue size must be positive: " + queueSize);
+
+        ThreadFactory factory = new ThreadFactoryBuilder()
+                .setDaemon(true)
+                .setNameFormat("socket.io-loop-%d")
+                .build();
+
+        this.loops = new EventLoop[loops];
+        for (int i = 0; i < loops; i++)
+            this.loops[i] = new EventLoop(factory, queueSize);
+    }
+
+    /**
+     * @return number of loops in the group
+     */
+    public int size()
+    {
+        return loops.length;
+    }
+
+    /**
+     * @return loop for a new session
+     */
+    Executor next()
+    {
+        return loops[(next.getAndIncrement() & Integer.MAX_VALUE) % loops.length];
+    }
+
+    /**
+     * Stops the loops. Tasks already queued are still run, new ones are rejected.
+     */
+    public void shutdown()
+    {
+        for (EventLoop loop : loops)
+            loop.executor.shutdown();
+    }
+
+    private static final class EventLoop implements Executor, ThreadFactory, RejectedExecutionHandler
+    {
+        private final ThreadFactory      factory;
+        private final ThreadPoolExecutor executor;
+        private volatile Thread          thread;
+
+        EventLoop(ThreadFactory factory, int queueSize)
+        {
+            this.factory = factory;
+            this.executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                    new LinkedBlockingQueue<Runnable>(queueSize), this, this);
+        }
+
+        @Override
+        public void execute(Runnable task)
+        {
+            executor.execute(new Task(task));
+        }
+
+        @Override
+        public Thread newThread(Runnable r)
+        {
+            // the thread is replaced only if it dies, tasks do not let exceptions out
+            Thread t = factory.newThread(r);
+            thread = t;
+            return t;
+        }
+
+        @Override
+        public void rejectedExecution(Runnable task, ThreadPoolExecutor executor)
+        {
+            if (executor.isShutdown())
+                throw new RejectedExecutionException("Event loop is shut down");
+
+            if (Thread.currentThread() == thread)
+            {
+                task.run(); // waiting for room in its own queue would never end
+                return;
+            }
+
+            try
+            {
+                executor.getQueue().put(task);
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw new RejectedExecutionException("Interrupted while waiting for the event loop", e);
+            }
+        }
+
+        private static void run(Runnable task)
+        {
+            try
+            {
+                task.run();
+            }
+            catch (Throwable e)
+            {
+                if (LOGGER.isLoggable(Level.WARNING))
+                    LOGGER.log(Level.WARNING, "Event loop task failed", e);
+            }
+        }
+
+        private static final class Task implements Runnable
+        {
+            private final Runnable task;
+
+            Task(Runnable task)
+            {
+                this.task = task;
+            }
+
+            @Override
+            public void run()
+            {
+                EventLoop.run(task);
+            }
+        }
+    }
+}
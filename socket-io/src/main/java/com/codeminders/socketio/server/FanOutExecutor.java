@@ -0,0 +1,201 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Alexander Sova (bird@codeminders.com)
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.codeminders.socketio.server;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Delivers large broadcasts on a fork/join pool, so the thread emitting the event does not loop over
+ * all the recipients.
+ * <p>
+ * Only broadcasts emitted with {@code emitAsync} are fanned out. Sockets get them in no particular order
+ * relative to other events: a fanned out event could reach a socket after events emitted to it later,
+ * by the same thread or by other fanned out broadcasts. {@code emit} keeps delivering on the calling thread.
+ * <p>
+ * Broadcasts to more than {@code threshold} sockets are split in halves until the parts are not larger than
+ * {@code chunkSize}, and idle threads steal the parts. Smaller broadcasts are delivered right away by the
+ * calling thread, handing them over would take longer than sending.
+ */
+public final class FanOutExecutor
+{
+    private static final Logger LOGGER = Logger.getLogger(FanOutExecutor.class.getName());
+
+    private final ForkJoinPool pool;
+    private final int          threshold;
+    private final int          chunkSize;
+
+    /**
+     * @param parallelism number of threads
+     * @param threshold minimum number of recipients to fan out the broadcast
+     * @param chunkSize maximum number of recipients a thread delivers in one go
+     */
+    public FanOutExecutor(int parallelism, int threshold, int chunkSize)
+    {
+        if (parallelism <= 0)
+            throw new IllegalArgumentException("Fan-out parallelism must be positive: " + parallelism);
+        if (chunkSize <= 0)
+            throw new IllegalArgumentException("Fan-out chunk size must be positive: " + chunkSize);
+
+        final AtomicInteger count = new AtomicInteger();
+        ForkJoinPool.ForkJoinWorkerThreadFactory factory = new ForkJoinPool.ForkJoinWorkerThreadFactory()
+        {
+            @Override
+            public ForkJoinWorkerThread newThread(ForkJoinPool pool)
+            {
+                ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+                thread.setName("socket.io-fanout-" + count.getAndIncrement());
+                return thread;
+            }
+        };
+
+        this.pool = new ForkJoinPool(parallelism, factory, null, false);
+        this.threshold = threshold;
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * @return minimum number of recipients to fan out the broadcast
+     */
+    public int getThreshold()
+    {
+        return threshold;
+    }
+
+    /**
+     * @return maximum number of recipients a thread delivers in one go
+     */
+    public int getChunkSize()
+    {
+        return chunkSize;
+    }
+
+    /**
+     * Stops the pool. Broadcasts already started are completed, new ones fail.
+     */
+    public void shutdown()
+    {
+        pool.shutdown();
+    }
+
+    /**
+     * Starts delivering the event.
+     *
+     * @param targets recipients
+     * @param delivery event
+     * @param start start of the broadcast, {@link System#nanoTime()}
+     * @return future of the broadcast outcome
+     */
+    ListenableFuture<BroadcastStats> submit(List<Socket> targets, BroadcastDelivery delivery, long start)
+    {
+        Broadcast broadcast = new Broadcast(targets, delivery, start);
+        try
+        {
+            pool.execute(broadcast);
+        }
+        catch (RejectedExecutionException e)
+        {
+            broadcast.future.setException(e);
+        }
+        return broadcast.future;
+    }
+
+    private final class Broadcast extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final List<Socket>                   targets;
+        private final BroadcastDelivery              delivery;
+        private final long                           start;
+        private final AtomicInteger                  delivered = new AtomicInteger();
+        private final SettableFuture<BroadcastStats> future    = SettableFuture.create();
+
+        Broadcast(List<Socket> targets, BroadcastDelivery delivery, long start)
+        {
+            this.targets = targets;
+            this.delivery = delivery;
+            this.start = start;
+        }
+
+        @Override
+        protected void compute()
+        {
+            try
+            {
+                new Chunk(this, 0, targets.size()).compute();
+
+                BroadcastStats stats = new BroadcastStats(targets.size(), delivered.get(), System.nanoTime() - start);
+                if (LOGGER.isLoggable(Level.FINE))
+                    LOGGER.fine("Broadcast fanned out: " + stats);
+                future.set(stats);
+            }
+            catch (Throwable t)
+            {
+                future.setException(t);
+            }
+        }
+
+        void deliver(int from, int to)
+        {
+            delivered.addAndGet(delivery.deliver(targets, from, to));
+        }
+    }
+
+    private final class Chunk extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final Broadcast broadcast;
+        private final int       from;
+        private final int       to;
+
+        Chunk(Broadcast broadcast, int from, int to)
+        {
+            this.broadcast = broadcast;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute()
+        {
+            if (to - from <= chunkSize)
+            {
+                broadcast.deliver(from, to);
+                return;
+            }
+
+            int middle = (from + to) >>> 1;
+            invokeAll(new Chunk(broadcast, from, middle), new Chunk(broadcast, middle, to));
+        }
+    }
+}
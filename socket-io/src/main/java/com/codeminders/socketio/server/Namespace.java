@@ -24,19 +24,38 @@ package com.codeminders.socketio.server;
 
 import com.codeminders.socketio.common.DisconnectReason;
 import com.codeminders.socketio.common.SocketIOException;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  * @author Alexander Sova (bird@codeminders.com)
  */
 public class Namespace implements Outbound, ConnectionListener, DisconnectListener
 {
+    private static final Logger LOGGER = Logger.getLogger(Namespace.class.getName());
+
     private String                   id;
 
-    private List<Socket>             sockets             = Collections.synchronizedList(new LinkedList<Socket>());
+    // by socket id. broadcasts iterate it without locks while sockets come and go
+    private final ConcurrentMap<String, Socket> sockets = new ConcurrentHashMap<>();
     private List<ConnectionListener> connectionListeners = Collections.synchronizedList(new LinkedList<ConnectionListener>());
-    private Map<String, Room>        rooms               = Collections.synchronizedMap(new LinkedHashMap<String, Room>());
+    private final ConcurrentMap<String, RoomMembers> rooms = new ConcurrentHashMap<>();
+
+    // sockets by handle. rooms keep bitmaps of handles, broadcasts map them back with this table.
+    // freed handles are reused oldest first, so a stale room snapshot rarely maps to a new socket.
+    // every allocation is numbered, sockets allocated after a snapshot was taken are checked for membership
+    private final Object         handleLock  = new Object();
+    private volatile Socket[]    handles     = new Socket[16];
+    private volatile long        generation;
+    private int                  handleCount;
+    private final Queue<Integer> freeHandles = new ArrayDeque<>();
 
     Namespace(String id)
     {
@@ -51,18 +70,169 @@ public class Namespace implements Outbound, ConnectionListener, DisconnectListen
     @Override
     public void emit(String name, Object... args)
     {
-        for(Socket s : sockets)
+        try
         {
-            try
-            {
-                s.emit(name, args);
-            }
-            catch (SocketIOException e)
-            {
-                // ignore for now
-                // TODO: add getLastError method?
-            }
+            deliver(null, sockets.values(), null, name, args);
+        }
+        catch (SocketIOException e)
+        {
+            // TODO: add getLastError method?
+            if (LOGGER.isLoggable(Level.WARNING))
+                LOGGER.log(Level.WARNING, "Cannot broadcast event " + name + " in namespace " + id, e);
+        }
+    }
+
+    /**
+     * Emits an event to all the sockets of the namespace. Large broadcasts are delivered by {@link FanOutExecutor}
+     * if it is set. Unlike {@link #emit(String, Object...)} the event could reach a socket after events emitted
+     * to it later, including other fanned out broadcasts.
+     *
+     * @param name event name
+     * @param args event arguments
+     * @return future completing once the event is handed over to every socket.
+     *         See {@link #broadcast(String, Iterable, Socket, String, Object[], boolean)}
+     * @throws SocketIOException if the event cannot be encoded
+     */
+    public ListenableFuture<BroadcastStats> emitAsync(String name, Object... args) throws SocketIOException
+    {
+        return broadcast(null, sockets.values(), null, name, args, true);
+    }
+
+    /**
+     * Sends an event to all the sockets but {@code sender}.
+     * <p>
+     * The event is encoded only once per codec and all the recipients using the codec share the same frame.
+     * Delivery errors of individual sockets are ignored, they are counted as dropped.
+     * <p>
+     * If {@link BroadcastScheduler} is set the event is queued in the queue of the room. Unless {@code fanOut}
+     * is requested, the event skips the queue and is delivered by the calling thread when the room has no backlog.
+     * Otherwise, if {@code fanOut} is requested, {@link FanOutExecutor} is set and there are more recipients than
+     * its threshold, the event is delivered by the executor. A queued or fanned out event is delivered after
+     * the method returns. Otherwise the event is delivered by the calling thread and the returned future
+     * is already complete.
+     * <p>
+     * An event delivered later could reach a socket after the events emitted to it directly, so it is only done
+     * on request or when the room has a backlog.
+     *
+     * @param room room the event is sent to, null if it is sent to the whole namespace
+     * @param sockets recipients. All of them should belong to this namespace
+     * @param sender socket to skip, could be null
+     * @param name event name
+     * @param args event arguments
+     * @param fanOut true to let {@link FanOutExecutor} or {@link BroadcastScheduler} deliver the event
+     * @return future of the broadcast outcome
+     * @throws SocketIOException if the event cannot be encoded
+     */
+    ListenableFuture<BroadcastStats> broadcast(String room, Iterable<Socket> sockets, Socket sender,
+                                               String name, Object[] args, boolean fanOut)
+            throws SocketIOException
+    {
+        long start = System.nanoTime();
+        BroadcastDelivery delivery = new BroadcastDelivery(id, name, args);
+
+        BroadcastScheduler scheduler = SocketIOManager.getInstance().getBroadcastScheduler();
+        if (scheduler != null)
+            return scheduler.submit(id, room, targets(sockets, sender), delivery, start, !fanOut);
+
+        FanOutExecutor executor = fanOut ? SocketIOManager.getInstance().getFanOutExecutor() : null;
+        if (executor != null && sockets instanceof Collection &&
+                ((Collection<?>) sockets).size() > executor.getThreshold())
+        {
+            List<Socket> targets = targets(sockets, sender);
+            if (!targets.isEmpty())
+                delivery.encodeFor(targets.get(0));
+            return executor.submit(targets, delivery, start);
+        }
+
+        int targets = 0;
+        int delivered = 0;
+        for (Socket s : sockets)
+        {
+            if (s == sender)
+                continue;
+
+            targets++;
+            if (delivery.deliver(s))
+                delivered++;
+        }
+        return Futures.immediateFuture(new BroadcastStats(targets, delivered, System.nanoTime() - start));
+    }
+
+    /**
+     * Broadcast of the {@code emit} methods. It is never fanned out, and if {@link BroadcastScheduler} rejects it
+     * the caller gets the error instead of a failed future nobody looks at.
+     *
+     * @throws SocketIOException if the event cannot be encoded or the broadcast is rejected
+     */
+    void deliver(String room, Iterable<Socket> sockets, Socket sender, String name, Object[] args)
+            throws SocketIOException
+    {
+        ListenableFuture<BroadcastStats> future = broadcast(room, sockets, sender, name, args, false);
+        if (!future.isDone())
+            return;
+
+        try
+        {
+            Futures.getDone(future);
+        }
+        catch (ExecutionException e)
+        {
+            if (e.getCause() instanceof SocketIOException)
+                throw (SocketIOException) e.getCause();
+            throw new SocketIOException(e.getCause());
+        }
+    }
+
+    private static List<Socket> targets(Iterable<Socket> sockets, Socket sender)
+    {
+        List<Socket> targets = new ArrayList<>();
+        for (Socket s : sockets)
+        {
+            if (s != sender)
+                targets.add(s);
         }
+        return targets;
+    }
+
+
+    /**
+     * Emits an event to all the sockets of the namespace and collects their acknowledgements.
+     *
+     * @param name event name
+     * @param args event arguments
+     * @param timeout ACK timeout in milliseconds
+     * @return future of responses of the sockets which acknowledged the event in time.
+     *         See {@link #broadcastWithAck(Iterable, Socket, String, Object[], long)}
+     */
+    public ListenableFuture<Map<Socket, Object[]>> emitWithAck(String name, Object[] args, long timeout)
+    {
+        return broadcastWithAck(sockets.values(), null, name, args, timeout);
+    }
+
+    /**
+     * Sends an event requesting an ACK to all the sockets but {@code sender}.
+     * <p>
+     * The returned future completes once every socket acknowledged the event, timed out or disconnected.
+     * It is never failed, sockets which did not acknowledge the event are just missing from the result.
+     * Nothing waits for the acknowledgements, all of them share a single counter.
+     *
+     * @param sockets recipients. All of them should belong to this namespace
+     * @param sender socket to skip, could be null
+     * @param name event name
+     * @param args event arguments
+     * @param timeout ACK timeout in milliseconds
+     * @return future of responses by socket, in the order the sockets were iterated
+     */
+    ListenableFuture<Map<Socket, Object[]>> broadcastWithAck(Iterable<Socket> sockets, Socket sender,
+                                                             String name, Object[] args, long timeout)
+    {
+        BroadcastACK ack = new BroadcastACK(name, timeout);
+        for (Socket s : sockets)
+        {
+            if (s != sender)
+                ack.emit(s, args);
+        }
+        return ack.start();
     }
 
 
@@ -82,8 +252,9 @@ public class Namespace implements Outbound, ConnectionListener, DisconnectListen
     public Socket createSocket(Session session)
     {
         Socket socket = new Socket(session, this);
+        socket.setHandle(allocateHandle(socket));
         socket.on(this);
-        sockets.add(socket);
+        sockets.put(socket.getId(), socket);
 
         return socket;
     }
@@ -91,25 +262,30 @@ public class Namespace implements Outbound, ConnectionListener, DisconnectListen
     @Override
     public void onDisconnect(Socket socket, DisconnectReason reason, String errorMessage)
     {
-        leaveAll(socket);
-        sockets.remove(socket);
+        // the socket cannot join once its handle is gone, the handle is freed after it left all the rooms
+        int handle;
+        synchronized (handleLock)
+        {
+            handle = socket.getHandle();
+            socket.setHandle(-1);
+        }
+        for (String roomId : socket.getRooms())
+            leave(roomId, socket, handle);
+        sockets.remove(socket.getId(), socket);
+        if (handle >= 0)
+            freeHandle(handle);
     }
 
     /**
-     * Finds or creates a room.
+     * Finds or creates a room. Rooms exist while they have members, the returned object stays valid
+     * when the room is emptied and created again.
      *
      * @param roomId room id
      * @return Room object
      */
     public Room room(String roomId)
     {
-        Room room = rooms.get(roomId);
-        if(room == null)
-        {
-            room = new Room(roomId);
-            rooms.put(roomId, room);
-        }
-        return room;
+        return new Room(this, roomId);
     }
 
     /**
@@ -123,17 +299,255 @@ public class Namespace implements Outbound, ConnectionListener, DisconnectListen
         return room(roomId);
     }
 
+    /**
+     * Starts a broadcast to the sockets of the room. Add more rooms and exclusions to the returned operator.
+     *
+     * @param roomId room id
+     * @return broadcast operator
+     */
+    public BroadcastOperator to(String roomId)
+    {
+        return new BroadcastOperator(this).to(roomId);
+    }
+
+    /**
+     * Starts a broadcast to all the sockets of the namespace but the members of the room.
+     *
+     * @param roomId id of the room to exclude
+     * @return broadcast operator
+     */
+    public BroadcastOperator except(String roomId)
+    {
+        return new BroadcastOperator(this).except(roomId);
+    }
+
+    /**
+     * @return number of rooms having members
+     */
+    int getRoomCount()
+    {
+        return rooms.size();
+    }
+
+    void join(String roomId, Socket socket)
+    {
+        // the room is recorded first, so a disconnect coming after the handle is added leaves the room.
+        // the handle is added under the lock the disconnect takes to give it up, so it is never added
+        // once it could be freed and given to another socket
+        socket.joined(roomId);
+        synchronized (handleLock)
+        {
+            int handle = socket.getHandle();
+            if (handle >= 0)
+            {
+                add(roomId, handle);
+                return;
+            }
+        }
+        socket.left(roomId); // disconnected
+    }
+
+    private void add(String roomId, int handle)
+    {
+        while (true)
+        {
+            RoomMembers members = rooms.get(roomId);
+            if (members == null)
+            {
+                members = new RoomMembers();
+                RoomMembers existing = rooms.putIfAbsent(roomId, members);
+                if (existing != null)
+                    members = existing;
+            }
+
+            if (members.add(handle))
+                return;
+
+            // the room has just been emptied. help to remove it and create a new one
+            rooms.remove(roomId, members);
+        }
+    }
+
+    void leave(String roomId, Socket socket)
+    {
+        int handle = socket.getHandle();
+        if (handle >= 0)
+            leave(roomId, socket, handle);
+    }
+
+    private void leave(String roomId, Socket socket, int handle)
+    {
+        socket.left(roomId);
+        RoomMembers members = rooms.get(roomId);
+        if (members != null && members.remove(handle))
+            rooms.remove(roomId, members);
+    }
+
+    boolean contains(String roomId, Socket socket)
+    {
+        int handle = socket.getHandle();
+        RoomMembers members = rooms.get(roomId);
+        return handle >= 0 && members != null && members.contains(handle);
+    }
+
+    int size(String roomId)
+    {
+        RoomMembers members = rooms.get(roomId);
+        return members == null ? 0 : members.size();
+    }
+
+    List<Socket> getSockets(String roomId)
+    {
+        long generation = this.generation;
+        RoomMembers members = rooms.get(roomId);
+        return members == null ? Collections.<Socket>emptyList() :
+                getSockets(members.snapshot().toArray(), generation, Collections.singleton(roomId),
+                        Collections.<String>emptySet());
+    }
+
+    /**
+     * Computes targets of a broadcast with bitmap operations, so every socket is listed once
+     * however many of the rooms it joined.
+     *
+     * @param roomIds rooms to send to, all the sockets of the namespace if empty
+     * @param exceptRoomIds rooms to exclude
+     * @param exceptSockets sockets to exclude
+     * @return target sockets, in the order of their handles
+     */
+    List<Socket> getSockets(Collection<String> roomIds, Collection<String> exceptRoomIds,
+                            Collection<Socket> exceptSockets)
+    {
+        long generation = this.generation;
+        SocketBitmap.Builder targets = new SocketBitmap.Builder();
+        if (roomIds.isEmpty())
+        {
+            Socket[] table = handles;
+            for (int handle = 0; handle < table.length; handle++)
+            {
+                if (table[handle] != null)
+                    targets.add(handle);
+            }
+        }
+
+        for (String roomId : roomIds)
+        {
+            RoomMembers members = rooms.get(roomId);
+            if (members != null)
+                targets.or(members.snapshot());
+        }
+
+        for (String roomId : exceptRoomIds)
+        {
+            RoomMembers members = rooms.get(roomId);
+            if (members != null)
+                targets.andNot(members.snapshot());
+        }
+
+        for (Socket socket : exceptSockets)
+        {
+            int handle = socket.getHandle();
+            if (handle >= 0)
+                targets.remove(handle);
+        }
+
+        return getSockets(targets.toArray(), generation, roomIds, exceptRoomIds);
+    }
+
+    /**
+     * Maps handles back to sockets. A handle could be freed and given to a new socket after the snapshot
+     * was taken, so sockets allocated since then are checked against the rooms they joined.
+     *
+     * @param handles snapshot of handles
+     * @param generation generation of the namespace read before the snapshot was taken
+     * @param roomIds rooms a new socket should be in, any socket if empty
+     * @param exceptRoomIds rooms a new socket should not be in
+     * @return sockets
+     */
+    List<Socket> getSockets(int[] handles, long generation, Collection<String> roomIds,
+                            Collection<String> exceptRoomIds)
+    {
+        Socket[] table = this.handles;
+        List<Socket> result = new ArrayList<>(handles.length);
+        for (int handle : handles)
+        {
+            // the socket could be gone since the snapshot was taken
+            Socket socket = handle < table.length ? table[handle] : null;
+            if (socket == null)
+                continue;
+
+            if (socket.getGeneration() > generation)
+            {
+                Set<String> joined = socket.getRooms();
+                if (!roomIds.isEmpty() && Collections.disjoint(joined, roomIds) ||
+                        !Collections.disjoint(joined, exceptRoomIds))
+                    continue;
+            }
+            result.add(socket);
+        }
+        return result;
+    }
+
+    /**
+     * Removes the socket from all the rooms it joined. Other rooms are not touched.
+     */
     void leaveAll(Socket socket)
     {
-        for (Room room : rooms.values())
+        for (String roomId : socket.getRooms())
+            leave(roomId, socket);
+    }
+
+    private int allocateHandle(Socket socket)
+    {
+        synchronized (handleLock)
+        {
+            Integer free = freeHandles.poll();
+            int handle = free != null ? free : handleCount++;
+
+            socket.setGeneration(generation + 1);
+            Socket[] table = handles;
+            if (handle >= table.length)
+                table = Arrays.copyOf(table, table.length * 2);
+            table[handle] = socket;
+            handles = table; // volatile write publishes the slot
+            generation++;
+            return handle;
+        }
+    }
+
+    private void freeHandle(int handle)
+    {
+        synchronized (handleLock)
         {
-            if(room.contains(socket))
-                room.leave(socket);
+            Socket[] table = handles;
+            table[handle] = null;
+            handles = table;
+            freeHandles.add(handle);
         }
     }
 
+    /**
+     * @return connected sockets. Iteration is weakly consistent: it never fails and sees
+     *         the sockets connected before it started, unless they disconnected since
+     */
     public Iterable<Socket> getSockets()
     {
-        return sockets;
+        return Collections.unmodifiableCollection(sockets.values());
+    }
+
+    /**
+     * @param socketId socket id, see {@link Socket#getId()}
+     * @return connected socket, null if there is none
+     */
+    public Socket getSocket(String socketId)
+    {
+        return sockets.get(socketId);
+    }
+
+    /**
+     * @return number of connected sockets
+     */
+    public int getSocketCount()
+    {
+        return sockets.size();
     }
 }
@@ -32,7 +32,8 @@ public interface Outbound
      * @param name event name
      * @param args list of arguments. Arguments can contain any type of field that can result of JSON decoding,
      *             including objects and arrays of arbitrary size. If last argument is {@code ACKListener}
-     *             then this listener to be called upon ACK arriving
+     *             then this listener to be called upon ACK arriving. Use {@code ACKTimeoutListener}
+     *             to stop waiting after a timeout
      * @throws SocketIOException if IO or protocol error happens
      */
 
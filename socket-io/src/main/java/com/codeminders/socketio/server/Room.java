@@ -23,20 +23,24 @@
 package com.codeminders.socketio.server;
 
 import com.codeminders.socketio.common.SocketIOException;
+import com.google.common.util.concurrent.ListenableFuture;
 
-import java.util.Deque;
-import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.Map;
 
 /**
+ * Room of a namespace. Room exists while it has members. Members are kept by the namespace,
+ * so this object is just a handle and could be kept after the room is emptied.
+ *
  * @author Alexander Sova (bird@codeminders.com)
  */
 public class Room implements Outbound
 {
-    private String id;
-    private Deque<Socket> sockets = new ConcurrentLinkedDeque<>();
+    private final Namespace namespace;
+    private final String    id;
 
-    Room(String id)
+    Room(Namespace namespace, String id)
     {
+        this.namespace = namespace;
         this.id = id;
     }
 
@@ -48,47 +52,86 @@ public class Room implements Outbound
     @Override
     public void emit(String name, Object... args) throws SocketIOException
     {
-        for(Socket s : sockets)
-        {
-            try
-            {
-                s.emit(name, args);
-            }
-            catch (SocketIOException e)
-            {
-                // ignore for now
-                // TODO: add getLastError method?
-            }
-        }
+        namespace.deliver(id, getSockets(), null, name, args);
+    }
+
+    /**
+     * Emits an event to the sockets in the room. Large broadcasts are delivered by {@link FanOutExecutor} if it is set.
+     * Unlike {@link #emit(String, Object...)} the event could reach a socket after events emitted to it later,
+     * including other fanned out broadcasts.
+     *
+     * @param name event name
+     * @param args event arguments
+     * @return future completing once the event is handed over to every socket
+     * @throws SocketIOException if the event cannot be encoded
+     */
+    public ListenableFuture<BroadcastStats> emitAsync(String name, Object... args) throws SocketIOException
+    {
+        return namespace.broadcast(id, getSockets(), null, name, args, true);
+    }
+
+    /**
+     * Emits an event to all the sockets in the room and collects their acknowledgements.
+     *
+     * @param name event name
+     * @param args event arguments
+     * @param timeout ACK timeout in milliseconds
+     * @return future of responses of the sockets which acknowledged the event in time
+     */
+    public ListenableFuture<Map<Socket, Object[]>> emitWithAck(String name, Object[] args, long timeout)
+    {
+        return namespace.broadcastWithAck(getSockets(), null, name, args, timeout);
     }
 
     public void join(Socket socket)
     {
-        sockets.add(socket);
+        namespace.join(id, socket);
     }
 
     public void leave(Socket socket)
     {
-        sockets.remove(socket);
+        namespace.leave(id, socket);
     }
 
     public boolean contains(Socket socket)
     {
-        return sockets.contains(socket);
+        return namespace.contains(id, socket);
+    }
+
+    /**
+     * @return number of sockets in the room
+     */
+    public int size()
+    {
+        return namespace.size(id);
     }
 
     public void broadcast(Socket sender, String name, Object... args)
             throws SocketIOException
     {
-        for (Socket socket: sockets)
-        {
-            if (socket != sender)
-                socket.emit(name, args);
-        }
+        namespace.deliver(id, getSockets(), sender, name, args);
     }
 
     public Iterable<Socket> getSockets()
     {
-        return sockets;
+        return namespace.getSockets(id);
+    }
+
+    @Override
+    public boolean equals(Object o)
+    {
+        if (this == o)
+            return true;
+        if (!(o instanceof Room))
+            return false;
+
+        Room room = (Room) o;
+        return namespace == room.namespace && id.equals(room.id);
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return id.hashCode();
     }
 }
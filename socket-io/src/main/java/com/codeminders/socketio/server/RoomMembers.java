@@ -0,0 +1,102 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Alexander Sova (bird@codeminders.com)
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.codeminders.socketio.server;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Sockets of a room, as a bitmap of their handles.
+ * <p>
+ * The bitmap is immutable and replaced by compare-and-set, so readers take a snapshot without locks and
+ * the member count comes with it. The one removing the last member retires the room by replacing the
+ * bitmap with null, and a retired room accepts no more members. Both are compare-and-set on the same
+ * reference, so a room is either retired empty or not retired at all.
+ */
+final class RoomMembers
+{
+    // null once retired
+    private final AtomicReference<SocketBitmap> members = new AtomicReference<>(SocketBitmap.EMPTY);
+
+    /**
+     * @param handle handle of the socket to add
+     * @return false if the room is retired, the socket should join a new one
+     */
+    boolean add(int handle)
+    {
+        while (true)
+        {
+            SocketBitmap current = members.get();
+            if (current == null)
+                return false;
+
+            SocketBitmap updated = current.with(handle);
+            if (updated == current || members.compareAndSet(current, updated))
+                return true;
+        }
+    }
+
+    /**
+     * @param handle handle of the socket to remove
+     * @return true if the last member is removed and the room is retired
+     */
+    boolean remove(int handle)
+    {
+        while (true)
+        {
+            SocketBitmap current = members.get();
+            if (current == null)
+                return false;
+
+            SocketBitmap updated = current.without(handle);
+            if (updated == current)
+                return false;
+
+            if (updated.isEmpty())
+            {
+                if (members.compareAndSet(current, null))
+                    return true;
+            }
+            else if (members.compareAndSet(current, updated))
+                return false;
+        }
+    }
+
+    boolean contains(int handle)
+    {
+        return snapshot().contains(handle);
+    }
+
+    int size()
+    {
+        return snapshot().cardinality();
+    }
+
+    /**
+     * @return current members. The bitmap never changes
+     */
+    SocketBitmap snapshot()
+    {
+        SocketBitmap current = members.get();
+        return current == null ? SocketBitmap.EMPTY : current;
+    }
+}
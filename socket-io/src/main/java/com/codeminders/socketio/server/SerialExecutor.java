@@ -0,0 +1,109 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Alexander Sova (bird@codeminders.com)
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.codeminders.socketio.server;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs tasks one at a time in submission order on top of another executor, for example the one
+ * starting a virtual thread per task. At most one task of the serial executor is queued or running
+ * in the underlying one, it keeps running the tasks until there are none left.
+ * <p>
+ * If the underlying executor rejects the tasks, usually because it is shut down while sessions are still around,
+ * they run on the calling thread instead.
+ */
+final class SerialExecutor implements Executor
+{
+    private static final Logger LOGGER = Logger.getLogger(SerialExecutor.class.getName());
+
+    private final Executor        executor;
+    private final Queue<Runnable> tasks   = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean   running = new AtomicBoolean();
+
+    private final Runnable worker = new Runnable()
+    {
+        @Override
+        public void run()
+        {
+            try
+            {
+                for (Runnable task = tasks.poll(); task != null; task = tasks.poll())
+                {
+                    try
+                    {
+                        task.run();
+                    }
+                    catch (Throwable e)
+                    {
+                        if (LOGGER.isLoggable(Level.WARNING))
+                            LOGGER.log(Level.WARNING, "Listener task failed", e);
+                    }
+                }
+            }
+            finally
+            {
+                running.set(false);
+            }
+
+            // task could be added after the queue was found empty but before the flag was cleared
+            if (!tasks.isEmpty())
+                schedule();
+        }
+    };
+
+    SerialExecutor(Executor executor)
+    {
+        this.executor = executor;
+    }
+
+    @Override
+    public void execute(Runnable task)
+    {
+        tasks.add(task);
+        schedule();
+    }
+
+    private void schedule()
+    {
+        if (!running.compareAndSet(false, true))
+            return;
+
+        try
+        {
+            executor.execute(worker);
+        }
+        catch (RejectedExecutionException e)
+        {
+            if (LOGGER.isLoggable(Level.FINE))
+                LOGGER.log(Level.FINE, "Listener executor rejected the tasks, running them on the calling thread", e);
+
+            worker.run();
+        }
+    }
+}
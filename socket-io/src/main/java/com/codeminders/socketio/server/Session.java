@@ -29,20 +29,27 @@ import com.codeminders.socketio.common.SocketIOException;
 import com.codeminders.socketio.protocol.*;
 import com.codeminders.socketio.common.ConnectionState;
 import com.codeminders.socketio.common.DisconnectReason;
+import com.google.common.util.concurrent.MoreExecutors;
 
 import javax.servlet.http.HttpSession;
-import java.io.InputStream;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-//TODO: this class is not thread-safe at all
-
 /**
  * SocketIO session.
  * <p>
- * This implementation is not thread-safe.
+ * Session is used concurrently by container I/O threads, emitting threads and timeouts.
+ * Its lifecycle is a state machine driven by compare-and-set:
+ * {@code CONNECTING -> CONNECTED -> CLOSING -> CLOSED}, where CONNECTING or CONNECTED could go straight
+ * to CLOSING or CLOSED. CLOSED is final, so a session never comes back once its disconnect has started,
+ * and disconnect listeners are called exactly once.
+ * <p>
+ * If {@link SocketIOManager} has {@link EventLoopGroup} the session is pinned to one of its loops
+ * and all its events are handled there, so listeners of one session never run concurrently.
+ * Otherwise if it has listener executor, events are handed over to it one at a time.
  *
  * @author Alexander Sova (bird@codeminders.com)
  */
@@ -55,21 +62,30 @@ public class Session implements DisconnectListener
     private final HttpSession     httpSession;
     private final Map<String, Object> attributes = new ConcurrentHashMap<>();
 
-    private Map<String, Socket> sockets = new LinkedHashMap<>(); // namespace, socket
+    private final ConcurrentMap<String, Socket> sockets = new ConcurrentHashMap<>(); // namespace, socket
+
+    private final AtomicReference<TransportConnection> activeConnection = new AtomicReference<>();
+    private final AtomicReference<ConnectionState>     state            =
+            new AtomicReference<>(ConnectionState.CONNECTING);
+
+    // written before the state moves to CLOSING, so whoever sees CLOSING sees the reason
+    private volatile DisconnectReason disconnectReason = DisconnectReason.UNKNOWN;
+    private volatile String           disconnectMessage;
 
-    private TransportConnection activeConnection;
-    private ConnectionState  state            = ConnectionState.CONNECTING;
+    private volatile long    timeout;
+    private volatile boolean timedOut;
+    private final AtomicReference<TimingWheel.Timeout> timeoutTask = new AtomicReference<>();
+    private final AtomicReference<TimingWheel.Timeout> heartbeatTask = new AtomicReference<>();
 
-    private DisconnectReason disconnectReason = DisconnectReason.UNKNOWN;
-    private String disconnectMessage;
+    private volatile int protocolVersion = EngineIOProtocol.VERSION_3;
 
-    private long      timeout;
-    private Future<?> timeoutTask;
-    private boolean   timedOut;
+    private volatile PacketCodec   codec   = JsonPacketCodec.INSTANCE;
+    private volatile PacketDecoder decoder = codec.createDecoder();
+    private final ACKRegistry      acks;
 
-    private BinaryPacket              binaryPacket;
-    private int                       packet_id     = 0; // packet id. used for requesting ACK
-    private Map<Integer, ACKListener> ack_listeners = new LinkedHashMap<>(); // packetid, listener
+    // runs inbound packets, listeners, ACK callbacks and timeouts of the session one at a time.
+    // null to run them right away
+    private final Executor dispatcher;
 
     Session(SocketIOManager socketIOManager, String sessionId, HttpSession httpSession)
     {
@@ -78,6 +94,18 @@ public class Session implements DisconnectListener
         this.socketIOManager = socketIOManager;
         this.sessionId = sessionId;
         this.httpSession = httpSession;
+
+        EventLoopGroup loops = socketIOManager.getEventLoopGroup();
+        Executor listenerExecutor = socketIOManager.getListenerExecutor();
+        if (loops != null)
+            this.dispatcher = loops.next();
+        else if (listenerExecutor != null)
+            this.dispatcher = new SerialExecutor(listenerExecutor);
+        else
+            this.dispatcher = null;
+
+        this.acks = new ACKRegistry(socketIOManager.timer,
+                dispatcher == null ? MoreExecutors.directExecutor() : dispatcher);
     }
 
     public Socket createSocket(String ns)
@@ -89,6 +117,11 @@ public class Session implements DisconnectListener
         Socket socket = namespace.createSocket(this);
         socket.on(this); // listen for disconnect event
         sockets.put(ns, socket);
+
+        // onDisconnect() could have missed the socket. the one removing it from the table calls the listeners
+        if (state.get() == ConnectionState.CLOSED && sockets.remove(ns, socket))
+            socket.onDisconnect(socket, disconnectReason, disconnectMessage);
+
         return socket;
     }
 
@@ -109,37 +142,72 @@ public class Session implements DisconnectListener
 
     public ConnectionState getConnectionState()
     {
-        return state;
+        return state.get();
     }
 
     public TransportConnection getConnection()
     {
-        return activeConnection;
+        return activeConnection.get();
     }
 
+    /**
+     * Postpones the session timeout. Called for every received packet, so it only records
+     * the time of the activity. The deadline is checked by the timing wheel.
+     */
     public void resetTimeout()
     {
-        clearTimeout();
         if (timedOut || timeout == 0)
             return;
 
-        timeoutTask = socketIOManager.executor.schedule(new Runnable()
+        TimingWheel.Timeout task = timeoutTask.get();
+        if (task != null)
+        {
+            task.touch();
+            return;
+        }
+
+        if (state.get() == ConnectionState.CLOSED)
+            return;
+
+        task = new TimingWheel.Timeout(socketIOManager.timer)
         {
             @Override
-            public void run()
+            long getDeadline()
             {
-                Session.this.onTimeout();
+                return getLastActivity() + timeout;
+            }
+
+            @Override
+            void expire()
+            {
+                if (dispatcher == null)
+                {
+                    Session.this.onTimeout();
+                    return;
+                }
+
+                dispatcher.execute(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        Session.this.onTimeout();
+                    }
+                });
             }
-        }, timeout, TimeUnit.MILLISECONDS);
+        };
+
+        if (timeoutTask.compareAndSet(null, task))
+            socketIOManager.timer.schedule(task);
+        else
+            resetTimeout(); // another thread has just created it
     }
 
     public void clearTimeout()
     {
-        if (timeoutTask != null)
-        {
-            timeoutTask.cancel(false);
-            timeoutTask = null;
-        }
+        TimingWheel.Timeout task = timeoutTask.getAndSet(null);
+        if (task != null)
+            task.cancel();
     }
 
     public void setTimeout(long timeout)
@@ -152,37 +220,163 @@ public class Session implements DisconnectListener
         return timeout;
     }
 
-    private void onBinary(InputStream is)
-            throws SocketIOProtocolException
+    /**
+     * @return Engine.IO protocol version of the session: {@link EngineIOProtocol#VERSION_3}
+     *         or {@link EngineIOProtocol#VERSION_4}
+     */
+    public int getProtocolVersion()
+    {
+        return protocolVersion;
+    }
+
+    /**
+     * Sets Engine.IO protocol version requested by the client.
+     * To be called by transport connection before the session is connected.
+     * Version 4 sessions also speak Socket.IO protocol 5.
+     *
+     * @param protocolVersion protocol version
+     */
+    public void setProtocolVersion(int protocolVersion)
+    {
+        this.protocolVersion = protocolVersion;
+    }
+
+    /**
+     * Starts sending PING packets every {@code pingInterval} milliseconds as EIO4 requires.
+     * The client answers with PONG, the session times out if nothing is received
+     * for {@code pingInterval + pingTimeout}.
+     *
+     * @param pingInterval milliseconds between PING packets
+     * @param pingTimeout milliseconds to wait for the client to respond
+     */
+    public void startHeartbeat(final long pingInterval, long pingTimeout)
     {
-        if (binaryPacket == null)
-            throw new SocketIOProtocolException("Unexpected binary object");
+        setTimeout(pingInterval + pingTimeout);
+        resetTimeout();
 
-        SocketIOProtocol.insertBinaryObject(binaryPacket, is);
-        binaryPacket.addAttachment(is); //keeping copy of all attachments in attachments list
-        if (binaryPacket.isComplete())
+        final TimingWheel timer = socketIOManager.timer;
+        TimingWheel.Timeout task = new TimingWheel.Timeout(timer)
         {
-            if (binaryPacket.getType() == SocketIOPacket.Type.BINARY_EVENT)
-                onEvent((EventPacket) binaryPacket);
-            else if (binaryPacket.getType() == SocketIOPacket.Type.BINARY_ACK)
-                onACK((ACKPacket) binaryPacket);
+            private volatile long next = getLastActivity() + pingInterval;
+
+            @Override
+            long getDeadline()
+            {
+                return next;
+            }
 
-            binaryPacket = null;
+            @Override
+            void expire()
+            {
+                if (isCancelled() || state.get() == ConnectionState.CLOSED)
+                    return;
+
+                Session.this.sendPing();
+                next += pingInterval;
+                timer.schedule(this);
+            }
+        };
+
+        TimingWheel.Timeout previous = heartbeatTask.getAndSet(task);
+        if (previous != null)
+            previous.cancel();
+
+        timer.schedule(task);
+    }
+
+    private void sendPing()
+    {
+        TransportConnection connection = activeConnection.get();
+        if (connection == null || state.get() != ConnectionState.CONNECTED)
+            return;
+
+        try
+        {
+            connection.send(EngineIOProtocol.createPingPacket(""));
+        }
+        catch (SocketIOException e)
+        {
+            // the session times out unless the client responds
+            if (LOGGER.isLoggable(Level.FINE))
+                LOGGER.log(Level.FINE, "Session[" + sessionId + "]: cannot send PING", e);
         }
     }
 
+    /**
+     * @return codec used to encode and decode packets of this session
+     */
+    public PacketCodec getCodec()
+    {
+        return codec;
+    }
+
+    /**
+     * Sets codec used to encode and decode packets of this session.
+     * To be called by transport connection before the session is connected.
+     *
+     * @param codec packet codec
+     */
+    public void setCodec(PacketCodec codec)
+    {
+        this.codec = codec;
+        this.decoder = codec.createDecoder();
+    }
+
     public void onConnect(TransportConnection connection) throws SocketIOException
     {
         assert (connection != null);
-        assert (this.activeConnection == null);
 
-        this.activeConnection = connection;
+        if (!activeConnection.compareAndSet(null, connection))
+        {
+            if (LOGGER.isLoggable(Level.FINE))
+                LOGGER.fine("Session[" + sessionId + "]: already connected by another connection");
+            return;
+        }
+
+        // the session could have been closed or timed out meanwhile. it never comes back then
+        if (!state.compareAndSet(ConnectionState.CONNECTING, ConnectionState.CONNECTED))
+            return;
+
+        // Socket.IO 5 clients send CONNECT for every namespace including the default one
+        if (protocolVersion >= EngineIOProtocol.VERSION_4)
+            return;
+
+        if (dispatcher == null)
+        {
+            connectDefaultNamespace(connection);
+            return;
+        }
+
+        final TransportConnection initial = connection;
+        dispatcher.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    connectDefaultNamespace(initial);
+                }
+                catch (SocketIOException e)
+                {
+                    if (LOGGER.isLoggable(Level.FINE))
+                        LOGGER.log(Level.FINE, "Cannot send packet to the client", e);
 
+                    closeConnection(DisconnectReason.CONNECT_FAILED, initial);
+                }
+            }
+        });
+    }
+
+    /**
+     * Socket.IO 1-4 clients are connected to the default namespace implicitly
+     */
+    private void connectDefaultNamespace(TransportConnection connection) throws SocketIOException
+    {
         Socket socket = createSocket(SocketIOProtocol.DEFAULT_NAMESPACE);
         try
         {
             connection.send(SocketIOProtocol.createConnectPacket(SocketIOProtocol.DEFAULT_NAMESPACE));
-            state = ConnectionState.CONNECTED;
             socketIOManager.getNamespace(SocketIOProtocol.DEFAULT_NAMESPACE).onConnect(socket); // callback
         }
         catch (ConnectionException e)
@@ -206,14 +400,23 @@ public class Session implements DisconnectListener
     }
 
     /**
-     * Calling this method will change activeConnection status to CLOSING
+     * Calling this method will change activeConnection status to CLOSING.
+     * The last reason set before the session is closed wins. Closed session ignores it.
      *
      * @param reason session disconnect reason
      */
     public void setDisconnectReason(DisconnectReason reason)
     {
-        this.state = ConnectionState.CLOSING;
-        this.disconnectReason = reason;
+        while (true)
+        {
+            ConnectionState current = state.get();
+            if (current == ConnectionState.CLOSED)
+                return;
+
+            this.disconnectReason = reason;
+            if (current == ConnectionState.CLOSING || state.compareAndSet(current, ConnectionState.CLOSING))
+                return;
+        }
     }
 
     /**
@@ -221,7 +424,25 @@ public class Session implements DisconnectListener
      */
     public void onShutdown()
     {
-        if (state == ConnectionState.CLOSING)
+        if (dispatcher == null)
+        {
+            shutdown();
+            return;
+        }
+
+        dispatcher.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                shutdown();
+            }
+        });
+    }
+
+    private void shutdown()
+    {
+        if (state.get() == ConnectionState.CLOSING)
             onDisconnect(disconnectReason);
         else
             onDisconnect(DisconnectReason.ERROR);
@@ -236,53 +457,121 @@ public class Session implements DisconnectListener
             LOGGER.log(Level.FINE, "Session[" + sessionId + "]: onDisconnect: " + reason +
                     " message: [" + disconnectMessage + "]");
 
-        if (state == ConnectionState.CLOSED)
+        if (state.getAndSet(ConnectionState.CLOSED) == ConnectionState.CLOSED)
             return; // to prevent calling it twice
 
-        state = ConnectionState.CLOSED;
-
         clearTimeout();
+        TimingWheel.Timeout heartbeat = heartbeatTask.getAndSet(null);
+        if (heartbeat != null)
+            heartbeat.cancel();
+        acks.clear();
 
-        // taking copy of sockets because
-        // session will be modifying the collection while iterating
-        for (Object o : sockets.values().toArray())
+        // socket created concurrently could be disconnected by createSocket(). removing it claims the callback
+        for (Map.Entry<String, Socket> entry : sockets.entrySet())
         {
-            Socket socket = (Socket) o;
-            socket.onDisconnect(socket, reason, disconnectMessage);
+            Socket socket = entry.getValue();
+            if (sockets.remove(entry.getKey(), socket))
+                socket.onDisconnect(socket, reason, disconnectMessage);
         }
 
         socketIOManager.deleteSession(sessionId);
     }
 
+    /**
+     * Callback to be called by transport connection when its outbound buffer becomes writable again
+     */
+    public void onDrain()
+    {
+        if (dispatcher == null)
+        {
+            drain();
+            return;
+        }
+
+        dispatcher.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                drain();
+            }
+        });
+    }
+
+    private void drain()
+    {
+        for (Socket socket : sockets.values())
+            socket.onDrain(socket);
+    }
+
     private void onTimeout()
     {
         if (LOGGER.isLoggable(Level.FINE))
             LOGGER.log(Level.FINE, "Session[" + sessionId + "]: onTimeout");
 
-        if (!timedOut)
+        if (timedOut)
+            return;
+
+        timedOut = true;
+        TransportConnection connection = activeConnection.get();
+        if (connection != null)
+            closeConnection(DisconnectReason.TIMEOUT, connection);
+        else
+            onDisconnect(DisconnectReason.TIMEOUT); // never connected, there is nothing to close
+    }
+
+    /**
+     * Callback to be called by transport connection for every received packet.
+     * The packet is handled by the event loop or listener executor of the session if there is one,
+     * otherwise right away.
+     *
+     * @param packet received packet
+     * @param connection connection the packet was received by
+     */
+    public void onPacket(final EngineIOPacket packet, final TransportConnection connection)
+    {
+        if (dispatcher == null)
         {
-            timedOut = true;
-            closeConnection(DisconnectReason.TIMEOUT, activeConnection);
+            handlePacket(packet, connection);
+            return;
         }
+
+        dispatcher.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                handlePacket(packet, connection);
+            }
+        });
     }
 
-    public void onPacket(EngineIOPacket packet, TransportConnection connection)
+    private void handlePacket(EngineIOPacket packet, TransportConnection connection)
     {
         switch (packet.getType())
         {
             case OPEN:
+                // ignore. OPEN is server -> client only
+                return;
+
             case PONG:
-                // ignore. OPEN and PONG are server -> client only
+                // EIO4 client answers server PING
+                resetTimeout();
                 return;
 
             case MESSAGE:
                 resetTimeout();
                 try
                 {
-                    if (packet.getTextData() != null)
-                        onPacket(SocketIOProtocol.decode(packet.getTextData()));
-                    else if (packet.getBinaryData() != null)
-                        onBinary(packet.getBinaryData());
+                    // decoder keeps partial binary packets. messages could race during transport upgrade
+                    SocketIOPacket sioPacket;
+                    PacketDecoder decoder = this.decoder;
+                    synchronized (decoder)
+                    {
+                        sioPacket = decoder.decode(packet);
+                    }
+                    if (sioPacket != null)
+                        onPacket(sioPacket);
                 }
                 catch (SocketIOProtocolException e)
                 {
@@ -324,9 +613,16 @@ public class Session implements DisconnectListener
                 {
                     if (socketIOManager.getNamespace(packet.getNamespace()) == null)
                     {
-                        getConnection().send(SocketIOProtocol.createErrorPacket(packet.getNamespace(), "Invalid namespace"));
+                        getConnection().send(createConnectError(packet.getNamespace(), "Invalid namespace"));
+                        return;
+                    }
+
+                    if (protocolVersion >= EngineIOProtocol.VERSION_4)
+                    {
+                        onConnect((ConnectPacket) packet);
                         return;
                     }
+
                     Socket socket = createSocket(packet.getNamespace());
                     getConnection().send(SocketIOProtocol.createConnectPacket(packet.getNamespace()));
                     try
@@ -344,25 +640,22 @@ public class Session implements DisconnectListener
                     if (LOGGER.isLoggable(Level.FINE))
                         LOGGER.log(Level.FINE, "Cannot send packet to the client", e);
 
-                    closeConnection(DisconnectReason.CONNECT_FAILED, activeConnection);
+                    closeConnection(DisconnectReason.CONNECT_FAILED, getConnection());
                 }
                 return;
 
             case DISCONNECT:
-                closeConnection(DisconnectReason.CLOSED_REMOTELY, activeConnection);
+                closeConnection(DisconnectReason.CLOSED_REMOTELY, getConnection());
                 return;
 
             case EVENT:
+            case BINARY_EVENT:
                 onEvent((EventPacket) packet);
                 return;
 
             case ACK:
-                onACK((ACKPacket) packet);
-                return;
-
             case BINARY_ACK:
-            case BINARY_EVENT:
-                binaryPacket = (BinaryPacket) packet;
+                onACK((ACKPacket) packet);
                 return;
 
             default:
@@ -370,6 +663,54 @@ public class Session implements DisconnectListener
         }
     }
 
+    /**
+     * Connects Socket.IO 5 client to the namespace. Connection listeners see the auth payload
+     * and could reject the client before it is told the socket is connected.
+     * Events emitted by the listeners are held by the client until CONNECT arrives.
+     */
+    private void onConnect(ConnectPacket packet) throws SocketIOException
+    {
+        String ns = packet.getNamespace();
+        if (sockets.containsKey(ns))
+            return; // already connected
+
+        Socket socket = createSocket(ns);
+        socket.setAuth(packet.getData());
+        try
+        {
+            socketIOManager.getNamespace(ns).onConnect(socket);
+        }
+        catch (ConnectionException e)
+        {
+            getConnection().send(createConnectError(ns, e.getArgs()));
+            socket.onDisconnect(socket, DisconnectReason.CONNECT_FAILED, e.getMessage());
+            return;
+        }
+
+        getConnection().send(SocketIOProtocol.createConnectPacket(ns,
+                Collections.singletonMap("sid", socket.getId())));
+    }
+
+    /**
+     * Creates ERROR packet. Socket.IO 5 clients expect CONNECT_ERROR with {@code {message, data}} object.
+     */
+    private SocketIOPacket createConnectError(String ns, Object args)
+    {
+        if (protocolVersion < EngineIOProtocol.VERSION_4 || args instanceof Map)
+            return SocketIOProtocol.createErrorPacket(ns, args);
+
+        Map<String, Object> error = new LinkedHashMap<>();
+        if (args instanceof String)
+            error.put("message", args);
+        else
+        {
+            error.put("message", "Connection rejected");
+            if (args != null)
+                error.put("data", args);
+        }
+        return SocketIOProtocol.createErrorPacket(ns, error);
+    }
+
     private void onPing(String data, TransportConnection connection)
     {
         try
@@ -387,7 +728,7 @@ public class Session implements DisconnectListener
 
     private void onEvent(EventPacket packet)
     {
-        if (state != ConnectionState.CONNECTED)
+        if (state.get() != ConnectionState.CONNECTED)
             return;
 
         try
@@ -395,19 +736,19 @@ public class Session implements DisconnectListener
             Namespace ns = socketIOManager.getNamespace(packet.getNamespace());
             if (ns == null)
             {
-                getConnection().send(SocketIOProtocol.createErrorPacket(packet.getNamespace(), "Invalid namespace"));
+                getConnection().send(createConnectError(packet.getNamespace(), "Invalid namespace"));
                 return;
             }
 
             Socket socket = sockets.get(ns.getId());
             if (socket == null)
             {
-                activeConnection.send(SocketIOProtocol.createErrorPacket(packet.getNamespace(),
+                getConnection().send(createConnectError(packet.getNamespace(),
                         "No socket is connected to the namespace"));
                 return;
             }
 
-            Object ack = socket.onEvent(packet.getName(), packet.getArgs(), packet.getId() != -1);
+            Object ack = socket.onEvent(packet);
 
             if (packet.getId() != -1 && ack != null)
             {
@@ -417,7 +758,7 @@ public class Session implements DisconnectListener
                 else
                     args = new Object[]{ack};
 
-                activeConnection.send(SocketIOProtocol.createACKPacket(packet.getId(), packet.getNamespace(), args));
+                getConnection().send(SocketIOProtocol.createACKPacket(packet.getId(), packet.getNamespace(), args));
             }
         }
         catch (Throwable e)
@@ -429,13 +770,12 @@ public class Session implements DisconnectListener
 
     private void onACK(ACKPacket packet)
     {
-        if (state != ConnectionState.CONNECTED)
+        if (state.get() != ConnectionState.CONNECTED)
             return;
 
         try
         {
-            ACKListener listener = ack_listeners.get(packet.getId());
-            unsubscribeACK(packet.getId());
+            ACKListener listener = acks.remove(packet.getId());
             if (listener != null)
                 listener.onACK(packet.getArgs());
         }
@@ -448,10 +788,11 @@ public class Session implements DisconnectListener
 
     private void upgradeConnection(TransportConnection connection)
     {
-        if (LOGGER.isLoggable(Level.FINE))
-            LOGGER.log(Level.FINE, "Upgrading from " + this.activeConnection.getTransport() + " to " + connection.getTransport());
+        TransportConnection previous = activeConnection.getAndSet(connection);
 
-        this.activeConnection = connection;
+        if (LOGGER.isLoggable(Level.FINE))
+            LOGGER.log(Level.FINE, "Upgrading from " + (previous == null ? null : previous.getTransport()) +
+                    " to " + connection.getTransport());
     }
 
     /**
@@ -459,31 +800,37 @@ public class Session implements DisconnectListener
      */
     private void closeConnection(DisconnectReason reason, TransportConnection connection)
     {
-        if (this.activeConnection == connection)
+        if (activeConnection.get() == connection)
             setDisconnectReason(reason);
         connection.abort(); //this call should trigger onShutdown() eventually
     }
 
-    public synchronized int getNewPacketId()
+    public int getNewPacketId()
     {
-        return packet_id++;
+        return acks.nextId();
     }
 
-    //TODO: what if ACK never comes? We will have a memory leak. Need to cleanup the list or fail on timeout?
+    /**
+     * Waits for the client to acknowledge the packet. {@link ACKTimeoutListener} is failed if it does not happen
+     * in time. Listeners still waiting when the session disconnects are dropped.
+     *
+     * @param packet_id packet id
+     * @param ack_listener listener
+     */
     public void subscribeACK(int packet_id, ACKListener ack_listener)
     {
-        ack_listeners.put(packet_id, ack_listener);
+        acks.add(packet_id, ack_listener);
     }
 
     public void unsubscribeACK(int packet_id)
     {
-        ack_listeners.remove(packet_id);
+        acks.remove(packet_id);
     }
 
     @Override
     public void onDisconnect(Socket socket, DisconnectReason reason, String errorMessage)
     {
-        sockets.remove(socket.getNamespace());
+        sockets.remove(socket.getNamespace(), socket);
     }
 
     // hack to replicate current Socket.IO client behaviour
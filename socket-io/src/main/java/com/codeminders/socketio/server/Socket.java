@@ -22,22 +22,44 @@
  */
 package com.codeminders.socketio.server;
 
+import com.codeminders.socketio.common.ConnectionState;
 import com.codeminders.socketio.common.DisconnectReason;
 import com.codeminders.socketio.common.SocketIOException;
+import com.codeminders.socketio.protocol.EncodedPacket;
+import com.codeminders.socketio.protocol.EventPacket;
+import com.codeminders.socketio.protocol.SocketIOProtocol;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.google.common.util.concurrent.ListenableFuture;
 
 import javax.servlet.http.HttpServletRequest;
+import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * @author Alexander Sova (bird@codeminders.com)
  */
-public class Socket implements Outbound, DisconnectListener, EventListener
+public class Socket implements Outbound, DisconnectListener, EventListener, DrainListener
 {
-    private List<DisconnectListener>   disconnectListeners = new LinkedList<>();
+    private List<DisconnectListener>   disconnectListeners = new CopyOnWriteArrayList<>();
+    private List<DrainListener>        drainListeners      = new CopyOnWriteArrayList<>();
     private Map<String, EventListener> eventListeners      = new LinkedHashMap<>();
 
     private Session session; // Socket is Session + Namespace
     private Namespace namespace;
+    private Object auth;
+
+    // dense id of the socket in the namespace, -1 once disconnected
+    private volatile int handle = -1;
+
+    // when the handle was allocated, see Namespace.getSockets(int[], long, ...)
+    private long generation;
+
+    // rooms the socket joined, so leaving all of them does not scan the namespace
+    private final Set<String> rooms = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
 
     public Socket(Session session, Namespace namespace)
     {
@@ -50,6 +72,40 @@ public class Socket implements Outbound, DisconnectListener, EventListener
         return namespace.getId();
     }
 
+    /**
+     * @return auth payload sent by Socket.IO 5 client with CONNECT packet, usually a map.
+     *         null if there is none or the client speaks older protocol
+     */
+    public Object getAuth()
+    {
+        return auth;
+    }
+
+    void setAuth(Object auth)
+    {
+        this.auth = auth;
+    }
+
+    int getHandle()
+    {
+        return handle;
+    }
+
+    void setHandle(int handle)
+    {
+        this.handle = handle;
+    }
+
+    long getGeneration()
+    {
+        return generation;
+    }
+
+    void setGeneration(long generation)
+    {
+        this.generation = generation;
+    }
+
     /**
      * Set listener for a named event. Only one listener per event is allowed.
      *
@@ -61,6 +117,85 @@ public class Socket implements Outbound, DisconnectListener, EventListener
         eventListeners.put(eventName, listener);
     }
 
+    /**
+     * Set streaming listener for a named event. Only one listener per event is allowed.
+     * The listener reads the arguments with JSON parser instead of getting them decoded into objects.
+     *
+     * @param eventName event name
+     * @param listener event listener
+     */
+    public void on(String eventName, final StreamingEventListener listener)
+    {
+        eventListeners.put(eventName, new EventPacketListener()
+        {
+            @Override
+            Object onEvent(EventPacket packet) throws IOException
+            {
+                try (JsonParser parser = packet.getArgsParser())
+                {
+                    return listener.onEvent(packet.getName(), parser, packet.getId() != -1);
+                }
+            }
+
+            @Override
+            public Object onEvent(String name, Object[] args, boolean ackRequested)
+            {
+                try (JsonParser parser = SocketIOProtocol.createArgsParser(args))
+                {
+                    return listener.onEvent(name, parser, ackRequested);
+                }
+                catch (IOException e)
+                {
+                    throw new IllegalArgumentException("Cannot parse arguments of event " + name, e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Set typed listener for a named event. Only one listener per event is allowed.
+     * The first event argument is bound to {@code type} directly from the received JSON.
+     * Other arguments are ignored.
+     *
+     * @param eventName event name
+     * @param type type of the event argument
+     * @param listener event listener
+     * @param <T> type of the event argument
+     */
+    public <T> void on(String eventName, final Class<T> type, final TypedEventListener<T> listener)
+    {
+        final ObjectReader reader = SocketIOProtocol.getReader(type);
+        eventListeners.put(eventName, new EventPacketListener()
+        {
+            @Override
+            Object onEvent(EventPacket packet) throws IOException
+            {
+                // binary objects and arguments of non-JSON codecs are only available decoded
+                if (!packet.hasEncodedArgs())
+                    return onEvent(packet.getName(), packet.getArgs(), packet.getId() != -1);
+
+                try (JsonParser parser = packet.getArgsParser())
+                {
+                    T data = null;
+                    if (parser.nextToken() != JsonToken.END_ARRAY)
+                        data = reader.readValue(parser);
+
+                    return listener.onEvent(packet.getName(), data, packet.getId() != -1);
+                }
+            }
+
+            @Override
+            public Object onEvent(String name, Object[] args, boolean ackRequested)
+            {
+                T data = null;
+                if (args != null && args.length > 0)
+                    data = SocketIOProtocol.convertArg(args[0], type);
+
+                return listener.onEvent(name, data, ackRequested);
+            }
+        });
+    }
+
     /**
      * Closes socket.
      *
@@ -83,6 +218,66 @@ public class Socket implements Outbound, DisconnectListener, EventListener
         }
     }
 
+    /**
+     * Emits an event and returns a future of its acknowledgement.
+     * The future fails with {@link java.util.concurrent.TimeoutException} if the client does not acknowledge
+     * the event within {@code timeout} and with {@link SocketIOClosedException} if the socket disconnects first.
+     *
+     * @param name event name
+     * @param args event arguments
+     * @param timeout ACK timeout in milliseconds
+     * @return future of the arguments the client acknowledged the event with
+     */
+    public ListenableFuture<Object[]> emitWithAck(String name, Object[] args, long timeout)
+    {
+        ACKFuture ack = new ACKFuture(name, timeout);
+        emit(name, args, ack);
+        return ack.getFuture();
+    }
+
+    /**
+     * Emits an event expecting an acknowledgement. The listener is failed immediately if the event cannot be sent.
+     */
+    void emit(String name, Object[] args, PendingACK ack)
+    {
+        TransportConnection connection = getSession().getConnection();
+        if (connection == null)
+        {
+            ack.onFailure(new SocketIOClosedException());
+            return;
+        }
+
+        Object[] withAck = Arrays.copyOf(args, args.length + 1);
+        withAck[args.length] = ack;
+        try
+        {
+            connection.emit(getNamespace(), name, withAck);
+        }
+        catch (SocketIOException e)
+        {
+            ack.onFailure(e);
+        }
+    }
+
+    /**
+     * Sends a packet encoded in advance, usually the one shared by all the recipients of a broadcast.
+     *
+     * @param packet pre-encoded packet
+     * @return false if the socket is disconnected or the packet is dropped because the outbound buffer is full
+     * @throws SocketIOException if IO or protocol error happens
+     */
+    boolean send(EncodedPacket packet) throws SocketIOException
+    {
+        TransportConnection connection = getSession().getConnection();
+        if (connection == null)
+            return false;
+
+        if (getSession().getConnectionState() != ConnectionState.CONNECTED)
+            throw new SocketIOClosedException();
+
+        return connection.send(packet);
+    }
+
     /**
      * Adds disconnect listener
      *
@@ -93,6 +288,29 @@ public class Socket implements Outbound, DisconnectListener, EventListener
         disconnectListeners.add(listener);
     }
 
+    /**
+     * Adds drain listener. It is called when the connection becomes writable again.
+     *
+     * @param listener drain listener
+     */
+    public void on(DrainListener listener)
+    {
+        drainListeners.add(listener);
+    }
+
+    /**
+     * Tells if the event could be emitted without piling up in the outbound buffer.
+     * Once it returns false the producer should wait for {@link DrainListener#onDrain(Socket)}.
+     * Otherwise events could be dropped or connection closed when the buffer overflows.
+     *
+     * @return true if underlying connection is writable, false if it is filling up or socket is disconnected
+     */
+    public boolean isWritable()
+    {
+        TransportConnection connection = getSession().getConnection();
+        return connection != null && connection.isWritable();
+    }
+
     public Session getSession()
     {
         return session;
@@ -105,6 +323,13 @@ public class Socket implements Outbound, DisconnectListener, EventListener
             listener.onDisconnect(socket, reason, errorMessage);
     }
 
+    @Override
+    public void onDrain(Socket socket)
+    {
+        for (DrainListener listener : drainListeners)
+            listener.onDrain(socket);
+    }
+
     @Override
     public Object onEvent(String name, Object[] args, boolean ackRequested)
     {
@@ -115,6 +340,25 @@ public class Socket implements Outbound, DisconnectListener, EventListener
         return listener.onEvent(name, args, ackRequested);
     }
 
+    /**
+     * Dispatches received event. Event arguments are not decoded if there is no listener for the event.
+     *
+     * @param packet received event
+     * @return Object to send back to the caller as an acknowledgement, null if no ack to be sent
+     * @throws IOException if the listener fails to parse the arguments
+     */
+    Object onEvent(EventPacket packet) throws IOException
+    {
+        EventListener listener = eventListeners.get(packet.getName());
+        if(listener == null)
+            return null;
+
+        if(listener instanceof EventPacketListener)
+            return ((EventPacketListener) listener).onEvent(packet);
+
+        return listener.onEvent(packet.getName(), packet.getArgs(), packet.getId() != -1);
+    }
+
     public void join(String room)
     {
         namespace.in(room).join(this);
@@ -130,6 +374,36 @@ public class Socket implements Outbound, DisconnectListener, EventListener
         namespace.leaveAll(this);
     }
 
+    /**
+     * @return ids of the rooms the socket joined
+     */
+    public Set<String> getRooms()
+    {
+        return Collections.unmodifiableSet(rooms);
+    }
+
+    void joined(String room)
+    {
+        rooms.add(room);
+    }
+
+    void left(String room)
+    {
+        rooms.remove(room);
+    }
+
+    /**
+     * Starts a broadcast to the sockets of the room but this one.
+     * Add more rooms and exclusions to the returned operator.
+     *
+     * @param room room id
+     * @return broadcast operator
+     */
+    public BroadcastOperator to(String room)
+    {
+        return namespace.to(room).except(this);
+    }
+
     public void broadcast(String room, String name, Object... args)  throws SocketIOException
     {
         namespace.in(room).broadcast(this, name, args);
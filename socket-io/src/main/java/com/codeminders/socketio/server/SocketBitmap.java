@@ -0,0 +1,370 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Alexander Sova (bird@codeminders.com)
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.codeminders.socketio.server;
+
+import java.util.Arrays;
+
+/**
+ * Immutable compressed set of socket handles.
+ * <p>
+ * Handles are dense ints, see {@link Namespace}. They are split into chunks of 4096 and only chunks having
+ * members are kept. A chunk with few members is a sorted array of offsets, a fuller one is 64 words of bits,
+ * so a chunk never takes more than 512 bytes and a room of a few sockets takes a few bytes.
+ * <p>
+ * Updates copy only the chunk they touch and share the rest, so rooms keep the bitmap in an atomic
+ * reference and readers work on snapshots without locks.
+ */
+final class SocketBitmap
+{
+    private static final int CHUNK_BITS  = 12;
+    private static final int CHUNK_MASK  = (1 << CHUNK_BITS) - 1;
+    private static final int CHUNK_WORDS = (1 << CHUNK_BITS) / 64;
+    private static final int ARRAY_MAX   = CHUNK_WORDS * 4; // as many bytes as the words take
+
+    static final SocketBitmap EMPTY = new SocketBitmap(new int[0], new Object[0], 0);
+
+    private final int[]    keys;   // sorted chunk numbers
+    private final Object[] chunks; // char[] of sorted offsets or long[CHUNK_WORDS] of bits
+    private final int      cardinality;
+
+    private SocketBitmap(int[] keys, Object[] chunks, int cardinality)
+    {
+        this.keys = keys;
+        this.chunks = chunks;
+        this.cardinality = cardinality;
+    }
+
+    int cardinality()
+    {
+        return cardinality;
+    }
+
+    boolean isEmpty()
+    {
+        return cardinality == 0;
+    }
+
+    boolean contains(int handle)
+    {
+        int k = Arrays.binarySearch(keys, handle >>> CHUNK_BITS);
+        if (k < 0)
+            return false;
+
+        char offset = (char) (handle & CHUNK_MASK);
+        Object chunk = chunks[k];
+        if (chunk instanceof long[])
+            return (((long[]) chunk)[offset >>> 6] & (1L << offset)) != 0;
+
+        return Arrays.binarySearch((char[]) chunk, offset) >= 0;
+    }
+
+    /**
+     * @return bitmap with the handle added, this one if it is already there
+     */
+    SocketBitmap with(int handle)
+    {
+        int  key    = handle >>> CHUNK_BITS;
+        char offset = (char) (handle & CHUNK_MASK);
+
+        int k = Arrays.binarySearch(keys, key);
+        if (k < 0)
+        {
+            k = -k - 1;
+            int[] newKeys = new int[keys.length + 1];
+            System.arraycopy(keys, 0, newKeys, 0, k);
+            newKeys[k] = key;
+            System.arraycopy(keys, k, newKeys, k + 1, keys.length - k);
+
+            Object[] newChunks = new Object[chunks.length + 1];
+            System.arraycopy(chunks, 0, newChunks, 0, k);
+            newChunks[k] = new char[]{offset};
+            System.arraycopy(chunks, k, newChunks, k + 1, chunks.length - k);
+
+            return new SocketBitmap(newKeys, newChunks, cardinality + 1);
+        }
+
+        Object chunk = chunks[k];
+        Object updated = add(chunk, offset);
+        if (updated == chunk)
+            return this;
+
+        Object[] newChunks = chunks.clone();
+        newChunks[k] = updated;
+        return new SocketBitmap(keys, newChunks, cardinality + 1);
+    }
+
+    /**
+     * @return bitmap without the handle, this one if it is not there
+     */
+    SocketBitmap without(int handle)
+    {
+        int k = Arrays.binarySearch(keys, handle >>> CHUNK_BITS);
+        if (k < 0)
+            return this;
+
+        Object chunk = chunks[k];
+        Object updated = remove(chunk, (char) (handle & CHUNK_MASK));
+        if (updated == chunk)
+            return this;
+
+        if (updated != null)
+        {
+            Object[] newChunks = chunks.clone();
+            newChunks[k] = updated;
+            return new SocketBitmap(keys, newChunks, cardinality - 1);
+        }
+
+        if (cardinality == 1)
+            return EMPTY;
+
+        int[] newKeys = new int[keys.length - 1];
+        System.arraycopy(keys, 0, newKeys, 0, k);
+        System.arraycopy(keys, k + 1, newKeys, k, keys.length - k - 1);
+
+        Object[] newChunks = new Object[chunks.length - 1];
+        System.arraycopy(chunks, 0, newChunks, 0, k);
+        System.arraycopy(chunks, k + 1, newChunks, k, chunks.length - k - 1);
+
+        return new SocketBitmap(newKeys, newChunks, cardinality - 1);
+    }
+
+    /**
+     * @return handles in ascending order
+     */
+    int[] toArray()
+    {
+        int[] handles = new int[cardinality];
+        int n = 0;
+        for (int k = 0; k < keys.length; k++)
+        {
+            int base = keys[k] << CHUNK_BITS;
+            Object chunk = chunks[k];
+            if (chunk instanceof char[])
+            {
+                for (char offset : (char[]) chunk)
+                    handles[n++] = base | offset;
+            }
+            else
+                n = collect((long[]) chunk, base, handles, n);
+        }
+        return handles;
+    }
+
+    private static Object add(Object chunk, char offset)
+    {
+        if (chunk instanceof long[])
+        {
+            long[] words = (long[]) chunk;
+            if ((words[offset >>> 6] & (1L << offset)) != 0)
+                return chunk;
+
+            words = words.clone();
+            words[offset >>> 6] |= 1L << offset;
+            return words;
+        }
+
+        char[] offsets = (char[]) chunk;
+        int i = Arrays.binarySearch(offsets, offset);
+        if (i >= 0)
+            return chunk;
+
+        if (offsets.length == ARRAY_MAX)
+        {
+            long[] words = toWords(offsets);
+            words[offset >>> 6] |= 1L << offset;
+            return words;
+        }
+
+        i = -i - 1;
+        char[] updated = new char[offsets.length + 1];
+        System.arraycopy(offsets, 0, updated, 0, i);
+        updated[i] = offset;
+        System.arraycopy(offsets, i, updated, i + 1, offsets.length - i);
+        return updated;
+    }
+
+    /**
+     * @return updated chunk, the same one if the offset is not there, null if the chunk is emptied
+     */
+    private static Object remove(Object chunk, char offset)
+    {
+        if (chunk instanceof long[])
+        {
+            long[] words = (long[]) chunk;
+            if ((words[offset >>> 6] & (1L << offset)) == 0)
+                return chunk;
+
+            words = words.clone();
+            words[offset >>> 6] &= ~(1L << offset);
+
+            // back to array at half the limit, so a chunk on the edge is not converted on every change
+            int count = 0;
+            for (long word : words)
+                count += Long.bitCount(word);
+            if (count == 0)
+                return null;
+            if (count > ARRAY_MAX / 2)
+                return words;
+
+            char[] offsets = new char[count];
+            int n = 0;
+            for (int w = 0; w < words.length; w++)
+            {
+                for (long word = words[w]; word != 0; word &= word - 1)
+                    offsets[n++] = (char) ((w << 6) | Long.numberOfTrailingZeros(word));
+            }
+            return offsets;
+        }
+
+        char[] offsets = (char[]) chunk;
+        int i = Arrays.binarySearch(offsets, offset);
+        if (i < 0)
+            return chunk;
+        if (offsets.length == 1)
+            return null;
+
+        char[] updated = new char[offsets.length - 1];
+        System.arraycopy(offsets, 0, updated, 0, i);
+        System.arraycopy(offsets, i + 1, updated, i, offsets.length - i - 1);
+        return updated;
+    }
+
+    private static long[] toWords(char[] offsets)
+    {
+        long[] words = new long[CHUNK_WORDS];
+        for (char offset : offsets)
+            words[offset >>> 6] |= 1L << offset;
+        return words;
+    }
+
+    private static int collect(long[] words, int base, int[] handles, int n)
+    {
+        for (int w = 0; w < words.length; w++)
+        {
+            for (long word = words[w]; word != 0; word &= word - 1)
+                handles[n++] = base | (w << 6) | Long.numberOfTrailingZeros(word);
+        }
+        return n;
+    }
+
+    /**
+     * Mutable bitmap to compute targets of a broadcast: union of rooms minus excluded rooms and sockets.
+     * Chunks are indexed by chunk number directly, handles are dense so there are few of them.
+     */
+    static final class Builder
+    {
+        private long[][] words = new long[4][];
+
+        void add(int handle)
+        {
+            chunk(handle >>> CHUNK_BITS)[(handle & CHUNK_MASK) >>> 6] |= 1L << handle;
+        }
+
+        void remove(int handle)
+        {
+            int key = handle >>> CHUNK_BITS;
+            if (key < words.length && words[key] != null)
+                words[key][(handle & CHUNK_MASK) >>> 6] &= ~(1L << handle);
+        }
+
+        void or(SocketBitmap bitmap)
+        {
+            for (int k = 0; k < bitmap.keys.length; k++)
+            {
+                long[] target = chunk(bitmap.keys[k]);
+                Object chunk = bitmap.chunks[k];
+                if (chunk instanceof char[])
+                {
+                    for (char offset : (char[]) chunk)
+                        target[offset >>> 6] |= 1L << offset;
+                }
+                else
+                {
+                    long[] source = (long[]) chunk;
+                    for (int w = 0; w < CHUNK_WORDS; w++)
+                        target[w] |= source[w];
+                }
+            }
+        }
+
+        void andNot(SocketBitmap bitmap)
+        {
+            for (int k = 0; k < bitmap.keys.length; k++)
+            {
+                int key = bitmap.keys[k];
+                if (key >= words.length || words[key] == null)
+                    continue;
+
+                long[] target = words[key];
+                Object chunk = bitmap.chunks[k];
+                if (chunk instanceof char[])
+                {
+                    for (char offset : (char[]) chunk)
+                        target[offset >>> 6] &= ~(1L << offset);
+                }
+                else
+                {
+                    long[] source = (long[]) chunk;
+                    for (int w = 0; w < CHUNK_WORDS; w++)
+                        target[w] &= ~source[w];
+                }
+            }
+        }
+
+        /**
+         * @return handles in ascending order
+         */
+        int[] toArray()
+        {
+            int count = 0;
+            for (long[] chunk : words)
+            {
+                if (chunk != null)
+                {
+                    for (long word : chunk)
+                        count += Long.bitCount(word);
+                }
+            }
+
+            int[] handles = new int[count];
+            int n = 0;
+            for (int key = 0; key < words.length; key++)
+            {
+                if (words[key] != null)
+                    n = collect(words[key], key << CHUNK_BITS, handles, n);
+            }
+            return handles;
+        }
+
+        private long[] chunk(int key)
+        {
+            if (key >= words.length)
+                words = Arrays.copyOf(words, Math.max(words.length * 2, key + 1));
+
+            long[] chunk = words[key];
+            if (chunk == null)
+                words[key] = chunk = new long[CHUNK_WORDS];
+            return chunk;
+        }
+    }
+}
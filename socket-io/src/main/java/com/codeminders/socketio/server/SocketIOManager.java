@@ -25,7 +25,10 @@
  */
 package com.codeminders.socketio.server;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
 import javax.servlet.http.HttpSession;
+import java.lang.reflect.Method;
 import java.util.Map;
 import java.util.concurrent.*;
 
@@ -50,9 +53,22 @@ public final class SocketIOManager
     private final Map<String, Namespace>         namespaces = new ConcurrentHashMap<>();
     private final ConcurrentMap<String, Session> sessions   = new ConcurrentHashMap<>();
     private TransportProvider transportProvider;
+    private volatile EventLoopGroup     eventLoopGroup;
+    private volatile Executor           listenerExecutor;
+    private volatile FanOutExecutor     fanOutExecutor;
+    private volatile BroadcastScheduler broadcastScheduler;
+
+    private static final int TIMER_TICK = 100; // ms
+    private static final int TIMER_SIZE = 512; // buckets, the wheel turns every 51.2s
 
     final ScheduledExecutorService executor = Executors.newScheduledThreadPool(1);
 
+    // deadlines of all the sessions. the executor only ticks the wheel, expired sessions are closed by other threads
+    final TimingWheel timer = new TimingWheel(executor,
+            Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(),
+                    new ThreadFactoryBuilder().setDaemon(true).setNameFormat("socket.io-timeout-%d").build()),
+            TIMER_TICK, TIMER_SIZE);
+
     private static SocketIOManager instance = new SocketIOManager();
 
     private SocketIOManager() {
@@ -149,4 +165,104 @@ public final class SocketIOManager
     {
         this.transportProvider = transportProvider;
     }
+
+    /**
+     * @return event loops dispatching session events, null if events are dispatched by the calling threads
+     */
+    public EventLoopGroup getEventLoopGroup()
+    {
+        return eventLoopGroup;
+    }
+
+    /**
+     * Sets event loops to dispatch session events. Only sessions created afterwards use them.
+     *
+     * @param eventLoopGroup event loops, null to dispatch events on the calling threads
+     */
+    public void setEventLoopGroup(EventLoopGroup eventLoopGroup)
+    {
+        this.eventLoopGroup = eventLoopGroup;
+    }
+
+    /**
+     * @return executor running session events and listeners, null if they run on the calling threads
+     */
+    public Executor getListenerExecutor()
+    {
+        return listenerExecutor;
+    }
+
+    /**
+     * Sets executor to run session events and listeners on, so blocking listeners do not hold container threads.
+     * Events of one session still run one at a time and in order, so the executor does not need to keep
+     * the order itself. {@link EventLoopGroup} takes precedence if both are set.
+     * Only sessions created afterwards use the executor.
+     *
+     * @param listenerExecutor executor, for example {@link #newVirtualThreadExecutor()}.
+     *                         null to run listeners on the calling threads
+     */
+    public void setListenerExecutor(Executor listenerExecutor)
+    {
+        this.listenerExecutor = listenerExecutor;
+    }
+
+    /**
+     * @return executor delivering large broadcasts, null if broadcasts are delivered by the emitting threads
+     */
+    public FanOutExecutor getFanOutExecutor()
+    {
+        return fanOutExecutor;
+    }
+
+    /**
+     * Sets executor to deliver broadcasts emitted with {@code emitAsync} to more sockets than its threshold.
+     * Such broadcasts are not ordered with other events sent to the same sockets.
+     *
+     * @param fanOutExecutor executor, null to deliver all the broadcasts on the emitting threads
+     */
+    public void setFanOutExecutor(FanOutExecutor fanOutExecutor)
+    {
+        this.fanOutExecutor = fanOutExecutor;
+    }
+
+    /**
+     * @return scheduler delivering broadcasts fairly across rooms, null if there is none
+     */
+    public BroadcastScheduler getBroadcastScheduler()
+    {
+        return broadcastScheduler;
+    }
+
+    /**
+     * Sets scheduler to deliver all the broadcasts. It takes precedence over {@link FanOutExecutor}:
+     * every broadcast, including the ones of {@code emitAsync}, is delivered by the single scheduler thread,
+     * so the fan-out executor is not used while the scheduler is set. Broadcasts of {@code emit} are
+     * the exception: they are delivered by the emitting thread unless the room has a backlog.
+     *
+     * @param broadcastScheduler scheduler, null to deliver broadcasts on the emitting threads
+     *                           or by {@link FanOutExecutor}
+     */
+    public void setBroadcastScheduler(BroadcastScheduler broadcastScheduler)
+    {
+        this.broadcastScheduler = broadcastScheduler;
+    }
+
+    /**
+     * Creates executor starting a virtual thread for every task. Virtual threads are looked up at runtime,
+     * so the library still runs on older JDKs.
+     *
+     * @return virtual-thread-per-task executor, null if the JDK does not support virtual threads
+     */
+    public static ExecutorService newVirtualThreadExecutor()
+    {
+        try
+        {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        }
+        catch (ReflectiveOperationException e)
+        {
+            return null; // before JDK 21, or preview features of JDK 19-20 are disabled
+        }
+    }
 }
@@ -36,6 +36,7 @@ import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.concurrent.ExecutorService;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -43,6 +44,11 @@ public abstract class SocketIOServlet extends HttpServlet
 {
     private static final Logger LOGGER = Logger.getLogger(SocketIOServlet.class.getName());
 
+    private EventLoopGroup     eventLoopGroup;     // created by this servlet if configured
+    private ExecutorService    listenerExecutor;   // created by this servlet if virtual threads are available
+    private FanOutExecutor     fanOutExecutor;     // created by this servlet if configured
+    private BroadcastScheduler broadcastScheduler; // created by this servlet if configured
+
     /**
      * Initializes and retrieves the given Namespace by its pathname identifier {@code id}.
      *
@@ -81,6 +87,46 @@ public abstract class SocketIOServlet extends HttpServlet
     {
         of(SocketIOProtocol.DEFAULT_NAMESPACE);
 
+        if (getServletConfig() != null)
+        {
+            Config config = new ServletBasedConfig(getServletConfig(), "server");
+            int loops = config.getInt(Config.EVENT_LOOPS, 0);
+            if (loops > 0)
+            {
+                eventLoopGroup = new EventLoopGroup(loops,
+                        config.getInt(Config.EVENT_LOOP_QUEUE_SIZE, Config.DEFAULT_EVENT_LOOP_QUEUE_SIZE));
+                SocketIOManager.getInstance().setEventLoopGroup(eventLoopGroup);
+            }
+            else if (config.getBoolean(Config.VIRTUAL_THREADS, true))
+            {
+                listenerExecutor = SocketIOManager.newVirtualThreadExecutor();
+                if (listenerExecutor != null)
+                {
+                    SocketIOManager.getInstance().setListenerExecutor(listenerExecutor);
+                    if (LOGGER.isLoggable(Level.INFO))
+                        LOGGER.info("Socket.IO listeners run on virtual threads");
+                }
+            }
+
+            int fanOutThreads = config.getInt(Config.FAN_OUT_THREADS, 0);
+            if (fanOutThreads > 0)
+            {
+                fanOutExecutor = new FanOutExecutor(fanOutThreads,
+                        config.getInt(Config.FAN_OUT_THRESHOLD, Config.DEFAULT_FAN_OUT_THRESHOLD),
+                        config.getInt(Config.FAN_OUT_CHUNK_SIZE, Config.DEFAULT_FAN_OUT_CHUNK_SIZE));
+                SocketIOManager.getInstance().setFanOutExecutor(fanOutExecutor);
+            }
+
+            if (config.getBoolean(Config.FAIR_BROADCAST, false))
+            {
+                broadcastScheduler = new BroadcastScheduler(
+                        config.getInt(Config.BROADCAST_QUANTUM, Config.DEFAULT_BROADCAST_QUANTUM),
+                        config.getInt(Config.BROADCAST_QUEUE_SIZE, Config.DEFAULT_BROADCAST_QUEUE_SIZE),
+                        config.getInt(Config.ROOM_RATE_LIMIT, 0));
+                SocketIOManager.getInstance().setBroadcastScheduler(broadcastScheduler);
+            }
+        }
+
         if (LOGGER.isLoggable(Level.INFO))
             LOGGER.info("Socket.IO server stated.");
     }
@@ -89,6 +135,28 @@ public abstract class SocketIOServlet extends HttpServlet
     public void destroy()
     {
         SocketIOManager.getInstance().getTransportProvider().destroy();
+        if (broadcastScheduler != null)
+        {
+            SocketIOManager.getInstance().setBroadcastScheduler(null);
+            broadcastScheduler.shutdown();
+        }
+        if (fanOutExecutor != null)
+        {
+            SocketIOManager.getInstance().setFanOutExecutor(null);
+            fanOutExecutor.shutdown();
+        }
+        // sessions keep dispatching on the executors they were created with, so these go last.
+        // tasks handed to the listener executor after it is shut down run on the calling thread
+        if (eventLoopGroup != null)
+        {
+            SocketIOManager.getInstance().setEventLoopGroup(null);
+            eventLoopGroup.shutdown();
+        }
+        if (listenerExecutor != null)
+        {
+            SocketIOManager.getInstance().setListenerExecutor(null);
+            listenerExecutor.shutdown();
+        }
         super.destroy();
     }
 
@@ -0,0 +1,46 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Alexander Sova (bird@codeminders.com)
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.codeminders.socketio.server;
+
+import com.fasterxml.jackson.core.JsonParser;
+
+import java.io.IOException;
+
+/**
+ * Event listener reading event arguments directly from the received packet.
+ * No objects are created for the arguments unless the listener asks for them.
+ */
+public interface StreamingEventListener
+{
+    /**
+     * Called upon incoming event
+     *
+     * @param name event name
+     * @param args parser positioned inside the arguments array: next token is the first argument or END_ARRAY.
+     *             The parser is valid only during the call. Binary objects are not available via the parser
+     * @param ackRequested true if client requested an acknowledgement
+     * @return Object to send back to the caller as an acknowledgement, null if no ack to be sent
+     * @throws IOException if the arguments cannot be parsed
+     */
+    Object onEvent(String name, JsonParser args, boolean ackRequested) throws IOException;
+}
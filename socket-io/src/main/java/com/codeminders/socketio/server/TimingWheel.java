@@ -0,0 +1,279 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Alexander Sova (bird@codeminders.com)
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.codeminders.socketio.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Hashed timing wheel tracking deadlines of all the sessions: heartbeat timeouts and PING packets.
+ * <p>
+ * Deadline of an entry is not rescheduled when it moves. The hot path only records the time of the last
+ * activity with {@link Timeout#touch()}, and the wheel checks the actual deadline when the bucket of the entry
+ * comes around. Entries whose deadline moved go to the bucket of the new deadline, expired ones are handed over
+ * to the executor, so the timer thread never blocks on I/O. Deadlines are precise to one tick.
+ * <p>
+ * Buckets are only accessed by the timer thread. Entries scheduled by other threads are passed through
+ * a lock-free queue and placed into buckets on the next tick.
+ */
+final class TimingWheel
+{
+    private static final Logger LOGGER = Logger.getLogger(TimingWheel.class.getName());
+
+    /**
+     * Entry of the wheel. Cancelled entries are dropped when their bucket comes around.
+     */
+    abstract static class Timeout
+    {
+        private final TimingWheel wheel;
+
+        private volatile long    lastActivity;
+        private volatile boolean cancelled;
+        private long             rounds; // timer thread only
+
+        Timeout(TimingWheel wheel)
+        {
+            this.wheel = wheel;
+            this.lastActivity = wheel.now();
+        }
+
+        /**
+         * Records activity. It is just a write of the current time, the wheel notices it
+         * when the deadline is checked.
+         */
+        final void touch()
+        {
+            lastActivity = wheel.now();
+        }
+
+        /**
+         * @return time of the last activity in milliseconds of {@link TimingWheel#now()} clock
+         */
+        final long getLastActivity()
+        {
+            return lastActivity;
+        }
+
+        final void cancel()
+        {
+            cancelled = true;
+        }
+
+        final boolean isCancelled()
+        {
+            return cancelled;
+        }
+
+        /**
+         * @return time in milliseconds of {@link TimingWheel#now()} clock the entry expires at
+         */
+        abstract long getDeadline();
+
+        /**
+         * Called by the executor once the deadline has passed.
+         * The entry is not tracked any longer unless it is scheduled again.
+         */
+        abstract void expire();
+    }
+
+    private final ScheduledExecutorService timer;
+    private final Executor                 executor;
+    private final long                     tickMillis;
+    private final List<Timeout>[]          buckets;
+    private final int                      mask;
+
+    private final Queue<Timeout> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean  started = new AtomicBoolean();
+    private final long           origin  = System.nanoTime();
+
+    private volatile long now;   // milliseconds as of the last manual advance
+    private long          tick;  // last processed tick. timer thread only
+    private List<Timeout> spare = new ArrayList<>();
+
+    /**
+     * @param timer executor running the ticks. null to advance the wheel manually with {@link #advance(long)}
+     * @param executor executor expired entries are handed over to
+     * @param tickMillis tick duration in milliseconds
+     * @param wheelSize number of buckets, rounded up to a power of two
+     */
+    TimingWheel(ScheduledExecutorService timer, Executor executor, long tickMillis, int wheelSize)
+    {
+        if (tickMillis <= 0 || wheelSize <= 0)
+            throw new IllegalArgumentException("Invalid timing wheel: tick " + tickMillis + "ms, size " + wheelSize);
+
+        int size = Integer.highestOneBit(wheelSize);
+        if (size < wheelSize)
+            size <<= 1;
+
+        this.timer = timer;
+        this.executor = executor;
+        this.tickMillis = tickMillis;
+        this.mask = size - 1;
+        @SuppressWarnings("unchecked")
+        List<Timeout>[] buckets = (List<Timeout>[]) new List<?>[size];
+        for (int i = 0; i < size; i++)
+            buckets[i] = new ArrayList<>();
+        this.buckets = buckets;
+    }
+
+    /**
+     * The clock does not depend on the ticks, which only start with the first scheduled entry.
+     *
+     * @return milliseconds since the wheel was created, or the time of the last {@link #advance(long)}
+     * if the wheel is advanced manually
+     */
+    long now()
+    {
+        if (timer == null)
+            return now;
+
+        return (System.nanoTime() - origin) / 1000000L;
+    }
+
+    /**
+     * Starts tracking the entry. Could be called from any thread.
+     *
+     * @param timeout entry to track
+     */
+    void schedule(Timeout timeout)
+    {
+        pending.add(timeout);
+
+        if (timer != null && started.compareAndSet(false, true))
+        {
+            timer.scheduleAtFixedRate(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        advance(now());
+                    }
+                    catch (Throwable e)
+                    {
+                        // the ticks must go on
+                        if (LOGGER.isLoggable(Level.WARNING))
+                            LOGGER.log(Level.WARNING, "Timing wheel tick failed", e);
+                    }
+                }
+            }, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Moves the wheel to {@code millis} processing all the ticks up to it.
+     * To be called by the timer thread only.
+     *
+     * @param millis current time in milliseconds since the wheel was created
+     */
+    void advance(long millis)
+    {
+        now = millis;
+
+        for (Timeout timeout = pending.poll(); timeout != null; timeout = pending.poll())
+        {
+            if (!timeout.isCancelled())
+                place(timeout, timeout.getDeadline());
+        }
+
+        long target = millis / tickMillis;
+        while (tick < target)
+        {
+            tick++;
+
+            // entries going for another round stay in the same bucket, so it is swapped out while processed
+            int index = (int) (tick & mask);
+            List<Timeout> bucket = buckets[index];
+            buckets[index] = spare;
+
+            for (Timeout timeout : bucket)
+            {
+                if (timeout.isCancelled())
+                    continue;
+
+                if (timeout.rounds > 0)
+                {
+                    timeout.rounds--;
+                    buckets[index].add(timeout);
+                    continue;
+                }
+
+                long deadline = timeout.getDeadline();
+                if (deadline <= millis)
+                    expire(timeout);
+                else
+                    place(timeout, deadline);
+            }
+
+            bucket.clear();
+            spare = bucket;
+        }
+    }
+
+    private void place(Timeout timeout, long deadline)
+    {
+        // first tick the deadline is passed at, but not the one being processed
+        long ticks = Math.max((deadline + tickMillis - 1) / tickMillis, tick + 1);
+
+        timeout.rounds = (ticks - tick - 1) / buckets.length;
+        buckets[(int) (ticks & mask)].add(timeout);
+    }
+
+    private void expire(final Timeout timeout)
+    {
+        try
+        {
+            executor.execute(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        timeout.expire();
+                    }
+                    catch (Throwable e)
+                    {
+                        if (LOGGER.isLoggable(Level.WARNING))
+                            LOGGER.log(Level.WARNING, "Timeout handler failed", e);
+                    }
+                }
+            });
+        }
+        catch (RejectedExecutionException e)
+        {
+            if (LOGGER.isLoggable(Level.FINE))
+                LOGGER.log(Level.FINE, "Executor is shut down, timeout is dropped", e);
+        }
+    }
+}
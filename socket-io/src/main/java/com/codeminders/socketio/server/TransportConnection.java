@@ -26,6 +26,7 @@
 package com.codeminders.socketio.server;
 
 import com.codeminders.socketio.common.SocketIOException;
+import com.codeminders.socketio.protocol.EncodedPacket;
 import com.codeminders.socketio.protocol.EngineIOPacket;
 import com.codeminders.socketio.protocol.SocketIOPacket;
 
@@ -55,8 +56,23 @@ public interface TransportConnection
     void send(EngineIOPacket packet) throws SocketIOException;
     void send(SocketIOPacket packet) throws SocketIOException;
 
+    /**
+     * Sends the packet encoded in advance. The frame can be shared by many connections
+     * so implementations should not encode it again.
+     *
+     * @param packet pre-encoded packet
+     * @return false if the packet is dropped because the outbound buffer is full
+     * @throws SocketIOException if IO or protocol error happens
+     */
+    boolean send(EncodedPacket packet) throws SocketIOException;
+
     void disconnect(String namespace, boolean closeConnection);
 
+    /**
+     * @return false if outbound buffer is filling up and producers should back off
+     */
+    boolean isWritable();
+
     /**
      * Emits an event to the socket identified by the string name.
      *
@@ -60,10 +60,19 @@ public abstract class AbstractHttpTransport extends AbstractTransport
             if(socketIOManager.getTransportProvider().getTransport(TransportType.WEB_SOCKET) != null)
                 upgrades.add("websocket");
 
-            connection.send(EngineIOProtocol.createHandshakePacket(session.getSessionId(),
-                    upgrades.toArray(new String[upgrades.size()]),
-                    getConfig().getPingInterval(Config.DEFAULT_PING_INTERVAL),
-                    getConfig().getTimeout(Config.DEFAULT_PING_TIMEOUT)));
+            long pingInterval = getConfig().getPingInterval(Config.DEFAULT_PING_INTERVAL);
+            long pingTimeout  = getConfig().getTimeout(Config.DEFAULT_PING_TIMEOUT);
+
+            if (session.getProtocolVersion() >= EngineIOProtocol.VERSION_4)
+            {
+                connection.send(EngineIOProtocol.createHandshakePacket(session.getSessionId(),
+                        upgrades.toArray(new String[upgrades.size()]), pingInterval, pingTimeout,
+                        getConfig().getLong(Config.MAX_BODY_SIZE, Config.DEFAULT_MAX_BODY_SIZE)));
+                session.startHeartbeat(pingInterval, pingTimeout);
+            }
+            else
+                connection.send(EngineIOProtocol.createHandshakePacket(session.getSessionId(),
+                        upgrades.toArray(new String[upgrades.size()]), pingInterval, pingTimeout));
 
             connection.handle(request, response); // called to send the handshake packet
             session.onConnect(connection);
@@ -65,6 +65,7 @@ public abstract class AbstractTransport implements Transport
     }
 
     protected TransportConnection getConnection(HttpServletRequest request, SocketIOManager sessionManager)
+            throws SocketIOProtocolException
     {
         String sessionId = request.getParameter(EngineIOProtocol.SESSION_ID);
         Session session = null;
@@ -73,7 +74,12 @@ public abstract class AbstractTransport implements Transport
             session = sessionManager.getSession(sessionId);
 
         if(session == null)
-            return createConnection(sessionManager.createSession(request.getSession()));
+        {
+            int version = EngineIOProtocol.parseVersion(request.getParameter(EngineIOProtocol.VERSION));
+            session = sessionManager.createSession(request.getSession());
+            session.setProtocolVersion(version);
+            return createConnection(session);
+        }
 
         TransportConnection activeConnection = session.getConnection();
 
@@ -27,12 +27,20 @@ package com.codeminders.socketio.server.transport;
 import com.codeminders.socketio.common.ConnectionState;
 import com.codeminders.socketio.common.DisconnectReason;
 import com.codeminders.socketio.common.SocketIOException;
+import com.codeminders.socketio.protocol.EncodedPacket;
+import com.codeminders.socketio.protocol.EngineIOPacket;
+import com.codeminders.socketio.protocol.JsonPacketCodec;
+import com.codeminders.socketio.protocol.MessagePackCodec;
+import com.codeminders.socketio.protocol.PacketCodec;
 import com.codeminders.socketio.protocol.SocketIOPacket;
 import com.codeminders.socketio.protocol.SocketIOProtocol;
 import com.codeminders.socketio.server.*;
 
 import javax.servlet.http.HttpServletRequest;
 import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
@@ -43,11 +51,36 @@ public abstract class AbstractTransportConnection implements TransportConnection
 {
     private static final Logger LOGGER = Logger.getLogger(AbstractTransportConnection.class.getName());
 
+    private static final String JSON_CODEC    = "json";
+    private static final String MSGPACK_CODEC = "msgpack";
+
+    private static final ConcurrentMap<String, PacketCodec> codecs = new ConcurrentHashMap<>();
+
     private Config  config;
     private Session session;
     private Transport transport;
     private HttpServletRequest request;
 
+    private final OutboundBuffer.Listener outboundListener = new OutboundBuffer.Listener()
+    {
+        @Override
+        public void onOverflow()
+        {
+            if (LOGGER.isLoggable(Level.FINE))
+                LOGGER.fine("Session[" + getSession().getSessionId() + "]: outbound buffer overflow");
+
+            if (getSession().getConnection() == AbstractTransportConnection.this)
+                getSession().setDisconnectReason(DisconnectReason.SLOW_CONSUMER);
+            closeOnOverflow();
+        }
+
+        @Override
+        public void onDrain()
+        {
+            getSession().onDrain();
+        }
+    };
+
     public AbstractTransportConnection(Transport transport)
     {
         this.transport = transport;
@@ -56,9 +89,49 @@ public abstract class AbstractTransportConnection implements TransportConnection
     @Override
     public final void init(Config config) {
         this.config = config;
+
+        // the first connection chooses the codec for the session. upgraded connections keep using it
+        if (session != null && session.getConnectionState() == ConnectionState.CONNECTING)
+            session.setCodec(getPacketCodec(config));
+
         init();
     }
 
+    /**
+     * Finds the codec set by {@code packetCodec} parameter: {@code json} (default), {@code msgpack}
+     * or name of a class implementing {@link PacketCodec}.
+     *
+     * @param config configuration
+     * @return packet codec
+     * @throws IllegalArgumentException if the codec class cannot be instantiated
+     */
+    static PacketCodec getPacketCodec(Config config)
+    {
+        String name = config.getString(Config.PACKET_CODEC, JSON_CODEC);
+        if (JSON_CODEC.equals(name))
+            return JsonPacketCodec.INSTANCE;
+        if (MSGPACK_CODEC.equals(name))
+            return MessagePackCodec.INSTANCE;
+
+        PacketCodec codec = codecs.get(name);
+        if (codec == null)
+        {
+            try
+            {
+                codec = Class.forName(name).asSubclass(PacketCodec.class).getDeclaredConstructor().newInstance();
+            }
+            catch (ReflectiveOperationException | ClassCastException e)
+            {
+                throw new IllegalArgumentException("Invalid packet codec: " + name, e);
+            }
+
+            PacketCodec existing = codecs.putIfAbsent(name, codec);
+            if (existing != null)
+                codec = existing;
+        }
+        return codec;
+    }
+
     @Override
     public Transport getTransport()
     {
@@ -82,6 +155,24 @@ public abstract class AbstractTransportConnection implements TransportConnection
     {
     }
 
+    /**
+     * Closes the connection when its outbound buffer overflows and the policy is to disconnect.
+     * The session is expected to be shut down as a result, like when the client closes the connection.
+     */
+    protected void closeOnOverflow()
+    {
+        abort();
+    }
+
+    /**
+     * @return listener disconnecting the session on outbound buffer overflow
+     *         and forwarding drain notifications to the session
+     */
+    protected final OutboundBuffer.Listener getOutboundListener()
+    {
+        return outboundListener;
+    }
+
     @Override
     public void disconnect(String namespace, boolean closeConnection)
     {
@@ -122,7 +213,36 @@ public abstract class AbstractTransportConnection implements TransportConnection
         if(packet_id >= 0)
             getSession().subscribeACK(packet_id, ack_listener);
 
-        send(packet);
+        try
+        {
+            send(packet);
+        }
+        catch (SocketIOException e)
+        {
+            // the client will never acknowledge the packet it did not get
+            if(packet_id >= 0)
+                getSession().unsubscribeACK(packet_id);
+            throw e;
+        }
+    }
+
+    /**
+     * Encodes the packet with the session codec and sends it.
+     */
+    @Override
+    public void send(SocketIOPacket packet) throws SocketIOException
+    {
+        send(getSession().getCodec().encode(packet));
+    }
+
+    @Override
+    public boolean send(EncodedPacket packet) throws SocketIOException
+    {
+        if (packet.getMessage() != null)
+            send(packet.getMessage());
+        for (EngineIOPacket binary : packet.createBinaryPackets())
+            send(binary);
+        return true;
     }
 
     @Override
@@ -0,0 +1,441 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Alexander Sova (bird@codeminders.com)
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.codeminders.socketio.server.transport;
+
+import com.codeminders.socketio.server.Config;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Outbound packet buffer of a transport connection bounded by both number of packets and bytes.
+ * <p>
+ * When a packet does not fit the buffer applies its {@link OverflowPolicy}.
+ * Packets offered together as a group, like a Socket.IO packet and its binary attachments, are kept or dropped
+ * as a whole. Control packets are never dropped: they are admitted over the limits unless the policy is
+ * {@link OverflowPolicy#DISCONNECT}.
+ * The buffer stops being writable once it is half full and notifies the listener
+ * when it drains below a quarter of its limits, so producers could back off before packets get dropped.
+ * <p>
+ * This implementation is thread-safe. Listener is called outside of the buffer lock.
+ *
+ * @param <E> type of buffered items
+ */
+public final class OutboundBuffer<E>
+{
+    public enum OverflowPolicy
+    {
+        DROP_OLDEST,    // discard packet groups from the head of the buffer to make room
+        DROP_NEWEST,    // discard the packet group being sent
+        DISCONNECT      // close the connection as a slow consumer
+    }
+
+    public interface Listener
+    {
+        /**
+         * Called when a packet does not fit the buffer and policy is {@link OverflowPolicy#DISCONNECT}
+         */
+        void onOverflow();
+
+        /**
+         * Called when the buffer becomes writable again
+         */
+        void onDrain();
+    }
+
+    private static final byte CONTINUED = 1; // item belongs to the group of the previous one
+    private static final byte CONTROL   = 2; // item is never dropped
+
+    private final int            maxPackets;
+    private final long           maxBytes;
+    private final OverflowPolicy policy;
+    private final Listener       listener;
+
+    private Object[] items = new Object[16];
+    private int[]    sizes = new int[16];
+    private byte[]   flags = new byte[16];
+    private int      head;
+    private int      count;
+    private long     bytes;
+
+    private volatile boolean writable = true;
+
+    /**
+     * Creates unbounded buffer
+     */
+    public OutboundBuffer()
+    {
+        this(Integer.MAX_VALUE, Long.MAX_VALUE, OverflowPolicy.DISCONNECT, null);
+    }
+
+    /**
+     * Creates buffer with limits and policy defined by transport configuration
+     *
+     * @param config transport configuration
+     * @param listener overflow and drain listener, could be null
+     */
+    public OutboundBuffer(Config config, Listener listener)
+    {
+        this(config.getInt(Config.MAX_OUTBOUND_PACKETS, Config.DEFAULT_MAX_OUTBOUND_PACKETS),
+                config.getLong(Config.MAX_OUTBOUND_BYTES, Config.DEFAULT_MAX_OUTBOUND_BYTES),
+                OverflowPolicy.valueOf(config.getString(Config.OVERFLOW_POLICY, OverflowPolicy.DISCONNECT.name())),
+                listener);
+    }
+
+    public OutboundBuffer(int maxPackets, long maxBytes, OverflowPolicy policy, Listener listener)
+    {
+        if (maxPackets <= 0 || maxBytes <= 0)
+            throw new IllegalArgumentException("Outbound buffer limits should be positive");
+
+        this.maxPackets = maxPackets;
+        this.maxBytes = maxBytes;
+        this.policy = policy;
+        this.listener = listener;
+    }
+
+    /**
+     * Adds packet to the tail of the buffer
+     *
+     * @param item packet
+     * @param size packet size in bytes
+     * @return true if packet was added, false if it was dropped
+     */
+    public boolean offer(E item, int size)
+    {
+        return offer(item, size, false);
+    }
+
+    /**
+     * Adds packet to the tail of the buffer
+     *
+     * @param item packet
+     * @param size packet size in bytes
+     * @param control true if the packet controls the connection and should never be dropped
+     * @return true if packet was added, false if it was dropped
+     */
+    public boolean offer(E item, int size, boolean control)
+    {
+        synchronized (this)
+        {
+            if (control && policy != OverflowPolicy.DISCONNECT || admit(1, size))
+            {
+                addLast(item, size, control ? CONTROL : 0);
+                added();
+                return true;
+            }
+
+            if (policy != OverflowPolicy.DISCONNECT)
+                return false;
+        }
+
+        overflow();
+        return false;
+    }
+
+    /**
+     * Adds packets to the tail of the buffer as a group. Either all of them are added or none.
+     *
+     * @param group packets
+     * @param sizes packet sizes in bytes
+     * @return true if packets were added, false if they were dropped
+     */
+    public boolean offer(List<? extends E> group, int[] sizes)
+    {
+        long size = 0;
+        for (int i = 0; i < group.size(); i++)
+            size += sizes[i];
+
+        synchronized (this)
+        {
+            if (admit(group.size(), size))
+            {
+                for (int i = 0; i < group.size(); i++)
+                    addLast(group.get(i), sizes[i], i == 0 ? 0 : CONTINUED);
+                added();
+                return true;
+            }
+
+            if (policy != OverflowPolicy.DISCONNECT)
+                return false;
+        }
+
+        overflow();
+        return false;
+    }
+
+    /**
+     * Removes packet from the head of the buffer
+     *
+     * @return packet or null if the buffer is empty
+     */
+    public E poll()
+    {
+        E item;
+        boolean drained = false;
+
+        synchronized (this)
+        {
+            if (count == 0)
+                return null;
+
+            item = removeFirst();
+            if (!writable && belowLowWatermark())
+                writable = drained = true;
+        }
+
+        if (drained && listener != null)
+            listener.onDrain();
+
+        return item;
+    }
+
+    /**
+     * Waits until there is a packet in the buffer
+     *
+     * @param timeout maximum time to wait
+     * @param unit time unit of timeout
+     * @return true if the buffer is not empty
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public synchronized boolean await(long timeout, TimeUnit unit)
+            throws InterruptedException
+    {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (count == 0)
+        {
+            long left = deadline - System.nanoTime();
+            if (left <= 0)
+                return false;
+            TimeUnit.NANOSECONDS.timedWait(this, left);
+        }
+        return true;
+    }
+
+    /**
+     * Discards all the packets
+     */
+    public synchronized void clear()
+    {
+        while (count > 0)
+            removeFirst();
+        writable = true;
+    }
+
+    public synchronized boolean isEmpty()
+    {
+        return count == 0;
+    }
+
+    public synchronized int size()
+    {
+        return count;
+    }
+
+    public synchronized long bytes()
+    {
+        return bytes;
+    }
+
+    /**
+     * @return false if the buffer is more than half full
+     */
+    public boolean isWritable()
+    {
+        return writable;
+    }
+
+    private boolean admit(int packets, long size)
+    {
+        return fits(packets, size) || makeRoom(packets, size);
+    }
+
+    private void added()
+    {
+        if (writable && aboveHighWatermark())
+            writable = false;
+
+        notifyAll();
+    }
+
+    private void overflow()
+    {
+        // outside of the lock since listener is expected to tear down the connection
+        if (listener != null)
+            listener.onOverflow();
+    }
+
+    /**
+     * Drops the oldest packet groups until the packets fit. Control packets and the rest of a group
+     * partially taken by {@link #poll()} are kept.
+     */
+    private boolean makeRoom(int packets, long size)
+    {
+        if (policy != OverflowPolicy.DROP_OLDEST || !canMakeRoom(packets, size))
+            return false; // nothing is dropped unless it makes enough room
+
+        while (count > 0 && !fits(packets, size) && (flags[head] & (CONTINUED | CONTROL)) == 0)
+            removeGroup();
+
+        if (count > 0 && !fits(packets, size))
+            dropBehindHead(packets, size);
+
+        return fits(packets, size);
+    }
+
+    /**
+     * @return true if the packets would fit once everything but control packets and the rest of
+     *         the group partially taken by {@link #poll()} is dropped
+     */
+    private boolean canMakeRoom(int packets, long size)
+    {
+        int  keptPackets = 0;
+        long keptBytes   = 0;
+        boolean polledGroup = true;
+        for (int i = 0; i < count; i++)
+        {
+            int j = index(i);
+            polledGroup = polledGroup && (flags[j] & CONTINUED) != 0;
+            if (polledGroup || (flags[j] & CONTROL) != 0)
+            {
+                keptPackets++;
+                keptBytes += sizes[j];
+            }
+        }
+        return fits(packets, size, keptPackets, keptBytes);
+    }
+
+    private void removeGroup()
+    {
+        do
+            removeFirst();
+        while (count > 0 && (flags[head] & CONTINUED) != 0);
+    }
+
+    /**
+     * Drops the oldest groups kept after the packets at the head which could not be dropped, and compacts the buffer
+     */
+    private void dropBehindHead(int packets, long size)
+    {
+        int kept = 0;
+        int dropped = 0;
+        int i = 0;
+        while (i < count)
+        {
+            int end = i + 1;
+            while (end < count && (flags[index(end)] & CONTINUED) != 0)
+                end++;
+
+            boolean drop = (flags[index(i)] & (CONTINUED | CONTROL)) == 0 &&
+                    !fits(packets, size, count - dropped, bytes);
+            for (int j = i; j < end; j++)
+            {
+                int from = index(j);
+                if (drop)
+                {
+                    bytes -= sizes[from];
+                    dropped++;
+                }
+                else
+                    move(from, index(kept++));
+            }
+            i = end;
+        }
+
+        for (int j = kept; j < count; j++)
+            items[index(j)] = null;
+        count = kept;
+    }
+
+    private boolean fits(int packets, long size)
+    {
+        return fits(packets, size, count, bytes);
+    }
+
+    private boolean fits(int packets, long size, int bufferedPackets, long bufferedBytes)
+    {
+        return bufferedPackets + packets <= maxPackets && bufferedBytes + size <= maxBytes;
+    }
+
+    private boolean aboveHighWatermark()
+    {
+        return count > maxPackets / 2 || bytes > maxBytes / 2;
+    }
+
+    private boolean belowLowWatermark()
+    {
+        return count <= maxPackets / 4 && bytes <= maxBytes / 4;
+    }
+
+    private int index(int i)
+    {
+        return (head + i) % items.length;
+    }
+
+    private void move(int from, int to)
+    {
+        items[to] = items[from];
+        sizes[to] = sizes[from];
+        flags[to] = flags[from];
+    }
+
+    private void addLast(E item, int size, byte flag)
+    {
+        if (count == items.length)
+            grow();
+
+        int tail = index(count);
+        items[tail] = item;
+        sizes[tail] = size;
+        flags[tail] = flag;
+        count++;
+        bytes += size;
+    }
+
+    @SuppressWarnings("unchecked")
+    private E removeFirst()
+    {
+        E item = (E) items[head];
+        items[head] = null;
+        bytes -= sizes[head];
+        head = (head + 1) % items.length;
+        count--;
+        return item;
+    }
+
+    private void grow()
+    {
+        Object[] newItems = new Object[items.length * 2];
+        int[]    newSizes = new int[items.length * 2];
+        byte[]   newFlags = new byte[items.length * 2];
+        for (int i = 0; i < count; i++)
+        {
+            newItems[i] = items[index(i)];
+            newSizes[i] = sizes[index(i)];
+            newFlags[i] = flags[index(i)];
+        }
+        items = newItems;
+        sizes = newSizes;
+        flags = newFlags;
+        head = 0;
+    }
+}
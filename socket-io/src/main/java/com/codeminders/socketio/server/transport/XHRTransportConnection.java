@@ -1,27 +1,43 @@
 package com.codeminders.socketio.server.transport;
 
 import com.codeminders.socketio.common.SocketIOException;
-import com.codeminders.socketio.protocol.BinaryPacket;
+import com.codeminders.socketio.protocol.EncodedPacket;
 import com.codeminders.socketio.protocol.EngineIOPacket;
 import com.codeminders.socketio.protocol.EngineIOProtocol;
-import com.codeminders.socketio.protocol.SocketIOPacket;
+import com.codeminders.socketio.server.Config;
 import com.codeminders.socketio.server.SocketIOProtocolException;
 import com.codeminders.socketio.server.Transport;
-import com.google.common.io.CharStreams;
 
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
 
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingDeque;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
+ * XHR polling connection.
+ * <p>
+ * When the servlet supports asynchronous processing outgoing (GET) requests do not block container threads.
+ * The request is parked on the connection and completed as soon as packets are sent to it
+ * or polling timeout expires. Set {@code asyncPolling} parameter to {@code false} to always block.
+ * <p>
+ * Incoming (POST) payloads are decoded while they are read, every packet is dispatched as soon as it is complete.
+ * Bodies larger than {@code maxBodySize} bytes are rejected with 413.
+ *
  * @author Alexander Sova (bird@codeminders.com)
  */
 public class XHRTransportConnection extends AbstractTransportConnection
@@ -31,15 +47,40 @@ public class XHRTransportConnection extends AbstractTransportConnection
 
     private static final Logger LOGGER = Logger.getLogger(XHRTransportConnection.class.getName());
 
-    private BlockingQueue<EngineIOPacket> packets = new LinkedBlockingDeque<>();
+    private OutboundBuffer<EngineIOPacket> packets = new OutboundBuffer<>();
 
-    private boolean done = false;
+    private final AtomicReference<AsyncContext> pendingPoll = new AtomicReference<>();
+
+    private volatile boolean done = false;
+
+    private long    pollingTimeout;
+    private boolean asyncPolling;
+    private long    maxBodySize;
 
     public XHRTransportConnection(Transport transport)
     {
         super(transport);
     }
 
+    @Override
+    protected void init()
+    {
+        // PING (EIO4) or PONG (EIO3) completes the poll every pingInterval,
+        // so a poll waiting longer than pingInterval + timeout means the client is gone
+        pollingTimeout = getConfig().getLong(Config.POLLING_TIMEOUT,
+                getConfig().getPingInterval(Config.DEFAULT_PING_INTERVAL) +
+                getConfig().getTimeout(Config.DEFAULT_PING_TIMEOUT));
+        asyncPolling = getConfig().getBoolean(Config.ASYNC_POLLING, true);
+        maxBodySize = getConfig().getLong(Config.MAX_BODY_SIZE, Config.DEFAULT_MAX_BODY_SIZE);
+        packets = new OutboundBuffer<>(getConfig(), getOutboundListener());
+
+        if (LOGGER.isLoggable(Level.FINE))
+            LOGGER.fine(getConfig().getNamespace() + " XHR polling configuration:" +
+                    " pollingTimeout=" + pollingTimeout +
+                    ", asyncPolling=" + asyncPolling +
+                    ", maxBodySize=" + maxBodySize);
+    }
+
     @Override
     public void handle(HttpServletRequest request, HttpServletResponse response) throws IOException
     {
@@ -68,43 +109,78 @@ public class XHRTransportConnection extends AbstractTransportConnection
         {
             response.setContentType("text/plain");
 
-            String contentType = request.getContentType();
-            if (contentType.startsWith("text/"))
+            // declared length is checked up front, the actual one while reading. the client may not declare it
+            if (request.getContentLength() > maxBodySize)
             {
-                // text encoding
-                String payload = CharStreams.toString(request.getReader());
-
-                for (EngineIOPacket packet : EngineIOProtocol.decodePayload(payload))
-                    getSession().onPacket(packet, this);
+                rejectBody(request);
+                response.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+                return;
             }
-            else
-            if (contentType.startsWith("application/octet-stream"))
+
+            LimitedInputStream body = new LimitedInputStream(request.getInputStream(), maxBodySize);
+            EngineIOProtocol.PacketHandler handler = new EngineIOProtocol.PacketHandler()
+            {
+                @Override
+                public void onPacket(EngineIOPacket packet) throws IOException
+                {
+                    getSession().onPacket(packet, XHRTransportConnection.this);
+                }
+            };
+
+            try
             {
-                // binary encoding
-                for (EngineIOPacket packet : EngineIOProtocol.binaryDecodePayload(request.getInputStream()))
-                    getSession().onPacket(packet, this);
+                String contentType = request.getContentType();
+                if (contentType != null && contentType.startsWith("text/"))
+                {
+                    // text encoding. engine.io payloads are UTF-8 unless the client says otherwise
+                    String encoding = request.getCharacterEncoding();
+                    Charset charset = encoding == null ? StandardCharsets.UTF_8 : Charset.forName(encoding);
+                    if (getSession().getProtocolVersion() >= EngineIOProtocol.VERSION_4)
+                        EngineIOProtocol.decodeRecordPayload(new InputStreamReader(body, charset), handler);
+                    else
+                        EngineIOProtocol.decodePayload(new InputStreamReader(body, charset), handler);
+                }
+                else
+                if (contentType != null && contentType.startsWith("application/octet-stream"))
+                {
+                    // binary encoding
+                    EngineIOProtocol.binaryDecodePayload(body, handler);
+                }
+                else
+                {
+                    throw new SocketIOProtocolException("Unsupported request content type for incoming polling request: " + contentType);
+                }
             }
-            else
+            catch (SocketIOProtocolException e)
             {
-                throw new SocketIOProtocolException("Unsupported request content type for incoming polling request: " + contentType);
+                if (!body.isExceeded())
+                    throw e;
+
+                // packets received before the limit was hit are already dispatched
+                rejectBody(request);
+                response.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+                return;
             }
             response.getWriter().print("ok");
         }
         else if ("GET".equals(request.getMethod())) //outgoing
         {
-            response.setContentType("application/octet-stream");
-            try
-            {
+            // EIO4 payload is text with binary data encoded as base64
+            if (getSession().getProtocolVersion() >= EngineIOProtocol.VERSION_4)
+                response.setContentType("text/plain; charset=UTF-8");
+            else
+                response.setContentType("application/octet-stream");
 
-                OutputStream os = response.getOutputStream();
-                for (EngineIOPacket packet = packets.poll(3, TimeUnit.MINUTES); packet != null; packet = packets.poll())
-                {
-                    if(done)
-                        break;
-                    EngineIOProtocol.binaryEncode(packet, os);
-                }
+            if (asyncPolling && request.isAsyncSupported() && packets.isEmpty())
+            {
+                startPolling(request);
+                return;
+            }
 
-                response.flushBuffer();
+            try
+            {
+                packets.await(pollingTimeout, TimeUnit.MILLISECONDS);
+                writePackets(response);
             }
             catch (InterruptedException e)
             {
@@ -119,12 +195,139 @@ public class XHRTransportConnection extends AbstractTransportConnection
         }
     }
 
+    private void rejectBody(HttpServletRequest request)
+    {
+        if (LOGGER.isLoggable(Level.WARNING))
+            LOGGER.warning("Polling request body exceeds " + maxBodySize + " bytes, session " +
+                    getSession().getSessionId() + " from " + request.getRemoteAddr());
+    }
+
+    /**
+     * Parks the polling request until there is something to send.
+     *
+     * @param request outgoing polling request
+     */
+    private void startPolling(HttpServletRequest request)
+    {
+        final AsyncContext context = request.startAsync();
+        context.setTimeout(pollingTimeout);
+        context.addListener(new AsyncListener()
+        {
+            @Override
+            public void onComplete(AsyncEvent event)
+            {
+                pendingPoll.compareAndSet(context, null);
+            }
+
+            @Override
+            public void onTimeout(AsyncEvent event)
+            {
+                // container thread. complete the poll right here, the client will send a new one
+                if (pendingPoll.compareAndSet(context, null))
+                    completePolling(context);
+            }
+
+            @Override
+            public void onError(AsyncEvent event)
+            {
+                pendingPoll.compareAndSet(context, null);
+            }
+
+            @Override
+            public void onStartAsync(AsyncEvent event)
+            {
+            }
+        });
+
+        // only one poll is expected at a time. release the previous one if client sent another
+        AsyncContext previous = pendingPoll.getAndSet(context);
+        if (previous != null)
+            previous.complete();
+
+        // packet could be sent after the queue was checked but before the request was parked
+        if (!packets.isEmpty())
+            resumePolling(context);
+    }
+
+    /**
+     * Completes parked polling request on a container thread so the thread calling send() does not
+     * block on network I/O.
+     */
+    private void resumePolling(final AsyncContext context)
+    {
+        if (!pendingPoll.compareAndSet(context, null))
+            return; // already resumed or timed out
+
+        context.start(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                completePolling(context);
+            }
+        });
+    }
+
+    private void completePolling(AsyncContext context)
+    {
+        try
+        {
+            writePackets((HttpServletResponse) context.getResponse());
+        }
+        catch (IOException e)
+        {
+            if (LOGGER.isLoggable(Level.FINE))
+                LOGGER.log(Level.FINE, "Cannot complete polling request", e);
+        }
+        finally
+        {
+            context.complete();
+        }
+    }
+
+    private void writePackets(HttpServletResponse response)
+            throws IOException
+    {
+        OutputStream os = response.getOutputStream();
+        boolean records = getSession().getProtocolVersion() >= EngineIOProtocol.VERSION_4;
+        boolean first = true;
+        for (EngineIOPacket packet = packets.poll(); packet != null; packet = packets.poll())
+        {
+            if(done)
+                break;
+
+            if (!records)
+                EngineIOProtocol.binaryEncode(packet, os);
+            else
+            {
+                if (!first)
+                    os.write(EngineIOProtocol.RECORD_SEPARATOR);
+                EngineIOProtocol.encodeRecord(packet, os);
+            }
+            first = false;
+        }
+
+        response.flushBuffer();
+    }
+
+    /**
+     * Polling connection has no endpoint to close and report the closure, so the session is shut down right away
+     */
+    @Override
+    protected void closeOnOverflow()
+    {
+        abort();
+        if (getSession().getConnection() == this)
+            getSession().onShutdown();
+    }
+
     @Override
     public void abort()
     {
         try
         {
             done = true;
+            packets.clear(); // nothing is sent once the connection is done
             send(EngineIOProtocol.createNoopPacket());
         }
         catch (SocketIOException e)
@@ -136,17 +339,108 @@ public class XHRTransportConnection extends AbstractTransportConnection
     @Override
     public void send(EngineIOPacket packet) throws SocketIOException
     {
-        packets.add(packet);
+        // only messages could be dropped, heartbeats and close packets always go through
+        if (!packets.offer(packet, packet.getDataSize(), packet.getType() != EngineIOPacket.Type.MESSAGE))
+            return; // dropped or connection is closed due to overflow
+
+        packetsAdded();
     }
 
+    /**
+     * Buffers the message and its binary attachments as a group, so they are never dropped partially
+     */
     @Override
-    public void send(SocketIOPacket packet) throws SocketIOException
+    public boolean send(EncodedPacket packet) throws SocketIOException
     {
-        send(EngineIOProtocol.createMessagePacket(packet.encode()));
-        if(packet instanceof BinaryPacket)
+        List<EngineIOPacket> group = new ArrayList<>();
+        if (packet.getMessage() != null)
+            group.add(packet.getMessage());
+        group.addAll(packet.createBinaryPackets());
+
+        int[] sizes = new int[group.size()];
+        for (int i = 0; i < sizes.length; i++)
+            sizes[i] = group.get(i).getDataSize();
+
+        if (!packets.offer(group, sizes))
+            return false; // dropped or connection is closed due to overflow
+
+        packetsAdded();
+        return true;
+    }
+
+    private void packetsAdded()
+    {
+        AsyncContext context = pendingPoll.get();
+        if (context != null)
+            resumePolling(context);
+    }
+
+    @Override
+    public boolean isWritable()
+    {
+        return packets.isWritable();
+    }
+
+    /**
+     * Fails as soon as more than {@code limit} bytes are read, so oversized bodies are never read to the end.
+     */
+    private static final class LimitedInputStream extends FilterInputStream
+    {
+        private final long limit;
+        private long    count;
+        private boolean exceeded;
+
+        LimitedInputStream(InputStream in, long limit)
+        {
+            super(in);
+            this.limit = limit;
+        }
+
+        boolean isExceeded()
+        {
+            return exceeded;
+        }
+
+        @Override
+        public int read() throws IOException
         {
-            for (InputStream is : ((BinaryPacket)packet).getAttachments())
-                send(EngineIOProtocol.createMessagePacket(is));
+            int b = super.read();
+            if (b != -1)
+                count(1);
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException
+        {
+            int n = super.read(b, off, len);
+            if (n > 0)
+                count(n);
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException
+        {
+            long skipped = super.skip(n);
+            count(skipped);
+            return skipped;
+        }
+
+        @Override
+        public boolean markSupported()
+        {
+            return false; // re-reading would be counted twice
+        }
+
+        private void count(long n) throws SocketIOProtocolException
+        {
+            count += n;
+            if (count > limit)
+            {
+                exceeded = true;
+                throw new SocketIOProtocolException("Request body is larger than " + limit + " bytes");
+            }
         }
     }
 }
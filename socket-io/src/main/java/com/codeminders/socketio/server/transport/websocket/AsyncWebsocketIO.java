@@ -0,0 +1,269 @@
+/**
+ * The MIT License
+ * Copyright (c) 2018 Alex Saveliev (lyolik@codeminders.com)
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.codeminders.socketio.server.transport.websocket;
+
+import com.codeminders.socketio.server.Config;
+import com.codeminders.socketio.server.transport.OutboundBuffer;
+import com.google.common.base.Utf8;
+
+import javax.websocket.RemoteEndpoint;
+import javax.websocket.SendHandler;
+import javax.websocket.SendResult;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Non-blocking websocket I/O.
+ * <p>
+ * Frames are queued per connection and written by {@code getAsyncRemote()} one at a time,
+ * so {@link #sendString(String)} and {@link #sendBinary(byte[])} return without waiting for the network
+ * and a slow client never blocks the sending thread. Frames queued while a write is in flight
+ * are batched and flushed together.
+ * <p>
+ * The queue is bounded by {@link OutboundBuffer} limits configured for the transport. Frames of a Socket.IO packet
+ * are queued as a group and control frames are never dropped.
+ * <p>
+ * Write errors and send timeouts close the websocket session.
+ */
+public class AsyncWebsocketIO extends WebsocketIO implements SendHandler
+{
+    private static final Logger LOGGER = Logger.getLogger(AsyncWebsocketIO.class.getName());
+
+    private final AtomicBoolean writing = new AtomicBoolean();
+    // thread inside sendText/sendBinary of the write in flight
+    private final AtomicReference<Thread> writer = new AtomicReference<>();
+
+    private volatile OutboundBuffer<Object> frames = new OutboundBuffer<>(); // String or ByteBuffer
+    private volatile boolean                closed;
+    private boolean                         batching;
+
+    public AsyncWebsocketIO(javax.websocket.Session remoteEndpoint)
+    {
+        super(remoteEndpoint);
+    }
+
+    @Override
+    public void init(Config config, OutboundBuffer.Listener listener)
+    {
+        frames = new OutboundBuffer<>(config, listener);
+
+        long timeout = config.getLong(Config.SEND_TIMEOUT, Config.DEFAULT_SEND_TIMEOUT);
+        if (timeout > 0)
+            remoteEndpoint.getAsyncRemote().setSendTimeout(timeout);
+    }
+
+    @Override
+    public void sendString(String data) throws IOException
+    {
+        enqueue(data);
+    }
+
+    @Override
+    public void sendBinary(byte[] data) throws IOException
+    {
+        enqueue(ByteBuffer.wrap(data));
+    }
+
+    @Override
+    public void sendControl(String data) throws IOException
+    {
+        checkOpen();
+        if (frames.offer(data, size(data), true))
+            flush();
+    }
+
+    @Override
+    public boolean sendPacket(String text, List<ByteBuffer> binary) throws IOException
+    {
+        checkOpen();
+        List<Object> group = new ArrayList<>(binary.size() + 1);
+        if (text != null)
+            group.add(text);
+        group.addAll(binary);
+
+        int[] sizes = new int[group.size()];
+        for (int i = 0; i < sizes.length; i++)
+            sizes[i] = size(group.get(i));
+
+        if (!frames.offer(group, sizes))
+            return false;
+
+        flush();
+        return true;
+    }
+
+    /**
+     * Asynchronous endpoint cannot send partial messages, so the parts are joined into a single frame
+     * unless there is only one.
+     */
+    @Override
+    public void sendBinary(ByteBuffer... data) throws IOException
+    {
+        if (data.length == 1)
+        {
+            enqueue(data[0]);
+            return;
+        }
+
+        int size = 0;
+        for (ByteBuffer part : data)
+            size += part.remaining();
+
+        ByteBuffer frame = ByteBuffer.allocate(size);
+        for (ByteBuffer part : data)
+            frame.put(part.duplicate());
+        frame.flip();
+        enqueue(frame);
+    }
+
+    @Override
+    public boolean isWritable()
+    {
+        return frames.isWritable();
+    }
+
+    @Override
+    public void disconnect() throws IOException
+    {
+        closed = true;
+        frames.clear();
+        super.disconnect();
+    }
+
+    private void enqueue(Object frame) throws IOException
+    {
+        checkOpen();
+        if (frames.offer(frame, size(frame)))
+            flush();
+    }
+
+    private void checkOpen() throws IOException
+    {
+        if (closed)
+            throw new IOException("Websocket is closed");
+    }
+
+    /**
+     * @return size of the frame on the wire, text is sent in UTF-8
+     */
+    private static int size(Object frame)
+    {
+        if (frame instanceof ByteBuffer)
+            return ((ByteBuffer) frame).remaining();
+
+        String text = (String) frame;
+        try
+        {
+            return Utf8.encodedLength(text);
+        }
+        catch (IllegalArgumentException e)
+        {
+            return text.length() * 3; // unpaired surrogate, the upper bound is good enough
+        }
+    }
+
+    /**
+     * Starts writing the next frame unless a write is already in flight.
+     * Completion handler may be called on the same thread before sendText/sendBinary returns.
+     * In this case the loop below picks up the next frame instead of recursing.
+     */
+    private void flush()
+    {
+        while (!closed && writing.compareAndSet(false, true))
+        {
+            Object frame = frames.poll();
+            if (frame == null)
+            {
+                writing.set(false);
+                if (frames.isEmpty())
+                    break;
+                continue; // frame was added after poll() but before writing flag was reset
+            }
+
+            write(frame);
+        }
+    }
+
+    private void write(Object frame)
+    {
+        RemoteEndpoint.Async remote = remoteEndpoint.getAsyncRemote();
+        Thread current = Thread.currentThread();
+        writer.set(current);
+        try
+        {
+            // batch while there are more frames to send. disabling batching flushes the batch
+            boolean more = !frames.isEmpty();
+            if (more != batching)
+            {
+                remote.setBatchingAllowed(more);
+                batching = more;
+            }
+
+            if (frame instanceof String)
+                remote.sendText((String) frame, this);
+            else
+                remote.sendBinary((ByteBuffer) frame, this);
+        }
+        catch (IOException | RuntimeException e)
+        {
+            onResult(new SendResult(e));
+        }
+        finally
+        {
+            // the next write may have been started by another thread already
+            writer.compareAndSet(current, null);
+        }
+    }
+
+    @Override
+    public void onResult(SendResult result)
+    {
+        if (!result.isOK())
+        {
+            if (LOGGER.isLoggable(Level.FINE))
+                LOGGER.log(Level.FINE, "Cannot send websocket frame", result.getException());
+
+            try
+            {
+                disconnect();
+            }
+            catch (IOException e)
+            {
+                // ignore
+            }
+        }
+
+        // completed within write(), the flush() loop up the stack goes on with the next frame
+        boolean synchronous = writer.compareAndSet(Thread.currentThread(), null);
+
+        writing.set(false);
+        if (!synchronous)
+            flush();
+    }
+}
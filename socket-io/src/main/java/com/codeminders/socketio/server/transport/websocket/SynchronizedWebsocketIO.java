@@ -23,10 +23,14 @@
 package com.codeminders.socketio.server.transport.websocket;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
 
 /**
  * @author Alex Saveliev (lyolik@codeminders.com)
+ * @deprecated blocks every sender while the slowest write is in progress. Use {@link AsyncWebsocketIO}
  */
+@Deprecated
 public class SynchronizedWebsocketIO extends WebsocketIO {
 
     public SynchronizedWebsocketIO(javax.websocket.Session remoteEndpoint) {
@@ -41,6 +45,14 @@ public class SynchronizedWebsocketIO extends WebsocketIO {
         super.sendBinary(data);
     }
 
+    public synchronized void sendBinary(ByteBuffer... data) throws IOException {
+        super.sendBinary(data);
+    }
+
+    public synchronized boolean sendPacket(String text, List<ByteBuffer> binary) throws IOException {
+        return super.sendPacket(text, binary);
+    }
+
     public void disconnect() throws IOException {
         remoteEndpoint.close();
     }
@@ -22,8 +22,13 @@
  */
 package com.codeminders.socketio.server.transport.websocket;
 
+import com.codeminders.socketio.server.Config;
+import com.codeminders.socketio.server.transport.OutboundBuffer;
+
+import javax.websocket.RemoteEndpoint;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.List;
 
 /**
  * @author Alex Saveliev (lyolik@codeminders.com)
@@ -36,16 +41,68 @@ public class WebsocketIO {
         this.remoteEndpoint = remoteEndpoint;
     }
 
+    /**
+     * Called once the transport configuration is known
+     *
+     * @param config transport configuration
+     * @param listener listener to be notified about outbound buffer overflow and drain
+     */
+    public void init(Config config, OutboundBuffer.Listener listener) {
+    }
+
+    /**
+     * @return false if outbound buffer is filling up
+     */
+    public boolean isWritable() {
+        return true;
+    }
+
     public void sendString(String data) throws IOException {
         remoteEndpoint.getBasicRemote().sendText(data);
     }
 
-    //TODO: implement streaming. right now it is all in memory.
-    //TODO: read and send in chunks using sendPartialBytes()
     public void sendBinary(byte[] data) throws IOException {
         remoteEndpoint.getBasicRemote().sendBinary(ByteBuffer.wrap(data));
     }
 
+    /**
+     * Sends the buffers as a single binary message without joining them. Every buffer is sent as a partial message.
+     *
+     * @param data parts of the message
+     * @throws IOException if the message cannot be sent
+     */
+    public void sendBinary(ByteBuffer... data) throws IOException {
+        RemoteEndpoint.Basic remote = remoteEndpoint.getBasicRemote();
+        for (int i = 0; i < data.length; i++)
+            remote.sendBinary(data[i], i == data.length - 1);
+    }
+
+    /**
+     * Sends a packet controlling the connection, like PONG or CLOSE
+     *
+     * @param data encoded packet
+     * @throws IOException if the packet cannot be sent
+     */
+    public void sendControl(String data) throws IOException {
+        sendString(data);
+    }
+
+    /**
+     * Sends a Socket.IO packet: the text frame followed by the binary attachments
+     *
+     * @param text text frame, could be null
+     * @param binary binary frames
+     * @return false if the packet is dropped because the outbound buffer is full
+     * @throws IOException if the packet cannot be sent
+     */
+    public boolean sendPacket(String text, List<ByteBuffer> binary) throws IOException {
+        if (text != null)
+            sendString(text);
+        for (ByteBuffer data : binary)
+            sendBinary(data);
+        return true;
+    }
+
     public void disconnect() throws IOException {
         remoteEndpoint.close();
     }
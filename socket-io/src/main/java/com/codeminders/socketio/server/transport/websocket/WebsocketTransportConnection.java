@@ -25,10 +25,9 @@ package com.codeminders.socketio.server.transport.websocket;
 import com.codeminders.socketio.common.ConnectionState;
 import com.codeminders.socketio.common.DisconnectReason;
 import com.codeminders.socketio.common.SocketIOException;
-import com.codeminders.socketio.protocol.BinaryPacket;
+import com.codeminders.socketio.protocol.EncodedPacket;
 import com.codeminders.socketio.protocol.EngineIOPacket;
 import com.codeminders.socketio.protocol.EngineIOProtocol;
-import com.codeminders.socketio.protocol.SocketIOPacket;
 import com.codeminders.socketio.server.*;
 import com.codeminders.socketio.server.transport.AbstractTransportConnection;
 import com.google.common.io.ByteStreams;
@@ -40,10 +39,10 @@ import javax.websocket.*;
 import javax.websocket.Session;
 import javax.websocket.server.HandshakeRequest;
 import javax.websocket.server.ServerEndpoint;
-import java.io.ByteArrayOutputStream;
+
 import java.io.IOException;
-import java.io.InputStream;
-import java.util.Collection;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -57,7 +56,7 @@ public final class WebsocketTransportConnection extends AbstractTransportConnect
 {
     private static final Logger LOGGER = Logger.getLogger(WebsocketTransportConnection.class.getName());
 
-    private static Class<? extends WebsocketIO> websocketIOClass = WebsocketIO.class;
+    private static Class<? extends WebsocketIO> websocketIOClass = AsyncWebsocketIO.class;
 
     private WebsocketIO websocketIO;
 
@@ -71,6 +70,7 @@ public final class WebsocketTransportConnection extends AbstractTransportConnect
     }
 
     /**
+     * Sets the class responsible for websocket I/O. Default is {@link AsyncWebsocketIO}.
      *
      * @param clazz class responsible for I/O operations
      */
@@ -81,7 +81,13 @@ public final class WebsocketTransportConnection extends AbstractTransportConnect
     @Override
     protected void init()
     {
-        getSession().setTimeout(getConfig().getTimeout(Config.DEFAULT_PING_TIMEOUT));
+        long timeout = getConfig().getTimeout(Config.DEFAULT_PING_TIMEOUT);
+
+        // EIO4 clients do not ping, they only answer PING sent by the server every pingInterval
+        if (getSession().getProtocolVersion() >= EngineIOProtocol.VERSION_4)
+            timeout += getConfig().getPingInterval(Config.DEFAULT_PING_INTERVAL);
+
+        getSession().setTimeout(timeout);
 
         if (LOGGER.isLoggable(Level.FINE))
             LOGGER.fine(getConfig().getNamespace() + " WebSocket configuration:" +
@@ -96,6 +102,7 @@ public final class WebsocketTransportConnection extends AbstractTransportConnect
         init(new ServletBasedConfig(
                 ServletConfigHolder.getInstance().getConfig(),
                 getTransport().getType().toString()));
+        websocketIO.init(getConfig(), getOutboundListener());
         session.setMaxBinaryMessageBufferSize(getConfig().getBufferSize());
         session.setMaxIdleTimeout(getConfig().getMaxIdle());
         session.setMaxTextMessageBufferSize(getConfig().getInt(Config.MAX_TEXT_MESSAGE_SIZE, 32000));
@@ -104,10 +111,18 @@ public final class WebsocketTransportConnection extends AbstractTransportConnect
         {
             try
             {
-                send(EngineIOProtocol.createHandshakePacket(getSession().getSessionId(),
-                        new String[]{},
-                        getConfig().getPingInterval(Config.DEFAULT_PING_INTERVAL),
-                        getConfig().getTimeout(Config.DEFAULT_PING_TIMEOUT)));
+                long pingInterval = getConfig().getPingInterval(Config.DEFAULT_PING_INTERVAL);
+                long pingTimeout  = getConfig().getTimeout(Config.DEFAULT_PING_TIMEOUT);
+
+                if (getSession().getProtocolVersion() >= EngineIOProtocol.VERSION_4)
+                {
+                    send(EngineIOProtocol.createHandshakePacket(getSession().getSessionId(), new String[]{},
+                            pingInterval, pingTimeout, getConfig().getInt(Config.MAX_TEXT_MESSAGE_SIZE, 32000)));
+                    getSession().startHeartbeat(pingInterval, pingTimeout);
+                }
+                else
+                    send(EngineIOProtocol.createHandshakePacket(getSession().getSessionId(), new String[]{},
+                            pingInterval, pingTimeout));
 
                 getSession().onConnect(this);
             }
@@ -145,8 +160,6 @@ public final class WebsocketTransportConnection extends AbstractTransportConnect
         if (LOGGER.isLoggable(Level.FINE))
             LOGGER.fine("Session[" + getSession().getSessionId() + "]: text received: " + text);
 
-        getSession().resetTimeout();
-
         try
         {
             getSession().onPacket(EngineIOProtocol.decode(text), this);
@@ -159,16 +172,18 @@ public final class WebsocketTransportConnection extends AbstractTransportConnect
     }
 
     @OnMessage
-    public void onMessage(InputStream is)
+    public void onMessage(byte[] data)
     {
         if (LOGGER.isLoggable(Level.FINE))
             LOGGER.fine("Session[" + getSession().getSessionId() + "]: binary received");
 
-        getSession().resetTimeout();
-
         try
         {
-            getSession().onPacket(EngineIOProtocol.decode(is), this);
+            // EIO4 binary frame is the data of MESSAGE packet, EIO3 one starts with the packet type
+            if (getSession().getProtocolVersion() >= EngineIOProtocol.VERSION_4)
+                getSession().onPacket(EngineIOProtocol.createMessagePacket(data), this);
+            else
+                getSession().onPacket(EngineIOProtocol.decode(data), this);
         }
         catch (SocketIOProtocolException e)
         {
@@ -200,34 +215,95 @@ public final class WebsocketTransportConnection extends AbstractTransportConnect
         }
     }
 
+    @Override
+    public boolean isWritable()
+    {
+        WebsocketIO io = websocketIO;
+        return io != null && io.isWritable();
+    }
+
     @Override
     public void send(EngineIOPacket packet) throws SocketIOException
     {
-        sendString(EngineIOProtocol.encode(packet));
+        ByteBuffer data = packet.getBinaryBuffer();
+        if (data == null && packet.getBinaryData() != null)
+            data = ByteBuffer.wrap(readBinaryData(packet));
+
+        if (data == null)
+        {
+            if (packet.getType() == EngineIOPacket.Type.MESSAGE)
+                sendString(EngineIOProtocol.encode(packet));
+            else
+                sendControl(EngineIOProtocol.encode(packet));
+            return;
+        }
+
+        if (getSession().getProtocolVersion() >= EngineIOProtocol.VERSION_4)
+        {
+            sendBinary(data); // only MESSAGE packets are binary, the type is implied
+            return;
+        }
+
+        // packet type goes first, the data is not copied to prepend it
+        sendBinary(ByteBuffer.wrap(new byte[]{(byte) packet.getType().value()}), data);
+    }
+
+    private static byte[] readBinaryData(EngineIOPacket packet) throws SocketIOException
+    {
+        try
+        {
+            long length = packet.getBinaryLength();
+            if (length < 0)
+                return ByteStreams.toByteArray(packet.getBinaryData());
+
+            byte[] data = new byte[(int) length];
+            ByteStreams.readFully(packet.getBinaryData(), data);
+            return data;
+        }
+        catch (IOException e)
+        {
+            throw new SocketIOException("Cannot read binary data", e);
+        }
     }
 
     @Override
-    public void send(SocketIOPacket packet) throws SocketIOException
+    public boolean send(EncodedPacket packet) throws SocketIOException
+    {
+        List<byte[]> frames = getSession().getProtocolVersion() >= EngineIOProtocol.VERSION_4 ?
+                packet.getBinaryMessages() : packet.getEncodedBinaryMessages();
+
+        List<ByteBuffer> binary = new ArrayList<>(frames.size());
+        for (byte[] frame : frames)
+            binary.add(ByteBuffer.wrap(frame));
+
+        if (LOGGER.isLoggable(Level.FINE))
+            LOGGER.log(Level.FINE, "Session[" + getSession().getSessionId() + "]: send packet: " +
+                    packet.getEncodedMessage() + " with " + binary.size() + " attachments");
+
+        try
+        {
+            return websocketIO.sendPacket(packet.getEncodedMessage(), binary);
+        }
+        catch (IOException e)
+        {
+            disconnectEndpoint();
+            throw new SocketIOException(e);
+        }
+    }
+
+    private void sendControl(String data) throws SocketIOException
     {
-        send(EngineIOProtocol.createMessagePacket(packet.encode()));
-        if(packet instanceof BinaryPacket)
+        if (LOGGER.isLoggable(Level.FINE))
+            LOGGER.log(Level.FINE, "Session[" + getSession().getSessionId() + "]: send control: " + data);
+
+        try
         {
-            Collection<InputStream> attachments = ((BinaryPacket) packet).getAttachments();
-            for (InputStream is : attachments)
-            {
-                ByteArrayOutputStream os = new ByteArrayOutputStream();
-                try
-                {
-                    os.write(EngineIOPacket.Type.MESSAGE.value());
-                    ByteStreams.copy(is, os);
-                }
-                catch (IOException e)
-                {
-                    if(LOGGER.isLoggable(Level.WARNING))
-                        LOGGER.log(Level.SEVERE, "Cannot load binary object to send it to the socket", e);
-                }
-                sendBinary(os.toByteArray());
-            }
+            websocketIO.sendControl(data);
+        }
+        catch (IOException e)
+        {
+            disconnectEndpoint();
+            throw new SocketIOException(e);
         }
     }
 
@@ -247,9 +323,10 @@ public final class WebsocketTransportConnection extends AbstractTransportConnect
         }
     }
 
-    //TODO: implement streaming. right now it is all in memory.
-    //TODO: read and send in chunks using sendPartialBytes()
-    protected void sendBinary(byte[] data) throws SocketIOException
+    /**
+     * Sends the buffers as a single binary message.
+     */
+    protected void sendBinary(ByteBuffer... data) throws SocketIOException
     {
         if (LOGGER.isLoggable(Level.FINE))
             LOGGER.log(Level.FINE, "Session[" + getSession().getSessionId() + "]: send binary");
@@ -294,16 +371,17 @@ public final class WebsocketTransportConnection extends AbstractTransportConnect
 
     /**
      * @param session websocket session
-     * @return session id extracted from handshake request's parameter
+     * @param name parameter name
+     * @return value of the handshake request's parameter, null if there is none
      */
-    private String getSessionId(javax.websocket.Session session)
+    private String getParameter(javax.websocket.Session session, String name)
     {
         HandshakeRequest handshake = (HandshakeRequest)
                 session.getUserProperties().get(HandshakeRequest.class.getName());
         if (handshake == null) {
             return null;
         }
-        List<String> values = handshake.getParameterMap().get(EngineIOProtocol.SESSION_ID);
+        List<String> values = handshake.getParameterMap().get(name);
         if (values == null || values.isEmpty()) {
             return null;
         }
@@ -332,14 +410,16 @@ public final class WebsocketTransportConnection extends AbstractTransportConnect
      */
     private void setupSession(javax.websocket.Session session) throws Exception
     {
-        String sessionId = getSessionId(session);
+        String sessionId = getParameter(session, EngineIOProtocol.SESSION_ID);
         com.codeminders.socketio.server.Session sess = null;
         if (sessionId != null) {
             sess = SocketIOManager.getInstance().getSession(sessionId);
         }
         if (sess == null) {
+            int version = EngineIOProtocol.parseVersion(getParameter(session, EngineIOProtocol.VERSION));
             HttpSession httpSession = getHttpSession(session);
             sess = SocketIOManager.getInstance().createSession(httpSession);
+            sess.setProtocolVersion(version);
         }
         setSession(sess);
     }
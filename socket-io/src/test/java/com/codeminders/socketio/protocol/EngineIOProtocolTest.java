@@ -1,12 +1,22 @@
 package com.codeminders.socketio.protocol;
 
 import com.codeminders.socketio.server.SocketIOProtocolException;
+import com.google.common.io.ByteStreams;
 import org.junit.Test;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.fail;
 
 public class EngineIOProtocolTest {
     @Test
@@ -35,4 +45,260 @@ public class EngineIOProtocolTest {
         List<EngineIOPacket> result = EngineIOProtocol.decodePayload(payload);
         assertThat(result).isEqualTo(expected);
     }
+
+    @Test
+    public void decodeEmptyPackets()
+            throws SocketIOProtocolException
+    {
+        String payload = "1:21:61:5";
+        List<EngineIOPacket> expected = new ArrayList<>();
+        expected.add(new EngineIOPacket(EngineIOPacket.Type.PING, ""));
+        expected.add(new EngineIOPacket(EngineIOPacket.Type.NOOP, ""));
+        expected.add(new EngineIOPacket(EngineIOPacket.Type.UPGRADE, ""));
+
+        List<EngineIOPacket> result = EngineIOProtocol.decodePayload(payload);
+        assertThat(result).isEqualTo(expected);
+    }
+
+    @Test
+    public void rejectInvalidPayload()
+    {
+        for (String payload : new String[] {"10:40/stream", ":4", "0:", "4x:42", "24"})
+        {
+            try
+            {
+                EngineIOProtocol.decodePayload(payload);
+                fail("Decoder accepted " + payload);
+            }
+            catch (SocketIOProtocolException e)
+            {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void decodeStreamingPayload()
+            throws IOException
+    {
+        // packets before the broken one are delivered already
+        String payload = "10:40/stream,1:227:42/stream,[\"SET_STREAM_ID\"]4x:42";
+        final List<EngineIOPacket> result = new ArrayList<>();
+        try
+        {
+            EngineIOProtocol.decodePayload(new StringReader(payload), new EngineIOProtocol.PacketHandler()
+            {
+                @Override
+                public void onPacket(EngineIOPacket packet)
+                {
+                    result.add(packet);
+                }
+            });
+            fail("Decoder accepted " + payload);
+        }
+        catch (SocketIOProtocolException e)
+        {
+            // expected
+        }
+
+        assertThat(result).containsExactly(
+                new EngineIOPacket(EngineIOPacket.Type.MESSAGE, "0/stream,"),
+                new EngineIOPacket(EngineIOPacket.Type.PING, ""),
+                new EngineIOPacket(EngineIOPacket.Type.MESSAGE, "2/stream,[\"SET_STREAM_ID\"]"));
+    }
+
+    @Test
+    public void rejectInvalidStreamingPayload()
+            throws IOException
+    {
+        EngineIOProtocol.PacketHandler ignore = new EngineIOProtocol.PacketHandler()
+        {
+            @Override
+            public void onPacket(EngineIOPacket packet)
+            {
+            }
+        };
+
+        for (String payload : new String[] {"10:40/stream", ":4", "0:", "4x:42", "24", "2147483648:4"})
+        {
+            try
+            {
+                EngineIOProtocol.decodePayload(new StringReader(payload), ignore);
+                fail("Decoder accepted " + payload);
+            }
+            catch (SocketIOProtocolException e)
+            {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void binaryPayloadRoundTrip()
+            throws IOException
+    {
+        String text = "2[\"\u00e9v\u00e9nement\",\"\u4e2d\u6587\"]";
+        byte[] binary = {0, 1, 2, (byte)255, 10};
+
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        EngineIOProtocol.binaryEncode(EngineIOProtocol.createMessagePacket(text), os);
+        EngineIOProtocol.binaryEncode(EngineIOProtocol.createPingPacket("probe"), os);
+        EngineIOProtocol.binaryEncode(EngineIOProtocol.createMessagePacket(new ByteArrayInputStream(binary)), os);
+        EngineIOProtocol.binaryEncode(EngineIOProtocol.createNoopPacket(), os);
+
+        List<EngineIOPacket> result = EngineIOProtocol.binaryDecodePayload(new ByteArrayInputStream(os.toByteArray()));
+
+        assertThat(result).hasSize(4);
+        assertThat(result.get(0)).isEqualTo(new EngineIOPacket(EngineIOPacket.Type.MESSAGE, text));
+        assertThat(result.get(1)).isEqualTo(new EngineIOPacket(EngineIOPacket.Type.PING, "probe"));
+        assertThat(result.get(2).getType()).isEqualTo(EngineIOPacket.Type.MESSAGE);
+        assertThat(ByteStreams.toByteArray(result.get(2).getBinaryData())).isEqualTo(binary);
+        assertThat(result.get(3)).isEqualTo(new EngineIOPacket(EngineIOPacket.Type.NOOP, ""));
+    }
+
+    @Test
+    public void recordPayloadRoundTrip()
+            throws IOException
+    {
+        String text = "2[\"event\",\"\u00e9\"]";
+        byte[] binary = {0, 1, 2, (byte)255, 10};
+
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        EngineIOProtocol.encodeRecord(EngineIOProtocol.createMessagePacket(text), os);
+        os.write(EngineIOProtocol.RECORD_SEPARATOR);
+        EngineIOProtocol.encodeRecord(EngineIOProtocol.createPingPacket(""), os);
+        os.write(EngineIOProtocol.RECORD_SEPARATOR);
+        EngineIOProtocol.encodeRecord(EngineIOProtocol.createMessagePacket(binary), os);
+
+        String payload = new String(os.toByteArray(), StandardCharsets.UTF_8);
+        assertThat(payload).isEqualTo("4" + text + "\u001e2\u001ebAAEC/wo=");
+
+        final List<EngineIOPacket> result = new ArrayList<>();
+        EngineIOProtocol.decodeRecordPayload(new StringReader(payload), new EngineIOProtocol.PacketHandler()
+        {
+            @Override
+            public void onPacket(EngineIOPacket packet)
+            {
+                result.add(packet);
+            }
+        });
+
+        assertThat(result).hasSize(3);
+        assertThat(result.get(0)).isEqualTo(new EngineIOPacket(EngineIOPacket.Type.MESSAGE, text));
+        assertThat(result.get(1)).isEqualTo(new EngineIOPacket(EngineIOPacket.Type.PING, ""));
+        assertThat(result.get(2).getType()).isEqualTo(EngineIOPacket.Type.MESSAGE);
+        assertThat(ByteStreams.toByteArray(result.get(2).getBinaryData())).isEqualTo(binary);
+    }
+
+    @Test
+    public void parseProtocolVersion()
+            throws SocketIOProtocolException
+    {
+        assertThat(EngineIOProtocol.parseVersion(null)).isEqualTo(EngineIOProtocol.VERSION_3);
+        assertThat(EngineIOProtocol.parseVersion("3")).isEqualTo(EngineIOProtocol.VERSION_3);
+        assertThat(EngineIOProtocol.parseVersion("4")).isEqualTo(EngineIOProtocol.VERSION_4);
+        try
+        {
+            EngineIOProtocol.parseVersion("2");
+            fail("Version 2 accepted");
+        }
+        catch (SocketIOProtocolException e)
+        {
+            // expected
+        }
+    }
+
+    @Test
+    public void binarySourcesEncodeAlike()
+            throws IOException
+    {
+        byte[] binary = {9, 8, 7, 6, 5};
+        ByteBuffer direct = ByteBuffer.allocateDirect(binary.length);
+        direct.put(binary).flip();
+
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        EngineIOProtocol.binaryEncode(EngineIOProtocol.createMessagePacket(new ByteArrayInputStream(binary)), expected);
+
+        EngineIOPacket[] packets = {
+                EngineIOProtocol.createMessagePacket(binary),
+                EngineIOProtocol.createMessagePacket(ByteBuffer.wrap(new byte[]{0, 9, 8, 7, 6, 5, 0}, 1, 5)),
+                EngineIOProtocol.createMessagePacket(direct),
+                // not a ByteArrayInputStream, so the length cannot be found out without reading the stream
+                EngineIOProtocol.createMessagePacket(new BufferedInputStream(new ByteArrayInputStream(binary)), 5),
+                EngineIOProtocol.createMessagePacket(new BufferedInputStream(new ByteArrayInputStream(binary)))
+        };
+
+        for (EngineIOPacket packet : packets)
+        {
+            ByteArrayOutputStream os = new ByteArrayOutputStream();
+            EngineIOProtocol.binaryEncode(packet, os);
+            assertThat(os.toByteArray()).as(packet.toString()).isEqualTo(expected.toByteArray());
+        }
+
+        // buffers are not consumed by encoding
+        assertThat(direct.remaining()).isEqualTo(5);
+        assertThat(ByteStreams.toByteArray(packets[2].getBinaryData())).isEqualTo(binary);
+        assertThat(packets[1].getDataSize()).isEqualTo(5);
+    }
+
+    @Test(expected = EOFException.class)
+    public void rejectShortBinaryStream()
+            throws IOException
+    {
+        EngineIOProtocol.binaryEncode(
+                EngineIOProtocol.createMessagePacket(new BufferedInputStream(new ByteArrayInputStream(new byte[3])), 5),
+                new ByteArrayOutputStream());
+    }
+
+    @Test
+    public void decodeBinaryMessage()
+            throws SocketIOProtocolException
+    {
+        EngineIOPacket packet = EngineIOProtocol.decode(new byte[]{4, 1, 2, 3});
+
+        assertThat(packet.getType()).isEqualTo(EngineIOPacket.Type.MESSAGE);
+        assertThat(packet.getBinaryBuffer()).isEqualTo(ByteBuffer.wrap(new byte[]{1, 2, 3}));
+    }
+
+    @Test
+    public void rejectOverflowingBinaryPacketLength()
+            throws IOException
+    {
+        byte[] payload = {0, 9, 9, 9, 9, 9, 9, 9, 9, 9, 9, 9, (byte) 0xFF, '4'};
+        try
+        {
+            EngineIOProtocol.binaryDecodePayload(new ByteArrayInputStream(payload));
+            fail("Packet length over Integer.MAX_VALUE is expected to be rejected");
+        }
+        catch (SocketIOProtocolException e)
+        {
+            assertThat(e.getMessage()).contains("Invalid packet length");
+        }
+    }
+
+    @Test(expected = EOFException.class)
+    public void rejectTextPacketShorterThanDeclared()
+            throws IOException
+    {
+        // declares a gigabyte, nothing that large should be allocated up front
+        byte[] payload = {0, 1, 0, 0, 0, 0, 0, 0, 0, 0, 0, (byte) 0xFF, '4', 'a', 'b', 'c'};
+        EngineIOProtocol.binaryDecodePayload(new ByteArrayInputStream(payload));
+    }
+
+    @Test
+    public void decodeLargeTextPacket()
+            throws IOException
+    {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 100 * 1024; i++)
+            text.append((char) ('a' + i % 26));
+        text.append('\u00e9');
+
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        EngineIOProtocol.binaryEncode(new EngineIOPacket(EngineIOPacket.Type.MESSAGE, text.toString()), os);
+        List<EngineIOPacket> result = EngineIOProtocol.binaryDecodePayload(new ByteArrayInputStream(os.toByteArray()));
+
+        assertThat(result).hasSize(1);
+        assertThat(result.get(0).getTextData()).isEqualTo(text.toString());
+    }
 }
@@ -0,0 +1,191 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Alexander Sova (bird@codeminders.com)
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.codeminders.socketio.protocol;
+
+import com.codeminders.socketio.server.SocketIOProtocolException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.IOException;
+import java.text.DecimalFormat;
+import java.text.ParsePosition;
+import java.util.List;
+
+/**
+ * The original {@link SocketIOProtocol#decode(String)} implementation based on {@link DecimalFormat}
+ * and substrings. Kept as a reference for the differential tests.
+ */
+final class LegacySocketIODecoder
+{
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    private LegacySocketIODecoder()
+    {
+    }
+
+    static SocketIOPacket decode(String data)
+            throws SocketIOProtocolException
+    {
+        if (data.length() < 1)
+            throw new SocketIOProtocolException("Empty SIO packet");
+
+        try
+        {
+            ParsePosition pos = new ParsePosition(0);
+            SocketIOPacket.Type type = decodePacketType(data, pos);
+
+            int attachments = 0;
+            if (type == SocketIOPacket.Type.BINARY_ACK || type == SocketIOPacket.Type.BINARY_EVENT)
+                attachments = decodeAttachments(data, pos);
+
+            String ns = decodeNamespace(data, pos);
+            int packet_id = decodePacketId(data, pos);
+            Object json = decodeArgs(data, pos);
+
+            List args = null;
+            String eventName = "";
+            if (type == SocketIOPacket.Type.EVENT ||
+                type == SocketIOPacket.Type.BINARY_EVENT ||
+                type == SocketIOPacket.Type.ACK ||
+                type == SocketIOPacket.Type.BINARY_ACK)
+            {
+                if (!(json instanceof List))
+                    throw new SocketIOProtocolException("Array payload is expected");
+
+                args = (List)json;
+
+                if (type == SocketIOPacket.Type.EVENT || type == SocketIOPacket.Type.BINARY_EVENT)
+                {
+                    if (args.size() == 0)
+                        throw new SocketIOProtocolException("Missing event name");
+                    eventName = args.get(0).toString();
+                    args.remove(0);
+                }
+            }
+
+            switch (type)
+            {
+                case CONNECT:
+                    return SocketIOProtocol.createConnectPacket(ns);
+
+                case DISCONNECT:
+                    return SocketIOProtocol.createDisconnectPacket(ns);
+
+                case EVENT:
+                    return SocketIOProtocol.createEventPacket(packet_id, ns, eventName, args.toArray());
+
+                case ACK:
+                    return SocketIOProtocol.createACKPacket(packet_id, ns, args.toArray());
+
+                case ERROR:
+                    return SocketIOProtocol.createErrorPacket(ns, json);
+
+                case BINARY_EVENT:
+                    return new BinaryEventPacket(packet_id, ns, eventName, args.toArray(), attachments);
+
+                case BINARY_ACK:
+                    return new BinaryACKPacket(packet_id, ns, args.toArray(), attachments);
+
+                default:
+                    throw new SocketIOProtocolException("Unsupported packet type " + type);
+            }
+        }
+        catch (NumberFormatException | SocketIOProtocolException e)
+        {
+            throw new SocketIOProtocolException("Invalid SIO packet: " + data, e);
+        }
+    }
+
+    private static Object fromJSON(String s)
+            throws SocketIOProtocolException
+    {
+        try
+        {
+            if(s == null || s.isEmpty())
+                return null;
+
+            return mapper.readValue(s, Object.class);
+        }
+        catch (IOException e)
+        {
+            throw new SocketIOProtocolException("Cannot parse JSON", e);
+        }
+    }
+
+    private static String decodeNamespace(String data, ParsePosition pos)
+    {
+        String ns = SocketIOProtocol.DEFAULT_NAMESPACE;
+        if (data.startsWith("/", pos.getIndex()))
+        {
+            int idx = data.indexOf(",", pos.getIndex());
+            if (idx < 0)
+            {
+                ns = data.substring(pos.getIndex());
+                pos.setIndex(data.length());
+            }
+            else
+            {
+                ns = data.substring(pos.getIndex(), idx);
+                pos.setIndex(idx + 1);
+            }
+        }
+        return ns;
+    }
+
+    private static int decodeAttachments(String data, ParsePosition pos)
+            throws SocketIOProtocolException
+    {
+        Number n = new DecimalFormat("#").parse(data, pos);
+        if (n == null || n.intValue() == 0)
+            throw new SocketIOProtocolException("No attachments defined in BINARY packet: " + data);
+
+        pos.setIndex(pos.getIndex() + 1); //skipping '-' delimiter
+
+        return n.intValue();
+    }
+
+    private static int decodePacketId(String data, ParsePosition pos)
+    {
+        Number id = new DecimalFormat("#").parse(data, pos);
+        if (id == null)
+            return -1;
+
+        return id.intValue();
+    }
+
+    private static SocketIOPacket.Type decodePacketType(String data, ParsePosition pos)
+            throws SocketIOProtocolException
+    {
+        int idx = pos.getIndex();
+        SocketIOPacket.Type type = SocketIOPacket.Type.fromInt(Integer.parseInt(data.substring(idx, idx + 1)));
+        pos.setIndex(idx + 1);
+        return type;
+    }
+
+    private static Object decodeArgs(String data, ParsePosition pos)
+            throws SocketIOProtocolException
+    {
+        Object json = fromJSON(data.substring(pos.getIndex()));
+        pos.setIndex(data.length());
+        return json;
+    }
+}
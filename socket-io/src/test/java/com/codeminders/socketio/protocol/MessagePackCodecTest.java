@@ -0,0 +1,151 @@
+package com.codeminders.socketio.protocol;
+
+import com.codeminders.socketio.server.SocketIOProtocolException;
+import com.google.common.io.ByteStreams;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.fail;
+
+public class MessagePackCodecTest
+{
+    // {"type":2,"data":["a"],"nsp":"/"} as encoded by notepack.io
+    private static final byte[] EVENT_BYTES = {
+            (byte) 0x83,
+            (byte) 0xa4, 't', 'y', 'p', 'e', 0x02,
+            (byte) 0xa4, 'd', 'a', 't', 'a', (byte) 0x91, (byte) 0xa1, 'a',
+            (byte) 0xa3, 'n', 's', 'p', (byte) 0xa1, '/'
+    };
+
+    @Test
+    public void encodeKnownBytes() throws SocketIOProtocolException
+    {
+        EncodedPacket encoded = MessagePackCodec.INSTANCE.encode(
+                SocketIOProtocol.createEventPacket(-1, "/", "a", new Object[0]));
+
+        assertThat(encoded.getMessage()).isNull();
+        assertThat(encoded.getBinaryMessageCount()).isEqualTo(1);
+        assertThat(frame(encoded)).isEqualTo(EVENT_BYTES);
+    }
+
+    @Test
+    public void eventRoundTrip() throws IOException
+    {
+        Map<String, Object> move = new LinkedHashMap<>();
+        move.put("x", 3);
+        move.put("big", 1L << 40);
+        move.put("ratio", 0.25);
+        move.put("text", "\u00e9v\u00e9nement \u4e2d\u6587");
+        move.put("list", Arrays.asList(true, false, null));
+
+        EventPacket packet = (EventPacket) roundTrip(
+                SocketIOProtocol.createEventPacket(12, "/chat", "move", new Object[]{move, "second"}));
+
+        assertThat(packet.getType()).isEqualTo(SocketIOPacket.Type.EVENT);
+        assertThat(packet.getId()).isEqualTo(12);
+        assertThat(packet.getNamespace()).isEqualTo("/chat");
+        assertThat(packet.getName()).isEqualTo("move");
+        assertThat(packet.getArgs()).containsExactly(move, "second");
+    }
+
+    @Test
+    public void binaryIsEmbedded() throws IOException
+    {
+        byte[] data = {0, 1, 2, (byte) 255};
+        EncodedPacket encoded = MessagePackCodec.INSTANCE.encode(
+                SocketIOProtocol.createEventPacket(-1, "/", "file", new Object[]{new ByteArrayInputStream(data)}));
+
+        // no attachments, the whole packet is a single binary message
+        assertThat(encoded.getBinaryMessageCount()).isEqualTo(1);
+
+        EventPacket packet = (EventPacket) decode(encoded);
+        assertThat(packet.getType()).isEqualTo(SocketIOPacket.Type.EVENT);
+        assertThat(packet.getArgs()).hasSize(1);
+        assertThat(ByteStreams.toByteArray((InputStream) packet.getArgs()[0])).isEqualTo(data);
+    }
+
+    @Test
+    public void ackRoundTrip() throws IOException
+    {
+        Date now = new Date();
+        ACKPacket packet = (ACKPacket) roundTrip(
+                SocketIOProtocol.createACKPacket(7, "/", new Object[]{"ok", now, -5}));
+
+        assertThat(packet.getType()).isEqualTo(SocketIOPacket.Type.ACK);
+        assertThat(packet.getId()).isEqualTo(7);
+        assertThat(packet.getArgs()).containsExactly("ok", now, -5);
+    }
+
+    @Test
+    public void controlPacketsRoundTrip() throws IOException
+    {
+        SocketIOPacket connect = roundTrip(SocketIOProtocol.createConnectPacket("/admin"));
+        assertThat(connect.getType()).isEqualTo(SocketIOPacket.Type.CONNECT);
+        assertThat(connect.getNamespace()).isEqualTo("/admin");
+
+        ConnectPacket auth = (ConnectPacket) roundTrip(
+                SocketIOProtocol.createConnectPacket("/admin", Collections.singletonMap("token", "abc")));
+        assertThat(auth.getData()).isEqualTo(Collections.singletonMap("token", "abc"));
+
+        SocketIOPacket disconnect = roundTrip(SocketIOProtocol.createDisconnectPacket("/admin"));
+        assertThat(disconnect.getType()).isEqualTo(SocketIOPacket.Type.DISCONNECT);
+
+        ErrorPacket error = (ErrorPacket) roundTrip(
+                SocketIOProtocol.createErrorPacket("/", Collections.singletonMap("message", "denied")));
+        assertThat(error.getType()).isEqualTo(SocketIOPacket.Type.ERROR);
+        assertThat(error.getArgs()).isEqualTo(Collections.singletonMap("message", "denied"));
+    }
+
+    @Test
+    public void rejectInvalidMessages()
+    {
+        List<byte[]> invalid = Arrays.asList(
+                new byte[0],
+                new byte[]{(byte) 0x91, 0x02},                          // array instead of map
+                new byte[]{(byte) 0x81, (byte) 0xa3, 'n', 's', 'p', 0}, // no type
+                Arrays.copyOf(EVENT_BYTES, EVENT_BYTES.length - 1),     // truncated
+                new byte[]{(byte) 0xc1});                               // reserved byte
+
+        for (byte[] data : invalid)
+        {
+            try
+            {
+                MessagePackCodec.INSTANCE.createDecoder().decode(
+                        EngineIOProtocol.createMessagePacket(new ByteArrayInputStream(data)));
+                fail("Decoder accepted " + Arrays.toString(data));
+            }
+            catch (SocketIOProtocolException e)
+            {
+                // expected
+            }
+        }
+    }
+
+    private static SocketIOPacket roundTrip(SocketIOPacket packet) throws SocketIOProtocolException
+    {
+        return decode(MessagePackCodec.INSTANCE.encode(packet));
+    }
+
+    private static SocketIOPacket decode(EncodedPacket encoded) throws SocketIOProtocolException
+    {
+        return MessagePackCodec.INSTANCE.createDecoder().decode(
+                EngineIOProtocol.createMessagePacket(new ByteArrayInputStream(frame(encoded))));
+    }
+
+    private static byte[] frame(EncodedPacket encoded)
+    {
+        // websocket frame starts with engine.io packet type
+        byte[] frame = encoded.getEncodedBinaryMessages().get(0);
+        return Arrays.copyOfRange(frame, 1, frame.length);
+    }
+}
@@ -0,0 +1,348 @@
+package com.codeminders.socketio.protocol;
+
+import com.codeminders.socketio.server.SocketIOProtocolException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.google.common.io.ByteStreams;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.fail;
+
+/**
+ * Differential tests: {@link SocketIOProtocol#decode(String)} must produce the same packets
+ * as {@link LegacySocketIODecoder}.
+ */
+public class SocketIOProtocolTest {
+    private static final String[] VALID_PACKETS = {
+            "0",
+            "0/chat",
+            "0/chat,",
+            "1",
+            "1/chat,",
+            "2[\"hello\"]",
+            "2[\"hello\",1,2.5,true,false,null,\"world\"]",
+            "2[\"hello\",{\"a\":1,\"b\":[1,2,{\"c\":\"d\"}]},[]]",
+            "2[\"utf \\u00e9\u00e8\u4e2d\",\"\u00fc\"]",
+            "2[42,\"name is a number\"]",
+            "2/chat,[\"hello\",\"world\"]",
+            "2/chat,12[\"hello\",\"world\"]",
+            "212[\"hello\"]",
+            "2/a/b/c,7[\"deep\"]",
+            "2 [\"leading whitespace\"]",
+            "2[\"hello\",12345678901,-1,1e10]",
+            "3[]",
+            "35[\"ok\"]",
+            "3/chat,5[\"ok\",{\"x\":null}]",
+            "4\"error message\"",
+            "4{\"message\":\"error\"}",
+            "4/chat,{\"message\":\"error\"}",
+            "4",
+            "51-[\"file\",{\"_placeholder\":true,\"num\":0}]",
+            "52-/chat,9[\"files\",{\"_placeholder\":true,\"num\":0},{\"_placeholder\":true,\"num\":1}]",
+            "61-3[{\"_placeholder\":true,\"num\":0}]",
+            "612-/chat,3[{\"_placeholder\":true,\"num\":0}]"
+    };
+
+    private static final String[] INVALID_PACKETS = {
+            "",
+            "7",
+            "9[\"hello\"]",
+            "x[\"hello\"]",
+            "2",
+            "2{\"a\":1}",
+            "2[]",
+            "3",
+            "3\"not an array\"",
+            "5[\"file\"]",
+            "50-[\"file\"]",
+            "6[1]"
+    };
+
+    // arguments are decoded on demand, so these packets are only rejected once the arguments are requested
+    private static final String[] MALFORMED_ARGS_PACKETS = {
+            "2[\"hello\"",
+            "2[\"hello\",}",
+            "2[\"hello\",{\"a\":]",
+            "3[1,"
+    };
+
+    @Test
+    public void decodeValidPackets()
+            throws SocketIOProtocolException
+    {
+        for (String data : VALID_PACKETS)
+            assertSamePacket(data, LegacySocketIODecoder.decode(data), SocketIOProtocol.decode(data));
+    }
+
+    @Test
+    public void rejectInvalidPackets()
+    {
+        for (String data : INVALID_PACKETS)
+        {
+            try
+            {
+                LegacySocketIODecoder.decode(data);
+                fail("Legacy decoder accepted " + data);
+            }
+            catch (SocketIOProtocolException e)
+            {
+                // expected
+            }
+
+            try
+            {
+                SocketIOProtocol.decode(data);
+                fail("Decoder accepted " + data);
+            }
+            catch (SocketIOProtocolException e)
+            {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void rejectMalformedArgsOnDemand()
+            throws SocketIOProtocolException
+    {
+        for (String data : MALFORMED_ARGS_PACKETS)
+        {
+            try
+            {
+                LegacySocketIODecoder.decode(data);
+                fail("Legacy decoder accepted " + data);
+            }
+            catch (SocketIOProtocolException e)
+            {
+                // expected
+            }
+
+            SocketIOPacket packet = SocketIOProtocol.decode(data);
+            try
+            {
+                if (packet instanceof EventPacket)
+                    ((EventPacket) packet).getArgs();
+                else
+                    ((ACKPacket) packet).getArgs();
+                fail("Decoder accepted arguments of " + data);
+            }
+            catch (IllegalArgumentException e)
+            {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void parseArgs()
+            throws IOException
+    {
+        EventPacket packet = (EventPacket) SocketIOProtocol.decode("2/chat,[{\"name\":\"event\"},\"a\",[1,2],3]");
+        assertThat(packet.getName()).isEqualTo("{name=event}");
+
+        try (JsonParser parser = packet.getArgsParser())
+        {
+            assertThat(parser.nextToken()).isEqualTo(JsonToken.VALUE_STRING);
+            assertThat(parser.getText()).isEqualTo("a");
+            assertThat(parser.nextToken()).isEqualTo(JsonToken.START_ARRAY);
+            parser.skipChildren();
+            assertThat(parser.nextToken()).isEqualTo(JsonToken.VALUE_NUMBER_INT);
+            assertThat(parser.getIntValue()).isEqualTo(3);
+            assertThat(parser.nextToken()).isEqualTo(JsonToken.END_ARRAY);
+        }
+
+        ACKPacket ack = (ACKPacket) SocketIOProtocol.decode("312[]");
+        try (JsonParser parser = ack.getArgsParser())
+        {
+            assertThat(parser.nextToken()).isEqualTo(JsonToken.END_ARRAY);
+        }
+    }
+
+    @Test
+    public void decodeEncodedPackets()
+            throws SocketIOProtocolException
+    {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("name", "value");
+        map.put("list", Arrays.asList(1, 2, 3));
+
+        SocketIOPacket[] packets = {
+                SocketIOProtocol.createEventPacket(-1, "/", "event", new Object[0]),
+                SocketIOProtocol.createEventPacket(3, "/", "event", new Object[]{"a", 1, 2.0, true, null}),
+                SocketIOProtocol.createEventPacket(123, "/chat", "event", new Object[]{map}),
+                SocketIOProtocol.createACKPacket(7, "/", new Object[]{"ack"}),
+                SocketIOProtocol.createACKPacket(7, "/chat", new Object[0]),
+                SocketIOProtocol.createConnectPacket("/chat"),
+                SocketIOProtocol.createDisconnectPacket("/chat"),
+                SocketIOProtocol.createErrorPacket("/", map)
+        };
+
+        for (SocketIOPacket packet : packets)
+        {
+            String data = packet.encode();
+            SocketIOPacket decoded = SocketIOProtocol.decode(data);
+
+            assertSamePacket(data, LegacySocketIODecoder.decode(data), decoded);
+            assertThat(decoded.encode()).as(data).isEqualTo(data);
+        }
+    }
+
+    @Test
+    public void connectPacketCarriesPayload() throws SocketIOProtocolException
+    {
+        // Socket.IO 5 client sends auth payload, server responds with socket id
+        ConnectPacket connect = (ConnectPacket) SocketIOProtocol.decode("0/admin,{\"token\":\"abc\"}");
+        assertThat(connect.getNamespace()).isEqualTo("/admin");
+        assertThat(connect.getData()).isEqualTo(Collections.singletonMap("token", "abc"));
+
+        connect = (ConnectPacket) SocketIOProtocol.decode("0");
+        assertThat(connect.getNamespace()).isEqualTo("/");
+        assertThat(connect.getData()).isNull();
+
+        assertThat(SocketIOProtocol.createConnectPacket("/", Collections.singletonMap("sid", "x")).encode())
+                .isEqualTo("0{\"sid\":\"x\"}");
+        assertThat(SocketIOProtocol.createConnectPacket("/chat", Collections.singletonMap("sid", "x")).encode())
+                .isEqualTo("0/chat,{\"sid\":\"x\"}");
+    }
+
+    @Test
+    public void encodeExactText() throws SocketIOProtocolException
+    {
+        assertThat(SocketIOProtocol.createConnectPacket("/").encode()).isEqualTo("0");
+        assertThat(SocketIOProtocol.createConnectPacket("/chat").encode()).isEqualTo("0/chat");
+        assertThat(SocketIOProtocol.createEventPacket(12, "/chat", "hello", new Object[]{"world"}).encode())
+                .isEqualTo("2/chat,12[\"hello\",\"world\"]");
+        assertThat(SocketIOProtocol.createEventPacket(-1, "/\u00e9", "\u4e2d", new Object[0]).encode())
+                .isEqualTo("2/\u00e9,[\"\u4e2d\"]");
+        assertThat(SocketIOProtocol.createEventPacket(-1, "/", "file",
+                new Object[]{new ByteArrayInputStream(new byte[1]), new ByteArrayInputStream(new byte[2])}).encode())
+                .isEqualTo("52-[\"file\",{\"_placeholder\":true,\"num\":0},{\"_placeholder\":true,\"num\":1}]");
+    }
+
+    @Test
+    public void pollingFrameOfEncodedMessage() throws IOException
+    {
+        EngineIOPacket message = SocketIOProtocol.encodeMessage(
+                SocketIOProtocol.createEventPacket(-1, "/", "\u00e9", new Object[0]));
+
+        assertThat(EngineIOProtocol.encode(message)).isEqualTo("42[\"\u00e9\"]");
+        assertThat(message.getDataSize()).isEqualTo(7);
+
+        // length is the number of UTF-8 bytes including EIO packet type
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        EngineIOProtocol.binaryEncode(message, os);
+        byte[] expected = {0, 8, (byte) 255, '4', '2', '[', '"', (byte) 0xc3, (byte) 0xa9, '"', ']'};
+        assertThat(os.toByteArray()).isEqualTo(expected);
+    }
+
+    public static class Snapshot
+    {
+        public String       name  = "frame";
+        public byte[]       image = {1, 2, 3};
+        public List<String> tags  = Arrays.asList("a", "b");
+    }
+
+    @Test
+    public void extractBinaryObjectsInOnePass() throws IOException
+    {
+        Object[] plain = {"text", 1, Arrays.asList("a", "b"), Collections.singletonMap("k", "v"), new int[]{1}};
+        assertThat(SocketIOProtocol.createEventPacket(-1, "/", "plain", plain)).isNotInstanceOf(BinaryPacket.class);
+        assertThat(SocketIOProtocol.extractBinaryObjects(plain, new ArrayList<InputStream>())).isSameAs(plain);
+
+        ByteArrayInputStream stream = new ByteArrayInputStream(new byte[]{0});
+        List<Object> list = Arrays.<Object>asList("first", new byte[]{1});
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("stream", stream);
+        map.put("buffer", ByteBuffer.wrap(new byte[]{9, 2, 9}, 1, 1));
+        Object[] args = {list, map, new Snapshot()};
+
+        BinaryEventPacket packet = (BinaryEventPacket) SocketIOProtocol.createEventPacket(-1, "/", "binary", args);
+        assertThat(packet.encode()).isEqualTo("54-[\"binary\"," +
+                "[\"first\",{\"_placeholder\":true,\"num\":0}]," +
+                "{\"stream\":{\"_placeholder\":true,\"num\":1},\"buffer\":{\"_placeholder\":true,\"num\":2}}," +
+                "{\"name\":\"frame\",\"image\":{\"_placeholder\":true,\"num\":3},\"tags\":[\"a\",\"b\"]}]");
+
+        List<InputStream> attachments = new ArrayList<>(packet.getAttachments());
+        assertThat(ByteStreams.toByteArray(attachments.get(0))).containsExactly(1);
+        assertThat(attachments.get(1)).isSameAs(stream);
+        assertThat(ByteStreams.toByteArray(attachments.get(2))).containsExactly(2);
+        assertThat(ByteStreams.toByteArray(attachments.get(3))).containsExactly(1, 2, 3);
+
+        // arguments of the caller are not modified
+        assertThat(map.get("stream")).isSameAs(stream);
+        assertThat(list.get(1)).isInstanceOf(byte[].class);
+    }
+
+    @Test
+    public void attachmentsReplacePlaceholders() throws SocketIOProtocolException
+    {
+        String data = "52-[\"file\",{\"_placeholder\":true,\"num\":0},[{\"x\":{\"_placeholder\":true,\"num\":1}}]]";
+        InputStream first = new ByteArrayInputStream(new byte[1]);
+        InputStream second = new ByteArrayInputStream(new byte[2]);
+
+        // arguments decoded after all the attachments arrived
+        BinaryEventPacket packet = (BinaryEventPacket) SocketIOProtocol.decode(data);
+        packet.addAttachment(first);
+        packet.addAttachment(second);
+        assertThat(packet.isComplete()).isTrue();
+        assertThat(packet.hasEncodedArgs()).isFalse();
+        assertThat(packet.getArgs()[0]).isSameAs(first);
+        assertThat(((Map) ((List) packet.getArgs()[1]).get(0)).get("x")).isSameAs(second);
+
+        // arguments decoded before the attachments arrived
+        packet = (BinaryEventPacket) SocketIOProtocol.decode(data);
+        Object[] args = packet.getArgs();
+        packet.addAttachment(first);
+        assertThat(args[0]).isSameAs(first);
+        packet.addAttachment(second);
+        assertThat(((Map) ((List) args[1]).get(0)).get("x")).isSameAs(second);
+
+        // binary ACK received through the codec
+        PacketDecoder decoder = JsonPacketCodec.INSTANCE.createDecoder();
+        assertThat(decoder.decode(EngineIOProtocol.createMessagePacket("61-7[{\"_placeholder\":true,\"num\":0}]"))).isNull();
+        ACKPacket ack = (ACKPacket) decoder.decode(EngineIOProtocol.createMessagePacket(new byte[]{5}));
+        assertThat(ack.getId()).isEqualTo(7);
+        assertThat(ack.getArgs()[0]).isInstanceOf(InputStream.class);
+    }
+
+    private static void assertSamePacket(String data, SocketIOPacket expected, SocketIOPacket actual)
+            throws SocketIOProtocolException
+    {
+        assertThat(actual.getClass()).as(data).isEqualTo(expected.getClass());
+        assertThat(actual.getType()).as(data).isEqualTo(expected.getType());
+        assertThat(actual.getNamespace()).as(data).isEqualTo(expected.getNamespace());
+        assertThat(actual.getId()).as(data).isEqualTo(expected.getId());
+
+        if (expected instanceof EventPacket)
+        {
+            assertThat(((EventPacket) actual).getName()).as(data).isEqualTo(((EventPacket) expected).getName());
+            assertThat(((EventPacket) actual).getArgs()).as(data).isEqualTo(((EventPacket) expected).getArgs());
+        }
+
+        if (expected instanceof ACKPacket)
+            assertThat(((ACKPacket) actual).getArgs()).as(data).isEqualTo(((ACKPacket) expected).getArgs());
+
+        if (expected instanceof BinaryPacket)
+        {
+            assertThat(((BinaryPacket) actual).isComplete()).as(data).isEqualTo(((BinaryPacket) expected).isComplete());
+            ((BinaryPacket) expected).addAttachment(null);
+            ((BinaryPacket) actual).addAttachment(null);
+            assertThat(((BinaryPacket) actual).isComplete()).as(data).isEqualTo(((BinaryPacket) expected).isComplete());
+        }
+
+        assertThat(actual.encode()).as(data).isEqualTo(expected.encode());
+    }
+}
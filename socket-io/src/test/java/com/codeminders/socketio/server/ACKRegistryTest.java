@@ -0,0 +1,128 @@
+package com.codeminders.socketio.server;
+
+import com.google.common.util.concurrent.MoreExecutors;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ACKRegistryTest
+{
+    // the wheel is advanced by the test, timeouts run right on the calling thread
+    private final TimingWheel  timer = new TimingWheel(null, MoreExecutors.directExecutor(), 100, 8);
+    private final ACKRegistry acks  = new ACKRegistry(timer);
+
+    private static class Listener extends ACKTimeoutListener
+    {
+        private final AtomicInteger acked    = new AtomicInteger();
+        private final AtomicInteger timedOut = new AtomicInteger();
+
+        Listener(long timeout)
+        {
+            super(timeout);
+        }
+
+        @Override
+        public void onACK(Object[] args)
+        {
+            acked.incrementAndGet();
+        }
+
+        @Override
+        public void onTimeout()
+        {
+            timedOut.incrementAndGet();
+        }
+    }
+
+    @Test
+    public void addAndRemoveManyListeners()
+    {
+        List<ACKListener> listeners = new ArrayList<>();
+        for (int i = 0; i < 1000; i++)
+        {
+            Listener listener = new Listener(1000);
+            listeners.add(listener);
+            acks.add(acks.nextId(), listener);
+        }
+        assertThat(acks.size()).isEqualTo(1000);
+
+        // every other one first, so the clusters get holes
+        for (int i = 0; i < 1000; i += 2)
+            assertThat(acks.remove(i)).isSameAs(listeners.get(i));
+        for (int i = 1; i < 1000; i += 2)
+            assertThat(acks.remove(i)).isSameAs(listeners.get(i));
+
+        assertThat(acks.size()).isZero();
+        assertThat(acks.remove(0)).isNull();
+    }
+
+    @Test
+    public void collidingIdsSurviveRemoval()
+    {
+        // all the ids share the home slot of the initial table
+        int[] ids = {3, 11, 19, 27};
+        ACKListener[] listeners = new ACKListener[ids.length];
+        for (int i = 0; i < ids.length; i++)
+        {
+            listeners[i] = new Listener(1000);
+            acks.add(ids[i], listeners[i]);
+        }
+
+        assertThat(acks.remove(11)).isSameAs(listeners[1]);
+        assertThat(acks.remove(27)).isSameAs(listeners[3]);
+        assertThat(acks.remove(3)).isSameAs(listeners[0]);
+        assertThat(acks.remove(19)).isSameAs(listeners[2]);
+    }
+
+    @Test
+    public void listenerTimesOut()
+    {
+        Listener listener = new Listener(250);
+        acks.add(acks.nextId(), listener);
+
+        timer.advance(200);
+        assertThat(listener.timedOut.get()).isZero();
+
+        timer.advance(300);
+        assertThat(listener.timedOut.get()).isEqualTo(1);
+        assertThat(acks.size()).isZero();
+    }
+
+    @Test
+    public void acknowledgedListenerDoesNotTimeOut()
+    {
+        Listener listener = new Listener(250);
+        int id = acks.nextId();
+        acks.add(id, listener);
+
+        acks.remove(id).onACK(new Object[0]);
+        timer.advance(1000);
+
+        assertThat(listener.acked.get()).isEqualTo(1);
+        assertThat(listener.timedOut.get()).isZero();
+    }
+
+    @Test
+    public void clearDropsEverything()
+    {
+        Listener listener = new Listener(250);
+        acks.add(acks.nextId(), listener);
+        acks.add(acks.nextId(), new ACKListener()
+        {
+            @Override
+            public void onACK(Object[] args)
+            {
+            }
+        });
+
+        acks.clear();
+        timer.advance(1000);
+
+        assertThat(acks.size()).isZero();
+        assertThat(listener.timedOut.get()).isZero();
+    }
+}
@@ -0,0 +1,85 @@
+package com.codeminders.socketio.server;
+
+import com.codeminders.socketio.common.SocketIOException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Targets of a broadcast to thousands of rooms but one: union of socket sets built by hand
+ * against OR/ANDNOT of room bitmaps.
+ */
+public class BitmapBenchmark
+{
+    private static final int[] ROOMS        = {1000, 5000};
+    private static final int   SOCKETS      = 20000;
+    private static final int   SOCKET_ROOMS = 3;
+    private static final int   ITERATIONS   = 200;
+
+    public static void main(String[] args) throws SocketIOException
+    {
+        for (int rooms : ROOMS)
+        {
+            Namespace ns = SocketIOManager.getInstance().createNamespace("/bitmap-benchmark-" + rooms);
+            Random random = new Random(rooms);
+            for (int i = 0; i < SOCKETS; i++)
+            {
+                Socket socket = RecordingTransportConnection.connect().getSession().createSocket(ns.getId());
+                for (int j = 0; j < SOCKET_ROOMS; j++)
+                    ns.join("room" + random.nextInt(rooms), socket);
+            }
+
+            System.out.printf("%d rooms, %d sockets%n", rooms, SOCKETS);
+            for (int round = 0; round < 3; round++)
+            {
+                hashSets(ns, rooms);
+                bitmaps(ns, rooms);
+            }
+        }
+    }
+
+    private static void hashSets(Namespace ns, int roomCount)
+    {
+        int targets = 0;
+        long start = System.nanoTime();
+        for (int n = 0; n < ITERATIONS; n++)
+        {
+            Set<Socket> union = new HashSet<>();
+            for (int i = 1; i < roomCount; i++)
+            {
+                for (Socket socket : ns.room("room" + i).getSockets())
+                    union.add(socket);
+            }
+            for (Socket socket : ns.room("room0").getSockets())
+                union.remove(socket);
+            targets = union.size();
+        }
+        long elapsed = System.nanoTime() - start;
+
+        System.out.printf("  hash set union: %10.1f us/broadcast, %d targets%n",
+                elapsed / 1000.0 / ITERATIONS, targets);
+    }
+
+    private static void bitmaps(Namespace ns, int roomCount)
+    {
+        // what ns.to("room1")...to("room" + n).except("room0") computes
+        List<String> rooms = new ArrayList<>(roomCount);
+        for (int i = 1; i < roomCount; i++)
+            rooms.add("room" + i);
+        List<String> except = Collections.singletonList("room0");
+        List<Socket> exceptSockets = Collections.emptyList();
+
+        int targets = 0;
+        long start = System.nanoTime();
+        for (int n = 0; n < ITERATIONS; n++)
+            targets = ns.getSockets(rooms, except, exceptSockets).size();
+        long elapsed = System.nanoTime() - start;
+
+        System.out.printf("  bitmap union:   %10.1f us/broadcast, %d targets%n",
+                elapsed / 1000.0 / ITERATIONS, targets);
+    }
+}
@@ -0,0 +1,63 @@
+package com.codeminders.socketio.server;
+
+import com.codeminders.socketio.common.SocketIOException;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compares encode-once {@link Room#emit(String, Object...)} with emitting the event to every member separately.
+ * <p>
+ * Run with {@code java -cp ... com.codeminders.socketio.server.BroadcastBenchmark}.
+ * Per-member cost of the shared frame path should stay flat as the room grows while
+ * the per-socket path pays for JSON encoding of every recipient.
+ */
+public class BroadcastBenchmark
+{
+    private static final int[] ROOM_SIZES = {100, 1000, 10000, 20000};
+    private static final int   ROUNDS     = 20;
+
+    public static void main(String[] args) throws SocketIOException
+    {
+        Namespace ns = SocketIOManager.getInstance().createNamespace("/bench");
+
+        Map<String, Object> payload = new LinkedHashMap<>();
+        payload.put("user", "benchmark");
+        payload.put("text", "The quick brown fox jumps over the lazy dog");
+        payload.put("tags", new String[]{"a", "b", "c"});
+
+        for (int size : ROOM_SIZES)
+        {
+            Room room = ns.room("room" + size);
+            List<Socket> sockets = new ArrayList<>(size);
+            for (int i = 0; i < size; i++)
+            {
+                Socket socket = RecordingTransportConnection.connect().getSession().createSocket(ns.getId());
+                room.join(socket);
+                sockets.add(socket);
+            }
+
+            long shared = 0;
+            long perSocket = 0;
+            for (int round = 0; round < ROUNDS; round++)
+            {
+                long start = System.nanoTime();
+                room.emit("message", payload);
+                shared += System.nanoTime() - start;
+
+                start = System.nanoTime();
+                for (Socket socket : sockets)
+                    socket.emit("message", payload);
+                perSocket += System.nanoTime() - start;
+
+                for (Socket socket : sockets)
+                    ((RecordingTransportConnection) socket.getSession().getConnection()).getPackets().clear();
+            }
+
+            System.out.printf("room size %6d: shared frame %8.1f ns/member, per socket %8.1f ns/member%n",
+                    size, (double) shared / ROUNDS / size, (double) perSocket / ROUNDS / size);
+        }
+    }
+}
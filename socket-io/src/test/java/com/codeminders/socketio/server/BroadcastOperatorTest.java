@@ -0,0 +1,89 @@
+package com.codeminders.socketio.server;
+
+import com.codeminders.socketio.common.SocketIOException;
+import org.junit.Test;
+
+import static com.codeminders.socketio.server.SocketFixtures.connect;
+import static com.codeminders.socketio.server.SocketFixtures.namespace;
+import static com.codeminders.socketio.server.SocketFixtures.packets;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class BroadcastOperatorTest
+{
+    @Test
+    public void unionMinusExcludedRoomDeliversOnce() throws SocketIOException
+    {
+        Namespace ns = namespace("/operator-test");
+        Socket inA = connect(ns);
+        Socket inAB = connect(ns);
+        Socket inB = connect(ns);
+        Socket inBC = connect(ns);
+        Socket outside = connect(ns);
+
+        ns.in("a").join(inA);
+        ns.in("a").join(inAB);
+        ns.in("b").join(inAB);
+        ns.in("b").join(inB);
+        ns.in("b").join(inBC);
+        ns.in("c").join(inBC);
+        ns.in("c").join(outside);
+
+        BroadcastOperator operator = ns.to("a").to("b").except("c");
+        assertThat(operator.getSockets()).containsExactlyInAnyOrder(inA, inAB, inB);
+
+        operator.emit("event", 1);
+
+        assertThat(packets(inA)).hasSize(1);
+        assertThat(packets(inAB)).hasSize(1);
+        assertThat(packets(inB)).hasSize(1);
+        assertThat(packets(inBC)).isEmpty();
+        assertThat(packets(outside)).isEmpty();
+    }
+
+    @Test
+    public void socketToExcludesSender() throws SocketIOException
+    {
+        Namespace ns = namespace("/operator-sender-test");
+        Socket sender = connect(ns);
+        Socket other = connect(ns);
+        ns.in("room").join(sender);
+        ns.in("room").join(other);
+
+        sender.to("room").emit("event");
+
+        assertThat(packets(sender)).isEmpty();
+        assertThat(packets(other)).hasSize(1);
+    }
+
+    @Test
+    public void exceptWithoutRoomsTargetsWholeNamespace() throws SocketIOException
+    {
+        Namespace ns = namespace("/operator-namespace-test");
+        Socket member = connect(ns);
+        Socket first = connect(ns);
+        Socket second = connect(ns);
+        ns.in("muted").join(member);
+
+        assertThat(ns.except("muted").getSockets()).containsExactlyInAnyOrder(first, second);
+        assertThat(ns.except("muted").except(first).getSockets()).containsExactly(second);
+    }
+
+    @Test
+    public void disconnectedSocketIsNotTargeted() throws SocketIOException
+    {
+        Namespace ns = namespace("/operator-disconnect-test");
+        Socket gone = connect(ns);
+        Socket stays = connect(ns);
+        ns.in("room").join(gone);
+        ns.in("room").join(stays);
+
+        ((RecordingTransportConnection) gone.getSession().getConnection()).abort();
+
+        assertThat(ns.to("room").getSockets()).containsExactly(stays);
+
+        // the freed handle is reused by a new socket, which is not a member
+        Socket next = connect(ns);
+        assertThat(ns.to("room").getSockets()).containsExactly(stays);
+        assertThat(ns.in("room").contains(next)).isFalse();
+    }
+}
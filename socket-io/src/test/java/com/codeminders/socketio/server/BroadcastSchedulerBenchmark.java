@@ -0,0 +1,96 @@
+package com.codeminders.socketio.server;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static com.codeminders.socketio.server.SocketFixtures.join;
+
+/**
+ * Delivery latency of a small room while a large room broadcasts as fast as it can:
+ * broadcasts delivered in the order they were emitted against the fair scheduler.
+ */
+public class BroadcastSchedulerBenchmark
+{
+    private static final int  LARGE_ROOM  = 5000;
+    private static final int  SMALL_ROOM  = 5;
+    private static final int  OUTSTANDING = 16; // large room broadcasts in flight
+    private static final long DURATION    = TimeUnit.SECONDS.toMillis(3);
+
+    public static void main(String[] args) throws Exception
+    {
+        Namespace ns = SocketIOManager.getInstance().createNamespace("/scheduler-benchmark");
+        List<Socket> large = join(ns, ns.room("large"), LARGE_ROOM);
+        join(ns, ns.room("small"), SMALL_ROOM);
+
+        for (int round = 0; round < 2; round++)
+        {
+            // a single fan-out thread delivers the broadcasts first come, first served
+            FanOutExecutor fanOut = new FanOutExecutor(1, 0, Integer.MAX_VALUE);
+            SocketIOManager.getInstance().setFanOutExecutor(fanOut);
+            run("in order", ns, large);
+            SocketIOManager.getInstance().setFanOutExecutor(null);
+            fanOut.shutdown();
+
+            BroadcastScheduler scheduler = new BroadcastScheduler(Config.DEFAULT_BROADCAST_QUANTUM,
+                    Config.DEFAULT_BROADCAST_QUEUE_SIZE, 0);
+            SocketIOManager.getInstance().setBroadcastScheduler(scheduler);
+            run("fair", ns, large);
+            SocketIOManager.getInstance().setBroadcastScheduler(null);
+            scheduler.shutdown();
+        }
+    }
+
+    private static void run(String label, final Namespace ns, final List<Socket> large) throws Exception
+    {
+        final AtomicBoolean done = new AtomicBoolean();
+        final int[] largeCount = new int[1];
+        Thread producer = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    ArrayDeque<ListenableFuture<BroadcastStats>> inFlight = new ArrayDeque<>();
+                    while (!done.get())
+                    {
+                        inFlight.add(ns.room("large").emitAsync("event", largeCount[0]++));
+                        if (inFlight.size() >= OUTSTANDING)
+                        {
+                            inFlight.poll().get();
+                            for (Socket socket : large)
+                                ((RecordingTransportConnection) socket.getSession().getConnection()).getPackets().clear();
+                        }
+                    }
+                    for (ListenableFuture<BroadcastStats> future : inFlight)
+                        future.get();
+                }
+                catch (Exception e)
+                {
+                    throw new IllegalStateException(e);
+                }
+            }
+        });
+        producer.start();
+
+        List<Long> latencies = new ArrayList<>();
+        long end = System.currentTimeMillis() + DURATION;
+        while (System.currentTimeMillis() < end)
+        {
+            latencies.add(ns.room("small").emitAsync("event").get().getDuration(TimeUnit.MICROSECONDS));
+            Thread.sleep(2);
+        }
+        done.set(true);
+        producer.join();
+
+        Collections.sort(latencies);
+        System.out.printf("%-9s small room p50 %8d us, p99 %8d us; %d large room broadcasts%n", label,
+                latencies.get(latencies.size() / 2), latencies.get(latencies.size() * 99 / 100), largeCount[0]);
+    }
+}
@@ -0,0 +1,289 @@
+package com.codeminders.socketio.server;
+
+import com.codeminders.socketio.common.SocketIOException;
+import com.codeminders.socketio.protocol.EngineIOPacket;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.Uninterruptibles;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static com.codeminders.socketio.server.SocketFixtures.connect;
+import static com.codeminders.socketio.server.SocketFixtures.join;
+import static com.codeminders.socketio.server.SocketFixtures.namespace;
+import static com.codeminders.socketio.server.SocketFixtures.packets;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+
+public class BroadcastSchedulerTest
+{
+    private BroadcastScheduler scheduler;
+
+    private void start(int quantum, int queueSize)
+    {
+        scheduler = new BroadcastScheduler(quantum, queueSize, 0);
+        SocketIOManager.getInstance().setBroadcastScheduler(scheduler);
+    }
+
+    @After
+    public void tearDown()
+    {
+        SocketIOManager.getInstance().setBroadcastScheduler(null);
+        scheduler.shutdown();
+    }
+
+    /**
+     * Makes the scheduler thread wait in a delivery to a room of its own, so broadcasts submitted meanwhile stay queued
+     *
+     * @return future of the broadcast holding the scheduler
+     */
+    private static ListenableFuture<BroadcastStats> holdScheduler(Namespace ns, final CountDownLatch release)
+            throws SocketIOException, InterruptedException
+    {
+        final CountDownLatch held = new CountDownLatch(1);
+        RecordingTransportConnection connection = new RecordingTransportConnection()
+        {
+            @Override
+            public void send(EngineIOPacket packet)
+            {
+                super.send(packet);
+                if (Thread.currentThread().getName().equals("socket.io-broadcast"))
+                {
+                    held.countDown();
+                    Uninterruptibles.awaitUninterruptibly(release);
+                }
+            }
+        };
+        Room gate = ns.room("gate");
+        gate.join(connect(ns, connection));
+
+        ListenableFuture<BroadcastStats> future = gate.emitAsync("gate");
+        assertThat(held.await(10, TimeUnit.SECONDS)).isTrue();
+        return future;
+    }
+
+    @Test
+    public void broadcastsOfRoomAreDeliveredInOrder() throws Exception
+    {
+        start(4, 100);
+        Namespace ns = namespace("/scheduler-order-test");
+        Room room = ns.room("ordered");
+        List<Socket> sockets = join(ns, room, 10);
+
+        List<ListenableFuture<BroadcastStats>> futures = new ArrayList<>();
+        for (int i = 0; i < 5; i++)
+            futures.add(room.emitAsync("event", i));
+        for (ListenableFuture<BroadcastStats> future : futures)
+            assertThat(future.get(10, TimeUnit.SECONDS).getDelivered()).isEqualTo(10);
+
+        for (Socket socket : sockets)
+        {
+            assertThat(packets(socket)).hasSize(5);
+            for (int i = 0; i < 5; i++)
+                assertThat(packets(socket).get(i).getTextData()).endsWith("[\"event\"," + i + "]");
+        }
+    }
+
+    @Test
+    public void smallRoomIsNotHeldBackByLargeOne() throws Exception
+    {
+        start(100, 100);
+        Namespace ns = namespace("/scheduler-fair-test");
+        Room large = ns.room("large");
+        Room small = ns.room("small");
+        join(ns, large, 2000);
+        join(ns, small, 3);
+
+        // hold the scheduler thread until all the broadcasts are queued
+        CountDownLatch release = new CountDownLatch(1);
+        ListenableFuture<BroadcastStats> gateFuture = holdScheduler(ns, release);
+
+        final List<ListenableFuture<BroadcastStats>> largeFutures = new ArrayList<>();
+        for (int i = 0; i < 20; i++)
+            largeFutures.add(large.emitAsync("event", i));
+
+        final AtomicBoolean largeDone = new AtomicBoolean(true);
+        final CountDownLatch smallDone = new CountDownLatch(1);
+        ListenableFuture<BroadcastStats> smallFuture = small.emitAsync("event");
+        smallFuture.addListener(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                // runs on the scheduler thread right after the last delivery
+                largeDone.set(largeFutures.get(largeFutures.size() - 1).isDone());
+                smallDone.countDown();
+            }
+        }, MoreExecutors.directExecutor());
+        release.countDown();
+
+        assertThat(gateFuture.get(10, TimeUnit.SECONDS).getDelivered()).isEqualTo(1);
+        assertThat(smallFuture.get(10, TimeUnit.SECONDS).getDelivered()).isEqualTo(3);
+        // get() returns before the listeners run
+        assertThat(smallDone.await(10, TimeUnit.SECONDS)).isTrue();
+        assertThat(largeDone.get()).isFalse();
+        assertThat(largeFutures.get(largeFutures.size() - 1).get(30, TimeUnit.SECONDS).getDelivered())
+                .isEqualTo(2000);
+    }
+
+    @Test
+    public void rateLimitDelaysBroadcasts() throws Exception
+    {
+        start(100, 100);
+        Namespace ns = namespace("/scheduler-rate-test");
+        Room room = ns.room("limited");
+        join(ns, room, 2);
+        scheduler.setRateLimit(ns.getId(), "limited", 20);
+
+        long start = System.nanoTime();
+        List<ListenableFuture<BroadcastStats>> futures = new ArrayList<>();
+        for (int i = 0; i < 25; i++)
+            futures.add(room.emitAsync("event", i));
+        for (ListenableFuture<BroadcastStats> future : futures)
+            future.get(10, TimeUnit.SECONDS);
+
+        // a second of broadcasts goes at once, the other 5 wait 50ms each
+        assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)).isGreaterThanOrEqualTo(200);
+    }
+
+    @Test
+    public void fullQueueRejectsBroadcast() throws Exception
+    {
+        start(100, 2);
+        Namespace ns = namespace("/scheduler-full-test");
+        Room room = ns.room("full");
+        join(ns, room, 1);
+
+        CountDownLatch release = new CountDownLatch(1);
+        holdScheduler(ns, release);
+        try
+        {
+            List<ListenableFuture<BroadcastStats>> futures = new ArrayList<>();
+            for (int i = 0; i < 3; i++)
+                futures.add(room.emitAsync("event", i));
+
+            assertThat(futures.get(2).isDone()).isTrue();
+            futures.get(2).get();
+            fail("Broadcast over the queue size is expected to fail");
+        }
+        catch (ExecutionException e)
+        {
+            assertThat(e.getCause()).isInstanceOf(SocketIOException.class);
+        }
+        finally
+        {
+            release.countDown();
+        }
+    }
+
+    @Test
+    public void fullQueueFailsEmit() throws Exception
+    {
+        start(100, 2);
+        Namespace ns = namespace("/scheduler-full-emit-test");
+        Room room = ns.room("full");
+        join(ns, room, 1);
+
+        CountDownLatch release = new CountDownLatch(1);
+        holdScheduler(ns, release);
+        try
+        {
+            room.emitAsync("event", 0);
+            room.emitAsync("event", 1);
+            room.emit("event", 2);
+            fail("Emit over the queue size is expected to fail");
+        }
+        catch (SocketIOException e)
+        {
+            assertThat(e).hasMessageContaining("is full");
+        }
+        finally
+        {
+            release.countDown();
+        }
+    }
+
+    @Test
+    public void emitWithoutBacklogIsDeliveredRightAway() throws Exception
+    {
+        start(100, 100);
+        Namespace ns = namespace("/scheduler-direct-test");
+        Room room = ns.room("direct");
+        Socket socket = join(ns, room, 1).get(0);
+
+        room.emit("event", 0);
+        socket.emit("event", 1);
+
+        assertThat(packets(socket)).hasSize(2);
+        assertThat(packets(socket).get(0).getTextData()).endsWith("[\"event\",0]");
+        assertThat(packets(socket).get(1).getTextData()).endsWith("[\"event\",1]");
+    }
+
+    @Test
+    public void emitWithBacklogIsQueuedInOrder() throws Exception
+    {
+        start(100, 100);
+        Namespace ns = namespace("/scheduler-backlog-test");
+        Room room = ns.room("backlog");
+        Socket socket = join(ns, room, 1).get(0);
+
+        CountDownLatch release = new CountDownLatch(1);
+        holdScheduler(ns, release);
+        ListenableFuture<BroadcastStats> queued = room.emitAsync("event", 0);
+        room.emit("event", 1);
+        assertThat(packets(socket)).isEmpty();
+        release.countDown();
+
+        queued.get(10, TimeUnit.SECONDS);
+        for (int i = 0; i < 100 && packets(socket).size() < 2; i++)
+            Thread.sleep(10);
+        assertThat(packets(socket)).hasSize(2);
+        assertThat(packets(socket).get(0).getTextData()).endsWith("[\"event\",0]");
+        assertThat(packets(socket).get(1).getTextData()).endsWith("[\"event\",1]");
+    }
+
+    @Test
+    public void failedSliceDoesNotStopTheOthers() throws Exception
+    {
+        start(100, 100);
+        Namespace ns = namespace("/scheduler-error-test");
+        Room room = ns.room("broken");
+        final AtomicBoolean broken = new AtomicBoolean();
+        room.join(connect(ns, new RecordingTransportConnection()
+        {
+            @Override
+            public void send(EngineIOPacket packet)
+            {
+                if (broken.compareAndSet(true, false))
+                    throw new Error("connection is broken");
+                super.send(packet);
+            }
+        }));
+        join(ns, room, 1);
+        broken.set(true);
+
+        CountDownLatch release = new CountDownLatch(1);
+        holdScheduler(ns, release);
+        ListenableFuture<BroadcastStats> failed = room.emitAsync("event", 0);
+        ListenableFuture<BroadcastStats> next = room.emitAsync("event", 1);
+        release.countDown();
+
+        assertThat(next.get(10, TimeUnit.SECONDS).getDelivered()).isEqualTo(2);
+        try
+        {
+            failed.get();
+            fail("Broadcast failed by an error is expected to fail");
+        }
+        catch (ExecutionException e)
+        {
+            assertThat(e.getCause()).hasMessage("connection is broken");
+        }
+    }
+}
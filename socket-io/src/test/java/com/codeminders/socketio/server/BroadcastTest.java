@@ -0,0 +1,139 @@
+package com.codeminders.socketio.server;
+
+import com.codeminders.socketio.common.SocketIOException;
+import com.codeminders.socketio.protocol.EncodedPacket;
+import com.codeminders.socketio.protocol.EngineIOPacket;
+import com.codeminders.socketio.protocol.EventPacket;
+import com.codeminders.socketio.protocol.MessagePackCodec;
+import com.google.common.io.ByteStreams;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static com.codeminders.socketio.server.SocketFixtures.connect;
+import static com.codeminders.socketio.server.SocketFixtures.join;
+import static com.codeminders.socketio.server.SocketFixtures.namespace;
+import static com.codeminders.socketio.server.SocketFixtures.packets;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class BroadcastTest
+{
+    private static final String NS = "/broadcast-test";
+
+    @Test
+    public void roomEmitSharesEncodedFrame() throws SocketIOException
+    {
+        Namespace ns = namespace(NS);
+        Room room = ns.room("shared");
+        List<Socket> sockets = join(ns, room, 3);
+
+        room.emit("event", "hello", 1);
+
+        EngineIOPacket first = packets(sockets.get(0)).get(0);
+        assertThat(first.getTextData()).isEqualTo("2" + NS + ",[\"event\",\"hello\",1]");
+        for (Socket socket : sockets)
+        {
+            assertThat(packets(socket)).hasSize(1);
+            assertThat(packets(socket).get(0)).isSameAs(first);
+        }
+    }
+
+    @Test
+    public void broadcastSkipsSender() throws SocketIOException
+    {
+        Namespace ns = namespace(NS);
+        Room room = ns.room("sender");
+        List<Socket> sockets = join(ns, room, 2);
+
+        room.broadcast(sockets.get(0), "event");
+
+        assertThat(packets(sockets.get(0))).isEmpty();
+        assertThat(packets(sockets.get(1))).hasSize(1);
+    }
+
+    @Test
+    public void binaryBroadcastDeliversAttachmentToEveryone() throws Exception
+    {
+        Namespace ns = namespace(NS);
+        Room room = ns.room("binary");
+        List<Socket> sockets = join(ns, room, 2);
+
+        room.emit("event", new ByteArrayInputStream(new byte[]{1, 2, 3}));
+
+        for (Socket socket : sockets)
+        {
+            assertThat(packets(socket)).hasSize(2);
+            assertThat(packets(socket).get(1).getBinaryData().available()).isEqualTo(3);
+        }
+    }
+
+    @Test
+    public void binaryBroadcastDeliversAttachmentToEveryCodec() throws Exception
+    {
+        Namespace ns = namespace(NS);
+        Room room = ns.room("binary-codecs");
+        List<Socket> sockets = join(ns, room, 2);
+        Socket msgpack = sockets.get(0);
+        Socket json = sockets.get(1);
+        msgpack.getSession().setCodec(MessagePackCodec.INSTANCE);
+
+        room.emit("event", new ByteArrayInputStream(new byte[]{1, 2, 3}));
+
+        assertThat(packets(json)).hasSize(2);
+        assertThat(packets(json).get(1).getBinaryData().available()).isEqualTo(3);
+
+        assertThat(packets(msgpack)).hasSize(1);
+        EventPacket event = (EventPacket) MessagePackCodec.INSTANCE.createDecoder().decode(packets(msgpack).get(0));
+        assertThat(event.getArgs()).hasSize(1);
+        assertThat(ByteStreams.toByteArray((InputStream) event.getArgs()[0])).containsExactly(1, 2, 3);
+    }
+
+    @Test
+    public void eventDroppedByOutboundBufferIsCountedAsDropped() throws Exception
+    {
+        Namespace ns = namespace(NS);
+        Room room = ns.room("full-buffer");
+        join(ns, room, 1);
+        room.join(connect(ns, new RecordingTransportConnection()
+        {
+            @Override
+            public boolean send(EncodedPacket packet)
+            {
+                return false; // the buffer is full
+            }
+        }));
+
+        BroadcastStats stats = room.emitAsync("event").get();
+        assertThat(stats.getTargets()).isEqualTo(2);
+        assertThat(stats.getDelivered()).isEqualTo(1);
+        assertThat(stats.getDropped()).isEqualTo(1);
+    }
+
+    @Test
+    public void failingSocketDoesNotStopDelivery() throws Exception
+    {
+        Namespace ns = namespace(NS);
+        Room room = ns.room("failing");
+        final AtomicBoolean closing = new AtomicBoolean();
+        room.join(connect(ns, new RecordingTransportConnection()
+        {
+            @Override
+            public boolean send(EncodedPacket packet) throws SocketIOException
+            {
+                if (closing.get())
+                    throw new NullPointerException("connection is closed meanwhile");
+                return super.send(packet);
+            }
+        }));
+        List<Socket> sockets = join(ns, room, 2);
+        closing.set(true);
+
+        BroadcastStats stats = room.emitAsync("event").get();
+        assertThat(stats.getDelivered()).isEqualTo(2);
+        for (Socket socket : sockets)
+            assertThat(packets(socket)).hasSize(1);
+    }
+}
@@ -0,0 +1,145 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Alexander Sova (bird@codeminders.com)
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.codeminders.socketio.server;
+
+import com.codeminders.socketio.common.SocketIOException;
+import com.codeminders.socketio.protocol.EngineIOPacket;
+import com.codeminders.socketio.protocol.EngineIOProtocol;
+import com.google.common.util.concurrent.ListenableFuture;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static com.codeminders.socketio.server.SocketFixtures.connect;
+import static com.codeminders.socketio.server.SocketFixtures.connection;
+import static com.codeminders.socketio.server.SocketFixtures.namespace;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.fail;
+
+public class EmitWithAckTest
+{
+    private static final String NS = "/ack-test";
+
+    /**
+     * Acknowledges the last event sent to the socket
+     */
+    private static void ack(Socket socket, String args) throws SocketIOException
+    {
+        List<EngineIOPacket> packets = connection(socket).getPackets();
+        String event = packets.get(packets.size() - 1).getTextData();
+        String id = event.substring(event.indexOf(',') + 1, event.indexOf('['));
+
+        socket.getSession().onPacket(
+                EngineIOProtocol.createMessagePacket("3" + NS + "," + id + args), connection(socket));
+    }
+
+    @Test
+    public void futureCompletesWithACK() throws Exception
+    {
+        Socket socket = connect(namespace(NS));
+        ListenableFuture<Object[]> future = socket.emitWithAck("question", new Object[]{"x"}, 10000);
+
+        assertThat(connection(socket).getPackets().get(0).getTextData())
+                .isEqualTo("2" + NS + ",0[\"question\",\"x\"]");
+        assertThat(future.isDone()).isFalse();
+
+        ack(socket, "[\"answer\",42]");
+
+        assertThat(future.get(0, TimeUnit.MILLISECONDS)).containsExactly("answer", 42);
+    }
+
+    @Test
+    public void futureTimesOut() throws Exception
+    {
+        Socket socket = connect(namespace(NS));
+        ListenableFuture<Object[]> future = socket.emitWithAck("question", new Object[0], 200);
+
+        try
+        {
+            future.get(5, TimeUnit.SECONDS);
+            fail("ACK should time out");
+        }
+        catch (ExecutionException e)
+        {
+            assertThat(e.getCause()).isInstanceOf(TimeoutException.class);
+        }
+    }
+
+    @Test
+    public void futureFailsOnDisconnect() throws Exception
+    {
+        Socket socket = connect(namespace(NS));
+        ListenableFuture<Object[]> future = socket.emitWithAck("question", new Object[0], 10000);
+
+        connection(socket).abort();
+
+        try
+        {
+            future.get(0, TimeUnit.MILLISECONDS);
+            fail("ACK should fail");
+        }
+        catch (ExecutionException e)
+        {
+            assertThat(e.getCause()).isInstanceOf(SocketIOClosedException.class);
+        }
+    }
+
+    @Test
+    public void roomCollectsResponsesOfConnectedSockets() throws Exception
+    {
+        List<Socket> sockets = new ArrayList<>();
+        for (int i = 0; i < 3; i++)
+            sockets.add(connect(namespace(NS)));
+
+        Room room = SocketIOManager.getInstance().getNamespace(NS).room("collect");
+        for (Socket socket : sockets)
+            room.join(socket);
+
+        ListenableFuture<Map<Socket, Object[]>> future = room.emitWithAck("vote", new Object[0], 10000);
+
+        ack(sockets.get(2), "[\"no\"]");
+        ack(sockets.get(0), "[\"yes\"]");
+        assertThat(future.isDone()).isFalse();
+
+        connection(sockets.get(1)).abort();
+
+        Map<Socket, Object[]> responses = future.get(0, TimeUnit.MILLISECONDS);
+        assertThat(responses.keySet()).containsExactly(sockets.get(0), sockets.get(2));
+        assertThat(responses.get(sockets.get(0))).containsExactly("yes");
+        assertThat(responses.get(sockets.get(2))).containsExactly("no");
+    }
+
+    @Test
+    public void emptyRoomCompletesImmediately() throws Exception
+    {
+        connect(namespace(NS));
+        Room room = SocketIOManager.getInstance().getNamespace(NS).room("empty");
+
+        assertThat(room.emitWithAck("vote", new Object[0], 10000).get(0, TimeUnit.MILLISECONDS)).isEmpty();
+    }
+}
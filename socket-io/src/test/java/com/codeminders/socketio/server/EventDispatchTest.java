@@ -0,0 +1,143 @@
+package com.codeminders.socketio.server;
+
+import com.codeminders.socketio.common.SocketIOException;
+import com.codeminders.socketio.protocol.ACKPacket;
+import com.codeminders.socketio.protocol.EncodedPacket;
+import com.codeminders.socketio.protocol.EngineIOPacket;
+import com.codeminders.socketio.protocol.EngineIOProtocol;
+import com.codeminders.socketio.protocol.EventPacket;
+import com.codeminders.socketio.protocol.MessagePackCodec;
+import com.codeminders.socketio.protocol.SocketIOProtocol;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.fail;
+
+public class EventDispatchTest
+{
+    private static final String MALFORMED = "2[\"telemetry\",{\"cpu\":";
+
+    public static class Move
+    {
+        public int    x;
+        public int    y;
+        public String piece;
+    }
+
+    @Test
+    public void unhandledEventIsNotDecoded() throws IOException
+    {
+        Socket socket = RecordingTransportConnection.connect().getSession().createSocket(SocketIOProtocol.DEFAULT_NAMESPACE);
+
+        assertThat(socket.onEvent((EventPacket) SocketIOProtocol.decode(MALFORMED))).isNull();
+
+        socket.on("telemetry", new EventListener()
+        {
+            @Override
+            public Object onEvent(String name, Object[] args, boolean ackRequested)
+            {
+                fail("Listener called with malformed arguments");
+                return null;
+            }
+        });
+
+        try
+        {
+            socket.onEvent((EventPacket) SocketIOProtocol.decode(MALFORMED));
+            fail("Malformed arguments decoded");
+        }
+        catch (IllegalArgumentException e)
+        {
+            // expected
+        }
+    }
+
+    @Test
+    public void streamingListenerReadsArgs() throws SocketIOException
+    {
+        RecordingTransportConnection connection = RecordingTransportConnection.connect();
+        Socket socket = connection.getSession().createSocket(SocketIOProtocol.DEFAULT_NAMESPACE);
+        socket.on("sum", new StreamingEventListener()
+        {
+            @Override
+            public Object onEvent(String name, JsonParser args, boolean ackRequested) throws IOException
+            {
+                int sum = 0;
+                while (args.nextToken() != JsonToken.END_ARRAY)
+                    sum += args.getIntValue();
+                return sum;
+            }
+        });
+
+        connection.getSession().onPacket(EngineIOProtocol.createMessagePacket("21[\"sum\",1,2,3]"), connection);
+
+        assertThat(connection.getPackets()).hasSize(1);
+        assertThat(connection.getPackets().get(0).getTextData()).isEqualTo("31[6]");
+
+        // the same listener works for events which do not come from the client
+        assertThat(socket.onEvent("sum", new Object[]{4, 5}, false)).isEqualTo(9);
+    }
+
+    @Test
+    public void typedListenerBindsArgument() throws IOException
+    {
+        Socket socket = RecordingTransportConnection.connect().getSession().createSocket(SocketIOProtocol.DEFAULT_NAMESPACE);
+        socket.on("move", Move.class, new TypedEventListener<Move>()
+        {
+            @Override
+            public Object onEvent(String name, Move move, boolean ackRequested)
+            {
+                return move == null ? "none" : move.piece + move.x + move.y;
+            }
+        });
+
+        assertThat(socket.onEvent((EventPacket) SocketIOProtocol.decode("2[\"move\",{\"piece\":\"K\",\"x\":4,\"y\":7},\"extra\"]")))
+                .isEqualTo("K47");
+        assertThat(socket.onEvent((EventPacket) SocketIOProtocol.decode("2[\"move\"]"))).isEqualTo("none");
+
+        Map<String, Object> move = new LinkedHashMap<>();
+        move.put("piece", "Q");
+        move.put("x", 1);
+        move.put("y", 2);
+        assertThat(socket.onEvent("move", new Object[]{move}, false)).isEqualTo("Q12");
+    }
+
+    @Test
+    public void messagePackSessionDispatchesEvents() throws IOException
+    {
+        RecordingTransportConnection connection = RecordingTransportConnection.connect();
+        connection.getSession().setCodec(MessagePackCodec.INSTANCE);
+        Socket socket = connection.getSession().createSocket(SocketIOProtocol.DEFAULT_NAMESPACE);
+        socket.on("move", Move.class, new TypedEventListener<Move>()
+        {
+            @Override
+            public Object onEvent(String name, Move move, boolean ackRequested)
+            {
+                return move.piece + move.x + move.y;
+            }
+        });
+
+        Map<String, Object> move = new LinkedHashMap<>();
+        move.put("piece", "K");
+        move.put("x", 4);
+        move.put("y", 7);
+        EncodedPacket event = MessagePackCodec.INSTANCE.encode(
+                SocketIOProtocol.createEventPacket(3, SocketIOProtocol.DEFAULT_NAMESPACE, "move", new Object[]{move}));
+        connection.getSession().onPacket(event.createBinaryPackets().get(0), connection);
+
+        // ACK is sent back as a single binary message
+        assertThat(connection.getPackets()).hasSize(1);
+        EngineIOPacket ack = connection.getPackets().get(0);
+        assertThat(ack.getTextData()).isNull();
+
+        ACKPacket packet = (ACKPacket) MessagePackCodec.INSTANCE.createDecoder().decode(ack);
+        assertThat(packet.getId()).isEqualTo(3);
+        assertThat(packet.getArgs()).containsExactly("K47");
+    }
+}
@@ -0,0 +1,253 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Alexander Sova (bird@codeminders.com)
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.codeminders.socketio.server;
+
+import com.codeminders.socketio.protocol.EngineIOProtocol;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class EventLoopGroupTest
+{
+    private static final String NS = "/loop-test";
+
+    private EventLoopGroup loops;
+
+    @Before
+    public void setUp()
+    {
+        loops = new EventLoopGroup(2, 128);
+        if (SocketIOManager.getInstance().getNamespace(NS) == null)
+            SocketIOManager.getInstance().createNamespace(NS);
+    }
+
+    @After
+    public void tearDown()
+    {
+        SocketIOManager.getInstance().setEventLoopGroup(null);
+        loops.shutdown();
+    }
+
+    private static void await(CountDownLatch latch) throws InterruptedException
+    {
+        assertThat(latch.await(5, TimeUnit.SECONDS)).isTrue();
+    }
+
+    @Test
+    public void sessionEventsRunOnItsLoopInOrder() throws Exception
+    {
+        SocketIOManager.getInstance().setEventLoopGroup(loops);
+        RecordingTransportConnection connection = RecordingTransportConnection.connect();
+        SocketIOManager.getInstance().setEventLoopGroup(null);
+
+        final int events = 100;
+        final List<Object> received = new CopyOnWriteArrayList<>();
+        final List<String> threads = new CopyOnWriteArrayList<>();
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(events);
+
+        Socket socket = connection.getSession().createSocket(NS);
+        socket.on("event", new EventListener()
+        {
+            @Override
+            public Object onEvent(String name, Object[] args, boolean ackRequested)
+            {
+                try
+                {
+                    release.await();
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                }
+                received.add(args[0]);
+                threads.add(Thread.currentThread().getName());
+                done.countDown();
+                return null;
+            }
+        });
+
+        // the listener is blocked, but the calling thread is not
+        for (int i = 0; i < events; i++)
+            connection.getSession().onPacket(EngineIOProtocol.createMessagePacket("2" + NS + ",[\"event\"," + i + "]"),
+                    connection);
+        assertThat(received).isEmpty();
+
+        release.countDown();
+        await(done);
+
+        for (int i = 0; i < events; i++)
+            assertThat(received.get(i)).isEqualTo(i);
+        assertThat(threads.get(0)).startsWith("socket.io-loop-");
+        assertThat(threads).containsOnly(threads.get(0));
+    }
+
+    @Test
+    public void sessionsAreSpreadOverLoops()
+    {
+        assertThat(loops.next()).isNotSameAs(loops.next());
+    }
+
+    @Test
+    public void fullQueueBlocksProducer() throws Exception
+    {
+        final EventLoopGroup single = new EventLoopGroup(1, 1);
+        try
+        {
+            final Executor loop = single.next();
+            final CountDownLatch started = new CountDownLatch(1);
+            final CountDownLatch release = new CountDownLatch(1);
+            final CountDownLatch done = new CountDownLatch(3);
+            Runnable task = new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    done.countDown();
+                }
+            };
+
+            loop.execute(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    started.countDown();
+                    try
+                    {
+                        release.await();
+                    }
+                    catch (InterruptedException e)
+                    {
+                        Thread.currentThread().interrupt();
+                    }
+                    done.countDown();
+                }
+            });
+            await(started);
+            loop.execute(task); // takes the only place in the queue
+
+            final CountDownLatch submitted = new CountDownLatch(1);
+            final Runnable last = task;
+            Thread producer = new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    loop.execute(last);
+                    submitted.countDown();
+                }
+            };
+            producer.start();
+
+            assertThat(submitted.await(200, TimeUnit.MILLISECONDS)).isFalse();
+
+            release.countDown();
+            await(submitted);
+            await(done);
+        }
+        finally
+        {
+            single.shutdown();
+        }
+    }
+
+    @Test
+    public void taskHandedOverByLoopIsQueued() throws Exception
+    {
+        final Executor loop = loops.next();
+        final List<String> order = new CopyOnWriteArrayList<>();
+        final CountDownLatch done = new CountDownLatch(1);
+
+        loop.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                loop.execute(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        order.add("inner");
+                        done.countDown();
+                    }
+                });
+                order.add("outer");
+            }
+        });
+
+        await(done);
+        assertThat(order).containsExactly("outer", "inner");
+    }
+
+    @Test
+    public void loopRunsTaskRightAwayWhenItsQueueIsFull() throws Exception
+    {
+        final EventLoopGroup single = new EventLoopGroup(1, 1);
+        try
+        {
+            final Executor loop = single.next();
+            final List<String> order = new CopyOnWriteArrayList<>();
+            final CountDownLatch done = new CountDownLatch(3);
+
+            loop.execute(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    for (final String name : new String[]{"queued", "inline"})
+                    {
+                        loop.execute(new Runnable()
+                        {
+                            @Override
+                            public void run()
+                            {
+                                order.add(name);
+                                done.countDown();
+                            }
+                        });
+                    }
+                    order.add("outer");
+                    done.countDown();
+                }
+            });
+
+            await(done);
+            assertThat(order).containsExactly("inline", "outer", "queued");
+        }
+        finally
+        {
+            single.shutdown();
+        }
+    }
+}
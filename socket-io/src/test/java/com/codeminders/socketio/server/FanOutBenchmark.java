@@ -0,0 +1,52 @@
+package com.codeminders.socketio.server;
+
+import com.codeminders.socketio.common.SocketIOException;
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * Broadcast to a room of 100k sockets: time the emitting thread is held and time to the last delivery,
+ * delivering on the emitting thread against the fan-out pool.
+ */
+public class FanOutBenchmark
+{
+    private static final int SOCKETS    = 100000;
+    private static final int BROADCASTS = 20;
+
+    public static void main(String[] args) throws Exception
+    {
+        Namespace ns = SocketIOManager.getInstance().createNamespace("/fanout-benchmark");
+        Room room = ns.room("large");
+        for (int i = 0; i < SOCKETS; i++)
+            room.join(RecordingTransportConnection.connect().getSession().createSocket(ns.getId()));
+
+        int threads = Runtime.getRuntime().availableProcessors();
+        FanOutExecutor fanOut = new FanOutExecutor(threads, Config.DEFAULT_FAN_OUT_THRESHOLD,
+                Config.DEFAULT_FAN_OUT_CHUNK_SIZE);
+        for (int round = 0; round < 3; round++)
+        {
+            SocketIOManager.getInstance().setFanOutExecutor(null);
+            run("inline", room);
+            SocketIOManager.getInstance().setFanOutExecutor(fanOut);
+            run("fan-out x" + threads, room);
+        }
+        fanOut.shutdown();
+    }
+
+    private static void run(String label, Room room) throws Exception
+    {
+        long held = 0;
+        long total = 0;
+        BroadcastStats stats = null;
+        for (int i = 0; i < BROADCASTS; i++)
+        {
+            long start = System.nanoTime();
+            ListenableFuture<BroadcastStats> future = room.emitAsync("event", i);
+            held += System.nanoTime() - start;
+            stats = future.get();
+            total += System.nanoTime() - start;
+        }
+
+        System.out.printf("%-12s emitter held %8.1f us, delivered in %8.1f us (%s)%n", label,
+                held / 1000.0 / BROADCASTS, total / 1000.0 / BROADCASTS, stats);
+    }
+}
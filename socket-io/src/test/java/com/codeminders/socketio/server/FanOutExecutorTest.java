@@ -0,0 +1,133 @@
+package com.codeminders.socketio.server;
+
+import com.codeminders.socketio.protocol.EngineIOPacket;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.io.ByteStreams;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static com.codeminders.socketio.server.SocketFixtures.join;
+import static com.codeminders.socketio.server.SocketFixtures.namespace;
+import static com.codeminders.socketio.server.SocketFixtures.packets;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class FanOutExecutorTest
+{
+    private FanOutExecutor fanOut;
+
+    @Before
+    public void setUp()
+    {
+        fanOut = new FanOutExecutor(4, 10, 16);
+        SocketIOManager.getInstance().setFanOutExecutor(fanOut);
+    }
+
+    @After
+    public void tearDown()
+    {
+        SocketIOManager.getInstance().setFanOutExecutor(null);
+        fanOut.shutdown();
+    }
+
+    @Test
+    public void smallRoomIsDeliveredInline() throws Exception
+    {
+        Namespace ns = namespace("/fanout-inline-test");
+        Room room = ns.room("small");
+        List<Socket> sockets = join(ns, room, 3);
+
+        ListenableFuture<BroadcastStats> future = room.emitAsync("event", 1);
+
+        assertThat(future.isDone()).isTrue();
+        assertThat(future.get().getTargets()).isEqualTo(3);
+        assertThat(future.get().getDelivered()).isEqualTo(3);
+        for (Socket socket : sockets)
+            assertThat(packets(socket)).hasSize(1);
+    }
+
+    @Test
+    public void largeRoomIsDeliveredOnceToEverySocket() throws Exception
+    {
+        Namespace ns = namespace("/fanout-large-test");
+        Room room = ns.room("large");
+        List<Socket> sockets = join(ns, room, 500);
+
+        BroadcastStats stats = room.emitAsync("event", "hello").get(10, TimeUnit.SECONDS);
+
+        assertThat(stats.getTargets()).isEqualTo(500);
+        assertThat(stats.getDelivered()).isEqualTo(500);
+        assertThat(stats.getDropped()).isZero();
+
+        EngineIOPacket first = packets(sockets.get(0)).get(0);
+        for (Socket socket : sockets)
+        {
+            assertThat(packets(socket)).hasSize(1);
+            assertThat(packets(socket).get(0)).isSameAs(first);
+        }
+    }
+
+    @Test
+    public void emitKeepsOrderWithOtherEvents() throws Exception
+    {
+        Namespace ns = namespace("/fanout-order-test");
+        Room room = ns.room("ordered");
+        List<Socket> sockets = join(ns, room, 500);
+
+        room.emit("first");
+        for (Socket socket : sockets)
+            socket.emit("second");
+
+        for (Socket socket : sockets)
+        {
+            assertThat(packets(socket)).hasSize(2);
+            assertThat(packets(socket).get(0).getTextData()).contains("first");
+            assertThat(packets(socket).get(1).getTextData()).contains("second");
+        }
+    }
+
+    @Test
+    public void binaryBroadcastIsEncodedOnceForAllChunks() throws Exception
+    {
+        Namespace ns = namespace("/fanout-binary-test");
+        Room room = ns.room("binary");
+        List<Socket> sockets = join(ns, room, 300);
+
+        byte[] data = new byte[64 * 1024];
+        new Random(1).nextBytes(data);
+
+        // the stream is read by encoding. chunks running in parallel must not read it again
+        BroadcastStats stats = room.emitAsync("event", new ByteArrayInputStream(data)).get(10, TimeUnit.SECONDS);
+
+        assertThat(stats.getDelivered()).isEqualTo(300);
+        for (Socket socket : sockets)
+        {
+            assertThat(packets(socket)).hasSize(2);
+            assertThat(ByteStreams.toByteArray(packets(socket).get(1).getBinaryData())).isEqualTo(data);
+        }
+    }
+
+    @Test
+    public void disconnectedSocketsAreDroppedAndSenderSkipped() throws Exception
+    {
+        Namespace ns = namespace("/fanout-dropped-test");
+        Room room = ns.room("dropped");
+        List<Socket> sockets = join(ns, room, 100);
+        for (int i = 1; i <= 5; i++)
+            ((RecordingTransportConnection) sockets.get(i).getSession().getConnection()).abort();
+
+        // the recipients were listed before the sockets disconnected
+        BroadcastStats stats = ns.broadcast(null, sockets, sockets.get(0), "event", new Object[0], true)
+                .get(10, TimeUnit.SECONDS);
+
+        assertThat(stats.getTargets()).isEqualTo(99);
+        assertThat(stats.getDelivered()).isEqualTo(94);
+        assertThat(stats.getDropped()).isEqualTo(5);
+        assertThat(packets(sockets.get(0))).isEmpty();
+    }
+}
@@ -0,0 +1,128 @@
+package com.codeminders.socketio.server;
+
+import com.google.common.util.concurrent.MoreExecutors;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Compares heartbeat timeouts tracked by {@link TimingWheel} with a {@code ScheduledFuture}
+ * cancelled and scheduled again for every received message.
+ * <p>
+ * Run with {@code java -cp ... com.codeminders.socketio.server.HeartbeatBenchmark}.
+ * Receiving a message only writes a timestamp with the wheel, while the scheduled executor
+ * pays for the delay queue and keeps cancelled tasks until they are due.
+ * The sweep shows the cost of a tick and of expiring all the sessions at once.
+ */
+public class HeartbeatBenchmark
+{
+    private static final int[]  SESSIONS = {100000, 200000};
+    private static final int    MESSAGES = 2000000;
+    private static final long   TIMEOUT  = 85000; // default pingInterval + pingTimeout
+    private static final int    TICK     = 100;
+
+    private static final Runnable NOOP = new Runnable()
+    {
+        @Override
+        public void run()
+        {
+        }
+    };
+
+    private static class SessionTimeout extends TimingWheel.Timeout
+    {
+        private static final AtomicInteger expired = new AtomicInteger();
+
+        SessionTimeout(TimingWheel wheel)
+        {
+            super(wheel);
+        }
+
+        @Override
+        long getDeadline()
+        {
+            return getLastActivity() + TIMEOUT;
+        }
+
+        @Override
+        void expire()
+        {
+            expired.incrementAndGet();
+        }
+    }
+
+    public static void main(String[] args)
+    {
+        for (int sessions : SESSIONS)
+        {
+            System.out.printf("%d sessions%n", sessions);
+            scheduledFutures(sessions);
+            timingWheel(sessions);
+        }
+    }
+
+    private static void scheduledFutures(int sessions)
+    {
+        ScheduledThreadPoolExecutor executor = (ScheduledThreadPoolExecutor) Executors.newScheduledThreadPool(1);
+        ScheduledFuture<?>[] timeouts = new ScheduledFuture<?>[sessions];
+        for (int i = 0; i < sessions; i++)
+            timeouts[i] = executor.schedule(NOOP, TIMEOUT, TimeUnit.MILLISECONDS);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < MESSAGES; i++)
+        {
+            int session = i % sessions;
+            timeouts[session].cancel(false);
+            timeouts[session] = executor.schedule(NOOP, TIMEOUT, TimeUnit.MILLISECONDS);
+        }
+        long elapsed = System.nanoTime() - start;
+
+        System.out.printf("  scheduled future: %8.1f ns/message, %d tasks queued%n",
+                (double) elapsed / MESSAGES, executor.getQueue().size());
+        executor.shutdownNow();
+    }
+
+    private static void timingWheel(int sessions)
+    {
+        // ticks are driven by the benchmark to measure them
+        TimingWheel wheel = new TimingWheel(null, MoreExecutors.directExecutor(), TICK, 512);
+        SessionTimeout[] timeouts = new SessionTimeout[sessions];
+        for (int i = 0; i < sessions; i++)
+        {
+            timeouts[i] = new SessionTimeout(wheel);
+            wheel.schedule(timeouts[i]);
+        }
+        wheel.advance(0);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < MESSAGES; i++)
+            timeouts[i % sessions].touch();
+        long elapsed = System.nanoTime() - start;
+
+        System.out.printf("  timing wheel:     %8.1f ns/message%n", (double) elapsed / MESSAGES);
+
+        // sessions are spread over the wheel as their deadlines come around, nothing expires yet
+        long ticks = 0;
+        long sweep = 0;
+        long slowest = 0;
+        for (long now = TICK; now < TIMEOUT; now += TICK, ticks++)
+        {
+            start = System.nanoTime();
+            wheel.advance(now);
+            long tick = System.nanoTime() - start;
+            sweep += tick;
+            slowest = Math.max(slowest, tick);
+        }
+        System.out.printf("  tick:             %8.1f us average, %8.1f us slowest%n",
+                sweep / 1000.0 / ticks, slowest / 1000.0);
+
+        start = System.nanoTime();
+        wheel.advance(TIMEOUT + TICK);
+        elapsed = System.nanoTime() - start;
+        System.out.printf("  expiry:           %8.1f ms for %d sessions%n",
+                elapsed / 1000000.0, SessionTimeout.expired.getAndSet(0));
+    }
+}
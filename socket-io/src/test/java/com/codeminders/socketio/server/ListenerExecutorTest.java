@@ -0,0 +1,197 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Alexander Sova (bird@codeminders.com)
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.codeminders.socketio.server;
+
+import com.codeminders.socketio.protocol.EngineIOProtocol;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ListenerExecutorTest
+{
+    private static final String NS = "/listener-executor-test";
+
+    private ExecutorService pool;
+
+    @Before
+    public void setUp()
+    {
+        pool = Executors.newFixedThreadPool(4);
+        if (SocketIOManager.getInstance().getNamespace(NS) == null)
+            SocketIOManager.getInstance().createNamespace(NS);
+    }
+
+    @After
+    public void tearDown()
+    {
+        SocketIOManager.getInstance().setListenerExecutor(null);
+        pool.shutdownNow();
+    }
+
+    @Test
+    public void tasksRunInOrderOneAtATime() throws Exception
+    {
+        SerialExecutor executor = new SerialExecutor(pool);
+        final int tasks = 10000;
+        final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger overlaps = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(tasks);
+
+        for (int i = 0; i < tasks; i++)
+        {
+            final int n = i;
+            executor.execute(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    if (running.incrementAndGet() != 1)
+                        overlaps.incrementAndGet();
+                    order.add(n);
+                    running.decrementAndGet();
+                    done.countDown();
+                }
+            });
+        }
+
+        assertThat(done.await(5, TimeUnit.SECONDS)).isTrue();
+        assertThat(overlaps.get()).isZero();
+        for (int i = 0; i < tasks; i++)
+            assertThat(order.get(i)).isEqualTo(i);
+    }
+
+    @Test
+    public void failedTaskDoesNotStopOthers() throws Exception
+    {
+        SerialExecutor executor = new SerialExecutor(pool);
+        final CountDownLatch done = new CountDownLatch(1);
+
+        executor.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                throw new IllegalStateException("listener failure");
+            }
+        });
+        executor.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                done.countDown();
+            }
+        });
+
+        assertThat(done.await(5, TimeUnit.SECONDS)).isTrue();
+    }
+
+    @Test
+    public void tasksRunOnCallingThreadOnceExecutorIsShutDown()
+    {
+        ExecutorService stopped = Executors.newSingleThreadExecutor();
+        stopped.shutdown();
+        SerialExecutor executor = new SerialExecutor(stopped);
+        final List<Thread> threads = new ArrayList<>();
+
+        for (int i = 0; i < 2; i++)
+        {
+            executor.execute(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    threads.add(Thread.currentThread());
+                }
+            });
+        }
+
+        assertThat(threads).containsExactly(Thread.currentThread(), Thread.currentThread());
+    }
+
+    @Test
+    public void sessionListenersRunOnExecutor() throws Exception
+    {
+        SocketIOManager.getInstance().setListenerExecutor(pool);
+        RecordingTransportConnection connection = RecordingTransportConnection.connect();
+        SocketIOManager.getInstance().setListenerExecutor(null);
+
+        final int events = 100;
+        final List<Object> received = new CopyOnWriteArrayList<>();
+        final List<Thread> threads = new CopyOnWriteArrayList<>();
+        final CountDownLatch done = new CountDownLatch(events);
+
+        Socket socket = connection.getSession().createSocket(NS);
+        socket.on("event", new EventListener()
+        {
+            @Override
+            public Object onEvent(String name, Object[] args, boolean ackRequested)
+            {
+                received.add(args[0]);
+                threads.add(Thread.currentThread());
+                done.countDown();
+                return null;
+            }
+        });
+
+        for (int i = 0; i < events; i++)
+            connection.getSession().onPacket(EngineIOProtocol.createMessagePacket("2" + NS + ",[\"event\"," + i + "]"),
+                    connection);
+
+        assertThat(done.await(5, TimeUnit.SECONDS)).isTrue();
+        for (int i = 0; i < events; i++)
+            assertThat(received.get(i)).isEqualTo(i);
+        assertThat(threads).doesNotContain(Thread.currentThread());
+    }
+
+    @Test
+    public void virtualThreadsAreUsedWhenAvailable()
+    {
+        String version = System.getProperty("java.specification.version");
+        boolean supported = !version.startsWith("1.") && Integer.parseInt(version) >= 21;
+
+        ExecutorService executor = SocketIOManager.newVirtualThreadExecutor();
+        try
+        {
+            assertThat(executor != null).isEqualTo(supported);
+        }
+        finally
+        {
+            if (executor != null)
+                executor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package com.codeminders.socketio.server;
+
+import com.codeminders.socketio.common.SocketIOException;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static com.codeminders.socketio.server.SocketFixtures.connect;
+import static com.codeminders.socketio.server.SocketFixtures.namespace;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class NamespaceTest
+{
+    @Test
+    public void socketsAreFoundById() throws SocketIOException
+    {
+        Namespace ns = namespace("/namespace-lookup-test");
+        Socket first = connect(ns);
+        Socket second = connect(ns);
+
+        assertThat(ns.getSocketCount()).isEqualTo(2);
+        assertThat(ns.getSocket(first.getId())).isSameAs(first);
+        assertThat(ns.getSockets()).containsOnly(first, second);
+
+        ((RecordingTransportConnection) first.getSession().getConnection()).abort();
+
+        assertThat(ns.getSocketCount()).isEqualTo(1);
+        assertThat(ns.getSocket(first.getId())).isNull();
+        assertThat(ns.getSocket(second.getId())).isSameAs(second);
+    }
+
+    @Test
+    public void staleSnapshotDoesNotReachSocketReusingHandle() throws SocketIOException
+    {
+        Namespace ns = namespace("/namespace-handle-reuse-test");
+        Socket first = connect(ns);
+        ns.room("room").join(first);
+
+        // snapshot of the room taken while the first socket is there
+        int[] snapshot = {first.getHandle()};
+        long generation = first.getGeneration();
+
+        ((RecordingTransportConnection) first.getSession().getConnection()).abort();
+        Socket second = connect(ns);
+        assertThat(second.getHandle()).isEqualTo(snapshot[0]);
+
+        assertThat(ns.getSockets(snapshot, generation, Collections.singleton("room"),
+                Collections.<String>emptySet())).isEmpty();
+
+        ns.room("room").join(second);
+        assertThat(ns.getSockets(snapshot, generation, Collections.singleton("room"),
+                Collections.<String>emptySet())).containsExactly(second);
+    }
+
+    @Test
+    public void emitWhileSocketsConnectAndDisconnect() throws Exception
+    {
+        final Namespace ns = namespace("/namespace-churn-test");
+        for (int i = 0; i < 1000; i++)
+            connect(ns);
+
+        final AtomicBoolean done = new AtomicBoolean();
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try
+        {
+            Future<Integer> churn = executor.submit(new Callable<Integer>()
+            {
+                @Override
+                public Integer call() throws Exception
+                {
+                    int count = 0;
+                    while (!done.get())
+                    {
+                        Socket socket = connect(ns);
+                        ((RecordingTransportConnection) socket.getSession().getConnection()).abort();
+                        count++;
+                    }
+                    return count;
+                }
+            });
+            Future<Integer> broadcasts = executor.submit(new Callable<Integer>()
+            {
+                @Override
+                public Integer call() throws Exception
+                {
+                    for (int i = 0; i < 200; i++)
+                        ns.emit("event", i);
+                    done.set(true);
+                    return 200;
+                }
+            });
+
+            assertThat(broadcasts.get()).isEqualTo(200);
+            assertThat(churn.get()).isPositive();
+        }
+        finally
+        {
+            done.set(true);
+            executor.shutdown();
+        }
+
+        assertThat(ns.getSocketCount()).isEqualTo(1000);
+        List<Socket> sockets = new ArrayList<>();
+        for (Socket socket : ns.getSockets())
+            sockets.add(socket);
+        assertThat(sockets).hasSize(1000);
+    }
+}
@@ -0,0 +1,70 @@
+package com.codeminders.socketio.server;
+
+import com.codeminders.socketio.common.SocketIOException;
+import com.codeminders.socketio.protocol.EngineIOPacket;
+import com.codeminders.socketio.protocol.SocketIOProtocol;
+import com.codeminders.socketio.server.transport.AbstractTransportConnection;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Transport connection keeping all the packets sent to the client in memory
+ */
+public class RecordingTransportConnection extends AbstractTransportConnection
+{
+    private final List<EngineIOPacket> packets = new CopyOnWriteArrayList<>();
+
+    public RecordingTransportConnection()
+    {
+        super(null);
+    }
+
+    /**
+     * Creates new session connected through a test connection
+     *
+     * @return connection
+     */
+    public static RecordingTransportConnection connect() throws SocketIOException
+    {
+        SocketIOManager manager = SocketIOManager.getInstance();
+        if (manager.getNamespace(SocketIOProtocol.DEFAULT_NAMESPACE) == null)
+            manager.createNamespace(SocketIOProtocol.DEFAULT_NAMESPACE);
+
+        RecordingTransportConnection connection = new RecordingTransportConnection();
+        connection.setSession(manager.createSession(null));
+        connection.getSession().onConnect(connection);
+        connection.packets.clear();
+        return connection;
+    }
+
+    public List<EngineIOPacket> getPackets()
+    {
+        return packets;
+    }
+
+    @Override
+    public void handle(HttpServletRequest request, HttpServletResponse response)
+    {
+    }
+
+    @Override
+    public void abort()
+    {
+        getSession().onShutdown();
+    }
+
+    @Override
+    public boolean isWritable()
+    {
+        return true;
+    }
+
+    @Override
+    public void send(EngineIOPacket packet)
+    {
+        packets.add(packet);
+    }
+}
@@ -0,0 +1,99 @@
+package com.codeminders.socketio.server;
+
+import com.codeminders.socketio.common.SocketIOException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedDeque;
+
+/**
+ * Cost of leaving all the rooms on disconnect: scanning every room of the namespace
+ * against the rooms indexed by socket.
+ */
+public class RoomBenchmark
+{
+    private static final int[] ROOMS        = {20000, 200000};
+    private static final int   DISCONNECTS  = 1000;
+    private static final int   SOCKET_ROOMS = 3;
+
+    public static void main(String[] args) throws SocketIOException
+    {
+        for (int rooms : ROOMS)
+        {
+            System.out.printf("%d rooms%n", rooms);
+            scan(rooms);
+            index(rooms);
+        }
+    }
+
+    private static List<Socket> connect(Namespace ns, int count) throws SocketIOException
+    {
+        List<Socket> sockets = new ArrayList<>(count);
+        for (int i = 0; i < count; i++)
+            sockets.add(RecordingTransportConnection.connect().getSession().createSocket(ns.getId()));
+        return sockets;
+    }
+
+    /**
+     * Former layout: synchronized map of rooms, each a deque scanned by contains() and remove()
+     */
+    private static void scan(int roomCount) throws SocketIOException
+    {
+        Namespace ns = SocketIOManager.getInstance().createNamespace("/scan-benchmark-" + roomCount);
+        Socket other = connect(ns, 1).get(0);
+        Map<String, ConcurrentLinkedDeque<Socket>> rooms =
+                Collections.synchronizedMap(new LinkedHashMap<String, ConcurrentLinkedDeque<Socket>>());
+        for (int i = 0; i < roomCount; i++)
+        {
+            ConcurrentLinkedDeque<Socket> room = new ConcurrentLinkedDeque<>();
+            room.add(other);
+            rooms.put("room" + i, room);
+        }
+
+        List<Socket> sockets = connect(ns, DISCONNECTS);
+        for (int i = 0; i < sockets.size(); i++)
+        {
+            for (int j = 0; j < SOCKET_ROOMS; j++)
+                rooms.get("room" + (i * SOCKET_ROOMS + j) % roomCount).add(sockets.get(i));
+        }
+
+        long start = System.nanoTime();
+        for (Socket socket : sockets)
+        {
+            for (ConcurrentLinkedDeque<Socket> room : rooms.values())
+            {
+                if (room.contains(socket))
+                    room.remove(socket);
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+
+        System.out.printf("  scan all rooms: %10.1f us/disconnect%n", elapsed / 1000.0 / DISCONNECTS);
+    }
+
+    private static void index(int roomCount) throws SocketIOException
+    {
+        Namespace ns = SocketIOManager.getInstance().createNamespace("/index-benchmark-" + roomCount);
+        Socket other = connect(ns, 1).get(0);
+        for (int i = 0; i < roomCount; i++)
+            ns.join("room" + i, other);
+
+        List<Socket> sockets = connect(ns, DISCONNECTS);
+        for (int i = 0; i < sockets.size(); i++)
+        {
+            for (int j = 0; j < SOCKET_ROOMS; j++)
+                ns.join("room" + (i * SOCKET_ROOMS + j) % roomCount, sockets.get(i));
+        }
+
+        long start = System.nanoTime();
+        for (Socket socket : sockets)
+            ns.leaveAll(socket);
+        long elapsed = System.nanoTime() - start;
+
+        System.out.printf("  socket index:   %10.1f us/disconnect, %d rooms left%n",
+                elapsed / 1000.0 / DISCONNECTS, ns.getRoomCount());
+    }
+}
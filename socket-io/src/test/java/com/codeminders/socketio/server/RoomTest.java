@@ -0,0 +1,134 @@
+package com.codeminders.socketio.server;
+
+import com.codeminders.socketio.common.SocketIOException;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.codeminders.socketio.server.SocketFixtures.connect;
+import static com.codeminders.socketio.server.SocketFixtures.namespace;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class RoomTest
+{
+    @Test
+    public void joinAndLeave() throws SocketIOException
+    {
+        Namespace ns = namespace("/room-test");
+        Room room = ns.room("members");
+        Socket first = connect(ns);
+        Socket second = connect(ns);
+
+        room.join(first);
+        room.join(second);
+        room.join(second);
+
+        assertThat(room.size()).isEqualTo(2);
+        assertThat(room.contains(first)).isTrue();
+        assertThat(room.getSockets()).containsOnly(first, second);
+        assertThat(second.getRooms()).containsExactly("members");
+
+        room.leave(first);
+
+        assertThat(room.size()).isEqualTo(1);
+        assertThat(room.contains(first)).isFalse();
+        assertThat(first.getRooms()).isEmpty();
+    }
+
+    @Test
+    public void emptyRoomIsReclaimed() throws SocketIOException
+    {
+        Namespace ns = namespace("/room-reclaim-test");
+        Room room = ns.room("transient");
+        Socket socket = connect(ns);
+
+        room.join(socket);
+        assertThat(ns.getRoomCount()).isEqualTo(1);
+
+        room.leave(socket);
+        assertThat(ns.getRoomCount()).isZero();
+        assertThat(room.size()).isZero();
+        assertThat(room.getSockets()).isEmpty();
+
+        // the handle is still valid
+        room.join(socket);
+        assertThat(ns.in("transient").contains(socket)).isTrue();
+    }
+
+    @Test
+    public void disconnectLeavesOnlyJoinedRooms() throws SocketIOException
+    {
+        Namespace ns = namespace("/room-disconnect-test");
+        Socket other = connect(ns);
+        for (int i = 0; i < 1000; i++)
+            ns.room("room" + i).join(other);
+
+        Socket socket = connect(ns);
+        socket.join("room1");
+        socket.join("room2");
+        socket.join("own");
+        assertThat(ns.getRoomCount()).isEqualTo(1001);
+
+        ((RecordingTransportConnection) socket.getSession().getConnection()).abort();
+
+        assertThat(ns.getRoomCount()).isEqualTo(1000);
+        assertThat(ns.room("room1").getSockets()).containsExactly(other);
+        assertThat(ns.room("room2").size()).isEqualTo(1);
+        assertThat(socket.getRooms()).isEmpty();
+    }
+
+    @Test
+    public void concurrentJoinAndLeaveNeverLoseMembers() throws Exception
+    {
+        final Namespace ns = namespace("/room-concurrency-test");
+        final int threads = 4;
+        final int rooms = 3;
+        final AtomicInteger lost = new AtomicInteger();
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try
+        {
+            List<Future<Void>> futures = new ArrayList<>();
+            for (int t = 0; t < threads; t++)
+            {
+                final Socket socket = connect(ns);
+                futures.add(executor.submit(new Callable<Void>()
+                {
+                    @Override
+                    public Void call()
+                    {
+                        for (int i = 0; i < 50000; i++)
+                        {
+                            Room room = ns.room("room" + ThreadLocalRandom.current().nextInt(rooms));
+                            room.join(socket);
+
+                            // joining a room being reclaimed would lose the member
+                            if (!room.contains(socket))
+                                lost.incrementAndGet();
+
+                            room.leave(socket);
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> future : futures)
+                future.get(30, TimeUnit.SECONDS);
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+
+        assertThat(lost.get()).isZero();
+        assertThat(ns.getRoomCount()).isZero();
+    }
+}
@@ -0,0 +1,313 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Alexander Sova (bird@codeminders.com)
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.codeminders.socketio.server;
+
+import com.codeminders.socketio.common.ConnectionState;
+import com.codeminders.socketio.common.DisconnectReason;
+import com.codeminders.socketio.common.SocketIOException;
+import com.codeminders.socketio.protocol.EngineIOProtocol;
+import com.codeminders.socketio.protocol.SocketIOProtocol;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Hammers session lifecycle from several threads at once
+ */
+public class SessionConcurrencyTest
+{
+    private static final String NS       = "/concurrency-test";
+    private static final int    THREADS  = 4;
+    private static final int    ROUNDS   = 200;
+
+    private ExecutorService executor;
+
+    @Before
+    public void setUp()
+    {
+        executor = Executors.newFixedThreadPool(THREADS);
+        SocketIOManager manager = SocketIOManager.getInstance();
+        if (manager.getNamespace(NS) == null)
+            manager.createNamespace(NS);
+        if (manager.getNamespace(SocketIOProtocol.DEFAULT_NAMESPACE) == null)
+            manager.createNamespace(SocketIOProtocol.DEFAULT_NAMESPACE);
+    }
+
+    @After
+    public void tearDown()
+    {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Runs the tasks at the same moment and rethrows their failures
+     */
+    private void race(List<Callable<Void>> tasks) throws Exception
+    {
+        final CyclicBarrier barrier = new CyclicBarrier(tasks.size());
+        List<Future<Void>> futures = new ArrayList<>();
+        for (final Callable<Void> task : tasks)
+        {
+            futures.add(executor.submit(new Callable<Void>()
+            {
+                @Override
+                public Void call() throws Exception
+                {
+                    barrier.await(5, TimeUnit.SECONDS);
+                    return task.call();
+                }
+            }));
+        }
+        for (Future<Void> future : futures)
+            future.get(10, TimeUnit.SECONDS);
+    }
+
+    private static final class CountingListener implements DisconnectListener
+    {
+        final AtomicInteger calls = new AtomicInteger();
+
+        @Override
+        public void onDisconnect(Socket socket, DisconnectReason reason, String errorMessage)
+        {
+            calls.incrementAndGet();
+        }
+    }
+
+    @Test
+    public void disconnectRacingEmitAndConnectCallsListenersOnce() throws Exception
+    {
+        for (int round = 0; round < ROUNDS; round++)
+        {
+            final Session session = RecordingTransportConnection.connect().getSession();
+            final Socket socket = session.createSocket(NS);
+            final CountingListener listener = new CountingListener();
+            socket.on(listener);
+
+            final Queue<Socket> created = new ConcurrentLinkedQueue<>();
+            final CountingListener lateListener = new CountingListener();
+
+            List<Callable<Void>> tasks = new ArrayList<>();
+            for (int i = 0; i < 2; i++)
+            {
+                tasks.add(new Callable<Void>()
+                {
+                    @Override
+                    public Void call()
+                    {
+                        session.setDisconnectReason(DisconnectReason.DISCONNECT);
+                        session.onShutdown();
+                        return null;
+                    }
+                });
+            }
+            tasks.add(new Callable<Void>()
+            {
+                @Override
+                public Void call() throws SocketIOException
+                {
+                    for (int i = 0; i < 100; i++)
+                    {
+                        try
+                        {
+                            socket.emit("event", i);
+                        }
+                        catch (SocketIOClosedException e)
+                        {
+                            return null;
+                        }
+                    }
+                    return null;
+                }
+            });
+            tasks.add(new Callable<Void>()
+            {
+                @Override
+                public Void call()
+                {
+                    // socket connected to the default namespace is replaced, the old one stays connected
+                    Socket late = session.createSocket(SocketIOProtocol.DEFAULT_NAMESPACE);
+                    late.on(lateListener);
+                    created.add(late);
+                    return null;
+                }
+            });
+            race(tasks);
+
+            assertThat(session.getConnectionState()).isEqualTo(ConnectionState.CLOSED);
+            assertThat(listener.calls.get()).isEqualTo(1);
+            assertThat(SocketIOManager.getInstance().getSession(session.getSessionId())).isNull();
+            assertThat(SocketIOManager.getInstance().getNamespace(NS).getSockets()).doesNotContain(socket);
+
+            // listener could be added after the socket was disconnected, then it is never called
+            assertThat(lateListener.calls.get()).isLessThanOrEqualTo(1);
+            assertThat(SocketIOManager.getInstance().getNamespace(SocketIOProtocol.DEFAULT_NAMESPACE).getSockets())
+                    .doesNotContain(created.peek());
+        }
+    }
+
+    @Test
+    public void upgradeDuringEmitLosesNothing() throws Exception
+    {
+        for (int round = 0; round < ROUNDS / 10; round++)
+        {
+            final RecordingTransportConnection polling = RecordingTransportConnection.connect();
+            final Session session = polling.getSession();
+            final Socket socket = session.createSocket(NS);
+            final RecordingTransportConnection websocket = new RecordingTransportConnection();
+            websocket.setSession(session);
+            polling.getPackets().clear();
+
+            final int events = 500;
+            List<Callable<Void>> tasks = new ArrayList<>();
+            for (int t = 0; t < THREADS - 1; t++)
+            {
+                tasks.add(new Callable<Void>()
+                {
+                    @Override
+                    public Void call() throws SocketIOException
+                    {
+                        for (int i = 0; i < events; i++)
+                            socket.emit("event", i);
+                        return null;
+                    }
+                });
+            }
+            tasks.add(new Callable<Void>()
+            {
+                @Override
+                public Void call()
+                {
+                    session.onPacket(EngineIOProtocol.createUpgradePacket(), websocket);
+                    return null;
+                }
+            });
+            race(tasks);
+
+            assertThat(session.getConnection()).isSameAs(websocket);
+            assertThat(polling.getPackets().size() + websocket.getPackets().size())
+                    .isEqualTo((THREADS - 1) * events);
+            polling.abort();
+        }
+    }
+
+    @Test
+    public void connectRacingTimeoutNeverLeavesSessionConnected() throws Exception
+    {
+        SocketIOManager manager = SocketIOManager.getInstance();
+        List<Session> sessions = new ArrayList<>();
+        for (int i = 0; i < ROUNDS; i++)
+        {
+            Session session = manager.createSession(null);
+            session.setTimeout(1);
+            session.resetTimeout();
+
+            RecordingTransportConnection connection = new RecordingTransportConnection();
+            connection.setSession(session);
+            session.onConnect(connection);
+            sessions.add(session);
+
+            if (i % 20 == 0)
+                Thread.sleep(10); // spread the connects over several ticks of the timer
+        }
+
+        long deadline = System.currentTimeMillis() + 5000;
+        for (Session session : sessions)
+        {
+            // the session is deleted at the end of the disconnect, after it is CLOSED
+            while (manager.getSession(session.getSessionId()) != null && System.currentTimeMillis() < deadline)
+                Thread.sleep(10);
+
+            assertThat(session.getConnectionState()).isEqualTo(ConnectionState.CLOSED);
+            assertThat(manager.getSession(session.getSessionId())).isNull();
+        }
+
+        for (Socket socket : manager.getNamespace(SocketIOProtocol.DEFAULT_NAMESPACE).getSockets())
+            assertThat(sessions).doesNotContain(socket.getSession());
+    }
+
+    @Test
+    public void socketsCreatedWhileIterating() throws Exception
+    {
+        final Session session = RecordingTransportConnection.connect().getSession();
+        final int namespaces = 50;
+        for (int i = 0; i < namespaces; i++)
+        {
+            if (SocketIOManager.getInstance().getNamespace(NS + i) == null)
+                SocketIOManager.getInstance().createNamespace(NS + i);
+        }
+
+        final AtomicInteger next = new AtomicInteger();
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (int t = 0; t < THREADS - 1; t++)
+        {
+            tasks.add(new Callable<Void>()
+            {
+                @Override
+                public Void call()
+                {
+                    for (int i = next.getAndIncrement(); i < namespaces; i = next.getAndIncrement())
+                        session.createSocket(NS + i);
+                    return null;
+                }
+            });
+        }
+        tasks.add(new Callable<Void>()
+        {
+            @Override
+            public Void call()
+            {
+                while (next.get() < namespaces)
+                    session.onDrain();
+                return null;
+            }
+        });
+        race(tasks);
+
+        final CountingListener listener = new CountingListener();
+        for (int i = 0; i < namespaces; i++)
+        {
+            for (Socket socket : SocketIOManager.getInstance().getNamespace(NS + i).getSockets())
+            {
+                if (socket.getSession() == session)
+                    socket.on(listener);
+            }
+        }
+        ((RecordingTransportConnection) session.getConnection()).abort();
+
+        assertThat(listener.calls.get()).isEqualTo(namespaces);
+    }
+}
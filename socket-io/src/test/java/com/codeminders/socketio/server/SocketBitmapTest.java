@@ -0,0 +1,116 @@
+package com.codeminders.socketio.server;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SocketBitmapTest
+{
+    private static int[] toArray(TreeSet<Integer> set)
+    {
+        int[] result = new int[set.size()];
+        int i = 0;
+        for (int value : set)
+            result[i++] = value;
+        return result;
+    }
+
+    @Test
+    public void addAndRemove()
+    {
+        SocketBitmap bitmap = SocketBitmap.EMPTY.with(5).with(70000).with(5);
+
+        assertThat(bitmap.cardinality()).isEqualTo(2);
+        assertThat(bitmap.contains(5)).isTrue();
+        assertThat(bitmap.contains(70000)).isTrue();
+        assertThat(bitmap.contains(6)).isFalse();
+        assertThat(bitmap.toArray()).containsExactly(5, 70000);
+
+        assertThat(bitmap.without(6)).isSameAs(bitmap);
+        assertThat(bitmap.without(5).without(70000).isEmpty()).isTrue();
+    }
+
+    @Test
+    public void chunkSwitchesBetweenArrayAndWords()
+    {
+        // every other handle, so the chunk fills up well past the array limit
+        SocketBitmap bitmap = SocketBitmap.EMPTY;
+        TreeSet<Integer> expected = new TreeSet<>();
+        for (int handle = 0; handle < 2000; handle += 2)
+        {
+            bitmap = bitmap.with(handle);
+            expected.add(handle);
+        }
+        assertThat(bitmap.cardinality()).isEqualTo(1000);
+        assertThat(bitmap.toArray()).containsExactly(toArray(expected));
+
+        for (int handle = 0; handle < 1900; handle += 2)
+        {
+            bitmap = bitmap.without(handle);
+            expected.remove(handle);
+        }
+        assertThat(bitmap.cardinality()).isEqualTo(50);
+        assertThat(bitmap.toArray()).containsExactly(toArray(expected));
+        assertThat(bitmap.contains(1998)).isTrue();
+        assertThat(bitmap.contains(1000)).isFalse();
+    }
+
+    @Test
+    public void updatesDoNotChangeSnapshot()
+    {
+        SocketBitmap before = SocketBitmap.EMPTY.with(1).with(2);
+        SocketBitmap after = before.with(3).without(1);
+
+        assertThat(before.toArray()).containsExactly(1, 2);
+        assertThat(after.toArray()).containsExactly(2, 3);
+    }
+
+    @Test
+    public void builderComputesUnionMinusExcluded()
+    {
+        Random random = new Random(42);
+        List<SocketBitmap> rooms = new ArrayList<>();
+        List<TreeSet<Integer>> expectedRooms = new ArrayList<>();
+        for (int r = 0; r < 20; r++)
+        {
+            // small rooms stay arrays, large ones switch to words
+            int members = r % 2 == 0 ? 10 : 3000;
+            SocketBitmap room = SocketBitmap.EMPTY;
+            TreeSet<Integer> expected = new TreeSet<>();
+            for (int i = 0; i < members; i++)
+            {
+                int handle = random.nextInt(20000);
+                room = room.with(handle);
+                expected.add(handle);
+            }
+            rooms.add(room);
+            expectedRooms.add(expected);
+        }
+
+        SocketBitmap.Builder builder = new SocketBitmap.Builder();
+        TreeSet<Integer> expected = new TreeSet<>();
+        for (int r = 0; r < 15; r++)
+        {
+            builder.or(rooms.get(r));
+            expected.addAll(expectedRooms.get(r));
+        }
+        for (int r = 15; r < 20; r++)
+        {
+            builder.andNot(rooms.get(r));
+            expected.removeAll(expectedRooms.get(r));
+        }
+        builder.add(30000);
+        expected.add(30000);
+        int removed = expected.first();
+        builder.remove(removed);
+        expected.remove(removed);
+        builder.remove(1 << 24); // never added
+
+        assertThat(builder.toArray()).containsExactly(toArray(expected));
+    }
+}
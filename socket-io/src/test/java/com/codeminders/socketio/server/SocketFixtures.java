@@ -0,0 +1,88 @@
+package com.codeminders.socketio.server;
+
+import com.codeminders.socketio.common.SocketIOException;
+import com.codeminders.socketio.protocol.EngineIOPacket;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Namespaces and sockets connected through {@link RecordingTransportConnection} for the tests
+ */
+public final class SocketFixtures
+{
+    private SocketFixtures()
+    {
+    }
+
+    /**
+     * Finds or creates a namespace. Namespaces outlive the tests, so every test should use an id of its own.
+     *
+     * @param id namespace id
+     * @return namespace
+     */
+    public static Namespace namespace(String id)
+    {
+        Namespace ns = SocketIOManager.getInstance().getNamespace(id);
+        return ns != null ? ns : SocketIOManager.getInstance().createNamespace(id);
+    }
+
+    /**
+     * Creates new session connected through a test connection and its socket in the namespace
+     *
+     * @param ns namespace
+     * @return socket
+     */
+    public static Socket connect(Namespace ns) throws SocketIOException
+    {
+        return RecordingTransportConnection.connect().getSession().createSocket(ns.getId());
+    }
+
+    /**
+     * Creates new session connected through the given connection and its socket in the namespace
+     *
+     * @param ns namespace
+     * @param connection connection, e.g. overriding the methods of {@link RecordingTransportConnection}
+     * @return socket
+     */
+    public static Socket connect(Namespace ns, RecordingTransportConnection connection) throws SocketIOException
+    {
+        connection.setSession(SocketIOManager.getInstance().createSession(null));
+        connection.getSession().onConnect(connection);
+        connection.getPackets().clear();
+        return connection.getSession().createSocket(ns.getId());
+    }
+
+    /**
+     * Connects sockets and makes them join the room
+     *
+     * @param ns namespace
+     * @param room room
+     * @param count number of sockets
+     * @return sockets
+     */
+    public static List<Socket> join(Namespace ns, Room room, int count) throws SocketIOException
+    {
+        List<Socket> sockets = new ArrayList<>(count);
+        for (int i = 0; i < count; i++)
+        {
+            Socket socket = connect(ns);
+            room.join(socket);
+            sockets.add(socket);
+        }
+        return sockets;
+    }
+
+    public static RecordingTransportConnection connection(Socket socket)
+    {
+        return (RecordingTransportConnection) socket.getSession().getConnection();
+    }
+
+    /**
+     * @return packets sent to the socket
+     */
+    public static List<EngineIOPacket> packets(Socket socket)
+    {
+        return connection(socket).getPackets();
+    }
+}
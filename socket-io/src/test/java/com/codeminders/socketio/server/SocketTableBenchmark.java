@@ -0,0 +1,119 @@
+package com.codeminders.socketio.server;
+
+import com.codeminders.socketio.common.SocketIOException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Cost of a disconnect in a namespace of 100k sockets: synchronized linked list against
+ * concurrent map by socket id. Broadcasts iterating the table run meanwhile.
+ */
+public class SocketTableBenchmark
+{
+    private static final int SOCKETS     = 100000;
+    private static final int DISCONNECTS = 5000;
+
+    public static void main(String[] args) throws Exception
+    {
+        Namespace ns = SocketIOManager.getInstance().createNamespace("/socket-table-benchmark");
+        List<Socket> sockets = new ArrayList<>(SOCKETS);
+        for (int i = 0; i < SOCKETS; i++)
+            sockets.add(RecordingTransportConnection.connect().getSession().createSocket(ns.getId()));
+
+        for (int round = 0; round < 3; round++)
+        {
+            list(sockets);
+            map(sockets);
+        }
+    }
+
+    /**
+     * Former layout. Iteration has to hold the lock, otherwise it fails when the list changes
+     */
+    private static void list(List<Socket> sockets) throws InterruptedException
+    {
+        final List<Socket> table = Collections.synchronizedList(new LinkedList<Socket>(sockets));
+        Thread broadcaster = start(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                synchronized (table)
+                {
+                    iterate(table);
+                }
+            }
+        });
+
+        long start = System.nanoTime();
+        for (int i = 0; i < DISCONNECTS; i++)
+        {
+            Socket socket = sockets.get(i * (SOCKETS / DISCONNECTS));
+            table.remove(socket);
+            table.add(socket);
+        }
+        long elapsed = System.nanoTime() - start;
+        broadcaster.interrupt();
+        broadcaster.join();
+
+        System.out.printf("synchronized list: %10.1f us/disconnect%n", elapsed / 1000.0 / DISCONNECTS);
+    }
+
+    private static void map(List<Socket> sockets) throws InterruptedException
+    {
+        final ConcurrentMap<String, Socket> table = new ConcurrentHashMap<>();
+        for (Socket socket : sockets)
+            table.put(socket.getId(), socket);
+        Thread broadcaster = start(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                iterate(table.values());
+            }
+        });
+
+        long start = System.nanoTime();
+        for (int i = 0; i < DISCONNECTS; i++)
+        {
+            Socket socket = sockets.get(i * (SOCKETS / DISCONNECTS));
+            table.remove(socket.getId(), socket);
+            table.put(socket.getId(), socket);
+        }
+        long elapsed = System.nanoTime() - start;
+        broadcaster.interrupt();
+        broadcaster.join();
+
+        System.out.printf("concurrent map:    %10.1f us/disconnect%n", elapsed / 1000.0 / DISCONNECTS);
+    }
+
+    private static volatile int sink;
+
+    private static void iterate(Iterable<Socket> sockets)
+    {
+        int count = 0;
+        for (Socket socket : sockets)
+            count += socket.getNamespace().length();
+        sink = count;
+    }
+
+    private static Thread start(final Runnable broadcast)
+    {
+        Thread thread = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                while (!Thread.currentThread().isInterrupted())
+                    broadcast.run();
+            }
+        });
+        thread.start();
+        return thread;
+    }
+}
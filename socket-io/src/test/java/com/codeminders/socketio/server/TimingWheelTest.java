@@ -0,0 +1,147 @@
+package com.codeminders.socketio.server;
+
+import com.google.common.util.concurrent.MoreExecutors;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TimingWheelTest
+{
+    private static final int TICK = 100;
+
+    // the wheel is advanced by the test, expired entries run right on the calling thread
+    private final TimingWheel wheel = new TimingWheel(null, MoreExecutors.directExecutor(), TICK, 8);
+
+    private static class Counter extends TimingWheel.Timeout
+    {
+        private final long timeout;
+        private final AtomicInteger expired = new AtomicInteger();
+        private final CountDownLatch done = new CountDownLatch(1);
+
+        Counter(TimingWheel wheel, long timeout)
+        {
+            super(wheel);
+            this.timeout = timeout;
+        }
+
+        @Override
+        long getDeadline()
+        {
+            return getLastActivity() + timeout;
+        }
+
+        @Override
+        void expire()
+        {
+            expired.incrementAndGet();
+            done.countDown();
+        }
+    }
+
+    @Test
+    public void expiresOnceDeadlinePassed()
+    {
+        Counter timeout = new Counter(wheel, 250);
+        wheel.schedule(timeout);
+
+        wheel.advance(200);
+        assertThat(timeout.expired.get()).isZero();
+
+        wheel.advance(300);
+        assertThat(timeout.expired.get()).isEqualTo(1);
+
+        wheel.advance(2000);
+        assertThat(timeout.expired.get()).isEqualTo(1);
+    }
+
+    @Test
+    public void activityPostponesDeadline()
+    {
+        Counter timeout = new Counter(wheel, 250);
+        wheel.schedule(timeout);
+
+        for (long now = 100; now <= 1000; now += 100)
+        {
+            wheel.advance(now);
+            timeout.touch();
+        }
+        assertThat(timeout.expired.get()).isZero();
+
+        wheel.advance(1200);
+        assertThat(timeout.expired.get()).isZero();
+        wheel.advance(1300);
+        assertThat(timeout.expired.get()).isEqualTo(1);
+    }
+
+    @Test
+    public void cancelledEntryNeverExpires()
+    {
+        Counter timeout = new Counter(wheel, 100);
+        wheel.schedule(timeout);
+        wheel.advance(50);
+        timeout.cancel();
+
+        wheel.advance(1000);
+        assertThat(timeout.expired.get()).isZero();
+    }
+
+    @Test
+    public void deadlineBeyondWheelSpan()
+    {
+        // the wheel turns every 800ms
+        Counter timeout = new Counter(wheel, 2050);
+        wheel.schedule(timeout);
+
+        for (long now = 100; now <= 2000; now += 100)
+            wheel.advance(now);
+        assertThat(timeout.expired.get()).isZero();
+
+        wheel.advance(2100);
+        assertThat(timeout.expired.get()).isEqualTo(1);
+    }
+
+    @Test
+    public void lateTickProcessesAllBuckets()
+    {
+        Counter[] timeouts = new Counter[20];
+        for (int i = 0; i < timeouts.length; i++)
+        {
+            timeouts[i] = new Counter(wheel, (i + 1) * 100);
+            wheel.schedule(timeouts[i]);
+        }
+
+        wheel.advance(5000);
+        for (Counter timeout : timeouts)
+            assertThat(timeout.expired.get()).isEqualTo(1);
+    }
+
+    @Test
+    public void entryScheduledAfterIdleStartWaitsForItsDeadline() throws InterruptedException
+    {
+        ScheduledExecutorService timer = Executors.newScheduledThreadPool(1);
+        try
+        {
+            TimingWheel ticking = new TimingWheel(timer, MoreExecutors.directExecutor(), 10, 8);
+
+            // nothing is scheduled, so the wheel does not tick yet
+            Thread.sleep(300);
+
+            long start = System.nanoTime();
+            Counter timeout = new Counter(ticking, 200);
+            ticking.schedule(timeout);
+
+            assertThat(timeout.done.await(5, TimeUnit.SECONDS)).isTrue();
+            assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)).isGreaterThanOrEqualTo(190);
+        }
+        finally
+        {
+            timer.shutdownNow();
+        }
+    }
+}
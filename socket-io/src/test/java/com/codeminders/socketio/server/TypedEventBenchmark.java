@@ -0,0 +1,108 @@
+package com.codeminders.socketio.server;
+
+import com.codeminders.socketio.common.SocketIOException;
+import com.codeminders.socketio.protocol.EventPacket;
+import com.codeminders.socketio.protocol.SocketIOProtocol;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compares typed event listener with {@link EventListener} receiving decoded {@code Object[]} arguments.
+ * <p>
+ * Run with {@code java -cp ... com.codeminders.socketio.server.TypedEventBenchmark}.
+ * Both listeners build the same {@link Move}; the typed one binds it straight from JSON tokens
+ * while the untyped one walks {@code LinkedHashMap} created by the decoder.
+ */
+public class TypedEventBenchmark
+{
+    private static final int ITERATIONS = 200000;
+    private static final int ROUNDS     = 20;
+
+    private static final String PACKET =
+            "2[\"move\",{\"player\":\"benchmark\",\"piece\":\"knight\",\"x\":4,\"y\":7," +
+            "\"path\":[[1,2],[3,4],[4,7]],\"ts\":1514764800000}]";
+
+    public static class Move
+    {
+        public String  player;
+        public String  piece;
+        public int     x;
+        public int     y;
+        public int[][] path;
+        public long    ts;
+    }
+
+    private static long sink;
+
+    public static void main(String[] args) throws IOException
+    {
+        Socket typed = socket();
+        typed.on("move", Move.class, new TypedEventListener<Move>()
+        {
+            @Override
+            public Object onEvent(String name, Move move, boolean ackRequested)
+            {
+                sink += move.x + move.path.length;
+                return null;
+            }
+        });
+
+        Socket untyped = socket();
+        untyped.on("move", new EventListener()
+        {
+            @Override
+            public Object onEvent(String name, Object[] args, boolean ackRequested)
+            {
+                Move move = toMove((Map) args[0]);
+                sink += move.x + move.path.length;
+                return null;
+            }
+        });
+
+        for (int round = 0; round < ROUNDS; round++)
+        {
+            long typedTime = run(typed);
+            long untypedTime = run(untyped);
+
+            System.out.printf("round %2d: typed %6.0f ns/event, Object[] %6.0f ns/event%n",
+                    round, (double) typedTime / ITERATIONS, (double) untypedTime / ITERATIONS);
+        }
+        System.out.println(sink);
+    }
+
+    private static Socket socket() throws SocketIOException
+    {
+        return RecordingTransportConnection.connect().getSession().createSocket(SocketIOProtocol.DEFAULT_NAMESPACE);
+    }
+
+    private static long run(Socket socket) throws IOException
+    {
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++)
+            socket.onEvent((EventPacket) SocketIOProtocol.decode(PACKET));
+        return System.nanoTime() - start;
+    }
+
+    private static Move toMove(Map map)
+    {
+        Move move = new Move();
+        move.player = (String) map.get("player");
+        move.piece = (String) map.get("piece");
+        move.x = ((Number) map.get("x")).intValue();
+        move.y = ((Number) map.get("y")).intValue();
+        move.ts = ((Number) map.get("ts")).longValue();
+
+        List path = (List) map.get("path");
+        move.path = new int[path.size()][];
+        for (int i = 0; i < path.size(); i++)
+        {
+            List step = (List) path.get(i);
+            move.path[i] = new int[step.size()];
+            for (int j = 0; j < step.size(); j++)
+                move.path[i][j] = ((Number) step.get(j)).intValue();
+        }
+        return move;
+    }
+}
@@ -0,0 +1,162 @@
+package com.codeminders.socketio.server.transport;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class OutboundBufferTest
+{
+    private final AtomicInteger overflows = new AtomicInteger();
+    private final AtomicInteger drains    = new AtomicInteger();
+
+    private final OutboundBuffer.Listener listener = new OutboundBuffer.Listener()
+    {
+        @Override
+        public void onOverflow()
+        {
+            overflows.incrementAndGet();
+        }
+
+        @Override
+        public void onDrain()
+        {
+            drains.incrementAndGet();
+        }
+    };
+
+    @Test
+    public void dropOldest()
+    {
+        OutboundBuffer<String> buffer = new OutboundBuffer<>(3, 1000, OutboundBuffer.OverflowPolicy.DROP_OLDEST, listener);
+        for (String s : new String[]{"a", "b", "c", "d"})
+            assertThat(buffer.offer(s, 1)).isTrue();
+
+        assertThat(buffer.poll()).isEqualTo("b");
+        assertThat(buffer.size()).isEqualTo(2);
+        assertThat(overflows.get()).isZero();
+    }
+
+    @Test
+    public void dropOldestDropsWholeGroups()
+    {
+        OutboundBuffer<String> buffer = new OutboundBuffer<>(4, 1000, OutboundBuffer.OverflowPolicy.DROP_OLDEST, listener);
+        assertThat(buffer.offer(Arrays.asList("a1", "a2", "a3"), new int[]{1, 1, 1})).isTrue();
+        assertThat(buffer.offer("b", 1)).isTrue();
+        assertThat(buffer.offer("c", 1)).isTrue();
+
+        assertThat(buffer.poll()).isEqualTo("b");
+        assertThat(buffer.poll()).isEqualTo("c");
+        assertThat(buffer.poll()).isNull();
+        assertThat(buffer.bytes()).isZero();
+    }
+
+    @Test
+    public void dropOldestKeepsPartiallyPolledGroup()
+    {
+        OutboundBuffer<String> buffer = new OutboundBuffer<>(3, 1000, OutboundBuffer.OverflowPolicy.DROP_OLDEST, listener);
+        assertThat(buffer.offer(Arrays.asList("a1", "a2", "a3"), new int[]{1, 1, 1})).isTrue();
+        assertThat(buffer.poll()).isEqualTo("a1");
+        assertThat(buffer.offer("b", 1)).isTrue();
+        assertThat(buffer.offer("c", 1)).isTrue();
+
+        assertThat(buffer.poll()).isEqualTo("a2");
+        assertThat(buffer.poll()).isEqualTo("a3");
+        assertThat(buffer.poll()).isEqualTo("c");
+        assertThat(buffer.poll()).isNull();
+    }
+
+    @Test
+    public void controlPacketsAreNeverDropped()
+    {
+        OutboundBuffer<String> buffer = new OutboundBuffer<>(2, 1000, OutboundBuffer.OverflowPolicy.DROP_OLDEST, listener);
+        assertThat(buffer.offer("ping", 1, true)).isTrue();
+        assertThat(buffer.offer("a", 1)).isTrue();
+        assertThat(buffer.offer("b", 1)).isTrue();
+        assertThat(buffer.offer("pong", 1, true)).isTrue();
+
+        assertThat(buffer.poll()).isEqualTo("ping");
+        assertThat(buffer.poll()).isEqualTo("b");
+        assertThat(buffer.poll()).isEqualTo("pong");
+
+        buffer = new OutboundBuffer<>(1, 1000, OutboundBuffer.OverflowPolicy.DROP_NEWEST, listener);
+        assertThat(buffer.offer("a", 1)).isTrue();
+        assertThat(buffer.offer("b", 1)).isFalse();
+        assertThat(buffer.offer("close", 1, true)).isTrue();
+        assertThat(buffer.size()).isEqualTo(2);
+    }
+
+    @Test
+    public void groupLargerThanBufferIsDroppedAlone()
+    {
+        OutboundBuffer<String> buffer = new OutboundBuffer<>(100, 10, OutboundBuffer.OverflowPolicy.DROP_OLDEST, listener);
+        assertThat(buffer.offer("a", 5)).isTrue();
+        assertThat(buffer.offer(Arrays.asList("b1", "b2"), new int[]{6, 6})).isFalse();
+
+        assertThat(buffer.poll()).isEqualTo("a");
+        assertThat(buffer.poll()).isNull();
+    }
+
+    @Test
+    public void dropNewest()
+    {
+        OutboundBuffer<String> buffer = new OutboundBuffer<>(100, 10, OutboundBuffer.OverflowPolicy.DROP_NEWEST, listener);
+        assertThat(buffer.offer("a", 6)).isTrue();
+        assertThat(buffer.offer("b", 6)).isFalse();
+        assertThat(buffer.offer("c", 4)).isTrue();
+
+        assertThat(buffer.bytes()).isEqualTo(10);
+        assertThat(buffer.poll()).isEqualTo("a");
+        assertThat(buffer.poll()).isEqualTo("c");
+        assertThat(buffer.poll()).isNull();
+    }
+
+    @Test
+    public void disconnectOnOverflow()
+    {
+        OutboundBuffer<String> buffer = new OutboundBuffer<>(2, 1000, OutboundBuffer.OverflowPolicy.DISCONNECT, listener);
+        assertThat(buffer.offer("a", 1)).isTrue();
+        assertThat(buffer.offer("b", 1)).isTrue();
+        assertThat(buffer.offer("c", 1)).isFalse();
+
+        assertThat(overflows.get()).isEqualTo(1);
+        assertThat(buffer.size()).isEqualTo(2);
+    }
+
+    @Test
+    public void drainAfterHighWatermark()
+    {
+        OutboundBuffer<Integer> buffer = new OutboundBuffer<>(8, 1000, OutboundBuffer.OverflowPolicy.DISCONNECT, listener);
+        for (int i = 0; i < 5; i++)
+            buffer.offer(i, 1);
+        assertThat(buffer.isWritable()).isFalse();
+
+        buffer.poll();
+        buffer.poll();
+        assertThat(buffer.isWritable()).isFalse();
+        assertThat(drains.get()).isZero();
+
+        buffer.poll();
+        assertThat(buffer.isWritable()).isTrue();
+        assertThat(drains.get()).isEqualTo(1);
+
+        buffer.poll();
+        assertThat(drains.get()).isEqualTo(1);
+    }
+
+    @Test
+    public void growsPreservingOrder()
+    {
+        OutboundBuffer<Integer> buffer = new OutboundBuffer<>();
+        for (int i = 0; i < 10; i++)
+            buffer.offer(i, 1);
+        for (int i = 0; i < 5; i++)
+            assertThat(buffer.poll()).isEqualTo(i);
+        for (int i = 10; i < 50; i++)
+            buffer.offer(i, 1);
+        for (int i = 5; i < 50; i++)
+            assertThat(buffer.poll()).isEqualTo(i);
+    }
+}
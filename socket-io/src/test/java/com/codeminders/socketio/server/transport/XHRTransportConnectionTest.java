@@ -0,0 +1,65 @@
+package com.codeminders.socketio.server.transport;
+
+import com.codeminders.socketio.common.ConnectionState;
+import com.codeminders.socketio.protocol.SocketIOProtocol;
+import com.codeminders.socketio.server.Config;
+import com.codeminders.socketio.server.Namespace;
+import com.codeminders.socketio.server.ServletBasedConfig;
+import com.codeminders.socketio.server.Socket;
+import com.codeminders.socketio.server.SocketIOManager;
+import com.google.common.base.Strings;
+import org.junit.Test;
+
+import javax.servlet.ServletConfig;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class XHRTransportConnectionTest
+{
+    @Test
+    public void overflowShutsSessionDown() throws Exception
+    {
+        SocketIOManager manager = SocketIOManager.getInstance();
+        if (manager.getNamespace(SocketIOProtocol.DEFAULT_NAMESPACE) == null)
+            manager.createNamespace(SocketIOProtocol.DEFAULT_NAMESPACE);
+        Namespace ns = manager.getNamespace("/xhr-overflow-test");
+        if (ns == null)
+            ns = manager.createNamespace("/xhr-overflow-test");
+
+        XHRTransportConnection connection = new XHRTransportConnection(null);
+        connection.setSession(manager.createSession(null));
+        connection.init(config(1024, OutboundBuffer.OverflowPolicy.DISCONNECT));
+        connection.getSession().onConnect(connection);
+        Socket socket = connection.getSession().createSocket(ns.getId());
+        assertThat(ns.getSocket(socket.getId())).isSameAs(socket);
+
+        socket.emit("event", Strings.repeat("x", 4096));
+
+        assertThat(connection.getSession().getConnectionState()).isEqualTo(ConnectionState.CLOSED);
+        assertThat(ns.getSocket(socket.getId())).isNull();
+    }
+
+    private static Config config(long maxBytes, OutboundBuffer.OverflowPolicy policy)
+    {
+        final Map<String, String> parameters = new HashMap<>();
+        parameters.put(Config.MAX_OUTBOUND_BYTES, String.valueOf(maxBytes));
+        parameters.put(Config.OVERFLOW_POLICY, policy.name());
+
+        ServletConfig servletConfig = (ServletConfig) Proxy.newProxyInstance(
+                XHRTransportConnectionTest.class.getClassLoader(), new Class[]{ServletConfig.class},
+                new InvocationHandler()
+                {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args)
+                    {
+                        return "getInitParameter".equals(method.getName()) ? parameters.get(args[0]) : null;
+                    }
+                });
+        return new ServletBasedConfig(servletConfig, "xhr-polling");
+    }
+}
@@ -0,0 +1,233 @@
+package com.codeminders.socketio.server.transport.websocket;
+
+import com.codeminders.socketio.server.Config;
+import com.codeminders.socketio.server.ServletBasedConfig;
+import com.codeminders.socketio.server.transport.OutboundBuffer;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.servlet.ServletConfig;
+import javax.websocket.RemoteEndpoint;
+import javax.websocket.SendHandler;
+import javax.websocket.SendResult;
+import javax.websocket.Session;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class AsyncWebsocketIOTest
+{
+    private final List<Object>      sent     = new ArrayList<>();
+    private final List<SendHandler> handlers = new ArrayList<>();
+    private final List<Boolean>     batching = new ArrayList<>();
+    private boolean closed;
+    private boolean completeInline;
+    private Runnable onSend;
+
+    private AsyncWebsocketIO io;
+
+    @Before
+    public void setUp()
+    {
+        final RemoteEndpoint.Async remote = (RemoteEndpoint.Async) Proxy.newProxyInstance(
+                getClass().getClassLoader(), new Class[]{RemoteEndpoint.Async.class}, new InvocationHandler()
+                {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args)
+                    {
+                        switch (method.getName())
+                        {
+                            case "sendText":
+                            case "sendBinary":
+                                sent.add(args[0]);
+                                handlers.add((SendHandler) args[1]);
+                                if (onSend != null)
+                                    onSend.run();
+                                if (completeInline)
+                                    ((SendHandler) args[1]).onResult(new SendResult());
+                                break;
+                            case "setBatchingAllowed":
+                                batching.add((Boolean) args[0]);
+                                break;
+                        }
+                        return null;
+                    }
+                });
+
+        Session session = (Session) Proxy.newProxyInstance(
+                getClass().getClassLoader(), new Class[]{Session.class}, new InvocationHandler()
+                {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args)
+                    {
+                        if ("getAsyncRemote".equals(method.getName()))
+                            return remote;
+                        if ("close".equals(method.getName()))
+                            closed = true;
+                        return null;
+                    }
+                });
+
+        io = new AsyncWebsocketIO(session);
+    }
+
+    @Test
+    public void writesOneFrameAtATimeInOrder() throws IOException
+    {
+        io.sendString("1");
+        io.sendString("2");
+        io.sendBinary(new byte[]{3});
+
+        assertThat(sent).containsExactly("1");
+
+        handlers.get(0).onResult(new SendResult());
+        assertThat(sent).hasSize(2);
+        assertThat(sent.get(1)).isEqualTo("2");
+        assertThat(batching).containsExactly(true);
+
+        handlers.get(1).onResult(new SendResult());
+        assertThat(sent).hasSize(3);
+        assertThat(batching).containsExactly(true, false);
+
+        handlers.get(2).onResult(new SendResult());
+        assertThat(sent).hasSize(3);
+    }
+
+    @Test
+    public void inlineCompletionDrainsQueue() throws IOException
+    {
+        io.sendString("1");
+        io.sendString("2");
+        io.sendString("3");
+
+        // container completes the rest of the writes before sendText() returns
+        completeInline = true;
+        handlers.get(0).onResult(new SendResult());
+        io.sendString("4");
+
+        assertThat(sent).containsExactly("1", "2", "3", "4");
+    }
+
+    @Test
+    public void nestedSendOnAnotherConnectionIsWritten() throws IOException
+    {
+        final List<Object> otherSent = new ArrayList<>();
+        final RemoteEndpoint.Async otherRemote = (RemoteEndpoint.Async) Proxy.newProxyInstance(
+                getClass().getClassLoader(), new Class[]{RemoteEndpoint.Async.class}, new InvocationHandler()
+                {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args)
+                    {
+                        if ("sendText".equals(method.getName()))
+                            otherSent.add(args[0]);
+                        return null;
+                    }
+                });
+        final AsyncWebsocketIO other = new AsyncWebsocketIO((Session) Proxy.newProxyInstance(
+                getClass().getClassLoader(), new Class[]{Session.class}, new InvocationHandler()
+                {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args)
+                    {
+                        return "getAsyncRemote".equals(method.getName()) ? otherRemote : null;
+                    }
+                }));
+
+        // e.g. a listener broadcasting while this connection is being flushed
+        onSend = new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                onSend = null;
+                try
+                {
+                    other.sendString("x");
+                }
+                catch (IOException e)
+                {
+                    throw new IllegalStateException(e);
+                }
+            }
+        };
+        io.sendString("1");
+
+        assertThat(sent).containsExactly("1");
+        assertThat(otherSent).containsExactly("x");
+    }
+
+    @Test(expected = IOException.class)
+    public void failedWriteClosesSession() throws IOException
+    {
+        io.sendString("1");
+        io.sendString("2");
+        handlers.get(0).onResult(new SendResult(new IOException("timeout")));
+
+        assertThat(closed).isTrue();
+        assertThat(sent).containsExactly("1");
+
+        io.sendString("3");
+    }
+
+    @Test
+    public void partsAreJoinedIntoOneFrame() throws IOException
+    {
+        io.sendBinary(ByteBuffer.wrap(new byte[]{4}), ByteBuffer.wrap(new byte[]{1, 2}));
+
+        assertThat(sent).containsExactly(ByteBuffer.wrap(new byte[]{4, 1, 2}));
+    }
+
+    @Test
+    public void textFramesAreSizedInUtf8() throws IOException
+    {
+        io.init(config(4, OutboundBuffer.OverflowPolicy.DROP_NEWEST), null);
+        io.sendString("1");
+        io.sendString("\u00e9\u00e9"); // 4 bytes in UTF-8
+        io.sendString("2");
+
+        completeInline = true;
+        handlers.get(0).onResult(new SendResult());
+        assertThat(sent).containsExactly("1", "\u00e9\u00e9");
+    }
+
+    @Test
+    public void packetIsDroppedWithAttachmentsAndControlFramesAreKept() throws IOException
+    {
+        io.init(config(4, OutboundBuffer.OverflowPolicy.DROP_OLDEST), null);
+        io.sendString("1");
+        io.sendPacket("4x", Arrays.asList(ByteBuffer.wrap(new byte[]{1, 2})));
+        io.sendControl("3");
+        io.sendPacket("4y", Arrays.asList(ByteBuffer.wrap(new byte[]{3})));
+
+        completeInline = true;
+        handlers.get(0).onResult(new SendResult());
+        assertThat(sent).containsExactly("1", "3", "4y", ByteBuffer.wrap(new byte[]{3}));
+    }
+
+    private static Config config(long maxBytes, OutboundBuffer.OverflowPolicy policy)
+    {
+        final Map<String, String> parameters = new HashMap<>();
+        parameters.put(Config.MAX_OUTBOUND_BYTES, String.valueOf(maxBytes));
+        parameters.put(Config.OVERFLOW_POLICY, policy.name());
+
+        ServletConfig servletConfig = (ServletConfig) Proxy.newProxyInstance(
+                AsyncWebsocketIOTest.class.getClassLoader(), new Class[]{ServletConfig.class}, new InvocationHandler()
+                {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args)
+                    {
+                        return "getInitParameter".equals(method.getName()) ? parameters.get(args[0]) : null;
+                    }
+                });
+        return new ServletBasedConfig(servletConfig, "websocket");
+    }
+}